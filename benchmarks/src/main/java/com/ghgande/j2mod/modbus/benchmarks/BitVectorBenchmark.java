@@ -0,0 +1,115 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ghgande.j2mod.modbus.util.BitVector;
+
+/**
+ * BitVectorBenchmark -- the bit operations behind coil and discrete input
+ * messages, per whole vector.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BitVectorBenchmark {
+	@Param({ "16", "2000" })
+	public int size;
+
+	private BitVector m_Vector;
+	private byte[] m_Bytes;
+
+	@Setup
+	public void setup() {
+		m_Bytes = new byte[(size + 7) / 8];
+		new Random(size).nextBytes(m_Bytes);
+		m_Vector = BitVector.createBitVector(m_Bytes.clone(), size);
+	}
+
+	@Benchmark
+	public int getBits() {
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			if (m_Vector.getBit(i))
+				count++;
+		}
+		return count;
+	}
+
+	@Benchmark
+	public BitVector setBits() {
+		for (int i = 0; i < size; i++)
+			m_Vector.setBit(i, (i & 3) == 0);
+
+		return m_Vector;
+	}
+
+	@Benchmark
+	public BitVector setBytes() {
+		m_Vector.setBytes(m_Bytes, size);
+		return m_Vector;
+	}
+
+	@Benchmark
+	public byte[] getBytes() {
+		return m_Vector.getBytes();
+	}
+
+	@Benchmark
+	public BitVector create() {
+		return BitVector.createBitVector(m_Bytes, size);
+	}
+
+	@Benchmark
+	public String format() {
+		return m_Vector.toString();
+	}
+}
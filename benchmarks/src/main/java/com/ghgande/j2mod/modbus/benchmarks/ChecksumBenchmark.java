@@ -0,0 +1,101 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ghgande.j2mod.modbus.util.CRC16;
+import com.ghgande.j2mod.modbus.util.LRC;
+import com.ghgande.j2mod.modbus.util.ModbusUtil;
+
+/**
+ * ChecksumBenchmark -- CRC and LRC computation over frames from the
+ * smallest request to the largest RTU frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChecksumBenchmark {
+	@Param({ "6", "64", "254" })
+	public int length;
+
+	private byte[] m_Frame;
+
+	@Setup
+	public void setup() {
+		m_Frame = new byte[length + 2];
+		new Random(length).nextBytes(m_Frame);
+		int crc = CRC16.calculate(m_Frame, 0, length);
+		m_Frame[length] = (byte) crc;
+		m_Frame[length + 1] = (byte) (crc >> 8);
+	}
+
+	@Benchmark
+	public int crc16() {
+		return CRC16.calculate(m_Frame, 0, length);
+	}
+
+	@Benchmark
+	public boolean crc16Check() {
+		return CRC16.check(m_Frame, 0, length + 2);
+	}
+
+	// the deprecated method, measured against its replacement
+	@Benchmark
+	@SuppressWarnings("deprecation")
+	public int[] calculateCRC() {
+		return ModbusUtil.calculateCRC(m_Frame, 0, length);
+	}
+
+	@Benchmark
+	public int lrc() {
+		return LRC.calculate(m_Frame, 0, length);
+	}
+}
@@ -0,0 +1,156 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.benchmarks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Frames -- a representative frame for each request and response type in
+ * <tt>com.ghgande.j2mod.modbus.msg</tt>, as the unit, function code and data
+ * of a headless (serial) message.
+ * 
+ * <p>
+ * Register reads and writes use the largest counts the protocol allows, so
+ * the per-register costs dominate.
+ */
+final class Frames {
+	private static final Map<String, byte[]> c_Requests = new LinkedHashMap<String, byte[]>();
+	private static final Map<String, byte[]> c_Responses = new LinkedHashMap<String, byte[]>();
+
+	static {
+		request("ReadCoils", "01 01 00 00 07 d0");
+		request("ReadInputDiscretes", "01 02 00 00 07 d0");
+		request("ReadMultipleRegisters", "01 03 00 00 00 7d");
+		request("ReadInputRegisters", "01 04 00 00 00 7d");
+		request("WriteCoil", "01 05 00 01 ff 00");
+		request("WriteSingleRegister", "01 06 00 01 12 34");
+		request("ReadExceptionStatus", "01 07");
+		request("ReadSerialDiagnostics", "01 08 00 00 12 34");
+		request("ReadCommEventCounter", "01 0b");
+		request("ReadCommEventLog", "01 0c");
+		request("WriteMultipleCoils", "01 0f 00 00 07 b0 f6" + fill(246));
+		request("WriteMultipleRegisters", "01 10 00 00 00 7b f6" + fill(246));
+		request("ReportSlaveID", "01 11");
+		request("ReadFileRecord", "01 14 07 06 00 01 00 00 00 0a");
+		request("WriteFileRecord", "01 15 0b 06 00 01 00 00 00 02 12 34 56 78");
+		request("MaskWriteRegister", "01 16 00 04 00 f2 00 25");
+		request("ReadWriteMultiple", "01 17 00 00 00 76 00 00 00 79 f2"
+				+ fill(242));
+		request("ReadFIFOQueue", "01 18 00 00");
+		request("ReadMEI", "01 2b 0e 01 00");
+
+		response("ReadCoils", "01 01 fa" + fill(250));
+		response("ReadInputDiscretes", "01 02 fa" + fill(250));
+		response("ReadMultipleRegisters", "01 03 fa" + fill(250));
+		response("ReadInputRegisters", "01 04 fa" + fill(250));
+		response("WriteCoil", "01 05 00 01 ff 00");
+		response("WriteSingleRegister", "01 06 00 01 12 34");
+		response("ReadExceptionStatus", "01 07 6d");
+		response("ReadSerialDiagnostics", "01 08 00 00 12 34");
+		response("ReadCommEventCounter", "01 0b 00 00 00 08");
+		response("ReadCommEventLog", "01 0c 08 00 00 00 08 00 03 20 00");
+		response("WriteMultipleCoils", "01 0f 00 00 07 b0");
+		response("WriteMultipleRegisters", "01 10 00 00 00 7b");
+		response("ReportSlaveID", "01 11 07 01 ff 6a 32 6d 6f 64");
+		response("ReadFileRecord", "01 14 06 05 06 12 34 56 78");
+		response("WriteFileRecord", "01 15 0b 06 00 01 00 00 00 02 12 34 56 78");
+		response("MaskWriteRegister", "01 16 00 04 00 f2 00 25");
+		response("ReadWriteMultiple", "01 17 ec" + fill(236));
+		response("ReadFIFOQueue", "01 18 00 06 00 02 00 01 00 02");
+		response("ReadMEI", "01 2b 0e 01 01 00 00 01 00 05 6a 32 6d 6f 64");
+		response("Exception", "01 83 02");
+	}
+
+	/**
+	 * fill -- a run of data bytes, as hex.
+	 */
+	private static String fill(int count) {
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < count; i++)
+			result.append(String.format(" %02x", (i * 37 + 11) & 0xFF));
+
+		return result.toString();
+	}
+
+	private static byte[] parse(String hex) {
+		String[] digits = hex.trim().split(" ");
+		byte[] result = new byte[digits.length];
+		for (int i = 0; i < digits.length; i++)
+			result[i] = (byte) Integer.parseInt(digits[i], 16);
+
+		return result;
+	}
+
+	private static void request(String name, String hex) {
+		c_Requests.put(name, parse(hex));
+	}
+
+	private static void response(String name, String hex) {
+		c_Responses.put(name, parse(hex));
+	}
+
+	/**
+	 * request -- the frame of a request.
+	 * 
+	 * @param name
+	 *            the request class, less <tt>Request</tt>.
+	 * @return the frame.
+	 */
+	static byte[] request(String name) {
+		byte[] frame = c_Requests.get(name);
+		if (frame == null)
+			throw new IllegalArgumentException("No " + name + " request");
+
+		return frame.clone();
+	}
+
+	/**
+	 * response -- the frame of a response.
+	 * 
+	 * @param name
+	 *            the response class, less <tt>Response</tt>.
+	 * @return the frame.
+	 */
+	static byte[] response(String name) {
+		byte[] frame = c_Responses.get(name);
+		if (frame == null)
+			throw new IllegalArgumentException("No " + name + " response");
+
+		return frame.clone();
+	}
+
+	private Frames() {
+	}
+}
@@ -0,0 +1,384 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.benchmarks;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusCoupler;
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.io.ModbusSerialTransaction;
+import com.ghgande.j2mod.modbus.io.ModbusTCPTransaction;
+import com.ghgande.j2mod.modbus.io.ModbusTransaction;
+import com.ghgande.j2mod.modbus.io.ModbusUDPTransaction;
+import com.ghgande.j2mod.modbus.metrics.LatencyHistogram;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ReadCoilsRequest;
+import com.ghgande.j2mod.modbus.msg.ReadInputDiscretesRequest;
+import com.ghgande.j2mod.modbus.msg.ReadInputRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.ReadMultipleRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.WriteCoilRequest;
+import com.ghgande.j2mod.modbus.msg.WriteMultipleRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.WriteSingleRegisterRequest;
+import com.ghgande.j2mod.modbus.net.ModbusListener;
+import com.ghgande.j2mod.modbus.net.ModbusSerialListener;
+import com.ghgande.j2mod.modbus.net.ModbusTCPListener;
+import com.ghgande.j2mod.modbus.net.ModbusUDPListener;
+import com.ghgande.j2mod.modbus.net.SerialConnection;
+import com.ghgande.j2mod.modbus.net.TCPMasterConnection;
+import com.ghgande.j2mod.modbus.net.UDPMasterConnection;
+import com.ghgande.j2mod.modbus.procimg.Register;
+import com.ghgande.j2mod.modbus.procimg.SimpleDigitalIn;
+import com.ghgande.j2mod.modbus.procimg.SimpleDigitalOut;
+import com.ghgande.j2mod.modbus.procimg.SimpleInputRegister;
+import com.ghgande.j2mod.modbus.procimg.SimpleProcessImage;
+import com.ghgande.j2mod.modbus.procimg.SimpleRegister;
+import com.ghgande.j2mod.modbus.serial.MemorySerialPort;
+import com.ghgande.j2mod.modbus.util.SerialParameters;
+
+/**
+ * LoopbackBenchmark -- end to end throughput and latency of an in-process
+ * slave, driven by a growing number of concurrent masters.
+ * 
+ * <p>
+ * The slave is a <tt>ModbusTCPListener</tt> or <tt>ModbusUDPListener</tt> on
+ * the loopback interface, or for <tt>serial</tt> one
+ * <tt>ModbusSerialListener</tt> per master on an in-memory RTU line, since a
+ * serial bus has one master. Each master runs a closed loop of transactions
+ * from the request mix. For each connection count there is a warm up, then a
+ * measurement, and one line of results:
+ * 
+ * <pre>
+ * connections  requests/s  p50 ms  p99 ms  p99.9 ms  max ms  errors
+ * </pre>
+ * 
+ * <p>
+ * The mix is a list of <tt>request:weight</tt>, from <tt>read</tt> (10
+ * holding registers), <tt>readInput</tt> (10 input registers),
+ * <tt>write</tt> (one register), <tt>writeMultiple</tt> (10 registers),
+ * <tt>coils</tt> (16 coils), <tt>discretes</tt> (16 inputs) and
+ * <tt>writeCoil</tt>. In-memory serial lines run at the speed of a real line,
+ * 115200 baud unless <tt>com.ghgande.j2mod.modbus.baud</tt> says otherwise.
+ */
+public class LoopbackBenchmark {
+	private static final String[] REQUESTS = { "read", "readInput", "write",
+			"writeMultiple", "coils", "discretes", "writeCoil" };
+
+	private final String m_Transport;
+	private final int[] m_Weights = new int[REQUESTS.length];
+	private int m_TotalWeight;
+	private int m_Port;
+	private int m_Baud = Integer.getInteger("com.ghgande.j2mod.modbus.baud",
+			115200);
+	private final List<ModbusListener> m_Listeners = new ArrayList<ModbusListener>();
+
+	private volatile boolean m_Running;
+	private volatile boolean m_Measuring;
+	private final LatencyHistogram m_Latency = new LatencyHistogram();
+	private final LongAdder m_Errors = new LongAdder();
+
+	private static void printUsage() {
+		System.out.println("java com.ghgande.j2mod.modbus.benchmarks.LoopbackBenchmark"
+				+ " <tcp|udp|serial> {<connections [1,2,4,...]>}"
+				+ " {<seconds [int]>} {<mix [read:70,write:30,...]>}");
+	}
+
+	/**
+	 * Master -- one connection running transactions in a closed loop.
+	 */
+	private class Master extends Thread {
+		private final int m_Index;
+		private final Object m_Connection;
+		private final ModbusTransaction m_Transaction;
+		private final ModbusRequest[] m_Requests = new ModbusRequest[REQUESTS.length];
+		private final Random m_Random;
+
+		public void run() {
+			while (m_Running) {
+				int pick = m_Random.nextInt(m_TotalWeight);
+				int type = 0;
+				while (pick >= m_Weights[type])
+					pick -= m_Weights[type++];
+
+				m_Transaction.setRequest(m_Requests[type]);
+				long start = System.nanoTime();
+				try {
+					m_Transaction.execute();
+				} catch (ModbusException e) {
+					if (m_Measuring)
+						m_Errors.increment();
+					continue;
+				}
+				if (m_Measuring)
+					m_Latency.record(System.nanoTime() - start);
+			}
+		}
+
+		void close() {
+			if (m_Connection instanceof TCPMasterConnection)
+				((TCPMasterConnection) m_Connection).close();
+			else if (m_Connection instanceof UDPMasterConnection)
+				((UDPMasterConnection) m_Connection).close();
+			else
+				((SerialConnection) m_Connection).close();
+		}
+
+		Master(int index) throws Exception {
+			super("master-" + index);
+			m_Index = index;
+			m_Random = new Random(index);
+
+			if (m_Transport.equals("tcp")) {
+				TCPMasterConnection connection = new TCPMasterConnection(
+						InetAddress.getLoopbackAddress());
+				connection.setPort(m_Port);
+				connection.connect();
+				m_Connection = connection;
+				m_Transaction = new ModbusTCPTransaction(connection);
+			} else if (m_Transport.equals("udp")) {
+				UDPMasterConnection connection = new UDPMasterConnection(
+						InetAddress.getLoopbackAddress());
+				connection.setPort(m_Port);
+				connection.connect();
+				m_Connection = connection;
+				m_Transaction = new ModbusUDPTransaction(connection);
+			} else {
+				SerialConnection connection = new SerialConnection(
+						serialParameters("mem:bench-master-" + m_Index));
+				connection.open();
+				m_Connection = connection;
+				m_Transaction = new ModbusSerialTransaction(connection);
+			}
+
+			m_Requests[0] = new ReadMultipleRegistersRequest(index % 10, 10);
+			m_Requests[1] = new ReadInputRegistersRequest(index % 10, 10);
+			m_Requests[2] = new WriteSingleRegisterRequest(index % 10,
+					new SimpleRegister(index));
+			Register[] registers = new Register[10];
+			for (int i = 0; i < registers.length; i++)
+				registers[i] = new SimpleRegister(i);
+			m_Requests[3] = new WriteMultipleRegistersRequest(10, registers);
+			m_Requests[4] = new ReadCoilsRequest(0, 16);
+			m_Requests[5] = new ReadInputDiscretesRequest(0, 16);
+			m_Requests[6] = new WriteCoilRequest(index % 16, true);
+			for (ModbusRequest request : m_Requests) {
+				request.setUnitID(1);
+				request.setHeadless(m_Transaction instanceof ModbusSerialTransaction);
+			}
+		}
+	}
+
+	private SerialParameters serialParameters(String port) {
+		SerialParameters params = new SerialParameters();
+		params.setPortName(port);
+		params.setBaudRate(m_Baud);
+		params.setDatabits(8);
+		params.setParity("None");
+		params.setStopbits(1);
+		params.setEncoding(Modbus.SERIAL_ENCODING_RTU);
+		return params;
+	}
+
+	/**
+	 * startSlaves -- start the slave side for up to a number of masters.
+	 */
+	private void startSlaves(int masters) throws Exception {
+		SimpleProcessImage spi = new SimpleProcessImage();
+		for (int i = 0; i < 100; i++) {
+			spi.addRegister(new SimpleRegister(i));
+			spi.addInputRegister(new SimpleInputRegister(i));
+			spi.addDigitalOut(new SimpleDigitalOut(i % 2 == 0));
+			spi.addDigitalIn(new SimpleDigitalIn(i % 3 == 0));
+		}
+		ModbusCoupler.getReference().setProcessImage(spi);
+		ModbusCoupler.getReference().setMaster(false);
+		ModbusCoupler.getReference().setUnitID(1);
+
+		if (m_Transport.equals("tcp")) {
+			ModbusTCPListener listener = new ModbusTCPListener(masters,
+					InetAddress.getLoopbackAddress());
+			listener.setPort(m_Port);
+			m_Listeners.add(listener);
+		} else if (m_Transport.equals("udp")) {
+			ModbusUDPListener listener = new ModbusUDPListener(
+					InetAddress.getLoopbackAddress());
+			listener.setPort(m_Port);
+			m_Listeners.add(listener);
+		} else {
+			for (int i = 0; i < masters; i++) {
+				SerialParameters params = serialParameters("bench-slave-" + i);
+				MemorySerialPort.createPair("bench-master-" + i,
+						"bench-slave-" + i, params);
+				params.setPortName("mem:bench-slave-" + i);
+				ModbusSerialListener listener = new ModbusSerialListener(
+						params);
+				listener.setUnit(1);
+				m_Listeners.add(listener);
+			}
+		}
+		for (ModbusListener listener : m_Listeners)
+			listener.listen();
+
+		Thread.sleep(500);
+	}
+
+	/**
+	 * step -- run one connection count and print its results.
+	 */
+	private void step(int connections, int seconds) throws Exception {
+		List<Master> masters = new ArrayList<Master>();
+		for (int i = 0; i < connections; i++)
+			masters.add(new Master(i));
+
+		m_Latency.reset();
+		m_Errors.reset();
+		m_Running = true;
+		for (Master master : masters)
+			master.start();
+
+		Thread.sleep(Math.max(1000, seconds * 200));
+		m_Latency.reset();
+		m_Errors.reset();
+		m_Measuring = true;
+		long start = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		m_Measuring = false;
+		long elapsed = System.nanoTime() - start;
+
+		m_Running = false;
+		for (Master master : masters)
+			master.join();
+		for (Master master : masters)
+			master.close();
+
+		System.out.printf("%11d  %10.1f  %6.3f  %6.3f  %8.3f  %6.3f  %6d%n",
+				connections, m_Latency.getCount() * 1e9 / elapsed,
+				m_Latency.getPercentile(50) / 1e6,
+				m_Latency.getPercentile(99) / 1e6,
+				m_Latency.getPercentile(99.9) / 1e6,
+				m_Latency.getMax() / 1e6, m_Errors.sum());
+	}
+
+	/**
+	 * setMix -- set the request mix.
+	 * 
+	 * @param mix
+	 *            a list of <tt>request:weight</tt>.
+	 */
+	private void setMix(String mix) {
+		for (String entry : mix.split(",")) {
+			String parts[] = entry.split(":");
+			int type = 0;
+			while (type < REQUESTS.length && !REQUESTS[type].equals(parts[0]))
+				type++;
+			if (type == REQUESTS.length)
+				throw new IllegalArgumentException("unknown request "
+						+ parts[0]);
+
+			m_Weights[type] = parts.length > 1 ? Integer.parseInt(parts[1])
+					: 1;
+		}
+		m_TotalWeight = 0;
+		for (int weight : m_Weights)
+			m_TotalWeight += weight;
+		if (m_TotalWeight <= 0)
+			throw new IllegalArgumentException("empty mix " + mix);
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			printUsage();
+			System.exit(1);
+		}
+		LoopbackBenchmark benchmark = new LoopbackBenchmark(args[0]);
+		List<Integer> connections = new ArrayList<Integer>();
+		int seconds = 5;
+
+		try {
+			if (!benchmark.m_Transport.matches("tcp|udp|serial"))
+				throw new IllegalArgumentException("unknown transport "
+						+ args[0]);
+
+			String counts = args.length > 1 ? args[1] : "1,2,4,8,16,32";
+			for (String count : counts.split(","))
+				connections.add(Integer.parseInt(count));
+			if (args.length > 2)
+				seconds = Integer.parseInt(args[2]);
+
+			benchmark.setMix(args.length > 3 ? args[3]
+					: "read:60,readInput:10,write:10,writeMultiple:10,coils:10");
+
+			ServerSocket socket = new ServerSocket(0);
+			benchmark.m_Port = socket.getLocalPort();
+			socket.close();
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			printUsage();
+			System.exit(1);
+		}
+
+		try {
+			int most = 0;
+			for (int count : connections)
+				most = Math.max(most, count);
+			benchmark.startSlaves(most);
+
+			System.out.println("connections  requests/s  p50 ms  p99 ms"
+					+ "  p99.9 ms  max ms  errors");
+			for (int count : connections)
+				benchmark.step(count, seconds);
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			System.exit(1);
+		}
+		// exit without stopping the listeners, a UDP slave cannot be stopped
+		// while its receiver is blocked
+		System.exit(0);
+	}
+
+	/**
+	 * Constructs a new <tt>LoopbackBenchmark</tt>.
+	 * 
+	 * @param transport
+	 *            <tt>tcp</tt>, <tt>udp</tt> or <tt>serial</tt>.
+	 */
+	public LoopbackBenchmark(String transport) {
+		m_Transport = transport.toLowerCase();
+	}
+}
@@ -0,0 +1,159 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.benchmarks;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ghgande.j2mod.modbus.io.BytesInputStream;
+import com.ghgande.j2mod.modbus.io.BytesOutputStream;
+import com.ghgande.j2mod.modbus.msg.ModbusMessage;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+
+/**
+ * MessageBenchmark -- encoding and decoding of every request and response
+ * type.
+ * 
+ * <p>
+ * <tt>writeTo</tt> encodes into a reused stream, as the transports do.
+ * <tt>readFrom</tt> decodes the way the transports do, creating the message
+ * from its function code. <tt>getMessage</tt> is the data-only encoding the
+ * TCP transport and the hex dumps use.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+	@Param({ "ReadCoilsRequest", "ReadInputDiscretesRequest",
+			"ReadMultipleRegistersRequest", "ReadInputRegistersRequest",
+			"WriteCoilRequest", "WriteSingleRegisterRequest",
+			"ReadExceptionStatusRequest", "ReadSerialDiagnosticsRequest",
+			"ReadCommEventCounterRequest", "ReadCommEventLogRequest",
+			"WriteMultipleCoilsRequest", "WriteMultipleRegistersRequest",
+			"ReportSlaveIDRequest", "ReadFileRecordRequest",
+			"WriteFileRecordRequest", "MaskWriteRegisterRequest",
+			"ReadWriteMultipleRequest", "ReadFIFOQueueRequest",
+			"ReadMEIRequest", "ReadCoilsResponse",
+			"ReadInputDiscretesResponse", "ReadMultipleRegistersResponse",
+			"ReadInputRegistersResponse", "WriteCoilResponse",
+			"WriteSingleRegisterResponse", "ReadExceptionStatusResponse",
+			"ReadSerialDiagnosticsResponse", "ReadCommEventCounterResponse",
+			"ReadCommEventLogResponse", "WriteMultipleCoilsResponse",
+			"WriteMultipleRegistersResponse", "ReportSlaveIDResponse",
+			"ReadFileRecordResponse", "WriteFileRecordResponse",
+			"MaskWriteRegisterResponse", "ReadWriteMultipleResponse",
+			"ReadFIFOQueueResponse", "ReadMEIResponse", "ExceptionResponse" })
+	public String message;
+
+	private boolean m_Request;
+	private byte[] m_Frame;
+	private ModbusMessage m_Message;
+	private final BytesInputStream m_In = new BytesInputStream(256);
+	private final BytesOutputStream m_Out = new BytesOutputStream(256);
+
+	/**
+	 * setup -- decode the frame for the message, and check that it encodes
+	 * back to the same frame, so every benchmark works on a valid message.
+	 */
+	@Setup
+	public void setup() throws IOException {
+		m_Request = message.endsWith("Request");
+		if (m_Request)
+			m_Frame = Frames.request(message.substring(0, message.length()
+					- "Request".length()));
+		else
+			m_Frame = Frames.response(message.substring(0, message.length()
+					- "Response".length()));
+
+		m_Message = decode();
+		String type = m_Message.getClass().getSimpleName();
+		if (!type.equals(message))
+			throw new IllegalStateException(message + " decodes as " + type);
+
+		m_Out.reset();
+		m_Message.writeTo(m_Out);
+		byte[] encoded = Arrays.copyOf(m_Out.getBuffer(), m_Out.size());
+		if (!Arrays.equals(encoded, m_Frame))
+			throw new IllegalStateException(message
+					+ " does not encode back to its frame");
+	}
+
+	private ModbusMessage decode() throws IOException {
+		int function = m_Frame[1] & 0xFF;
+		ModbusMessage msg;
+		if (m_Request)
+			msg = ModbusRequest.createModbusRequest(function);
+		else
+			msg = ModbusResponse.createModbusResponse(function);
+
+		msg.setHeadless();
+		m_In.reset(m_Frame);
+		msg.readFrom(m_In);
+		return msg;
+	}
+
+	@Benchmark
+	public int writeTo() throws IOException {
+		m_Out.reset();
+		m_Message.writeTo(m_Out);
+		return m_Out.size();
+	}
+
+	@Benchmark
+	public ModbusMessage readFrom() throws IOException {
+		return decode();
+	}
+
+	@Benchmark
+	public byte[] getMessage() {
+		return m_Message.getMessage();
+	}
+}
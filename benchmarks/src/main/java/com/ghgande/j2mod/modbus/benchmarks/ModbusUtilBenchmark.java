@@ -0,0 +1,135 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ghgande.j2mod.modbus.util.ModbusUtil;
+
+/**
+ * ModbusUtilBenchmark -- the register conversions applications use to read
+ * values from messages, and the hex formatting of frames.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModbusUtilBenchmark {
+	private byte[] m_Registers;
+	private byte[] m_Frame;
+	private int m_Int;
+	private float m_Float;
+	private double m_Double;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1);
+		m_Registers = new byte[8];
+		random.nextBytes(m_Registers);
+		m_Frame = new byte[256];
+		random.nextBytes(m_Frame);
+		m_Int = random.nextInt();
+		m_Float = random.nextFloat();
+		m_Double = random.nextDouble();
+	}
+
+	@Benchmark
+	public short registerToShort() {
+		return ModbusUtil.registerToShort(m_Registers, 2);
+	}
+
+	@Benchmark
+	public int registerToUnsignedShort() {
+		return ModbusUtil.registerToUnsignedShort(m_Registers);
+	}
+
+	@Benchmark
+	public int registersToInt() {
+		return ModbusUtil.registersToInt(m_Registers);
+	}
+
+	@Benchmark
+	public long registersToLong() {
+		return ModbusUtil.registersToLong(m_Registers);
+	}
+
+	@Benchmark
+	public float registersToFloat() {
+		return ModbusUtil.registersToFloat(m_Registers);
+	}
+
+	@Benchmark
+	public double registersToDouble() {
+		return ModbusUtil.registersToDouble(m_Registers);
+	}
+
+	@Benchmark
+	public byte[] unsignedShortToRegister() {
+		return ModbusUtil.unsignedShortToRegister(m_Int & 0xFFFF);
+	}
+
+	@Benchmark
+	public byte[] intToRegisters() {
+		return ModbusUtil.intToRegisters(m_Int);
+	}
+
+	@Benchmark
+	public byte[] floatToRegisters() {
+		return ModbusUtil.floatToRegisters(m_Float);
+	}
+
+	@Benchmark
+	public byte[] doubleToRegisters() {
+		return ModbusUtil.doubleToRegisters(m_Double);
+	}
+
+	@Benchmark
+	public String toHex() {
+		return ModbusUtil.toHex(m_Frame);
+	}
+}
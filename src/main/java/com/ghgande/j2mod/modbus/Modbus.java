@@ -261,6 +261,13 @@ public interface Modbus {
    */
   public static final int NEGATIVE_ACKNOWLEDGEMENT = 7;
   
+  /**
+   * Defines the Modbus slave exception type <tt>Gateway path
+   * unavailable</tt>.  This exception code indicates that a Modbus gateway
+   * has no path to the unit addressed, or that the path is overloaded.
+   */
+  public static final int GATEWAY_PATH_UNAVAILABLE = 10;
+
   /**
    * Defines the Modbus slave exception type <tt>Gateway target failed to
    * respond</tt>.  This exception code indicates that a Modbus gateway
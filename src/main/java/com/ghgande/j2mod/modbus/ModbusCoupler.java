@@ -36,6 +36,7 @@ package com.ghgande.j2mod.modbus;
 import com.ghgande.j2mod.modbus.procimg.DefaultProcessImageFactory;
 import com.ghgande.j2mod.modbus.procimg.ProcessImage;
 import com.ghgande.j2mod.modbus.procimg.ProcessImageFactory;
+import com.ghgande.j2mod.modbus.util.DiagnosticCounters;
 
 /**
  * Class implemented following a Singleton pattern, to couple the slave side
@@ -55,8 +56,12 @@ public class ModbusCoupler {
 
 	// instance attributes
 	private ProcessImage m_ProcessImage;
+	private final ThreadLocal<ProcessImage> m_ThreadImage =
+			new ThreadLocal<ProcessImage>();
 	private int m_UnitID = Modbus.DEFAULT_UNIT_ID;
 	private boolean m_Master = true;
+	private final DiagnosticCounters m_Diagnostics = new DiagnosticCounters();
+	private byte[] m_Identification = new byte[0];
 	private ProcessImageFactory m_PIFactory;
 
 	/**
@@ -98,12 +103,19 @@ public class ModbusCoupler {
 
 	/**
 	 * Returns a reference to the <tt>ProcessImage</tt> of this
-	 * <tt>ModbusCoupler</tt>.
+	 * <tt>ModbusCoupler</tt>, or that of the current thread if one has been
+	 * set.
 	 * 
 	 * @return the <tt>ProcessImage</tt>.
 	 */
-	public synchronized ProcessImage getProcessImage() {
-		return m_ProcessImage;
+	public ProcessImage getProcessImage() {
+		ProcessImage image = m_ThreadImage.get();
+		if (image != null)
+			return image;
+
+		synchronized (this) {
+			return m_ProcessImage;
+		}
 	}
 
 	/**
@@ -117,6 +129,23 @@ public class ModbusCoupler {
 		m_ProcessImage = procimg;
 	}
 
+	/**
+	 * Sets the <tt>ProcessImage</tt> that requests served on the current
+	 * thread are answered from, in place of the one of this
+	 * <tt>ModbusCoupler</tt>. This lets one process serve several devices,
+	 * each with its own image.
+	 * 
+	 * @param procimg
+	 *            the <tt>ProcessImage</tt> of the current thread, or
+	 *            <tt>null</tt> to use the shared one again.
+	 */
+	public void setThreadProcessImage(ProcessImage procimg) {
+		if (procimg == null)
+			m_ThreadImage.remove();
+		else
+			m_ThreadImage.set(procimg);
+	}
+
 	/**
 	 * Returns the identifier of this unit. This identifier is required to be
 	 * set for serial protocol slave implementations.
@@ -166,6 +195,38 @@ public class ModbusCoupler {
 		m_Master = master;
 	}
 	
+	/**
+	 * Returns the diagnostic counters and event log of this slave.
+	 * 
+	 * @return the <tt>DiagnosticCounters</tt>.
+	 */
+	public DiagnosticCounters getDiagnostics() {
+		return m_Diagnostics;
+	}
+
+	/**
+	 * Returns the device specific data reported by Report Slave ID.
+	 * 
+	 * @return the identification data.
+	 */
+	public synchronized byte[] getIdentification() {
+		return m_Identification.clone();
+	}
+
+	/**
+	 * Sets the device specific data reported by Report Slave ID, such as a
+	 * model name and firmware version.
+	 * 
+	 * @param data
+	 *            up to 249 bytes of identification data.
+	 */
+	public synchronized void setIdentification(byte[] data) {
+		if (data.length > 249)
+			throw new IllegalArgumentException("data length limit exceeded");
+
+		m_Identification = data.clone();
+	}
+
 	public static final boolean isInitialized() {
 		return c_Self != null;
 	}
@@ -33,6 +33,8 @@
  ***/
 package com.ghgande.j2mod.modbus;
 
+import java.io.InterruptedIOException;
+
 /**
  * Class that implements a <tt>ModbusIOException</tt>. Instances of this
  * exception are thrown when errors in the I/O occur.
@@ -66,6 +68,21 @@ public class ModbusIOException extends ModbusException {
 		super(message);
 	}
 
+	/**
+	 * Constructs a new <tt>ModbusIOException</tt> instance with the given
+	 * message and the I/O error that caused it.
+	 * 
+	 * @param message
+	 *            the message describing this <tt>ModbusIOException</tt>.
+	 * @param cause
+	 *            the I/O error.
+	 */
+	public ModbusIOException(String message, Throwable cause) {
+		super(message);
+
+		initCause(cause);
+	}
+
 	/**
 	 * Constructs a new <tt>ModbusIOException</tt> instance.
 	 * 
@@ -114,4 +131,15 @@ public class ModbusIOException extends ModbusException {
 	public void setEOF(boolean b) {
 		m_EOF = b;
 	}
+
+	/**
+	 * Tests if this <tt>ModbusIOException</tt> is caused by a read timing
+	 * out, rather than by a failed port or connection or a bad frame.
+	 * 
+	 * @return true if caused by an <tt>InterruptedIOException</tt>, such as
+	 *         a <tt>SocketTimeoutException</tt>.
+	 */
+	public boolean isTimeout() {
+		return getCause() instanceof InterruptedIOException;
+	}
 }
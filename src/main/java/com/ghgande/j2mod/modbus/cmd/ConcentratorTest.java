@@ -0,0 +1,119 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.cmd;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Properties;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusCoupler;
+import com.ghgande.j2mod.modbus.concentrator.DataConcentrator;
+import com.ghgande.j2mod.modbus.concentrator.PolledDevice;
+import com.ghgande.j2mod.modbus.net.ModbusTCPListener;
+
+/**
+ * Class that runs a {@link DataConcentrator} from a script, serving the shadow
+ * image of its devices on a Modbus/TCP port.
+ * 
+ * <p>
+ * Every ten seconds it prints the polls, failed polls and writes of all the
+ * devices. See {@link DataConcentrator#configure(Properties)} for the script.
+ */
+public class ConcentratorTest {
+
+	private static void printUsage() {
+		System.out.println("java com.ghgande.j2mod.modbus.cmd.ConcentratorTest"
+				+ " <script [String]> {<port [int]> {<threads [int]>}}");
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1 || args.length > 3) {
+			printUsage();
+			System.exit(1);
+		}
+		DataConcentrator concentrator = new DataConcentrator();
+		int port = Modbus.DEFAULT_PORT;
+		int threads = 10;
+
+		try {
+			Properties script = new Properties();
+			InputStream in = new FileInputStream(args[0]);
+			try {
+				script.load(in);
+			} finally {
+				in.close();
+			}
+			concentrator.configure(script);
+
+			if (args.length > 1)
+				port = Integer.parseInt(args[1]);
+			if (args.length > 2)
+				threads = Integer.parseInt(args[2]);
+		} catch (Exception ex) {
+			System.out.println(ex.getMessage());
+			printUsage();
+			System.exit(1);
+		}
+
+		try {
+			ModbusCoupler.getReference().setMaster(false);
+			ModbusCoupler.getReference().setProcessImage(
+					concentrator.getImage());
+			concentrator.start();
+
+			ModbusTCPListener listener = new ModbusTCPListener(threads);
+			listener.setPort(port);
+			listener.listen();
+			System.out.println(concentrator.getDevices().size()
+					+ " devices served on port " + port);
+
+			while (true) {
+				Thread.sleep(10000);
+
+				long polls = 0, failures = 0, writes = 0;
+				for (PolledDevice device : concentrator.getDevices()) {
+					polls += device.getPolls();
+					failures += device.getFailures();
+					writes += device.getWrites();
+				}
+				System.out.printf("%10d polls %8d failed %8d writes%n", polls,
+						failures, writes);
+			}
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
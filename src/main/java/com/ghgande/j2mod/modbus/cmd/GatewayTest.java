@@ -0,0 +1,117 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.cmd;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.gateway.ModbusTCPGateway;
+import com.ghgande.j2mod.modbus.gateway.SerialBus;
+import com.ghgande.j2mod.modbus.net.SerialConnection;
+import com.ghgande.j2mod.modbus.util.SerialParameters;
+
+/**
+ * Class that runs a Modbus/TCP to RTU gateway for one or more serial ports.
+ * 
+ * <p>
+ * Each serial port is followed by the unit identifiers routed to it, as one
+ * number or a range such as <tt>1-32</tt>. The line speed is taken from the
+ * <tt>com.ghgande.j2mod.modbus.baud</tt> property, 19200 by default. Every ten
+ * seconds the requests forwarded, timed out and queued on each bus are
+ * printed.
+ */
+public class GatewayTest {
+
+	private static void printUsage() {
+		System.out.println("java com.ghgande.j2mod.modbus.cmd.GatewayTest"
+				+ " <port [int]> <serial port [String]> <units [first-last]>"
+				+ " {<serial port [String]> <units [first-last]> ...}");
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 3 || args.length % 2 != 1) {
+			printUsage();
+			System.exit(1);
+		}
+		ModbusTCPGateway gateway = new ModbusTCPGateway();
+		List<SerialBus> buses = new ArrayList<SerialBus>();
+
+		try {
+			gateway.setPort(Integer.parseInt(args[0]));
+			for (int i = 1; i < args.length; i += 2) {
+				String[] units = args[i + 1].split("-");
+				int first = Integer.parseInt(units[0]);
+				int last = units.length > 1 ? Integer.parseInt(units[1]) : first;
+
+				SerialParameters params = new SerialParameters();
+				params.setPortName(args[i]);
+				params.setBaudRate(Integer.parseInt(System.getProperty(
+						"com.ghgande.j2mod.modbus.baud", "19200")));
+				params.setDatabits(8);
+				params.setParity("None");
+				params.setStopbits(1);
+				params.setEncoding(Modbus.SERIAL_ENCODING_RTU);
+				params.setEcho(false);
+
+				SerialConnection connection = new SerialConnection(params);
+				connection.open();
+
+				SerialBus bus = new SerialBus(connection);
+				gateway.addRoute(first, last, bus);
+				buses.add(bus);
+			}
+		} catch (Exception ex) {
+			System.out.println(ex.getMessage());
+			printUsage();
+			System.exit(1);
+		}
+
+		try {
+			gateway.listen();
+			for (;;) {
+				Thread.sleep(10000);
+				for (SerialBus bus : buses)
+					System.out.printf("%-16s %10d forwarded %8d timeouts"
+							+ " %6d queued %8d rejected%n", bus.getTransport()
+							.getSerialPort().getName(), bus.getForwarded(),
+							bus.getTimeouts(), bus.getQueueLength(),
+							bus.getRejected());
+			}
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,484 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.cmd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.io.ModbusSerialTransaction;
+import com.ghgande.j2mod.modbus.io.ModbusSerialTransport;
+import com.ghgande.j2mod.modbus.io.ModbusTransaction;
+import com.ghgande.j2mod.modbus.io.ModbusTransport;
+import com.ghgande.j2mod.modbus.metrics.LatencyHistogram;
+import com.ghgande.j2mod.modbus.msg.MaskWriteRegisterRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ReadCoilsRequest;
+import com.ghgande.j2mod.modbus.msg.ReadCommEventCounterRequest;
+import com.ghgande.j2mod.modbus.msg.ReadCommEventLogRequest;
+import com.ghgande.j2mod.modbus.msg.ReadExceptionStatusRequest;
+import com.ghgande.j2mod.modbus.msg.ReadFileRecordRequest;
+import com.ghgande.j2mod.modbus.msg.ReadInputDiscretesRequest;
+import com.ghgande.j2mod.modbus.msg.ReadInputRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.ReadMultipleRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.ReadSerialDiagnosticsRequest;
+import com.ghgande.j2mod.modbus.msg.ReadWriteMultipleRequest;
+import com.ghgande.j2mod.modbus.msg.ReportSlaveIDRequest;
+import com.ghgande.j2mod.modbus.msg.WriteCoilRequest;
+import com.ghgande.j2mod.modbus.msg.WriteFileRecordRequest;
+import com.ghgande.j2mod.modbus.msg.WriteMultipleCoilsRequest;
+import com.ghgande.j2mod.modbus.msg.WriteMultipleRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.WriteSingleRegisterRequest;
+import com.ghgande.j2mod.modbus.net.ModbusMasterFactory;
+import com.ghgande.j2mod.modbus.procimg.Register;
+import com.ghgande.j2mod.modbus.procimg.SimpleRegister;
+
+/**
+ * Class that implements a command line load generator for a Modbus slave.
+ * 
+ * <p>
+ * A number of connections are opened to the address, as for
+ * {@link ModbusMasterFactory}, and each sends a weighted mix of requests
+ * until the run is over. The mix is a list of <tt>function:weight</tt>, for
+ * any of function codes 1 to 8, 11, 12, 15 to 17 and 20 to 23, and every
+ * request addresses <tt>count</tt> items from <tt>base</tt>.
+ * 
+ * <p>
+ * The load is open loop. Requests are scheduled at the target rate whatever
+ * the slave does, and latency is measured from when a request was due
+ * rather than from when it was sent. A slave that stalls is charged for
+ * every request that waited on it, not just the one it stalled on. A rate
+ * of 0 sends as fast as the slave answers instead.
+ * 
+ * <p>
+ * Requests are not retried, and failed requests count towards the latency
+ * as well as the errors. The latency of the last second is printed as the
+ * test runs, and the overall latency and the errors by function code at the
+ * end.
+ * 
+ * <p>
+ * A serial line has one master, so serial addresses get one connection.
+ */
+public class LoadTest {
+	private static final int[] FUNCTIONS = { Modbus.READ_COILS,
+			Modbus.READ_INPUT_DISCRETES, Modbus.READ_MULTIPLE_REGISTERS,
+			Modbus.READ_INPUT_REGISTERS, Modbus.WRITE_COIL,
+			Modbus.WRITE_SINGLE_REGISTER, Modbus.READ_EXCEPTION_STATUS,
+			Modbus.READ_SERIAL_DIAGNOSTICS, Modbus.READ_COMM_EVENT_COUNTER,
+			Modbus.READ_COMM_EVENT_LOG, Modbus.WRITE_MULTIPLE_COILS,
+			Modbus.WRITE_MULTIPLE_REGISTERS, Modbus.REPORT_SLAVE_ID,
+			Modbus.READ_FILE_RECORD, Modbus.WRITE_FILE_RECORD,
+			Modbus.MASK_WRITE_REGISTER, Modbus.READ_WRITE_MULTIPLE };
+
+	private final String m_Address;
+	private int m_Connections = 1;
+	private double m_Rate = 100;
+	private int m_Seconds = 10;
+	private int m_Base = 0;
+	private int m_Count = 1;
+	private int m_Unit = 0;
+	private int[] m_Functions;
+	private int[] m_Weights;
+	private int m_TotalWeight;
+
+	private volatile boolean m_Running;
+	private long m_Start;
+	private final LatencyHistogram m_Latency = new LatencyHistogram();
+	private final LatencyHistogram m_Service = new LatencyHistogram();
+	private final LatencyHistogram m_Interval = new LatencyHistogram();
+	private final LongAdder m_Failed = new LongAdder();
+	private final ConcurrentHashMap<String, LongAdder> m_Errors = new ConcurrentHashMap<String, LongAdder>();
+
+	private static void printUsage() {
+		System.out.println("java com.ghgande.j2mod.modbus.cmd.LoadTest"
+				+ " <address{:port{:unit}} [String]>"
+				+ " {<connections [int]>} {<rate [requests/s]>}"
+				+ " {<seconds [int]>} {<mix [function:weight,...]>}"
+				+ " {<base [int]>} {<count [int]>}");
+	}
+
+	/**
+	 * Connection -- one master connection sending its share of the load.
+	 */
+	private class Connection extends Thread {
+		private final int m_Index;
+		private final ModbusTransport m_Transport;
+		private final ModbusTransaction m_Transaction;
+		private final ModbusRequest[] m_Requests;
+		private final Random m_Random;
+
+		public void run() {
+			long interval = m_Rate > 0 ? (long) (1e9 * m_Connections / m_Rate)
+					: 0;
+			long due = m_Start + interval * m_Index / m_Connections;
+
+			while (m_Running) {
+				/*
+				 * A request that is waited for is timed from when it is sent,
+				 * so oversleeping isn't blamed on the slave. One that is
+				 * already late is timed from when it was due.
+				 */
+				long wait = interval > 0 ? due - System.nanoTime() : 0;
+				if (wait > 0) {
+					try {
+						TimeUnit.NANOSECONDS.sleep(wait);
+					} catch (InterruptedException x) {
+						break;
+					}
+					if (!m_Running)
+						break;
+				}
+
+				int pick = m_Random.nextInt(m_TotalWeight);
+				int type = 0;
+				while (pick >= m_Weights[type])
+					pick -= m_Weights[type++];
+
+				ModbusRequest request = m_Requests[type];
+				m_Transaction.setRequest(request);
+				long start = System.nanoTime();
+				long from = wait > 0 || interval == 0 ? start : due;
+				try {
+					m_Transaction.execute();
+				} catch (ModbusException x) {
+					error(request, x.getMessage());
+				}
+				long end = System.nanoTime();
+
+				m_Service.record(end - start);
+				m_Latency.record(end - from);
+				m_Interval.record(end - from);
+				due += interval;
+			}
+		}
+
+		void close() {
+			try {
+				m_Transport.close();
+			} catch (Exception x) {
+				// Nothing to do.
+			}
+		}
+
+		Connection(int index) throws Exception {
+			super("load-" + index);
+			m_Index = index;
+			m_Random = new Random(index);
+
+			m_Transport = ModbusMasterFactory.createModbusMaster(m_Address);
+			if (m_Transport == null)
+				throw new ModbusIOException("Cannot open " + m_Address);
+			if (m_Transport instanceof ModbusSerialTransport) {
+				((ModbusSerialTransport) m_Transport).setReceiveTimeout(500);
+				String baud = System.getProperty("com.ghgande.j2mod.modbus.baud");
+				if (baud != null)
+					((ModbusSerialTransport) m_Transport).setBaudRate(Integer
+							.parseInt(baud));
+			}
+			m_Transaction = m_Transport.createTransaction();
+			m_Transaction.setRetries(0);
+
+			m_Requests = new ModbusRequest[m_Functions.length];
+			for (int i = 0; i < m_Functions.length; i++) {
+				m_Requests[i] = createRequest(m_Functions[i]);
+				m_Requests[i].setUnitID(m_Unit);
+				m_Requests[i]
+						.setHeadless(m_Transaction instanceof ModbusSerialTransaction);
+			}
+		}
+	}
+
+	/**
+	 * createRequest -- a request for a function code, for <tt>count</tt>
+	 * items from <tt>base</tt>.
+	 */
+	private ModbusRequest createRequest(int function) {
+		switch (function) {
+		case Modbus.READ_COILS:
+			return new ReadCoilsRequest(m_Base, m_Count);
+		case Modbus.READ_INPUT_DISCRETES:
+			return new ReadInputDiscretesRequest(m_Base, m_Count);
+		case Modbus.READ_MULTIPLE_REGISTERS:
+			return new ReadMultipleRegistersRequest(m_Base, m_Count);
+		case Modbus.READ_INPUT_REGISTERS:
+			return new ReadInputRegistersRequest(m_Base, m_Count);
+		case Modbus.WRITE_COIL:
+			return new WriteCoilRequest(m_Base, true);
+		case Modbus.WRITE_SINGLE_REGISTER:
+			return new WriteSingleRegisterRequest(m_Base, new SimpleRegister(0));
+		case Modbus.READ_EXCEPTION_STATUS:
+			return new ReadExceptionStatusRequest();
+		case Modbus.READ_SERIAL_DIAGNOSTICS:
+			// return query data
+			ReadSerialDiagnosticsRequest diagnostics = new ReadSerialDiagnosticsRequest();
+			diagnostics.setFunction(0);
+			diagnostics.setData(0x1234);
+			return diagnostics;
+		case Modbus.READ_COMM_EVENT_COUNTER:
+			return new ReadCommEventCounterRequest();
+		case Modbus.READ_COMM_EVENT_LOG:
+			return new ReadCommEventLogRequest();
+		case Modbus.WRITE_MULTIPLE_COILS:
+			return new WriteMultipleCoilsRequest(m_Base, m_Count);
+		case Modbus.WRITE_MULTIPLE_REGISTERS:
+			Register[] registers = new Register[m_Count];
+			for (int i = 0; i < m_Count; i++)
+				registers[i] = new SimpleRegister(i);
+			return new WriteMultipleRegistersRequest(m_Base, registers);
+		case Modbus.REPORT_SLAVE_ID:
+			return new ReportSlaveIDRequest();
+		case Modbus.READ_FILE_RECORD:
+			ReadFileRecordRequest read = new ReadFileRecordRequest();
+			read.addRequest(read.new RecordRequest(1, m_Base, m_Count));
+			return read;
+		case Modbus.WRITE_FILE_RECORD:
+			WriteFileRecordRequest write = new WriteFileRecordRequest();
+			write.addRequest(write.new RecordRequest(1, m_Base,
+					new short[m_Count]));
+			return write;
+		case Modbus.MASK_WRITE_REGISTER:
+			return new MaskWriteRegisterRequest(m_Base, 0xFFFF, 0);
+		case Modbus.READ_WRITE_MULTIPLE:
+			return new ReadWriteMultipleRequest(m_Unit, m_Base, m_Count,
+					m_Base, m_Count);
+		default:
+			throw new IllegalArgumentException("unsupported function "
+					+ function);
+		}
+	}
+
+	/**
+	 * error -- count a failed request by function code and cause.
+	 */
+	private void error(ModbusRequest request, String cause) {
+		String key = String.format("%8d  %s", request.getFunctionCode(), cause);
+		LongAdder count = m_Errors.get(key);
+		if (count == null) {
+			LongAdder added = new LongAdder();
+			count = m_Errors.putIfAbsent(key, added);
+			if (count == null)
+				count = added;
+		}
+		count.increment();
+		m_Failed.increment();
+	}
+
+	/**
+	 * setMix -- set the request mix.
+	 * 
+	 * @param mix
+	 *            a list of <tt>function:weight</tt>.
+	 */
+	private void setMix(String mix) {
+		String entries[] = mix.split(",");
+		m_Functions = new int[entries.length];
+		m_Weights = new int[entries.length];
+		m_TotalWeight = 0;
+
+		for (int i = 0; i < entries.length; i++) {
+			String parts[] = entries[i].split(":");
+			m_Functions[i] = Integer.parseInt(parts[0]);
+			m_Weights[i] = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+
+			boolean known = false;
+			for (int function : FUNCTIONS)
+				known |= function == m_Functions[i];
+			if (!known || m_Weights[i] < 0)
+				throw new IllegalArgumentException("bad mix entry "
+						+ entries[i]);
+
+			m_TotalWeight += m_Weights[i];
+		}
+		if (m_TotalWeight <= 0)
+			throw new IllegalArgumentException("empty mix " + mix);
+	}
+
+	private static void report(String what, LatencyHistogram histogram) {
+		System.out.printf("%-13s %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f%n",
+				what, histogram.getMean() / 1e6,
+				histogram.getPercentile(50) / 1e6,
+				histogram.getPercentile(90) / 1e6,
+				histogram.getPercentile(99) / 1e6,
+				histogram.getPercentile(99.9) / 1e6,
+				histogram.getPercentile(99.99) / 1e6, histogram.getMax() / 1e6);
+	}
+
+	private void run() throws Exception {
+		List<Connection> connections = new ArrayList<Connection>();
+		for (int i = 0; i < m_Connections; i++) {
+			Connection connection = new Connection(i);
+			connections.add(connection);
+
+			if (connection.m_Transport instanceof ModbusSerialTransport
+					&& m_Connections > 1) {
+				System.out.println("A serial line has one master,"
+						+ " using one connection");
+				m_Connections = 1;
+			}
+		}
+
+		m_Running = true;
+		m_Start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+		for (Connection connection : connections)
+			connection.start();
+
+		System.out.println("   time  requests/s    p50 ms    p99 ms    max ms"
+				+ "    errors");
+		long last = m_Start;
+		long lastCount = 0;
+		long lastFailed = 0;
+		for (int second = 1; second <= m_Seconds; second++) {
+			long wait = m_Start + TimeUnit.SECONDS.toNanos(second)
+					- System.nanoTime();
+			if (wait > 0)
+				TimeUnit.NANOSECONDS.sleep(wait);
+
+			long now = System.nanoTime();
+			long count = m_Latency.getCount();
+			long failed = m_Failed.sum();
+			System.out.printf("%7d  %10.1f  %8.3f  %8.3f  %8.3f  %8d%n",
+					second, (count - lastCount) * 1e9 / (now - last),
+					m_Interval.getPercentile(50) / 1e6,
+					m_Interval.getPercentile(99) / 1e6,
+					m_Interval.getMax() / 1e6, failed - lastFailed);
+			m_Interval.reset();
+			last = now;
+			lastCount = count;
+			lastFailed = failed;
+		}
+		long elapsed = System.nanoTime() - m_Start;
+
+		m_Running = false;
+		for (Connection connection : connections) {
+			connection.interrupt();
+			connection.join();
+			connection.close();
+		}
+
+		long count = m_Latency.getCount();
+		System.out.println();
+		System.out.printf("Sent %d requests in %.3f s, %.1f requests/s",
+				count, elapsed / 1e9, count * 1e9 / elapsed);
+		if (m_Rate > 0)
+			System.out.printf(" (target %.1f)", m_Rate);
+		System.out.println();
+		System.out.println("Failed " + m_Failed.sum());
+		System.out.println();
+		System.out.println("(ms)               mean       p50       p90"
+				+ "       p99     p99.9    p99.99       max");
+		report("Latency", m_Latency);
+		report("Service time", m_Service);
+
+		if (!m_Errors.isEmpty()) {
+			System.out.println();
+			System.out.println("    count  function  error");
+			Map<String, LongAdder> errors = new TreeMap<String, LongAdder>(
+					m_Errors);
+			for (Map.Entry<String, LongAdder> entry : errors.entrySet())
+				System.out.printf("%9d  %s%n", entry.getValue().sum(),
+						entry.getKey());
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			printUsage();
+			System.exit(1);
+		}
+		LoadTest test = new LoadTest(args[0]);
+
+		try {
+			if (args.length > 1)
+				test.m_Connections = Integer.parseInt(args[1]);
+			if (args.length > 2)
+				test.m_Rate = Double.parseDouble(args[2]);
+			if (args.length > 3)
+				test.m_Seconds = Integer.parseInt(args[3]);
+			test.setMix(args.length > 4 ? args[4] : "3:1");
+			if (args.length > 5)
+				test.m_Base = Integer.parseInt(args[5]);
+			if (args.length > 6)
+				test.m_Count = Integer.parseInt(args[6]);
+
+			/*
+			 * The unit is the last part of the address, as for the other
+			 * tools: tcp:host:port:unit, udp:host:port:unit or
+			 * device:port:unit.
+			 */
+			String parts[] = args[0].split(":");
+			if (parts[0].equalsIgnoreCase("tcp")
+					|| parts[0].equalsIgnoreCase("udp")) {
+				if (parts.length >= 4)
+					test.m_Unit = Integer.parseInt(parts[3]);
+			} else if (parts.length >= 3
+					&& parts[parts.length - 1].matches("\\d+")) {
+				test.m_Unit = Integer.parseInt(parts[parts.length - 1]);
+			}
+
+			if (test.m_Connections < 1 || test.m_Seconds < 1
+					|| test.m_Rate < 0 || test.m_Count < 1)
+				throw new IllegalArgumentException("bad argument");
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			printUsage();
+			System.exit(1);
+		}
+
+		try {
+			test.run();
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Constructs a new <tt>LoadTest</tt>.
+	 * 
+	 * @param address
+	 *            the address of the slave.
+	 */
+	public LoadTest(String address) {
+		m_Address = address;
+	}
+}
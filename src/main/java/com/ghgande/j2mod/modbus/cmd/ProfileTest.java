@@ -0,0 +1,135 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.cmd;
+
+import java.io.File;
+import java.net.InetAddress;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.io.ModbusTCPTransaction;
+import com.ghgande.j2mod.modbus.net.TCPMasterConnection;
+import com.ghgande.j2mod.modbus.profile.DeviceProfile;
+import com.ghgande.j2mod.modbus.profile.DeviceProfiler;
+import com.ghgande.j2mod.modbus.profile.ProfileCache;
+
+/**
+ * Class that profiles a Modbus/TCP slave with a {@link DeviceProfiler}, and
+ * prints what it supports.
+ * 
+ * <p>
+ * With a directory the profile is kept in a {@link ProfileCache} there, and
+ * a slave that has a profile already is not probed again.
+ */
+public class ProfileTest {
+
+	private static void printUsage() {
+		System.out.println("java com.ghgande.j2mod.modbus.cmd.ProfileTest"
+				+ " <address{:port} [String]> {<unit [int]>"
+				+ " {<reference [int]> {<directory [String]>}}}");
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1 || args.length > 4) {
+			printUsage();
+			System.exit(1);
+		}
+		InetAddress address = null;
+		int port = Modbus.DEFAULT_PORT;
+		int unit = 1;
+		int ref = 0;
+		ProfileCache cache = null;
+
+		try {
+			String parts[] = args[0].split(":");
+			address = InetAddress.getByName(parts[0]);
+			if (parts.length > 1)
+				port = Integer.parseInt(parts[1]);
+			if (args.length > 1)
+				unit = Integer.parseInt(args[1]);
+			if (args.length > 2)
+				ref = Integer.parseInt(args[2]);
+			if (args.length > 3)
+				cache = new ProfileCache(new File(args[3]));
+		} catch (Exception ex) {
+			System.out.println(ex.getMessage());
+			printUsage();
+			System.exit(1);
+		}
+
+		String name = "tcp:" + address.getHostAddress() + ":" + port;
+		try {
+			DeviceProfile profile = cache == null ? null : cache.get(name,
+					unit);
+			if (profile != null) {
+				System.out.println("Cached in "
+						+ cache.getFile(name, unit));
+			} else {
+				TCPMasterConnection connection = new TCPMasterConnection(
+						address);
+				connection.setPort(port);
+				connection.connect();
+
+				DeviceProfiler profiler = new DeviceProfiler(
+						new ModbusTCPTransaction(connection), name, unit);
+				profiler.setReference(ref);
+				long start = System.nanoTime();
+				profile = profiler.profile();
+				connection.close();
+				System.out.printf("Profiled with %d requests in %.1f s%n",
+						profiler.getProbes(),
+						(System.nanoTime() - start) / 1e9);
+
+				if (cache != null) {
+					cache.put(profile);
+					System.out.println("Stored in "
+							+ cache.getFile(name, unit));
+				}
+			}
+
+			System.out.println(profile);
+			for (int function = 1; function < 128; function++) {
+				if (profile.getTurnaround(function) > 0)
+					System.out.printf(
+							"function %d: %d in %.3f ms (+/- %.3f ms)%n",
+							function, profile.getMaxCount(function),
+							profile.getTurnaround(function) / 1e6,
+							profile.getDeviation(function) / 1e6);
+			}
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
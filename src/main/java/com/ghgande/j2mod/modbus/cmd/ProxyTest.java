@@ -0,0 +1,101 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.cmd;
+
+import java.net.InetAddress;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.gateway.ModbusTCPProxy;
+
+/**
+ * Class that runs a Modbus/TCP proxy in front of one device.
+ * 
+ * <p>
+ * The device is given as an address with an optional port. It is followed
+ * by the number of connections to open to it, 2 by default, and the number
+ * of requests each may have outstanding, 1 by default. Every ten seconds the
+ * clients, connected links and the requests forwarded, timed out and queued
+ * are printed.
+ */
+public class ProxyTest {
+
+	private static void printUsage() {
+		System.out.println("java com.ghgande.j2mod.modbus.cmd.ProxyTest"
+				+ " <port [int]> <device [address{:port}]>"
+				+ " {<links [int]> {<pipeline depth [int]>}}");
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 2 || args.length > 4) {
+			printUsage();
+			System.exit(1);
+		}
+		ModbusTCPProxy proxy = null;
+
+		try {
+			String device = args[1];
+			int port = Modbus.DEFAULT_PORT;
+			int colon = device.lastIndexOf(':');
+			if (colon > 0) {
+				port = Integer.parseInt(device.substring(colon + 1));
+				device = device.substring(0, colon);
+			}
+			proxy = new ModbusTCPProxy(InetAddress.getByName(device), port);
+			proxy.setPort(Integer.parseInt(args[0]));
+			if (args.length > 2)
+				proxy.setLinks(Integer.parseInt(args[2]));
+			if (args.length > 3)
+				proxy.setPipelineDepth(Integer.parseInt(args[3]));
+		} catch (Exception ex) {
+			System.out.println(ex.getMessage());
+			printUsage();
+			System.exit(1);
+		}
+
+		try {
+			proxy.listen();
+			for (;;) {
+				Thread.sleep(10000);
+				System.out.printf("%6d clients %3d links %10d forwarded"
+						+ " %8d timeouts %6d queued %8d rejected%n",
+						proxy.getConnections(), proxy.getConnectedLinks(),
+						proxy.getForwarded(), proxy.getTimeouts(),
+						proxy.getQueueLength(), proxy.getRejected());
+			}
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
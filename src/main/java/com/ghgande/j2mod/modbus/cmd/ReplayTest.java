@@ -0,0 +1,390 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.cmd;
+
+import java.io.FileInputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.ghgande.j2mod.modbus.ModbusCoupler;
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.io.BytesInputStream;
+import com.ghgande.j2mod.modbus.io.ModbusSerialTransaction;
+import com.ghgande.j2mod.modbus.io.ModbusSerialTransport;
+import com.ghgande.j2mod.modbus.io.ModbusTCPTransport;
+import com.ghgande.j2mod.modbus.io.ModbusTransaction;
+import com.ghgande.j2mod.modbus.io.ModbusTransport;
+import com.ghgande.j2mod.modbus.metrics.LatencyHistogram;
+import com.ghgande.j2mod.modbus.msg.ModbusMessage;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.net.ModbusMasterFactory;
+import com.ghgande.j2mod.modbus.util.FrameTrace;
+import com.ghgande.j2mod.modbus.util.PcapngReader;
+
+/**
+ * Class that implements a command line tool for replaying a capture written
+ * by {@link com.ghgande.j2mod.modbus.util.PcapngWriter}.
+ * 
+ * <p>
+ * As a master, the captured requests are sent to a slave, one at a time, and
+ * the round trip times are reported next to those in the capture. As a
+ * slave, each request from a master is answered with the next captured
+ * response with the same unit and function code, after the captured delay.
+ * 
+ * <p>
+ * The capture is replayed at its original pace, or that many times faster
+ * if a speed is given. A speed of 0 replays as fast as possible. The
+ * protocol of the address need not be that of the capture, so traffic
+ * captured from Modbus/TCP can be replayed over RTU and the other way round.
+ * 
+ * <p>
+ * The first frame on each captured connection is taken to be a request,
+ * which decides which of sent and received are the requests on that
+ * connection.
+ * 
+ * <p>
+ * Slave addresses are <tt>tcp:port</tt> or <tt>device:port</tt>, master
+ * addresses are as for {@link ModbusMasterFactory}.
+ */
+public class ReplayTest {
+
+	/**
+	 * Exchange -- a captured request and its response, if there was one.
+	 */
+	private static class Exchange {
+		FrameTrace.Entry request;
+		FrameTrace.Entry response;
+	}
+
+	private static void printUsage() {
+		System.out.println("java com.ghgande.j2mod.modbus.cmd.ReplayTest"
+				+ " <capture [String]> <master|slave [String]>"
+				+ " <address{:port} [String]> {<speed [double]>}");
+	}
+
+	/**
+	 * pair -- match up the captured requests and responses.
+	 */
+	private static List<Exchange> pair(List<FrameTrace.Entry> entries) {
+		List<Exchange> result = new ArrayList<Exchange>();
+		Map<Integer, Integer> requests = new HashMap<Integer, Integer>();
+		Map<Integer, Exchange> pending = new HashMap<Integer, Exchange>();
+
+		for (FrameTrace.Entry entry : entries) {
+			int id = entry.getConnection().getID();
+			int direction = entry.getDirection();
+			Integer request = requests.get(id);
+			if (request == null && direction != -1)
+				requests.put(id, request = direction);
+
+			Exchange exchange = pending.remove(id);
+			boolean isRequest = direction == -1 ? exchange == null
+					: direction == request;
+			if (isRequest) {
+				exchange = new Exchange();
+				exchange.request = entry;
+				result.add(exchange);
+				pending.put(id, exchange);
+			} else if (exchange != null) {
+				exchange.response = entry;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * decode -- turn a captured frame back into a message.
+	 */
+	private static ModbusMessage decode(FrameTrace.Entry entry,
+			boolean request) throws Exception {
+		byte[] frame = entry.getFrame();
+		String protocol = entry.getConnection().getProtocol();
+		boolean mbap = "tcp".equals(protocol) || "udp".equals(protocol);
+		int check = "ascii".equals(protocol) ? 1 : mbap ? 0 : 2;
+
+		int function = frame[mbap ? 7 : 1] & 0xFF;
+		ModbusMessage msg;
+		if (request)
+			msg = ModbusRequest.createModbusRequest(function);
+		else
+			msg = ModbusResponse.createModbusResponse(function);
+		if (!mbap)
+			msg.setHeadless();
+
+		msg.readFrom(new BytesInputStream(Arrays.copyOf(frame, frame.length
+				- check)));
+		return msg;
+	}
+
+	/**
+	 * pace -- wait until a captured frame is due.
+	 * 
+	 * @return how late the frame is, in nanoseconds.
+	 */
+	private static long pace(long start, long offset, double speed)
+			throws InterruptedException {
+		if (speed <= 0)
+			return 0;
+
+		long wait = start + (long) (offset / speed) - System.nanoTime();
+		if (wait > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+			return 0;
+		}
+		return -wait;
+	}
+
+	private static void report(String what, LatencyHistogram histogram) {
+		System.out.printf("%s (ms): mean %.3f, p50 %.3f, p90 %.3f,"
+				+ " p99 %.3f, max %.3f%n", what, histogram.getMean() / 1e6,
+				histogram.getPercentile(50) / 1e6,
+				histogram.getPercentile(90) / 1e6,
+				histogram.getPercentile(99) / 1e6, histogram.getMax() / 1e6);
+	}
+
+	private static void master(List<Exchange> exchanges, String address,
+			double speed) throws Exception {
+		ModbusTransport transport = ModbusMasterFactory
+				.createModbusMaster(address);
+		if (transport == null) {
+			System.err.println("Cannot open " + address);
+			System.exit(1);
+		}
+		if (transport instanceof ModbusSerialTransport)
+			((ModbusSerialTransport) transport).setReceiveTimeout(500);
+
+		ModbusTransaction trans = transport.createTransaction();
+		boolean serial = trans instanceof ModbusSerialTransaction;
+
+		LatencyHistogram latency = new LatencyHistogram();
+		LatencyHistogram captured = new LatencyHistogram();
+		int sent = 0;
+		int failed = 0;
+		int exceptions = 0;
+		long late = 0;
+		long first = exchanges.get(0).request.getTime();
+		long start = System.nanoTime();
+
+		for (Exchange exchange : exchanges) {
+			ModbusRequest req = (ModbusRequest) decode(exchange.request, true);
+			req.setHeadless(serial);
+			late = Math.max(late,
+					pace(start, exchange.request.getTime() - first, speed));
+			sent++;
+
+			/*
+			 * Nobody answers a serial broadcast.
+			 */
+			if (serial && req.getUnitID() == 0) {
+				transport.writeMessage(req);
+				continue;
+			}
+			trans.setRequest(req);
+			long begin = System.nanoTime();
+			try {
+				trans.execute();
+			} catch (ModbusSlaveException x) {
+				exceptions++;
+			} catch (ModbusException x) {
+				failed++;
+				continue;
+			}
+			latency.record(System.nanoTime() - begin);
+			if (exchange.response != null)
+				captured.record(exchange.response.getTime()
+						- exchange.request.getTime());
+		}
+		long elapsed = System.nanoTime() - start;
+		transport.close();
+
+		System.out.printf("Sent %d requests in %.3f s, %.1f requests/s%n",
+				sent, elapsed / 1e9, sent * 1e9 / elapsed);
+		System.out.println("Failed " + failed + ", exception responses "
+				+ exceptions);
+		if (speed > 0)
+			System.out.printf("Fell behind the capture by up to %.3f ms%n",
+					late / 1e6);
+		report("Round trip", latency);
+		report("Captured round trip", captured);
+	}
+
+	private static void slave(List<Exchange> exchanges, String address,
+			double speed) throws Exception {
+		List<Exchange> responses = new ArrayList<Exchange>();
+		for (Exchange exchange : exchanges) {
+			if (exchange.response != null)
+				responses.add(exchange);
+		}
+		ModbusCoupler.getReference().setMaster(false);
+
+		ModbusTransport transport = null;
+		ServerSocket server = null;
+		String parts[] = address.split(":");
+		if (parts[0].equalsIgnoreCase("tcp")) {
+			server = new ServerSocket(Integer.parseInt(parts[1]));
+			System.out.println("Waiting for a master on port " + parts[1]);
+		} else {
+			transport = ModbusMasterFactory.createModbusMaster(address);
+			if (transport == null) {
+				System.err.println("Cannot open " + address);
+				System.exit(1);
+			}
+		}
+		boolean serial = server == null;
+
+		LatencyHistogram delay = new LatencyHistogram();
+		int served = 0;
+		int unmatched = 0;
+		int next = 0;
+		long start = 0;
+
+		while (next < responses.size()) {
+			/*
+			 * Masters may reconnect, so keep accepting them one at a time.
+			 */
+			if (transport == null) {
+				Socket socket = server.accept();
+				transport = new ModbusTCPTransport(socket);
+			}
+			ModbusRequest req;
+			try {
+				req = transport.readRequest();
+			} catch (ModbusIOException x) {
+				if (x.isEOF()) {
+					transport.close();
+					if (server == null)
+						break;
+					transport = null;
+				}
+				continue;
+			}
+			if (req == null)
+				continue;
+
+			long arrived = System.nanoTime();
+			if (start == 0)
+				start = arrived;
+
+			int match = next;
+			for (; match < responses.size(); match++) {
+				ModbusRequest captured = (ModbusRequest) decode(
+						responses.get(match).request, true);
+				if (captured.getUnitID() == req.getUnitID()
+						&& captured.getFunctionCode() == req.getFunctionCode())
+					break;
+			}
+			if (match == responses.size()) {
+				unmatched++;
+				continue;
+			}
+			next = match + 1;
+
+			Exchange exchange = responses.get(match);
+			ModbusResponse res = (ModbusResponse) decode(exchange.response,
+					false);
+			res.setHeadless(serial);
+			res.setTransactionID(req.getTransactionID());
+			res.setUnitID(req.getUnitID());
+
+			pace(arrived, exchange.response.getTime()
+					- exchange.request.getTime(), speed);
+			transport.writeMessage(res);
+			delay.record(System.nanoTime() - arrived);
+			served++;
+		}
+		long elapsed = System.nanoTime() - start;
+		if (transport != null)
+			transport.close();
+		if (server != null)
+			server.close();
+
+		System.out.printf("Answered %d requests in %.3f s, %.1f requests/s%n",
+				served, elapsed / 1e9, served * 1e9 / Math.max(elapsed, 1));
+		System.out.println("Requests with no captured response " + unmatched);
+		report("Response delay", delay);
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 3) {
+			printUsage();
+			System.exit(1);
+		}
+		double speed = 1.0;
+		List<Exchange> exchanges = null;
+
+		try {
+			if (args.length > 3)
+				speed = Double.parseDouble(args[3]);
+
+			PcapngReader reader = new PcapngReader(new FileInputStream(args[0]));
+			try {
+				exchanges = pair(reader.readAll());
+			} finally {
+				reader.close();
+			}
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			printUsage();
+			System.exit(1);
+		}
+		if (exchanges.isEmpty()) {
+			System.err.println("No requests in " + args[0]);
+			System.exit(1);
+		}
+
+		try {
+			if (args[1].equalsIgnoreCase("master"))
+				master(exchanges, args[2], speed);
+			else if (args[1].equalsIgnoreCase("slave"))
+				slave(exchanges, args[2], speed);
+			else {
+				printUsage();
+				System.exit(1);
+			}
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,116 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.cmd;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Properties;
+
+import com.ghgande.j2mod.modbus.ModbusCoupler;
+import com.ghgande.j2mod.modbus.sim.DeviceSimulator;
+
+/**
+ * Class that runs a {@link DeviceSimulator} from a script, to load test a
+ * master against thousands of Modbus/TCP devices.
+ * 
+ * <p>
+ * Once a second it prints the open connections, the requests answered in that
+ * second, the faults injected so far and the heap in use. See
+ * {@link DeviceSimulator#configure(Properties)} for the script.
+ */
+public class SimulatorTest {
+
+	private static void printUsage() {
+		System.out.println("java com.ghgande.j2mod.modbus.cmd.SimulatorTest"
+				+ " <script [String]> {<seconds [int]>}");
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1 || args.length > 2) {
+			printUsage();
+			System.exit(1);
+		}
+		DeviceSimulator simulator = new DeviceSimulator();
+		int seconds = 0;
+
+		try {
+			Properties script = new Properties();
+			InputStream in = new FileInputStream(args[0]);
+			try {
+				script.load(in);
+			} finally {
+				in.close();
+			}
+			simulator.configure(script);
+
+			if (args.length > 1)
+				seconds = Integer.parseInt(args[1]);
+		} catch (Exception ex) {
+			System.out.println(ex.getMessage());
+			printUsage();
+			System.exit(1);
+		}
+
+		try {
+			ModbusCoupler.getReference().setMaster(false);
+			simulator.bind();
+			simulator.listen();
+
+			int devices = simulator.getDevices();
+			System.out.println(devices + " devices from "
+					+ simulator.getDeviceAddress(0) + " to "
+					+ simulator.getDeviceAddress(devices - 1));
+
+			Runtime runtime = Runtime.getRuntime();
+			long last = 0;
+			for (int second = 1; seconds == 0 || second <= seconds; second++) {
+				Thread.sleep(1000);
+
+				long requests = simulator.getRequests();
+				long heap = runtime.totalMemory() - runtime.freeMemory();
+				System.out.printf("%6d s %8d connections %8d req/s"
+						+ " %8d exceptions %8d dropped %6d MB heap%n", second,
+						simulator.getConnections(), requests - last,
+						simulator.getExceptions(), simulator.getDropped(),
+						heap >> 20);
+				last = requests;
+			}
+			simulator.stop();
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,290 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.concentrator;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.net.TCPMasterConnection;
+
+/**
+ * DataConcentrator -- polls many devices into one {@link ShadowImage}, to be
+ * served to upstream masters by a single slave.
+ * 
+ * <p>
+ * Each device is polled by a pool of threads, at its own period. The polls
+ * of the devices are spread over their periods rather than all starting
+ * together. To serve the image, set it as the process image of the
+ * <tt>ModbusCoupler</tt> and start a listener.
+ * 
+ * <p>
+ * {@link #configure(Properties)} sets the concentrator up from a script.
+ */
+public class DataConcentrator {
+	private final ShadowImage m_Image = new ShadowImage();
+	private final List<PolledDevice> m_Devices =
+			new CopyOnWriteArrayList<PolledDevice>();
+	private int m_Threads = 4;
+	private ScheduledExecutorService m_Executor;
+
+	/**
+	 * Returns the shadow image of the devices.
+	 */
+	public ShadowImage getImage() {
+		return m_Image;
+	}
+
+	/**
+	 * setThreads -- the number of threads polling the devices, 4 by default.
+	 * A device is polled by one thread at a time, and a slow device holds its
+	 * thread until it answers or times out.
+	 * 
+	 * @param threads
+	 *            the number of threads.
+	 */
+	public synchronized void setThreads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("invalid threads " + threads);
+
+		m_Threads = threads;
+	}
+
+	public synchronized int getThreads() {
+		return m_Threads;
+	}
+
+	/**
+	 * addDevice -- add a device to be polled.
+	 * 
+	 * @param device
+	 *            the device.
+	 */
+	public void addDevice(PolledDevice device) {
+		m_Devices.add(device);
+	}
+
+	/**
+	 * Returns the devices being polled.
+	 */
+	public List<PolledDevice> getDevices() {
+		return m_Devices;
+	}
+
+	/**
+	 * map -- map a range of a device into the shadow image. The device is
+	 * added if it has not been.
+	 * 
+	 * @param device
+	 *            the device.
+	 * @param table
+	 *            the function code that reads the range:
+	 *            <tt>READ_COILS</tt>, <tt>READ_INPUT_DISCRETES</tt>,
+	 *            <tt>READ_MULTIPLE_REGISTERS</tt> or
+	 *            <tt>READ_INPUT_REGISTERS</tt>.
+	 * @param deviceRef
+	 *            the first address in the device.
+	 * @param count
+	 *            the number of coils, inputs or registers, at most as many
+	 *            as one request can read.
+	 * @param ref
+	 *            the first address in the shadow image.
+	 * @throws IllegalArgumentException
+	 *             if the range is invalid or overlaps one already mapped.
+	 */
+	public void map(PolledDevice device, int table, int deviceRef, int count,
+			int ref) {
+		ShadowBlock block = new ShadowBlock(device, table, deviceRef, count,
+				ref);
+		m_Image.add(block);
+		device.addBlock(block);
+		if (!m_Devices.contains(device))
+			m_Devices.add(device);
+	}
+
+	/**
+	 * start -- start polling the devices.
+	 */
+	public synchronized void start() {
+		if (m_Executor != null)
+			return;
+
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+				m_Threads, new ThreadFactory() {
+					private int m_Count = 0;
+
+					public synchronized Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "concentrator-"
+								+ m_Count++);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.setRemoveOnCancelPolicy(true);
+		m_Executor = executor;
+
+		int n = m_Devices.size();
+		for (int i = 0; i < n; i++) {
+			final PolledDevice device = m_Devices.get(i);
+			long period = Math.max(device.getPeriod(), 1);
+			executor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						device.poll();
+					} catch (RuntimeException ex) {
+						// keep polling
+						if (Modbus.debug)
+							ex.printStackTrace();
+					}
+				}
+			}, period * i / n, period, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * stop -- stop polling the devices. The shadow image keeps its data,
+	 * which grows stale.
+	 */
+	public synchronized void stop() {
+		if (m_Executor == null)
+			return;
+
+		m_Executor.shutdownNow();
+		m_Executor = null;
+	}
+
+	/**
+	 * configure -- set the concentrator up from a script of properties:
+	 * 
+	 * <pre>
+	 * threads=8          polling threads
+	 * maxAge=3000        greatest age of data served, in ms, 0 for any
+	 * staleCode=11       exception code answered for stale data
+	 * unit=0             unit identifier answered to, 0 for any
+	 * timeout=1000       response timeout of the devices, in ms
+	 * period=1000        default polling period, in ms
+	 * device.0=10.0.0.5:502/1
+	 * device.0.period=500
+	 * device.0.map.0=3,0,100,0
+	 * device.0.map.1=1,0,64,0
+	 * </pre>
+	 * 
+	 * Devices are numbered from 0, and each is given as host, optional port
+	 * and optional unit. A map is the function code reading the range, the
+	 * first address in the device, the count and the first address in the
+	 * image.
+	 * 
+	 * @param script
+	 *            the script.
+	 * @throws IOException
+	 *             if a device address cannot be resolved.
+	 * @throws IllegalArgumentException
+	 *             if a value is invalid.
+	 */
+	public void configure(Properties script) throws IOException {
+		setThreads(intValue(script, "threads", m_Threads));
+		m_Image.setMaxAge(intValue(script, "maxAge", (int) m_Image.getMaxAge()));
+		m_Image.setStaleCode(intValue(script, "staleCode",
+				m_Image.getStaleCode()));
+		m_Image.setUnitID(intValue(script, "unit", m_Image.getUnitID()));
+		int timeout = intValue(script, "timeout", Modbus.DEFAULT_TIMEOUT);
+		int period = intValue(script, "period", 1000);
+
+		for (int i = 0; script.getProperty("device." + i) != null; i++) {
+			String prefix = "device." + i;
+			String address = script.getProperty(prefix).trim();
+			int port = Modbus.DEFAULT_PORT;
+			int unit = Modbus.DEFAULT_UNIT_ID;
+
+			int slash = address.indexOf('/');
+			int colon = address.lastIndexOf(':');
+			try {
+				if (slash >= 0) {
+					unit = Integer.parseInt(address.substring(slash + 1));
+					address = address.substring(0, slash);
+					colon = address.lastIndexOf(':');
+				}
+				if (colon >= 0) {
+					port = Integer.parseInt(address.substring(colon + 1));
+					address = address.substring(0, colon);
+				}
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("invalid " + prefix);
+			}
+			TCPMasterConnection connection = new TCPMasterConnection(
+					InetAddress.getByName(address));
+			connection.setPort(port);
+			connection.setTimeout(timeout);
+
+			PolledDevice device = new PolledDevice(script.getProperty(prefix)
+					.trim(), connection, unit);
+			device.setPeriod(intValue(script, prefix + ".period", period));
+			addDevice(device);
+
+			for (int j = 0; script.getProperty(prefix + ".map." + j) != null; j++) {
+				String[] fields = script.getProperty(prefix + ".map." + j)
+						.split(",");
+				if (fields.length != 4)
+					throw new IllegalArgumentException("invalid " + prefix
+							+ ".map." + j);
+
+				try {
+					map(device, Integer.parseInt(fields[0].trim()),
+							Integer.parseInt(fields[1].trim()),
+							Integer.parseInt(fields[2].trim()),
+							Integer.parseInt(fields[3].trim()));
+				} catch (NumberFormatException ex) {
+					throw new IllegalArgumentException("invalid " + prefix
+							+ ".map." + j);
+				}
+			}
+		}
+	}
+
+	private static int intValue(Properties script, String key, int value) {
+		String text = script.getProperty(key);
+		try {
+			return text == null ? value : Integer.parseInt(text.trim());
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("invalid " + key + ": " + text);
+		}
+	}
+}
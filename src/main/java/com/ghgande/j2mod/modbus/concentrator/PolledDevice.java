@@ -0,0 +1,215 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.concentrator;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.io.ModbusSerialTransaction;
+import com.ghgande.j2mod.modbus.io.ModbusTCPTransaction;
+import com.ghgande.j2mod.modbus.io.ModbusTransaction;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.net.SerialConnection;
+import com.ghgande.j2mod.modbus.net.TCPMasterConnection;
+
+/**
+ * PolledDevice -- a device whose data a {@link DataConcentrator} keeps in its
+ * shadow image.
+ * 
+ * <p>
+ * Each poll reads the ranges mapped from the device, one transaction per
+ * range. Writes from upstream clients are sent to the device between the
+ * transactions of a poll, not after it. Devices on one serial line share its
+ * connection, and take turns on it.
+ */
+public class PolledDevice {
+	private final String m_Name;
+	private final int m_Unit;
+	private final ModbusTransaction m_Transaction;
+	private final Object m_Lock;
+	private final List<ShadowBlock> m_Blocks = new CopyOnWriteArrayList<ShadowBlock>();
+	private volatile long m_Period = 1000;
+
+	private final LongAdder m_Polls = new LongAdder();
+	private final LongAdder m_Failures = new LongAdder();
+	private final LongAdder m_Writes = new LongAdder();
+
+	/**
+	 * Constructs a new <tt>PolledDevice</tt> reached over Modbus/TCP.
+	 * 
+	 * @param name
+	 *            the name of the device.
+	 * @param connection
+	 *            the connection to the device, which is connected when
+	 *            needed.
+	 * @param unit
+	 *            the unit identifier of the device.
+	 */
+	public PolledDevice(String name, TCPMasterConnection connection, int unit) {
+		this(name, new ModbusTCPTransaction(connection), connection, unit);
+	}
+
+	/**
+	 * Constructs a new <tt>PolledDevice</tt> on a serial line.
+	 * 
+	 * @param name
+	 *            the name of the device.
+	 * @param connection
+	 *            the open connection to the line, which may be shared with
+	 *            other devices.
+	 * @param unit
+	 *            the unit identifier of the device.
+	 */
+	public PolledDevice(String name, SerialConnection connection, int unit) {
+		this(name, new ModbusSerialTransaction(connection), connection, unit);
+	}
+
+	private PolledDevice(String name, ModbusTransaction transaction,
+			Object lock, int unit) {
+		m_Name = name;
+		m_Transaction = transaction;
+		m_Lock = lock;
+		m_Unit = unit;
+	}
+
+	public String getName() {
+		return m_Name;
+	}
+
+	public int getUnit() {
+		return m_Unit;
+	}
+
+	/**
+	 * setPeriod -- the time from the end of one poll to the start of the
+	 * next, 1000 milliseconds by default.
+	 * 
+	 * @param ms
+	 *            the period in milliseconds.
+	 */
+	public void setPeriod(long ms) {
+		m_Period = ms;
+	}
+
+	public long getPeriod() {
+		return m_Period;
+	}
+
+	/**
+	 * Returns the number of polls that read every range.
+	 */
+	public long getPolls() {
+		return m_Polls.sum();
+	}
+
+	/**
+	 * Returns the number of polls in which a range could not be read.
+	 */
+	public long getFailures() {
+		return m_Failures.sum();
+	}
+
+	/**
+	 * Returns the number of writes sent to the device.
+	 */
+	public long getWrites() {
+		return m_Writes.sum();
+	}
+
+	/**
+	 * Returns the ranges mapped from the device.
+	 */
+	List<ShadowBlock> getBlocks() {
+		return m_Blocks;
+	}
+
+	void addBlock(ShadowBlock block) {
+		m_Blocks.add(block);
+	}
+
+	/**
+	 * poll -- read every range mapped from the device. A range that cannot be
+	 * read keeps its old data, which grows stale.
+	 */
+	void poll() {
+		boolean failed = false;
+		for (ShadowBlock block : m_Blocks) {
+			try {
+				block.poll();
+			} catch (ModbusException ex) {
+				failed = true;
+				if (Modbus.debug)
+					System.err.println(m_Name + ": " + ex.getMessage());
+			}
+		}
+		if (failed)
+			m_Failures.increment();
+		else
+			m_Polls.increment();
+	}
+
+	/**
+	 * execute -- run a transaction with the device.
+	 * 
+	 * @param request
+	 *            the request, its unit identifier is set to the device's.
+	 * @return the response.
+	 * @throws ModbusException
+	 *             if the transaction fails.
+	 */
+	ModbusResponse execute(ModbusRequest request) throws ModbusException {
+		request.setUnitID(m_Unit);
+		synchronized (m_Lock) {
+			m_Transaction.setRequest(request);
+			m_Transaction.execute();
+			return m_Transaction.getResponse();
+		}
+	}
+
+	/**
+	 * write -- run a write transaction with the device.
+	 */
+	ModbusResponse write(ModbusRequest request) throws ModbusException {
+		m_Writes.increment();
+		return execute(request);
+	}
+
+	public String toString() {
+		return m_Name;
+	}
+}
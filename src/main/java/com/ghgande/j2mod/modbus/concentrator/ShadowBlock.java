@@ -0,0 +1,268 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.concentrator;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.msg.CompiledRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.msg.ReadCoilsRequest;
+import com.ghgande.j2mod.modbus.msg.ReadCoilsResponse;
+import com.ghgande.j2mod.modbus.msg.ReadInputDiscretesRequest;
+import com.ghgande.j2mod.modbus.msg.ReadInputDiscretesResponse;
+import com.ghgande.j2mod.modbus.msg.ReadInputRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.ReadInputRegistersResponse;
+import com.ghgande.j2mod.modbus.msg.ReadMultipleRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.ReadMultipleRegistersResponse;
+import com.ghgande.j2mod.modbus.msg.WriteCoilRequest;
+import com.ghgande.j2mod.modbus.msg.WriteMultipleCoilsRequest;
+import com.ghgande.j2mod.modbus.msg.WriteMultipleRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.WriteSingleRegisterRequest;
+import com.ghgande.j2mod.modbus.procimg.ProcessImageException;
+import com.ghgande.j2mod.modbus.procimg.Register;
+import com.ghgande.j2mod.modbus.procimg.SimpleRegister;
+import com.ghgande.j2mod.modbus.util.BitVector;
+
+/**
+ * ShadowBlock -- a range of a device's coils, discrete inputs, input
+ * registers or holding registers, mapped into the shadow image.
+ * 
+ * <p>
+ * The values are replaced as a whole by each poll, so a range read from the
+ * image is never half old and half new. Writes are sent to the device first
+ * and only change the values once it has accepted them. A poll that was
+ * under way during a write is discarded, as it may have read the values from
+ * before it.
+ */
+final class ShadowBlock {
+	final PolledDevice m_Device;
+	final int m_Table;
+	final int m_DeviceRef;
+	final int m_Ref;
+	final int m_Count;
+	private final CompiledRequest m_Poll;
+
+	private volatile int[] m_Values;
+	private volatile long m_Updated;
+	private int m_Writes; // guarded by this
+
+	/**
+	 * @param device
+	 *            the device.
+	 * @param table
+	 *            the function code that reads the table, 1 to 4.
+	 * @param deviceRef
+	 *            the first address in the device.
+	 * @param count
+	 *            the number of coils, inputs or registers.
+	 * @param ref
+	 *            the first address in the image.
+	 */
+	ShadowBlock(PolledDevice device, int table, int deviceRef, int count,
+			int ref) {
+		int max;
+		switch (table) {
+		case Modbus.READ_COILS:
+		case Modbus.READ_INPUT_DISCRETES:
+			max = 2000;
+			break;
+		case Modbus.READ_MULTIPLE_REGISTERS:
+		case Modbus.READ_INPUT_REGISTERS:
+			max = 125;
+			break;
+		default:
+			throw new IllegalArgumentException("invalid table " + table);
+		}
+		if (count < 1 || count > max)
+			throw new IllegalArgumentException("invalid count " + count);
+		if (deviceRef < 0 || deviceRef + count > 65536 || ref < 0
+				|| ref + count > 65536)
+			throw new IllegalArgumentException("invalid reference");
+
+		m_Device = device;
+		m_Table = table;
+		m_DeviceRef = deviceRef;
+		m_Count = count;
+		m_Ref = ref;
+
+		// the same request every poll, so it is only encoded once
+		ModbusRequest request;
+		switch (table) {
+		case Modbus.READ_COILS:
+			request = new ReadCoilsRequest(deviceRef, count);
+			break;
+		case Modbus.READ_INPUT_DISCRETES:
+			request = new ReadInputDiscretesRequest(deviceRef, count);
+			break;
+		case Modbus.READ_MULTIPLE_REGISTERS:
+			request = new ReadMultipleRegistersRequest(deviceRef, count);
+			break;
+		default:
+			request = new ReadInputRegistersRequest(deviceRef, count);
+			break;
+		}
+		request.setUnitID(device.getUnit());
+		m_Poll = new CompiledRequest(request);
+	}
+
+	/**
+	 * values -- the values of the last poll, if they are recent enough.
+	 * 
+	 * @param maxAge
+	 *            the greatest age in nanoseconds, 0 for any.
+	 * @param code
+	 *            the exception code for stale data.
+	 * @throws ProcessImageException
+	 *             if the range has not been read, or not recently enough.
+	 */
+	int[] values(long maxAge, int code) {
+		int[] values = m_Values;
+		if (values == null
+				|| (maxAge > 0 && System.nanoTime() - m_Updated > maxAge))
+			throw new ProcessImageException(code, m_Device + ": stale data");
+
+		return values;
+	}
+
+	/**
+	 * Returns the time of the last successful poll, from
+	 * <tt>System.nanoTime()</tt>, or 0 if there was none.
+	 */
+	long getUpdated() {
+		return m_Values == null ? 0 : m_Updated;
+	}
+
+	/**
+	 * poll -- read the range from the device.
+	 */
+	void poll() throws ModbusException {
+		int writes;
+		synchronized (this) {
+			writes = m_Writes;
+		}
+		ModbusResponse response = m_Device.execute(m_Poll);
+
+		int[] values = new int[m_Count];
+		try {
+			switch (m_Table) {
+			case Modbus.READ_COILS:
+				BitVector coils = ((ReadCoilsResponse) response).getCoils();
+				for (int i = 0; i < m_Count; i++)
+					values[i] = coils.getBit(i) ? 1 : 0;
+				break;
+			case Modbus.READ_INPUT_DISCRETES:
+				BitVector inputs = ((ReadInputDiscretesResponse) response)
+						.getDiscretes();
+				for (int i = 0; i < m_Count; i++)
+					values[i] = inputs.getBit(i) ? 1 : 0;
+				break;
+			case Modbus.READ_MULTIPLE_REGISTERS:
+				ReadMultipleRegistersResponse registers = (ReadMultipleRegistersResponse) response;
+				for (int i = 0; i < m_Count; i++)
+					values[i] = registers.getRegisterValue(i);
+				break;
+			default:
+				ReadInputRegistersResponse input = (ReadInputRegistersResponse) response;
+				for (int i = 0; i < m_Count; i++)
+					values[i] = input.getRegisterValue(i);
+				break;
+			}
+		} catch (IndexOutOfBoundsException ex) {
+			throw new ModbusException("short response");
+		}
+		synchronized (this) {
+			if (m_Writes != writes)
+				return;
+
+			m_Updated = System.nanoTime();
+			m_Values = values;
+		}
+	}
+
+	/**
+	 * write -- write values through to the device, then into the image.
+	 * 
+	 * @param offset
+	 *            the offset of the first value in the range.
+	 * @param values
+	 *            the values.
+	 * @throws ProcessImageException
+	 *             with the device's exception code if it refused the write,
+	 *             or <tt>GATEWAY_TARGET_NO_RESPONSE</tt> if it did not answer.
+	 */
+	void write(int offset, int[] values) {
+		ModbusRequest request;
+		int ref = m_DeviceRef + offset;
+		if (m_Table == Modbus.READ_COILS) {
+			if (values.length == 1) {
+				request = new WriteCoilRequest(ref, values[0] != 0);
+			} else {
+				BitVector coils = new BitVector(values.length);
+				for (int i = 0; i < values.length; i++)
+					coils.setBit(i, values[i] != 0);
+				request = new WriteMultipleCoilsRequest(ref, coils);
+			}
+		} else {
+			if (values.length == 1) {
+				request = new WriteSingleRegisterRequest(ref,
+						new SimpleRegister(values[0]));
+			} else {
+				Register[] registers = new Register[values.length];
+				for (int i = 0; i < values.length; i++)
+					registers[i] = new SimpleRegister(values[i]);
+				request = new WriteMultipleRegistersRequest(ref, registers);
+			}
+		}
+		try {
+			m_Device.write(request);
+		} catch (ModbusSlaveException ex) {
+			throw new ProcessImageException(ex.getType(), m_Device + ": "
+					+ ex.getMessage());
+		} catch (ModbusException ex) {
+			throw new ProcessImageException(Modbus.GATEWAY_TARGET_NO_RESPONSE,
+					m_Device + ": " + ex.getMessage());
+		}
+		synchronized (this) {
+			m_Writes++;
+			int[] current = m_Values;
+			if (current != null) {
+				int[] updated = current.clone();
+				System.arraycopy(values, 0, updated, offset, values.length);
+				m_Values = updated;
+			}
+		}
+	}
+}
@@ -0,0 +1,442 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.concentrator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.procimg.DigitalIn;
+import com.ghgande.j2mod.modbus.procimg.DigitalOut;
+import com.ghgande.j2mod.modbus.procimg.FIFO;
+import com.ghgande.j2mod.modbus.procimg.File;
+import com.ghgande.j2mod.modbus.procimg.IllegalAddressException;
+import com.ghgande.j2mod.modbus.procimg.InputRegister;
+import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.procimg.ProcessImageException;
+import com.ghgande.j2mod.modbus.procimg.Register;
+
+/**
+ * ShadowImage -- a process image holding the last polled data of the devices
+ * of a {@link DataConcentrator}.
+ * 
+ * <p>
+ * Reads are served from memory. A read fails with the stale data exception
+ * code when a device in its range has not been polled, or not within the
+ * maximum age. Writes to coils and holding registers are sent to the devices
+ * that own them before they are answered, and fail with the device's
+ * exception code, or with <tt>GATEWAY_TARGET_NO_RESPONSE</tt> if it did not
+ * answer. A write spanning the ranges of several devices is sent to each in
+ * turn, and is not undone if a later one fails.
+ */
+public class ShadowImage implements ProcessImage {
+	private final Map<Integer, ConcurrentSkipListMap<Integer, ShadowBlock>> m_Tables =
+			new HashMap<Integer, ConcurrentSkipListMap<Integer, ShadowBlock>>();
+	private volatile int m_Unit = 0;
+	private volatile long m_MaxAge = 0;
+	private volatile int m_StaleCode = Modbus.GATEWAY_TARGET_NO_RESPONSE;
+
+	/**
+	 * Constructs a new, empty <tt>ShadowImage</tt>.
+	 */
+	public ShadowImage() {
+		m_Tables.put(Modbus.READ_COILS,
+				new ConcurrentSkipListMap<Integer, ShadowBlock>());
+		m_Tables.put(Modbus.READ_INPUT_DISCRETES,
+				new ConcurrentSkipListMap<Integer, ShadowBlock>());
+		m_Tables.put(Modbus.READ_MULTIPLE_REGISTERS,
+				new ConcurrentSkipListMap<Integer, ShadowBlock>());
+		m_Tables.put(Modbus.READ_INPUT_REGISTERS,
+				new ConcurrentSkipListMap<Integer, ShadowBlock>());
+	}
+
+	public int getUnitID() {
+		return m_Unit;
+	}
+
+	/**
+	 * setUnitID -- the unit identifier the image answers to, 0 for any.
+	 * 
+	 * @param unit
+	 *            the unit identifier.
+	 */
+	public void setUnitID(int unit) {
+		m_Unit = unit;
+	}
+
+	/**
+	 * setMaxAge -- the greatest age of data that is served, 0 to serve data of
+	 * any age. Data that has never been polled is not served.
+	 * 
+	 * @param ms
+	 *            the age in milliseconds.
+	 */
+	public void setMaxAge(long ms) {
+		m_MaxAge = TimeUnit.MILLISECONDS.toNanos(ms);
+	}
+
+	public long getMaxAge() {
+		return TimeUnit.NANOSECONDS.toMillis(m_MaxAge);
+	}
+
+	/**
+	 * setStaleCode -- the exception code answered for stale data,
+	 * <tt>GATEWAY_TARGET_NO_RESPONSE</tt> by default.
+	 * 
+	 * @param code
+	 *            the exception code.
+	 */
+	public void setStaleCode(int code) {
+		m_StaleCode = code;
+	}
+
+	public int getStaleCode() {
+		return m_StaleCode;
+	}
+
+	/**
+	 * add -- map a range of a device into the image.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the range overlaps one already mapped.
+	 */
+	void add(ShadowBlock block) {
+		ConcurrentSkipListMap<Integer, ShadowBlock> table = m_Tables
+				.get(block.m_Table);
+		synchronized (table) {
+			Map.Entry<Integer, ShadowBlock> below = table
+					.floorEntry(block.m_Ref + block.m_Count - 1);
+			if (below != null
+					&& below.getValue().m_Ref + below.getValue().m_Count > block.m_Ref)
+				throw new IllegalArgumentException("range " + block.m_Ref
+						+ " overlaps " + below.getValue().m_Device);
+
+			table.put(block.m_Ref, block);
+		}
+	}
+
+	/**
+	 * Returns the number of coils, inputs or registers up to the end of the
+	 * last range of a table.
+	 */
+	private int count(int fc) {
+		Map.Entry<Integer, ShadowBlock> last = m_Tables.get(fc).lastEntry();
+		return last == null ? 0 : last.getValue().m_Ref
+				+ last.getValue().m_Count;
+	}
+
+	/**
+	 * lookup -- the values of a range of a table.
+	 * 
+	 * @param fc
+	 *            the table.
+	 * @param ref
+	 *            the first address.
+	 * @param count
+	 *            the number of values.
+	 * @param batch
+	 *            collects the ranges of the devices, for writing, or
+	 *            <tt>null</tt>.
+	 * @return the values.
+	 * @throws IllegalAddressException
+	 *             if part of the range is not mapped.
+	 * @throws ProcessImageException
+	 *             if part of the range is stale.
+	 */
+	private int[] lookup(int fc, int ref, int count, Batch batch) {
+		if (count < 0)
+			throw new IllegalAddressException();
+
+		ConcurrentSkipListMap<Integer, ShadowBlock> table = m_Tables.get(fc);
+		int[] result = new int[count];
+		long maxAge = m_MaxAge;
+		int code = m_StaleCode;
+
+		int done = 0;
+		while (done < count) {
+			int address = ref + done;
+			Map.Entry<Integer, ShadowBlock> entry = table.floorEntry(address);
+			if (entry == null)
+				throw new IllegalAddressException();
+
+			ShadowBlock block = entry.getValue();
+			int offset = address - block.m_Ref;
+			if (offset >= block.m_Count)
+				throw new IllegalAddressException();
+
+			int length = Math.min(count - done, block.m_Count - offset);
+			System.arraycopy(block.values(maxAge, code), offset, result,
+					done, length);
+			if (batch != null)
+				batch.add(block, offset, done, length);
+
+			done += length;
+		}
+		return result;
+	}
+
+	public DigitalOut[] getDigitalOutRange(int ref, int count)
+			throws IllegalAddressException {
+		Batch batch = new Batch(count);
+		int[] values = lookup(Modbus.READ_COILS, ref, count, batch);
+		DigitalOut[] result = new DigitalOut[count];
+		for (int i = 0; i < count; i++)
+			result[i] = new ShadowBit(values[i] != 0, batch, i);
+
+		return result;
+	}
+
+	public DigitalOut getDigitalOut(int ref) throws IllegalAddressException {
+		return getDigitalOutRange(ref, 1)[0];
+	}
+
+	public int getDigitalOutCount() {
+		return count(Modbus.READ_COILS);
+	}
+
+	public DigitalIn[] getDigitalInRange(int ref, int count)
+			throws IllegalAddressException {
+		int[] values = lookup(Modbus.READ_INPUT_DISCRETES, ref, count, null);
+		DigitalIn[] result = new DigitalIn[count];
+		for (int i = 0; i < count; i++)
+			result[i] = new ShadowBit(values[i] != 0, null, i);
+
+		return result;
+	}
+
+	public DigitalIn getDigitalIn(int ref) throws IllegalAddressException {
+		return getDigitalInRange(ref, 1)[0];
+	}
+
+	public int getDigitalInCount() {
+		return count(Modbus.READ_INPUT_DISCRETES);
+	}
+
+	public InputRegister[] getInputRegisterRange(int ref, int count)
+			throws IllegalAddressException {
+		int[] values = lookup(Modbus.READ_INPUT_REGISTERS, ref, count, null);
+		InputRegister[] result = new InputRegister[count];
+		for (int i = 0; i < count; i++)
+			result[i] = new ShadowRegister(values[i], null, i);
+
+		return result;
+	}
+
+	public InputRegister getInputRegister(int ref)
+			throws IllegalAddressException {
+		return getInputRegisterRange(ref, 1)[0];
+	}
+
+	public int getInputRegisterCount() {
+		return count(Modbus.READ_INPUT_REGISTERS);
+	}
+
+	public Register[] getRegisterRange(int ref, int count)
+			throws IllegalAddressException {
+		Batch batch = new Batch(count);
+		int[] values = lookup(Modbus.READ_MULTIPLE_REGISTERS, ref, count,
+				batch);
+		Register[] result = new Register[count];
+		for (int i = 0; i < count; i++)
+			result[i] = new ShadowRegister(values[i], batch, i);
+
+		return result;
+	}
+
+	public Register getRegister(int ref) throws IllegalAddressException {
+		return getRegisterRange(ref, 1)[0];
+	}
+
+	public int getRegisterCount() {
+		return count(Modbus.READ_MULTIPLE_REGISTERS);
+	}
+
+	public File getFile(int ref) throws IllegalAddressException {
+		throw new IllegalAddressException();
+	}
+
+	public File getFileByNumber(int ref) throws IllegalAddressException {
+		throw new IllegalAddressException();
+	}
+
+	public int getFileCount() {
+		return 0;
+	}
+
+	public FIFO getFIFO(int ref) throws IllegalAddressException {
+		throw new IllegalAddressException();
+	}
+
+	public FIFO getFIFOByAddress(int ref) throws IllegalAddressException {
+		throw new IllegalAddressException();
+	}
+
+	public int getFIFOCount() {
+		return 0;
+	}
+
+	/**
+	 * Batch -- the coils or registers of one range lookup. The request
+	 * classes set them one at a time, so the values are collected and sent
+	 * to the devices once all have been set.
+	 */
+	private static final class Batch {
+		private final List<Segment> m_Segments = new ArrayList<Segment>(1);
+		private final int[] m_Values;
+		private final boolean[] m_Set;
+		private int m_Pending;
+
+		Batch(int count) {
+			m_Values = new int[count];
+			m_Set = new boolean[count];
+			m_Pending = count;
+		}
+
+		void add(ShadowBlock block, int offset, int start, int length) {
+			m_Segments.add(new Segment(block, offset, start, length));
+		}
+
+		synchronized void set(int index, int value) {
+			m_Values[index] = value;
+			if (m_Set[index])
+				return;
+
+			m_Set[index] = true;
+			if (--m_Pending > 0)
+				return;
+
+			for (Segment segment : m_Segments) {
+				int[] values = new int[segment.m_Length];
+				System.arraycopy(m_Values, segment.m_Start, values, 0,
+						values.length);
+				segment.m_Block.write(segment.m_Offset, values);
+			}
+		}
+	}
+
+	private static final class Segment {
+		final ShadowBlock m_Block;
+		final int m_Offset;
+		final int m_Start;
+		final int m_Length;
+
+		Segment(ShadowBlock block, int offset, int start, int length) {
+			m_Block = block;
+			m_Offset = offset;
+			m_Start = start;
+			m_Length = length;
+		}
+	}
+
+	/**
+	 * ShadowRegister -- a register as it was when looked up.
+	 */
+	private static final class ShadowRegister implements Register {
+		private final Batch m_Batch;
+		private final int m_Index;
+		private int m_Value;
+
+		ShadowRegister(int value, Batch batch, int index) {
+			m_Value = value;
+			m_Batch = batch;
+			m_Index = index;
+		}
+
+		public int getValue() {
+			return m_Value;
+		}
+
+		public int toUnsignedShort() {
+			return m_Value;
+		}
+
+		public short toShort() {
+			return (short) m_Value;
+		}
+
+		public byte[] toBytes() {
+			return new byte[] { (byte) (m_Value >> 8), (byte) m_Value };
+		}
+
+		public void setValue(int v) {
+			if (m_Batch == null)
+				throw new IllegalAddressException();
+
+			m_Batch.set(m_Index, v & 0xFFFF);
+			m_Value = v & 0xFFFF;
+		}
+
+		public void setValue(short s) {
+			setValue((int) s);
+		}
+
+		public void setValue(byte[] bytes) {
+			if (bytes.length < 2)
+				throw new IllegalArgumentException();
+
+			setValue((bytes[0] & 0xFF) << 8 | (bytes[1] & 0xFF));
+		}
+	}
+
+	/**
+	 * ShadowBit -- a coil or discrete input as it was when looked up.
+	 */
+	private static final class ShadowBit implements DigitalOut, DigitalIn {
+		private final Batch m_Batch;
+		private final int m_Index;
+		private boolean m_Set;
+
+		ShadowBit(boolean set, Batch batch, int index) {
+			m_Set = set;
+			m_Batch = batch;
+			m_Index = index;
+		}
+
+		public boolean isSet() {
+			return m_Set;
+		}
+
+		public void set(boolean b) {
+			if (m_Batch == null)
+				throw new IllegalAddressException();
+
+			m_Batch.set(m_Index, b ? 1 : 0);
+			m_Set = b;
+		}
+	}
+}
@@ -33,13 +33,19 @@
  ***/
 package com.ghgande.j2mod.modbus.facade;
 
+import java.util.Arrays;
+
+import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusCoupler;
 import com.ghgande.j2mod.modbus.ModbusException;
 import com.ghgande.j2mod.modbus.io.ModbusSerialTransaction;
+import com.ghgande.j2mod.modbus.io.ReadCoalescer;
+import com.ghgande.j2mod.modbus.io.RttEstimator;
 import com.ghgande.j2mod.modbus.msg.*;
 import com.ghgande.j2mod.modbus.net.SerialConnection;
 import com.ghgande.j2mod.modbus.procimg.InputRegister;
 import com.ghgande.j2mod.modbus.procimg.Register;
+import com.ghgande.j2mod.modbus.profile.DeviceProfile;
 import com.ghgande.j2mod.modbus.util.BitVector;
 import com.ghgande.j2mod.modbus.util.SerialParameters;
 
@@ -56,14 +62,12 @@ public class ModbusSerialMaster {
   private SerialParameters m_CommParameters;
   private SerialConnection m_Connection;
   private ModbusSerialTransaction m_Transaction;
-  private ReadCoilsRequest m_ReadCoilsRequest;
-  private ReadInputDiscretesRequest m_ReadInputDiscretesRequest;
+  private final ReadCoalescer m_Reads = new ReadCoalescer();
   private WriteCoilRequest m_WriteCoilRequest;
   private WriteMultipleCoilsRequest m_WriteMultipleCoilsRequest;
-  private ReadInputRegistersRequest m_ReadInputRegistersRequest;
-  private ReadMultipleRegistersRequest m_ReadMultipleRegistersRequest;
   private WriteSingleRegisterRequest m_WriteSingleRegisterRequest;
   private WriteMultipleRegistersRequest m_WriteMultipleRegistersRequest;
+  private volatile DeviceProfile m_Profile;
 
   /**
    * Constructs a new master facade instance for communication
@@ -76,12 +80,8 @@ public class ModbusSerialMaster {
     try {
       m_CommParameters = param;
       m_Connection = new SerialConnection(m_CommParameters);
-      m_ReadCoilsRequest = new ReadCoilsRequest();
-      m_ReadInputDiscretesRequest = new ReadInputDiscretesRequest();
       m_WriteCoilRequest = new WriteCoilRequest();
       m_WriteMultipleCoilsRequest = new WriteMultipleCoilsRequest();
-      m_ReadInputRegistersRequest = new ReadInputRegistersRequest();
-      m_ReadMultipleRegistersRequest = new ReadMultipleRegistersRequest();
       m_WriteSingleRegisterRequest = new WriteSingleRegisterRequest();
       m_WriteMultipleRegistersRequest = new WriteMultipleRegistersRequest();
     } catch (Exception e) {
@@ -144,14 +144,23 @@ public class ModbusSerialMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized BitVector readCoils(int unitid, int ref, int count)
+  public BitVector readCoils(int unitid, int ref, int count)
       throws ModbusException {
-    m_ReadCoilsRequest.setUnitID(unitid);
-    m_ReadCoilsRequest.setReference(ref);
-    m_ReadCoilsRequest.setBitCount(count);
-    m_Transaction.setRequest(m_ReadCoilsRequest);
-    m_Transaction.execute();
-    BitVector bv = ((ReadCoilsResponse) m_Transaction.getResponse()).getCoils();
+    int chunk = getChunkSize(unitid, Modbus.READ_COILS);
+    if (count > chunk) {
+      BitVector bv = new BitVector(count);
+      for (int done = 0; done < count; done += chunk) {
+        int n = Math.min(chunk, count - done);
+        BitVector part = readCoils(unitid, ref + done, n);
+        for (int i = 0; i < n; i++) {
+          bv.setBit(done + i, part.getBit(i));
+        }
+      }
+      return bv;
+    }
+    ReadCoilsRequest request = new ReadCoilsRequest(ref, count);
+    request.setUnitID(unitid);
+    BitVector bv = ((ReadCoilsResponse) read(request, ref, count)).getCoils();
     bv.forceSize(count);
     return bv;
   }//readCoils
@@ -172,7 +181,11 @@ public class ModbusSerialMaster {
     m_WriteCoilRequest.setReference(ref);
     m_WriteCoilRequest.setCoil(state);
     m_Transaction.setRequest(m_WriteCoilRequest);
-    m_Transaction.execute();
+    try {
+      m_Transaction.execute();
+    } finally {
+      m_Reads.invalidate(m_WriteCoilRequest);
+    }
     return ((WriteCoilResponse) m_Transaction.getResponse()).getCoil();
   }//writeCoil
 
@@ -194,7 +207,11 @@ public class ModbusSerialMaster {
     m_WriteMultipleCoilsRequest.setReference(ref);
     m_WriteMultipleCoilsRequest.setCoils(coils);
     m_Transaction.setRequest(m_WriteMultipleCoilsRequest);
-    m_Transaction.execute();
+    try {
+      m_Transaction.execute();
+    } finally {
+      m_Reads.invalidate(m_WriteMultipleCoilsRequest);
+    }
   }//writeMultipleCoils
 
   /**
@@ -211,14 +228,23 @@ public class ModbusSerialMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized BitVector readInputDiscretes(int unitid, int ref, int count)
+  public BitVector readInputDiscretes(int unitid, int ref, int count)
       throws ModbusException {
-    m_ReadInputDiscretesRequest.setUnitID(unitid);
-    m_ReadInputDiscretesRequest.setReference(ref);
-    m_ReadInputDiscretesRequest.setBitCount(count);
-    m_Transaction.setRequest(m_ReadInputDiscretesRequest);
-    m_Transaction.execute();
-    BitVector bv = ((ReadInputDiscretesResponse) m_Transaction.getResponse()).getDiscretes();
+    int chunk = getChunkSize(unitid, Modbus.READ_INPUT_DISCRETES);
+    if (count > chunk) {
+      BitVector bv = new BitVector(count);
+      for (int done = 0; done < count; done += chunk) {
+        int n = Math.min(chunk, count - done);
+        BitVector part = readInputDiscretes(unitid, ref + done, n);
+        for (int i = 0; i < n; i++) {
+          bv.setBit(done + i, part.getBit(i));
+        }
+      }
+      return bv;
+    }
+    ReadInputDiscretesRequest request = new ReadInputDiscretesRequest(ref, count);
+    request.setUnitID(unitid);
+    BitVector bv = ((ReadInputDiscretesResponse) read(request, ref, count)).getDiscretes();
     bv.forceSize(count);
     return bv;
   }//readInputDiscretes
@@ -237,14 +263,27 @@ public class ModbusSerialMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized InputRegister[] readInputRegisters(int unitid, int ref, int count)
+  public InputRegister[] readInputRegisters(int unitid, int ref, int count)
       throws ModbusException {
-    m_ReadInputRegistersRequest.setUnitID(unitid);
-    m_ReadInputRegistersRequest.setReference(ref);
-    m_ReadInputRegistersRequest.setWordCount(count);
-    m_Transaction.setRequest(m_ReadInputRegistersRequest);
-    m_Transaction.execute();
-    return ((ReadInputRegistersResponse) m_Transaction.getResponse()).getRegisters();
+    int chunk = getChunkSize(unitid, Modbus.READ_INPUT_REGISTERS);
+    if (count > chunk) {
+      InputRegister[] registers = new InputRegister[count];
+      int done = 0;
+      while (done < count) {
+        InputRegister[] part = readInputRegisters(unitid, ref + done,
+            Math.min(chunk, count - done));
+        if (part.length == 0) {
+          break;
+        }
+        int n = Math.min(part.length, count - done);
+        System.arraycopy(part, 0, registers, done, n);
+        done += n;
+      }
+      return done == count ? registers : Arrays.copyOf(registers, done);
+    }
+    ReadInputRegistersRequest request = new ReadInputRegistersRequest(ref, count);
+    request.setUnitID(unitid);
+    return ((ReadInputRegistersResponse) read(request, ref, count)).getRegisters();
   }//readInputRegisters
 
   /**
@@ -260,14 +299,27 @@ public class ModbusSerialMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized Register[] readMultipleRegisters(int unitid, int ref, int count)
+  public Register[] readMultipleRegisters(int unitid, int ref, int count)
       throws ModbusException {
-    m_ReadMultipleRegistersRequest.setUnitID(unitid);
-    m_ReadMultipleRegistersRequest.setReference(ref);
-    m_ReadMultipleRegistersRequest.setWordCount(count);
-    m_Transaction.setRequest(m_ReadMultipleRegistersRequest);
-    m_Transaction.execute();
-    return ((ReadMultipleRegistersResponse) m_Transaction.getResponse()).getRegisters();
+    int chunk = getChunkSize(unitid, Modbus.READ_MULTIPLE_REGISTERS);
+    if (count > chunk) {
+      Register[] registers = new Register[count];
+      int done = 0;
+      while (done < count) {
+        Register[] part = readMultipleRegisters(unitid, ref + done,
+            Math.min(chunk, count - done));
+        if (part.length == 0) {
+          break;
+        }
+        int n = Math.min(part.length, count - done);
+        System.arraycopy(part, 0, registers, done, n);
+        done += n;
+      }
+      return done == count ? registers : Arrays.copyOf(registers, done);
+    }
+    ReadMultipleRegistersRequest request = new ReadMultipleRegistersRequest(ref, count);
+    request.setUnitID(unitid);
+    return ((ReadMultipleRegistersResponse) read(request, ref, count)).getRegisters();
   }//readMultipleRegisters
 
   /**
@@ -286,7 +338,11 @@ public class ModbusSerialMaster {
     m_WriteSingleRegisterRequest.setReference(ref);
     m_WriteSingleRegisterRequest.setRegister(register);
     m_Transaction.setRequest(m_WriteSingleRegisterRequest);
-    m_Transaction.execute();
+    try {
+      m_Transaction.execute();
+    } finally {
+      m_Reads.invalidate(m_WriteSingleRegisterRequest);
+    }
   }//writeSingleRegister
 
   /**
@@ -305,7 +361,83 @@ public class ModbusSerialMaster {
     m_WriteMultipleRegistersRequest.setReference(ref);
     m_WriteMultipleRegistersRequest.setRegisters(registers);
     m_Transaction.setRequest(m_WriteMultipleRegistersRequest);
-    m_Transaction.execute();
+    try {
+      m_Transaction.execute();
+    } finally {
+      m_Reads.invalidate(m_WriteMultipleRegistersRequest);
+    }
   }//writeMultipleRegisters
 
+  /**
+   * Sets the profile of a slave on the line, as made by a
+   * <tt>DeviceProfiler</tt> or loaded from a <tt>ProfileCache</tt>.
+   * <p/>
+   * Reads from the unit of the profile of more than it returns at
+   * once are split into several requests. With adaptive timeouts
+   * on, the first transactions wait for about as long as the
+   * profile says the unit takes, rather than learning it from
+   * timeouts.
+   *
+   * @param profile the profile, or <tt>null</tt> for none.
+   */
+  public void setProfile(DeviceProfile profile) {
+    m_Profile = profile;
+    if (profile != null && RttEstimator.isEnabled()) {
+      profile.seed(RttEstimator.getEstimator("device:"
+          + m_CommParameters.getPortName()), profile.getUnit());
+    }
+  }//setProfile
+
+  /**
+   * Returns the profile of the slave.
+   *
+   * @return the profile, or <tt>null</tt> if none has been set.
+   */
+  public DeviceProfile getProfile() {
+    return m_Profile;
+  }//getProfile
+
+  /**
+   * Returns the <tt>ReadCoalescer</tt> of this <tt>ModbusSerialMaster</tt>.
+   * <p/>
+   * Threads sharing this master share identical reads that are
+   * in flight. Set a time to live on the coalescer to also keep
+   * responses for readers that arrive shortly after; writes
+   * through this master drop the ones they overlap.
+   *
+   * @return the read coalescer.
+   */
+  public ReadCoalescer getReadCoalescer() {
+    return m_Reads;
+  }//getReadCoalescer
+
+  /**
+   * Returns the most to ask for in one read of a function.
+   */
+  private int getChunkSize(int unitid, int function) {
+    DeviceProfile profile = m_Profile;
+    if (profile == null || profile.getUnit() != unitid) {
+      return Integer.MAX_VALUE;
+    }
+    return profile.getChunkSize(function);
+  }//getChunkSize
+
+  /**
+   * Executes a read, or joins an identical one in flight.
+   * Only the thread executing it takes the lock of this master,
+   * so a write waits for the read and is never overtaken by
+   * a response received before it.
+   */
+  private ModbusResponse read(ModbusRequest request, int ref, int count)
+      throws ModbusException {
+    ReadCoalescer.Flight flight = m_Reads.join(request.getUnitID(),
+        request.getFunctionCode(), ref, count);
+    if (!flight.isLeader()) {
+      return flight.getResponse();
+    }
+    synchronized (this) {
+      return flight.execute(m_Transaction, request);
+    }
+  }//read
+
 }//class ModbusSerialMaster
@@ -36,13 +36,19 @@ package com.ghgande.j2mod.modbus.facade;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Arrays;
 
+import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusException;
 import com.ghgande.j2mod.modbus.io.ModbusTCPTransaction;
+import com.ghgande.j2mod.modbus.io.ReadCoalescer;
+import com.ghgande.j2mod.modbus.io.RttEstimator;
 import com.ghgande.j2mod.modbus.msg.*;
+import com.ghgande.j2mod.modbus.net.TCPConnectionPool;
 import com.ghgande.j2mod.modbus.net.TCPMasterConnection;
 import com.ghgande.j2mod.modbus.procimg.InputRegister;
 import com.ghgande.j2mod.modbus.procimg.Register;
+import com.ghgande.j2mod.modbus.profile.DeviceProfile;
 import com.ghgande.j2mod.modbus.util.BitVector;
 
 /**
@@ -54,17 +60,17 @@ import com.ghgande.j2mod.modbus.util.BitVector;
 public class ModbusTCPMaster {
 
   private TCPMasterConnection m_Connection;
+  private TCPConnectionPool m_Pool;
   private InetAddress m_SlaveAddress;
   private ModbusTCPTransaction m_Transaction;
-  private ReadCoilsRequest m_ReadCoilsRequest;
-  private ReadInputDiscretesRequest m_ReadInputDiscretesRequest;
+  //writes invalidate the reads of every unit, as all go to one device
+  private final ReadCoalescer m_Reads = new ReadCoalescer();
   private WriteCoilRequest m_WriteCoilRequest;
   private WriteMultipleCoilsRequest m_WriteMultipleCoilsRequest;
-  private ReadInputRegistersRequest m_ReadInputRegistersRequest;
-  private ReadMultipleRegistersRequest m_ReadMultipleRegistersRequest;
   private WriteSingleRegisterRequest m_WriteSingleRegisterRequest;
   private WriteMultipleRegistersRequest m_WriteMultipleRegistersRequest;
   private boolean m_Reconnecting = false;
+  private volatile DeviceProfile m_Profile;
 
   /**
    * Constructs a new master facade instance for communication
@@ -77,12 +83,8 @@ public class ModbusTCPMaster {
     try {
       m_SlaveAddress = InetAddress.getByName(addr);
       m_Connection = new TCPMasterConnection(m_SlaveAddress);
-      m_ReadCoilsRequest = new ReadCoilsRequest();
-      m_ReadInputDiscretesRequest = new ReadInputDiscretesRequest();
       m_WriteCoilRequest = new WriteCoilRequest();
       m_WriteMultipleCoilsRequest = new WriteMultipleCoilsRequest();
-      m_ReadInputRegistersRequest = new ReadInputRegistersRequest();
-      m_ReadMultipleRegistersRequest = new ReadMultipleRegistersRequest();
       m_WriteSingleRegisterRequest = new WriteSingleRegisterRequest();
       m_WriteMultipleRegistersRequest = new WriteMultipleRegistersRequest();
 
@@ -104,6 +106,24 @@ public class ModbusTCPMaster {
     m_Connection.setPort(port);
   }//constructor
 
+  /**
+   * Constructs a new master facade instance that borrows a
+   * connection from a pool for each transaction, instead of
+   * keeping one of its own. Connecting and disconnecting then
+   * open and close no connections, and reconnecting has no
+   * effect.
+   *
+   * @param addr an internet address as resolvable IP name or IP number,
+   *             specifying the slave to communicate with.
+   * @param port the port the slave is listening to.
+   * @param pool the pool, for example
+   *             <tt>TCPConnectionPool.getReference()</tt>.
+   */
+  public ModbusTCPMaster(String addr, int port, TCPConnectionPool pool) {
+    this(addr, port);
+    m_Pool = pool;
+  }//constructor
+
   /**
    * Connects this <tt>ModbusTCPMaster</tt> with the slave.
    *
@@ -111,6 +131,13 @@ public class ModbusTCPMaster {
    */
   public void connect()
       throws Exception {
+    if (m_Pool != null) {
+      if (m_Transaction == null) {
+        m_Transaction = new ModbusTCPTransaction(m_Pool, m_SlaveAddress,
+            m_Connection.getPort());
+      }
+      return;
+    }
     if (m_Connection != null && !m_Connection.isConnected()) {
       m_Connection.connect();
       m_Transaction = new ModbusTCPTransaction(m_Connection);
@@ -122,6 +149,10 @@ public class ModbusTCPMaster {
    * Disconnects this <tt>ModbusTCPMaster</tt> from the slave.
    */
   public void disconnect() {
+    if (m_Pool != null) {
+      m_Transaction = null;
+      return;
+    }
     if (m_Connection != null && m_Connection.isConnected()) {
       m_Connection.close();
       m_Transaction = null;
@@ -166,13 +197,22 @@ public class ModbusTCPMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized BitVector readCoils(int ref, int count)
+  public BitVector readCoils(int ref, int count)
       throws ModbusException {
-    m_ReadCoilsRequest.setReference(ref);
-    m_ReadCoilsRequest.setBitCount(count);
-    m_Transaction.setRequest(m_ReadCoilsRequest);
-    m_Transaction.execute();
-    BitVector bv = ((ReadCoilsResponse) m_Transaction.getResponse()).getCoils();
+    int chunk = getChunkSize(Modbus.READ_COILS);
+    if (count > chunk) {
+      BitVector bv = new BitVector(count);
+      for (int done = 0; done < count; done += chunk) {
+        int n = Math.min(chunk, count - done);
+        BitVector part = readCoils(ref + done, n);
+        for (int i = 0; i < n; i++) {
+          bv.setBit(done + i, part.getBit(i));
+        }
+      }
+      return bv;
+    }
+    ReadCoilsRequest request = new ReadCoilsRequest(ref, count);
+    BitVector bv = ((ReadCoilsResponse) read(request, ref, count)).getCoils();
     bv.forceSize(count);
     return bv;
   }//readCoils
@@ -193,7 +233,11 @@ public class ModbusTCPMaster {
     m_WriteCoilRequest.setReference(ref);
     m_WriteCoilRequest.setCoil(state);
     m_Transaction.setRequest(m_WriteCoilRequest);
-    m_Transaction.execute();
+    try {
+      m_Transaction.execute();
+    } finally {
+      m_Reads.invalidate(m_WriteCoilRequest, ReadCoalescer.ANY_UNIT);
+    }
     return ((WriteCoilResponse) m_Transaction.getResponse()).getCoil();
   }//writeCoil
 
@@ -213,7 +257,11 @@ public class ModbusTCPMaster {
     m_WriteMultipleCoilsRequest.setReference(ref);
     m_WriteMultipleCoilsRequest.setCoils(coils);
     m_Transaction.setRequest(m_WriteMultipleCoilsRequest);
-    m_Transaction.execute();
+    try {
+      m_Transaction.execute();
+    } finally {
+      m_Reads.invalidate(m_WriteMultipleCoilsRequest, ReadCoalescer.ANY_UNIT);
+    }
   }//writeMultipleCoils
 
   /**
@@ -229,13 +277,22 @@ public class ModbusTCPMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized BitVector readInputDiscretes(int ref, int count)
+  public BitVector readInputDiscretes(int ref, int count)
       throws ModbusException {
-    m_ReadInputDiscretesRequest.setReference(ref);
-    m_ReadInputDiscretesRequest.setBitCount(count);
-    m_Transaction.setRequest(m_ReadInputDiscretesRequest);
-    m_Transaction.execute();
-    BitVector bv = ((ReadInputDiscretesResponse) m_Transaction.getResponse()).getDiscretes();
+    int chunk = getChunkSize(Modbus.READ_INPUT_DISCRETES);
+    if (count > chunk) {
+      BitVector bv = new BitVector(count);
+      for (int done = 0; done < count; done += chunk) {
+        int n = Math.min(chunk, count - done);
+        BitVector part = readInputDiscretes(ref + done, n);
+        for (int i = 0; i < n; i++) {
+          bv.setBit(done + i, part.getBit(i));
+        }
+      }
+      return bv;
+    }
+    ReadInputDiscretesRequest request = new ReadInputDiscretesRequest(ref, count);
+    BitVector bv = ((ReadInputDiscretesResponse) read(request, ref, count)).getDiscretes();
     bv.forceSize(count);
     return bv;
   }//readInputDiscretes
@@ -253,13 +310,26 @@ public class ModbusTCPMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized InputRegister[] readInputRegisters(int ref, int count)
+  public InputRegister[] readInputRegisters(int ref, int count)
       throws ModbusException {
-    m_ReadInputRegistersRequest.setReference(ref);
-    m_ReadInputRegistersRequest.setWordCount(count);
-    m_Transaction.setRequest(m_ReadInputRegistersRequest);
-    m_Transaction.execute();
-    return ((ReadInputRegistersResponse) m_Transaction.getResponse()).getRegisters();
+    int chunk = getChunkSize(Modbus.READ_INPUT_REGISTERS);
+    if (count > chunk) {
+      InputRegister[] registers = new InputRegister[count];
+      int done = 0;
+      while (done < count) {
+        InputRegister[] part = readInputRegisters(ref + done,
+            Math.min(chunk, count - done));
+        if (part.length == 0) {
+          break;
+        }
+        int n = Math.min(part.length, count - done);
+        System.arraycopy(part, 0, registers, done, n);
+        done += n;
+      }
+      return done == count ? registers : Arrays.copyOf(registers, done);
+    }
+    ReadInputRegistersRequest request = new ReadInputRegistersRequest(ref, count);
+    return ((ReadInputRegistersResponse) read(request, ref, count)).getRegisters();
   }//readInputRegisters
 
   /**
@@ -274,13 +344,26 @@ public class ModbusTCPMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized Register[] readMultipleRegisters(int ref, int count)
+  public Register[] readMultipleRegisters(int ref, int count)
       throws ModbusException {
-    m_ReadMultipleRegistersRequest.setReference(ref);
-    m_ReadMultipleRegistersRequest.setWordCount(count);
-    m_Transaction.setRequest(m_ReadMultipleRegistersRequest);
-    m_Transaction.execute();
-    return ((ReadMultipleRegistersResponse) m_Transaction.getResponse()).getRegisters();
+    int chunk = getChunkSize(Modbus.READ_MULTIPLE_REGISTERS);
+    if (count > chunk) {
+      Register[] registers = new Register[count];
+      int done = 0;
+      while (done < count) {
+        Register[] part = readMultipleRegisters(ref + done,
+            Math.min(chunk, count - done));
+        if (part.length == 0) {
+          break;
+        }
+        int n = Math.min(part.length, count - done);
+        System.arraycopy(part, 0, registers, done, n);
+        done += n;
+      }
+      return done == count ? registers : Arrays.copyOf(registers, done);
+    }
+    ReadMultipleRegistersRequest request = new ReadMultipleRegistersRequest(ref, count);
+    return ((ReadMultipleRegistersResponse) read(request, ref, count)).getRegisters();
   }//readMultipleRegisters
 
   /**
@@ -297,7 +380,11 @@ public class ModbusTCPMaster {
     m_WriteSingleRegisterRequest.setReference(ref);
     m_WriteSingleRegisterRequest.setRegister(register);
     m_Transaction.setRequest(m_WriteSingleRegisterRequest);
-    m_Transaction.execute();
+    try {
+      m_Transaction.execute();
+    } finally {
+      m_Reads.invalidate(m_WriteSingleRegisterRequest, ReadCoalescer.ANY_UNIT);
+    }
   }//writeSingleRegister
 
   /**
@@ -314,7 +401,81 @@ public class ModbusTCPMaster {
     m_WriteMultipleRegistersRequest.setReference(ref);
     m_WriteMultipleRegistersRequest.setRegisters(registers);
     m_Transaction.setRequest(m_WriteMultipleRegistersRequest);
-    m_Transaction.execute();
+    try {
+      m_Transaction.execute();
+    } finally {
+      m_Reads.invalidate(m_WriteMultipleRegistersRequest, ReadCoalescer.ANY_UNIT);
+    }
   }//writeMultipleRegisters
 
+  /**
+   * Sets the profile of the slave, as made by a
+   * <tt>DeviceProfiler</tt> or loaded from a <tt>ProfileCache</tt>.
+   * <p/>
+   * Reads of more than the slave returns at once are split into
+   * several requests. With adaptive timeouts on, the first
+   * transactions wait for about as long as the profile says the
+   * slave takes, rather than learning it from timeouts.
+   *
+   * @param profile the profile, or <tt>null</tt> for none.
+   */
+  public void setProfile(DeviceProfile profile) {
+    m_Profile = profile;
+    if (profile != null && RttEstimator.isEnabled()) {
+      profile.seed(RttEstimator.getEstimator("tcp:"
+          + m_SlaveAddress.getHostAddress() + ":" + m_Connection.getPort()),
+          Modbus.DEFAULT_UNIT_ID);
+    }
+  }//setProfile
+
+  /**
+   * Returns the profile of the slave.
+   *
+   * @return the profile, or <tt>null</tt> if none has been set.
+   */
+  public DeviceProfile getProfile() {
+    return m_Profile;
+  }//getProfile
+
+  /**
+   * Returns the <tt>ReadCoalescer</tt> of this <tt>ModbusTCPMaster</tt>.
+   * <p/>
+   * Threads sharing this master share identical reads that are
+   * in flight. Set a time to live on the coalescer to also keep
+   * responses for readers that arrive shortly after; writes
+   * through this master drop the ones they overlap.
+   *
+   * @return the read coalescer.
+   */
+  public ReadCoalescer getReadCoalescer() {
+    return m_Reads;
+  }//getReadCoalescer
+
+  /**
+   * Returns the most to ask for in one read of a function.
+   */
+  private int getChunkSize(int function) {
+    DeviceProfile profile = m_Profile;
+    return profile == null ? Integer.MAX_VALUE
+        : profile.getChunkSize(function);
+  }//getChunkSize
+
+  /**
+   * Executes a read, or joins an identical one in flight.
+   * Only the thread executing it takes the lock of this master,
+   * so a write waits for the read and is never overtaken by
+   * a response received before it.
+   */
+  private ModbusResponse read(ModbusRequest request, int ref, int count)
+      throws ModbusException {
+    ReadCoalescer.Flight flight = m_Reads.join(request.getUnitID(),
+        request.getFunctionCode(), ref, count);
+    if (!flight.isLeader()) {
+      return flight.getResponse();
+    }
+    synchronized (this) {
+      return flight.execute(m_Transaction, request);
+    }
+  }//read
+
 }//class ModbusTCPMaster
@@ -39,6 +39,7 @@ import java.net.UnknownHostException;
 
 import com.ghgande.j2mod.modbus.ModbusException;
 import com.ghgande.j2mod.modbus.io.ModbusUDPTransaction;
+import com.ghgande.j2mod.modbus.io.ReadCoalescer;
 import com.ghgande.j2mod.modbus.msg.*;
 import com.ghgande.j2mod.modbus.net.UDPMasterConnection;
 import com.ghgande.j2mod.modbus.procimg.InputRegister;
@@ -56,12 +57,10 @@ public class ModbusUDPMaster {
   private UDPMasterConnection m_Connection;
   private InetAddress m_SlaveAddress;
   private ModbusUDPTransaction m_Transaction;
-  private ReadCoilsRequest m_ReadCoilsRequest;
-  private ReadInputDiscretesRequest m_ReadInputDiscretesRequest;
+  //writes invalidate the reads of every unit, as all go to one device
+  private final ReadCoalescer m_Reads = new ReadCoalescer();
   private WriteCoilRequest m_WriteCoilRequest;
   private WriteMultipleCoilsRequest m_WriteMultipleCoilsRequest;
-  private ReadInputRegistersRequest m_ReadInputRegistersRequest;
-  private ReadMultipleRegistersRequest m_ReadMultipleRegistersRequest;
   private WriteSingleRegisterRequest m_WriteSingleRegisterRequest;
   private WriteMultipleRegistersRequest m_WriteMultipleRegistersRequest;
 
@@ -76,12 +75,8 @@ public class ModbusUDPMaster {
     try {
       m_SlaveAddress = InetAddress.getByName(addr);
       m_Connection = new UDPMasterConnection(m_SlaveAddress);
-      m_ReadCoilsRequest = new ReadCoilsRequest();
-      m_ReadInputDiscretesRequest = new ReadInputDiscretesRequest();
       m_WriteCoilRequest = new WriteCoilRequest();
       m_WriteMultipleCoilsRequest = new WriteMultipleCoilsRequest();
-      m_ReadInputRegistersRequest = new ReadInputRegistersRequest();
-      m_ReadMultipleRegistersRequest = new ReadMultipleRegistersRequest();
       m_WriteSingleRegisterRequest = new WriteSingleRegisterRequest();
       m_WriteMultipleRegistersRequest = new WriteMultipleRegistersRequest();
 
@@ -139,13 +134,10 @@ public class ModbusUDPMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized BitVector readCoils(int ref, int count)
+  public BitVector readCoils(int ref, int count)
       throws ModbusException {
-    m_ReadCoilsRequest.setReference(ref);
-    m_ReadCoilsRequest.setBitCount(count);
-    m_Transaction.setRequest(m_ReadCoilsRequest);
-    m_Transaction.execute();
-    BitVector bv = ((ReadCoilsResponse) m_Transaction.getResponse()).getCoils();
+    ReadCoilsRequest request = new ReadCoilsRequest(ref, count);
+    BitVector bv = ((ReadCoilsResponse) read(request, ref, count)).getCoils();
     bv.forceSize(count);
     return bv;
   }//readCoils
@@ -166,7 +158,11 @@ public class ModbusUDPMaster {
     m_WriteCoilRequest.setReference(ref);
     m_WriteCoilRequest.setCoil(state);
     m_Transaction.setRequest(m_WriteCoilRequest);
-    m_Transaction.execute();
+    try {
+      m_Transaction.execute();
+    } finally {
+      m_Reads.invalidate(m_WriteCoilRequest, ReadCoalescer.ANY_UNIT);
+    }
     return ((WriteCoilResponse) m_Transaction.getResponse()).getCoil();
   }//writeCoil
 
@@ -186,7 +182,11 @@ public class ModbusUDPMaster {
     m_WriteMultipleCoilsRequest.setReference(ref);
     m_WriteMultipleCoilsRequest.setCoils(coils);
     m_Transaction.setRequest(m_WriteMultipleCoilsRequest);
-    m_Transaction.execute();
+    try {
+      m_Transaction.execute();
+    } finally {
+      m_Reads.invalidate(m_WriteMultipleCoilsRequest, ReadCoalescer.ANY_UNIT);
+    }
   }//writeMultipleCoils
 
   /**
@@ -202,13 +202,10 @@ public class ModbusUDPMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized BitVector readInputDiscretes(int ref, int count)
+  public BitVector readInputDiscretes(int ref, int count)
       throws ModbusException {
-    m_ReadInputDiscretesRequest.setReference(ref);
-    m_ReadInputDiscretesRequest.setBitCount(count);
-    m_Transaction.setRequest(m_ReadInputDiscretesRequest);
-    m_Transaction.execute();
-    BitVector bv = ((ReadInputDiscretesResponse) m_Transaction.getResponse()).getDiscretes();
+    ReadInputDiscretesRequest request = new ReadInputDiscretesRequest(ref, count);
+    BitVector bv = ((ReadInputDiscretesResponse) read(request, ref, count)).getDiscretes();
     bv.forceSize(count);
     return bv;
   }//readInputDiscretes
@@ -226,13 +223,10 @@ public class ModbusUDPMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized InputRegister[] readInputRegisters(int ref, int count)
+  public InputRegister[] readInputRegisters(int ref, int count)
       throws ModbusException {
-    m_ReadInputRegistersRequest.setReference(ref);
-    m_ReadInputRegistersRequest.setWordCount(count);
-    m_Transaction.setRequest(m_ReadInputRegistersRequest);
-    m_Transaction.execute();
-    return ((ReadInputRegistersResponse) m_Transaction.getResponse()).getRegisters();
+    ReadInputRegistersRequest request = new ReadInputRegistersRequest(ref, count);
+    return ((ReadInputRegistersResponse) read(request, ref, count)).getRegisters();
   }//readInputRegisters
 
   /**
@@ -247,13 +241,10 @@ public class ModbusUDPMaster {
    * @throws ModbusException if an I/O error, a slave exception or
    *                         a transaction error occurs.
    */
-  public synchronized Register[] readMultipleRegisters(int ref, int count)
+  public Register[] readMultipleRegisters(int ref, int count)
       throws ModbusException {
-    m_ReadMultipleRegistersRequest.setReference(ref);
-    m_ReadMultipleRegistersRequest.setWordCount(count);
-    m_Transaction.setRequest(m_ReadMultipleRegistersRequest);
-    m_Transaction.execute();
-    return ((ReadMultipleRegistersResponse) m_Transaction.getResponse()).getRegisters();
+    ReadMultipleRegistersRequest request = new ReadMultipleRegistersRequest(ref, count);
+    return ((ReadMultipleRegistersResponse) read(request, ref, count)).getRegisters();
   }//readMultipleRegisters
 
   /**
@@ -270,7 +261,11 @@ public class ModbusUDPMaster {
     m_WriteSingleRegisterRequest.setReference(ref);
     m_WriteSingleRegisterRequest.setRegister(register);
     m_Transaction.setRequest(m_WriteSingleRegisterRequest);
-    m_Transaction.execute();
+    try {
+      m_Transaction.execute();
+    } finally {
+      m_Reads.invalidate(m_WriteSingleRegisterRequest, ReadCoalescer.ANY_UNIT);
+    }
   }//writeSingleRegister
 
   /**
@@ -287,7 +282,43 @@ public class ModbusUDPMaster {
     m_WriteMultipleRegistersRequest.setReference(ref);
     m_WriteMultipleRegistersRequest.setRegisters(registers);
     m_Transaction.setRequest(m_WriteMultipleRegistersRequest);
-    m_Transaction.execute();
+    try {
+      m_Transaction.execute();
+    } finally {
+      m_Reads.invalidate(m_WriteMultipleRegistersRequest, ReadCoalescer.ANY_UNIT);
+    }
   }//writeMultipleRegisters
 
+  /**
+   * Returns the <tt>ReadCoalescer</tt> of this <tt>ModbusUDPMaster</tt>.
+   * <p/>
+   * Threads sharing this master share identical reads that are
+   * in flight. Set a time to live on the coalescer to also keep
+   * responses for readers that arrive shortly after; writes
+   * through this master drop the ones they overlap.
+   *
+   * @return the read coalescer.
+   */
+  public ReadCoalescer getReadCoalescer() {
+    return m_Reads;
+  }//getReadCoalescer
+
+  /**
+   * Executes a read, or joins an identical one in flight.
+   * Only the thread executing it takes the lock of this master,
+   * so a write waits for the read and is never overtaken by
+   * a response received before it.
+   */
+  private ModbusResponse read(ModbusRequest request, int ref, int count)
+      throws ModbusException {
+    ReadCoalescer.Flight flight = m_Reads.join(request.getUnitID(),
+        request.getFunctionCode(), ref, count);
+    if (!flight.isLeader()) {
+      return flight.getResponse();
+    }
+    synchronized (this) {
+      return flight.execute(m_Transaction, request);
+    }
+  }//read
+
 }//class ModbusUDPMaster
@@ -0,0 +1,123 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.gateway;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ClientQueues -- requests waiting for a bus or a device, one queue per
+ * client, taken from the clients in turn.
+ * 
+ * <p>
+ * A client that sends a burst of requests delays the others by at most one
+ * request each. The owner synchronizes access.
+ */
+final class ClientQueues {
+	// pending requests by client, and the clients in the order of their turns
+	private final Map<GatewayConnection, ArrayDeque<GatewayRequest>> m_Queues = new HashMap<GatewayConnection, ArrayDeque<GatewayRequest>>();
+	private final ArrayDeque<GatewayConnection> m_Turns = new ArrayDeque<GatewayConnection>();
+	private int m_Size;
+	private int m_Limit;
+
+	ClientQueues(int limit) {
+		m_Limit = limit;
+	}
+
+	/**
+	 * add -- queue a request behind the others of its client.
+	 * 
+	 * @return false if the limit has been reached.
+	 */
+	boolean add(GatewayRequest request) {
+		if (m_Size >= m_Limit)
+			return false;
+
+		GatewayConnection client = request.getConnection();
+		ArrayDeque<GatewayRequest> queue = m_Queues.get(client);
+		if (queue == null) {
+			queue = new ArrayDeque<GatewayRequest>();
+			m_Queues.put(client, queue);
+			m_Turns.add(client);
+		}
+		queue.add(request);
+		m_Size++;
+
+		return true;
+	}
+
+	/**
+	 * poll -- the next request of the client whose turn it is.
+	 * 
+	 * @return the request, or null if none is waiting.
+	 */
+	GatewayRequest poll() {
+		GatewayConnection client = m_Turns.poll();
+		if (client == null)
+			return null;
+
+		ArrayDeque<GatewayRequest> queue = m_Queues.get(client);
+		GatewayRequest request = queue.poll();
+		if (queue.isEmpty())
+			m_Queues.remove(client);
+		else
+			m_Turns.add(client);
+
+		m_Size--;
+		return request;
+	}
+
+	boolean isEmpty() {
+		return m_Size == 0;
+	}
+
+	int size() {
+		return m_Size;
+	}
+
+	int getLimit() {
+		return m_Limit;
+	}
+
+	void setLimit(int limit) {
+		m_Limit = limit;
+	}
+
+	void clear() {
+		m_Queues.clear();
+		m_Turns.clear();
+		m_Size = 0;
+	}
+}
@@ -0,0 +1,358 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.gateway;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.io.ModbusTCPTransport;
+import com.ghgande.j2mod.modbus.net.TCPMasterConnection;
+import com.ghgande.j2mod.modbus.util.ModbusUtil;
+
+/**
+ * DeviceLink -- one connection of a {@link ModbusTCPProxy} to its device.
+ * 
+ * <p>
+ * The link thread takes requests from the proxy's queue while fewer than the
+ * pipeline depth are outstanding, gives each a transaction identifier of its
+ * own and writes it to the device. A receiver thread reads the replies, finds
+ * their requests by identifier and answers the clients with their original
+ * identifiers. A reply that arrives after its request timed out finds nothing
+ * and is dropped.
+ * 
+ * <p>
+ * The link is closed when the device closes it, or after several requests in
+ * a row time out, and the link thread connects again.
+ */
+final class DeviceLink implements Runnable {
+	/**
+	 * Timeouts in a row after which the connection is given up.
+	 */
+	private static final int MAX_MISSES = 3;
+
+	/**
+	 * The time between attempts to connect.
+	 */
+	private static final long RECONNECT_DELAY = 1000;
+
+	private final ModbusTCPProxy m_Proxy;
+	private final ClientQueues m_Queue;
+	private final TCPMasterConnection m_Connection;
+	private final String m_Name;
+	private final byte[] m_Out = new byte[GatewayRequest.UNIT_OFFSET
+			+ Modbus.MAX_MESSAGE_LENGTH];
+
+	// guarded by m_Queue, which is the proxy's lock
+	private final Map<Integer, Pending> m_Pending = new HashMap<Integer, Pending>();
+	private ModbusTCPTransport m_Transport;
+	private int m_NextID;
+	private int m_Misses;
+
+	/**
+	 * Pending -- a request written to the device and its deadline.
+	 */
+	private static final class Pending {
+		final GatewayRequest m_Request;
+		final long m_Deadline;
+
+		Pending(GatewayRequest request, long deadline) {
+			m_Request = request;
+			m_Deadline = deadline;
+		}
+	}
+
+	DeviceLink(ModbusTCPProxy proxy, ClientQueues queue,
+			TCPMasterConnection connection, String name) {
+		m_Proxy = proxy;
+		m_Queue = queue;
+		m_Connection = connection;
+		m_Name = name;
+	}
+
+	public void run() {
+		List<GatewayRequest> expired = new ArrayList<GatewayRequest>();
+		while (m_Proxy.isListening()) {
+			ModbusTCPTransport transport;
+			GatewayRequest request = null;
+			int id = 0;
+			boolean broken = false;
+
+			synchronized (m_Queue) {
+				transport = m_Transport;
+			}
+			if (transport == null) {
+				if (!connect()) {
+					synchronized (m_Queue) {
+						try {
+							if (m_Proxy.isListening())
+								m_Queue.wait(RECONNECT_DELAY);
+						} catch (InterruptedException x) {
+							// checked by the loop
+						}
+					}
+				}
+				continue;
+			}
+
+			synchronized (m_Queue) {
+				long timeout = TimeUnit.MILLISECONDS.toNanos(m_Proxy
+						.getTimeout());
+				while (m_Proxy.isListening() && m_Transport == transport) {
+					long now = System.nanoTime();
+					long wait = expire(now, expired);
+					if (m_Misses >= MAX_MISSES) {
+						broken = true;
+						break;
+					}
+					if (!expired.isEmpty())
+						break;
+
+					if (m_Pending.size() < m_Proxy.getPipelineDepth()
+							&& !m_Queue.isEmpty()) {
+						request = m_Queue.poll();
+						if (request.getConnection().isClosed()) {
+							request = null;
+							continue;
+						}
+						if (now - request.getArrival() > timeout) {
+							// it waited for a link until the client gave up
+							expired.add(request);
+							request = null;
+							break;
+						}
+						id = nextID();
+						m_Pending.put(Integer.valueOf(id), new Pending(request,
+								now + timeout));
+						break;
+					}
+					try {
+						if (wait == Long.MAX_VALUE)
+							m_Queue.wait();
+						else
+							m_Queue.wait(TimeUnit.NANOSECONDS.toMillis(wait) + 1);
+					} catch (InterruptedException x) {
+						// checked by the loop
+					}
+				}
+			}
+			for (GatewayRequest r : expired)
+				m_Proxy.timedOut(r);
+			expired.clear();
+
+			if (broken)
+				disconnect(transport);
+			else if (request != null)
+				send(transport, request, id);
+		}
+		ModbusTCPTransport transport;
+		synchronized (m_Queue) {
+			transport = m_Transport;
+		}
+		disconnect(transport);
+	}
+
+	/**
+	 * Closes the connection to the device, if it is still the current one,
+	 * and answers its outstanding requests with
+	 * <tt>GATEWAY_TARGET_NO_RESPONSE</tt>.
+	 */
+	void disconnect(ModbusTCPTransport transport) {
+		List<GatewayRequest> failed = new ArrayList<GatewayRequest>();
+		synchronized (m_Queue) {
+			if (transport == null || m_Transport != transport)
+				return;
+
+			m_Transport = null;
+			for (Pending pending : m_Pending.values())
+				failed.add(pending.m_Request);
+			m_Pending.clear();
+			m_Misses = 0;
+			m_Proxy.linkDown(failed);
+			m_Queue.notifyAll();
+		}
+		m_Connection.close();
+		for (GatewayRequest request : failed)
+			m_Proxy.timedOut(request);
+	}
+
+	/**
+	 * Closes the connection to the device, the link thread stops when the
+	 * proxy is no longer listening.
+	 */
+	void stop() {
+		ModbusTCPTransport transport;
+		synchronized (m_Queue) {
+			transport = m_Transport;
+			m_Queue.notifyAll();
+		}
+		disconnect(transport);
+	}
+
+	boolean isConnected() {
+		synchronized (m_Queue) {
+			return m_Transport != null;
+		}
+	}
+
+	String getName() {
+		return m_Name;
+	}
+
+	/**
+	 * connect -- connect to the device and start the receiver.
+	 */
+	private boolean connect() {
+		try {
+			m_Connection.connect();
+		} catch (Exception ex) {
+			if (Modbus.debug)
+				System.err.println(m_Name + ": " + ex);
+			return false;
+		}
+		final ModbusTCPTransport transport = (ModbusTCPTransport) m_Connection
+				.getModbusTransport();
+		// replies are timed by the link thread, the receiver waits for ever
+		transport.setTimeout(0);
+		synchronized (m_Queue) {
+			if (!m_Proxy.isListening()) {
+				m_Connection.close();
+				return false;
+			}
+			m_Transport = transport;
+			m_Proxy.linkUp();
+		}
+
+		Thread receiver = new Thread(new Runnable() {
+			public void run() {
+				receive(transport);
+			}
+		}, m_Name + " receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+
+		return true;
+	}
+
+	/**
+	 * expire -- take out the requests whose deadline has passed.
+	 * 
+	 * @return the time until the next deadline in nanoseconds, or
+	 *         <tt>Long.MAX_VALUE</tt> if nothing is outstanding.
+	 */
+	private long expire(long now, List<GatewayRequest> expired) {
+		long next = Long.MAX_VALUE;
+		for (Iterator<Pending> i = m_Pending.values().iterator(); i.hasNext();) {
+			Pending pending = i.next();
+			long remaining = pending.m_Deadline - now;
+			if (remaining <= 0) {
+				expired.add(pending.m_Request);
+				i.remove();
+				m_Misses++;
+			} else if (remaining < next) {
+				next = remaining;
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * nextID -- a transaction identifier not outstanding on this link.
+	 */
+	private int nextID() {
+		do {
+			m_NextID = (m_NextID + 1) & 0xFFFF;
+		} while (m_Pending.containsKey(Integer.valueOf(m_NextID)));
+
+		return m_NextID;
+	}
+
+	/**
+	 * send -- write a copy of the request frame with the link's transaction
+	 * identifier. The request's own frame is left alone, the reply is built
+	 * from its header.
+	 */
+	private void send(ModbusTCPTransport transport, GatewayRequest request,
+			int id) {
+		int length = GatewayRequest.UNIT_OFFSET + request.getLength();
+		System.arraycopy(request.getFrame(), 0, m_Out, 0, length);
+		m_Out[0] = (byte) (id >> 8);
+		m_Out[1] = (byte) id;
+		try {
+			transport.writeFrame(m_Out, 0, length);
+		} catch (ModbusIOException ex) {
+			if (Modbus.debug)
+				System.err.println(m_Name + ": " + ex.getMessage());
+			disconnect(transport);
+		}
+	}
+
+	/**
+	 * receive -- read replies and hand them to the proxy until the
+	 * connection fails.
+	 */
+	private void receive(ModbusTCPTransport transport) {
+		byte[] buffer = new byte[GatewayRequest.UNIT_OFFSET
+				+ Modbus.MAX_MESSAGE_LENGTH];
+		try {
+			for (;;) {
+				int length = transport.readFrame(buffer);
+				Pending pending;
+				synchronized (m_Queue) {
+					if (m_Transport != transport)
+						break;
+
+					pending = m_Pending.remove(Integer.valueOf(ModbusUtil
+							.registerToUnsignedShort(buffer, 0)));
+					if (pending != null) {
+						m_Misses = 0;
+						m_Queue.notifyAll();
+					}
+				}
+				if (pending != null)
+					m_Proxy.replied(pending.m_Request, buffer, length);
+			}
+		} catch (ModbusIOException ex) {
+			if (Modbus.debug && m_Proxy.isListening())
+				System.err.println(m_Name + ": " + ex.getMessage());
+		} finally {
+			disconnect(transport);
+		}
+	}
+}
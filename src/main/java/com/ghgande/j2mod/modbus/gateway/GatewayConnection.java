@@ -0,0 +1,159 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.gateway;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.util.ModbusUtil;
+
+/**
+ * GatewayConnection -- a Modbus/TCP client of a gateway or proxy.
+ * 
+ * <p>
+ * Its thread reads requests and hands them on without waiting for the
+ * responses, so a client may have requests outstanding on several buses or
+ * device connections at once. The threads serving those write the responses,
+ * which may come back in a different order than the requests went out.
+ */
+final class GatewayConnection implements Runnable {
+	/**
+	 * Handler -- where a connection hands its requests.
+	 */
+	interface Handler {
+		/**
+		 * forward -- queue a request, or answer it if that is not possible.
+		 */
+		void forward(GatewayRequest request) throws IOException;
+
+		/**
+		 * closed -- forget a connection that has been closed.
+		 */
+		void closed(GatewayConnection connection);
+	}
+
+	private final Handler m_Handler;
+	private final SocketChannel m_Channel;
+	private final ByteBuffer[] m_Buffers = new ByteBuffer[2];
+	private volatile boolean m_Closed;
+
+	GatewayConnection(Handler handler, SocketChannel channel) {
+		m_Handler = handler;
+		m_Channel = channel;
+	}
+
+	public void run() {
+		try {
+			for (;;) {
+				/*
+				 * The frame has room for the longest request and the CRC
+				 * that is added when it is forwarded.
+				 */
+				byte[] frame = new byte[GatewayRequest.UNIT_OFFSET
+						+ Modbus.MAX_MESSAGE_LENGTH];
+				read(frame, 0, GatewayRequest.UNIT_OFFSET);
+
+				int protocol = ModbusUtil.registerToUnsignedShort(frame, 2);
+				int length = ModbusUtil.registerToUnsignedShort(frame, 4);
+				if (protocol != 0 || length < 2
+						|| length > Modbus.MAX_MESSAGE_LENGTH - 2) {
+					// the stream cannot be framed any more
+					if (Modbus.debug)
+						System.err.println("Invalid MBAP header: "
+								+ ModbusUtil.toHex(frame, 0, 6));
+					break;
+				}
+				read(frame, GatewayRequest.UNIT_OFFSET, length);
+
+				m_Handler.forward(new GatewayRequest(this, frame, length));
+			}
+		} catch (IOException ex) {
+			if (!(ex instanceof EOFException) && Modbus.debug)
+				ex.printStackTrace();
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * read -- read exactly a number of bytes.
+	 */
+	private void read(byte[] buffer, int offset, int length)
+			throws IOException {
+		ByteBuffer in = ByteBuffer.wrap(buffer, offset, length);
+		while (in.hasRemaining()) {
+			if (m_Channel.read(in) < 0)
+				throw new EOFException();
+		}
+	}
+
+	/**
+	 * Writes a response from the MBAP header of its request and the unit
+	 * identifier and PDU received from the bus or device, in one gathering
+	 * write.
+	 */
+	synchronized void write(byte[] header, byte[] response, int offset,
+			int length) throws IOException {
+		m_Buffers[0] = ByteBuffer.wrap(header, 0, GatewayRequest.UNIT_OFFSET);
+		m_Buffers[1] = ByteBuffer.wrap(response, offset, length);
+		while (m_Buffers[1].hasRemaining())
+			m_Channel.write(m_Buffers);
+	}
+
+	/**
+	 * Writes a complete response frame.
+	 */
+	synchronized void write(byte[] frame, int length) throws IOException {
+		ByteBuffer out = ByteBuffer.wrap(frame, 0, length);
+		while (out.hasRemaining())
+			m_Channel.write(out);
+	}
+
+	boolean isClosed() {
+		return m_Closed;
+	}
+
+	void close() {
+		m_Closed = true;
+		try {
+			m_Channel.close();
+		} catch (IOException ex) {
+			// ignore
+		}
+		m_Handler.closed(this);
+	}
+}
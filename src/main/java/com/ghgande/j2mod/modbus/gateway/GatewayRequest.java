@@ -0,0 +1,147 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.gateway;
+
+import java.io.IOException;
+
+/**
+ * GatewayRequest -- a Modbus/TCP request on its way to a serial bus or a
+ * device.
+ * 
+ * <p>
+ * The frame is kept as it was read, MBAP header first, with two spare bytes
+ * at the end. The bus writes the unit identifier and PDU straight from it with
+ * the CRC in the spare bytes, a proxy writes the whole frame, and the reply
+ * reuses the header.
+ */
+final class GatewayRequest {
+	/**
+	 * The offset of the unit identifier, after the MBAP header.
+	 */
+	static final int UNIT_OFFSET = 6;
+
+	private final GatewayConnection m_Connection;
+	private final byte[] m_Frame;
+	private final int m_Length;
+	private final long m_Arrival = System.nanoTime();
+
+	/**
+	 * @param connection
+	 *            the connection the request arrived on.
+	 * @param frame
+	 *            the frame, MBAP header first.
+	 * @param length
+	 *            the length of the unit identifier and PDU.
+	 */
+	GatewayRequest(GatewayConnection connection, byte[] frame, int length) {
+		m_Connection = connection;
+		m_Frame = frame;
+		m_Length = length;
+	}
+
+	GatewayConnection getConnection() {
+		return m_Connection;
+	}
+
+	byte[] getFrame() {
+		return m_Frame;
+	}
+
+	/**
+	 * Returns the length of the unit identifier and PDU.
+	 */
+	int getLength() {
+		return m_Length;
+	}
+
+	int getUnitID() {
+		return m_Frame[UNIT_OFFSET] & 0xFF;
+	}
+
+	int getFunctionCode() {
+		return m_Frame[UNIT_OFFSET + 1] & 0xFF;
+	}
+
+	/**
+	 * Returns the time the request was read, from <tt>System.nanoTime()</tt>.
+	 */
+	long getArrival() {
+		return m_Arrival;
+	}
+
+	/**
+	 * Sends a response to the client.
+	 * 
+	 * @param response
+	 *            the buffer holding the unit identifier and PDU of the
+	 *            response at its start.
+	 * @param length
+	 *            their length.
+	 */
+	void reply(byte[] response, int length) throws IOException {
+		reply(response, 0, length);
+	}
+
+	/**
+	 * Sends a response to the client.
+	 * 
+	 * @param response
+	 *            the buffer holding the unit identifier and PDU of the
+	 *            response.
+	 * @param offset
+	 *            the offset of the unit identifier.
+	 * @param length
+	 *            their length.
+	 */
+	void reply(byte[] response, int offset, int length) throws IOException {
+		m_Frame[4] = (byte) (length >> 8);
+		m_Frame[5] = (byte) length;
+		m_Connection.write(m_Frame, response, offset, length);
+	}
+
+	/**
+	 * Sends an exception response to the client. It is built in the frame of
+	 * the request, which is not needed any more.
+	 * 
+	 * @param code
+	 *            the exception code.
+	 */
+	void replyException(int code) throws IOException {
+		m_Frame[4] = 0;
+		m_Frame[5] = 3;
+		m_Frame[UNIT_OFFSET + 1] |= 0x80;
+		m_Frame[UNIT_OFFSET + 2] = (byte) code;
+		m_Connection.write(m_Frame, UNIT_OFFSET + 3);
+	}
+}
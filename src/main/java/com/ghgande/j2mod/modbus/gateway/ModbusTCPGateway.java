@@ -0,0 +1,267 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.gateway;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.net.ModbusListener;
+
+/**
+ * ModbusTCPGateway -- a gateway from Modbus/TCP to Modbus RTU buses.
+ * 
+ * <p>
+ * Requests are routed by unit identifier to a {@link SerialBus}. The MBAP
+ * header is taken off on the way to the bus and put back on the reply, with
+ * the bytes of the PDU passed through rather than decoded into messages.
+ * Requests for a unit without a route, including the broadcast unit 0, are
+ * answered with <tt>GATEWAY_PATH_UNAVAILABLE</tt>.
+ * 
+ * <p>
+ * Each client connection has a thread that reads its requests and queues
+ * them on their buses without waiting, so clients may pipeline requests and
+ * use several buses at once.
+ */
+public class ModbusTCPGateway implements ModbusListener {
+	private final SerialBus[] m_Routes = new SerialBus[256];
+	private final Set<GatewayConnection> m_Connections = ConcurrentHashMap
+			.newKeySet();
+	private InetAddress m_Address;
+	private int m_Port = Modbus.DEFAULT_PORT;
+	private int m_Unit = 0;
+	private volatile boolean m_Listening;
+	private ServerSocketChannel m_Server;
+	private final GatewayConnection.Handler m_Handler = new GatewayConnection.Handler() {
+		public void forward(GatewayRequest request) throws IOException {
+			ModbusTCPGateway.this.forward(request);
+		}
+
+		public void closed(GatewayConnection connection) {
+			ModbusTCPGateway.this.closed(connection);
+		}
+	};
+
+	/**
+	 * Sets the address of the interface to be listened to.
+	 * 
+	 * @param addr
+	 *            an <tt>InetAddress</tt> instance, <tt>null</tt> for all.
+	 */
+	public void setAddress(InetAddress addr) {
+		m_Address = addr;
+	}
+
+	/**
+	 * Sets the port to be listened to.
+	 * 
+	 * @param port
+	 *            the number of the IP port as <tt>int</tt>.
+	 */
+	public void setPort(int port) {
+		m_Port = port;
+	}
+
+	/**
+	 * Routes a unit identifier to a bus.
+	 * 
+	 * @param unit
+	 *            the unit identifier, from 1 to 255.
+	 * @param bus
+	 *            the bus, or <tt>null</tt> to remove the route.
+	 */
+	public void addRoute(int unit, SerialBus bus) {
+		addRoute(unit, unit, bus);
+	}
+
+	/**
+	 * Routes a range of unit identifiers to a bus.
+	 * 
+	 * @param first
+	 *            the first unit identifier, from 1.
+	 * @param last
+	 *            the last unit identifier, up to 255.
+	 * @param bus
+	 *            the bus, or <tt>null</tt> to remove the routes.
+	 */
+	public synchronized void addRoute(int first, int last, SerialBus bus) {
+		if (first < 1 || last > 255 || first > last)
+			throw new IllegalArgumentException("invalid units " + first + "-"
+					+ last);
+
+		for (int unit = first; unit <= last; unit++)
+			m_Routes[unit] = bus;
+
+		if (bus != null && m_Listening)
+			bus.start();
+	}
+
+	/**
+	 * Returns the bus a unit identifier is routed to.
+	 * 
+	 * @return the <tt>SerialBus</tt>, or <tt>null</tt> if there is none.
+	 */
+	public SerialBus getRoute(int unit) {
+		return m_Routes[unit & 0xFF];
+	}
+
+	/**
+	 * The gateway routes every unit identifier, this is kept only for the
+	 * <tt>ModbusListener</tt> interface.
+	 */
+	public void setUnit(int unit) {
+		m_Unit = unit;
+	}
+
+	public int getUnit() {
+		return m_Unit;
+	}
+
+	/**
+	 * Returns the number of connected clients.
+	 */
+	public int getConnections() {
+		return m_Connections.size();
+	}
+
+	/**
+	 * forward -- queue a request on the bus of its unit, or answer it if
+	 * that is not possible.
+	 */
+	void forward(GatewayRequest request) throws IOException {
+		SerialBus bus = m_Routes[request.getUnitID()];
+		if (!m_Listening || bus == null || !bus.submit(request))
+			request.replyException(Modbus.GATEWAY_PATH_UNAVAILABLE);
+	}
+
+	/**
+	 * closed -- forget a connection that has been closed.
+	 */
+	void closed(GatewayConnection connection) {
+		m_Connections.remove(connection);
+	}
+
+	/**
+	 * Accepts client connections and starts a thread for each.
+	 */
+	public void run() {
+		ServerSocketChannel server;
+		try {
+			synchronized (this) {
+				server = ServerSocketChannel.open();
+				server.socket().setReuseAddress(true);
+				server.bind(m_Address == null ? new InetSocketAddress(m_Port)
+						: new InetSocketAddress(m_Address, m_Port));
+				m_Server = server;
+			}
+			if (Modbus.debug)
+				System.out.println("Gateway listening to " + server);
+
+			while (m_Listening) {
+				SocketChannel channel = server.accept();
+				channel.socket().setTcpNoDelay(true);
+
+				GatewayConnection connection = new GatewayConnection(
+						m_Handler, channel);
+				m_Connections.add(connection);
+				Thread thread = new Thread(connection, "Modbus gateway "
+						+ channel.socket().getRemoteSocketAddress());
+				thread.setDaemon(true);
+				thread.start();
+			}
+		} catch (IOException ex) {
+			if (m_Listening && Modbus.debug)
+				ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sets the <i>listening</i> state. While the gateway is not listening,
+	 * requests are answered with <tt>GATEWAY_PATH_UNAVAILABLE</tt>.
+	 */
+	public void setListening(boolean listening) {
+		m_Listening = listening;
+	}
+
+	public boolean isListening() {
+		return m_Listening;
+	}
+
+	/**
+	 * Starts the buses routed to and the thread accepting clients.
+	 * 
+	 * @return the thread accepting clients.
+	 */
+	public synchronized Thread listen() {
+		m_Listening = true;
+		for (SerialBus bus : m_Routes) {
+			if (bus != null)
+				bus.start();
+		}
+		Thread result = new Thread(this, "Modbus gateway");
+		result.start();
+
+		return result;
+	}
+
+	/**
+	 * Closes the listening socket and the client connections, and stops the
+	 * buses.
+	 */
+	public void stop() {
+		synchronized (this) {
+			m_Listening = false;
+			if (m_Server != null) {
+				try {
+					m_Server.close();
+				} catch (IOException ex) {
+					// ignore
+				}
+				m_Server = null;
+			}
+		}
+		for (GatewayConnection connection : m_Connections)
+			connection.close();
+
+		for (SerialBus bus : m_Routes) {
+			if (bus != null)
+				bus.stop();
+		}
+	}
+}
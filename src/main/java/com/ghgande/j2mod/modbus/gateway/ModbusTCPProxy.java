@@ -0,0 +1,420 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.gateway;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.net.ModbusListener;
+import com.ghgande.j2mod.modbus.net.TCPMasterConnection;
+
+/**
+ * ModbusTCPProxy -- serves many Modbus/TCP clients over a few connections to
+ * one device.
+ * 
+ * <p>
+ * Many devices accept only a handful of connections. The proxy accepts any
+ * number of clients and queues their requests, one queue per client taken in
+ * turn, for a small number of {@link DeviceLink}s to the device. Each link
+ * gives the requests it sends transaction identifiers of its own, so requests
+ * from different clients never collide, and sends up to the pipeline depth of
+ * them before waiting for replies. Replies go back to their clients with the
+ * original identifiers. Frames are passed through, not decoded.
+ * 
+ * <p>
+ * A request that gets no reply within the timeout is answered with
+ * <tt>GATEWAY_TARGET_NO_RESPONSE</tt>. While no link is connected, or the
+ * queue is full, requests are answered with
+ * <tt>GATEWAY_PATH_UNAVAILABLE</tt>.
+ */
+public class ModbusTCPProxy implements ModbusListener {
+	private final InetAddress m_DeviceAddress;
+	private final int m_DevicePort;
+	private final ClientQueues m_Queue = new ClientQueues(256);
+	private final Set<GatewayConnection> m_Connections = ConcurrentHashMap
+			.newKeySet();
+	private DeviceLink[] m_Links = new DeviceLink[0];
+	private int m_LinkCount = 2;
+	private int m_Connected; // guarded by m_Queue
+	private volatile int m_Depth = 1;
+	private volatile int m_Timeout = Modbus.DEFAULT_TIMEOUT;
+	private InetAddress m_Address;
+	private int m_Port = Modbus.DEFAULT_PORT;
+	private int m_Unit = 0;
+	private volatile boolean m_Listening;
+	private ServerSocketChannel m_Server;
+
+	private final LongAdder m_Forwarded = new LongAdder();
+	private final LongAdder m_Timeouts = new LongAdder();
+	private final LongAdder m_Rejected = new LongAdder();
+
+	private final GatewayConnection.Handler m_Handler = new GatewayConnection.Handler() {
+		public void forward(GatewayRequest request) throws IOException {
+			ModbusTCPProxy.this.forward(request);
+		}
+
+		public void closed(GatewayConnection connection) {
+			m_Connections.remove(connection);
+		}
+	};
+
+	/**
+	 * Constructs a new <tt>ModbusTCPProxy</tt> for a device.
+	 * 
+	 * @param device
+	 *            the address of the device.
+	 * @param port
+	 *            the port of the device.
+	 */
+	public ModbusTCPProxy(InetAddress device, int port) {
+		m_DeviceAddress = device;
+		m_DevicePort = port;
+	}
+
+	/**
+	 * Sets the address of the interface to be listened to.
+	 * 
+	 * @param addr
+	 *            an <tt>InetAddress</tt> instance, <tt>null</tt> for all.
+	 */
+	public void setAddress(InetAddress addr) {
+		m_Address = addr;
+	}
+
+	/**
+	 * Sets the port to be listened to.
+	 * 
+	 * @param port
+	 *            the number of the IP port as <tt>int</tt>.
+	 */
+	public void setPort(int port) {
+		m_Port = port;
+	}
+
+	/**
+	 * The proxy passes every unit identifier through, this is kept only for
+	 * the <tt>ModbusListener</tt> interface.
+	 */
+	public void setUnit(int unit) {
+		m_Unit = unit;
+	}
+
+	public int getUnit() {
+		return m_Unit;
+	}
+
+	/**
+	 * setLinks -- the number of connections to open to the device, 2 by
+	 * default. Takes effect when the proxy starts listening.
+	 */
+	public synchronized void setLinks(int links) {
+		if (links < 1)
+			throw new IllegalArgumentException("at least one link required");
+
+		m_LinkCount = links;
+	}
+
+	public synchronized int getLinks() {
+		return m_LinkCount;
+	}
+
+	/**
+	 * setPipelineDepth -- the number of requests each link may have
+	 * outstanding. The default of 1 suits devices that answer one request at
+	 * a time; devices that queue requests can be given more.
+	 */
+	public void setPipelineDepth(int depth) {
+		if (depth < 1)
+			throw new IllegalArgumentException("depth must be at least 1");
+
+		m_Depth = depth;
+	}
+
+	public int getPipelineDepth() {
+		return m_Depth;
+	}
+
+	/**
+	 * setTimeout -- the time a request may wait for its reply, and for a
+	 * link, in milliseconds.
+	 */
+	public void setTimeout(int ms) {
+		m_Timeout = ms;
+	}
+
+	public int getTimeout() {
+		return m_Timeout;
+	}
+
+	/**
+	 * setQueueLimit -- the number of requests that may wait for a link, from
+	 * all clients together.
+	 */
+	public void setQueueLimit(int limit) {
+		synchronized (m_Queue) {
+			m_Queue.setLimit(limit);
+		}
+	}
+
+	public int getQueueLimit() {
+		synchronized (m_Queue) {
+			return m_Queue.getLimit();
+		}
+	}
+
+	/**
+	 * getQueueLength -- the number of requests waiting for a link.
+	 */
+	public int getQueueLength() {
+		synchronized (m_Queue) {
+			return m_Queue.size();
+		}
+	}
+
+	/**
+	 * Returns the number of connected clients.
+	 */
+	public int getConnections() {
+		return m_Connections.size();
+	}
+
+	/**
+	 * Returns the number of links connected to the device.
+	 */
+	public int getConnectedLinks() {
+		synchronized (m_Queue) {
+			return m_Connected;
+		}
+	}
+
+	/**
+	 * Returns the number of requests the device replied to.
+	 */
+	public long getForwarded() {
+		return m_Forwarded.sum();
+	}
+
+	/**
+	 * Returns the number of requests answered with
+	 * <tt>GATEWAY_TARGET_NO_RESPONSE</tt>.
+	 */
+	public long getTimeouts() {
+		return m_Timeouts.sum();
+	}
+
+	/**
+	 * Returns the number of requests answered with
+	 * <tt>GATEWAY_PATH_UNAVAILABLE</tt>.
+	 */
+	public long getRejected() {
+		return m_Rejected.sum();
+	}
+
+	/**
+	 * forward -- queue a request for the links, or answer it if that is not
+	 * possible.
+	 */
+	void forward(GatewayRequest request) throws IOException {
+		boolean queued;
+		synchronized (m_Queue) {
+			queued = m_Listening && m_Connected > 0 && m_Queue.add(request);
+			if (queued)
+				m_Queue.notifyAll();
+		}
+		if (!queued) {
+			m_Rejected.increment();
+			request.replyException(Modbus.GATEWAY_PATH_UNAVAILABLE);
+		}
+	}
+
+	/**
+	 * linkUp -- count a link that has connected. Called with the lock held.
+	 */
+	void linkUp() {
+		m_Connected++;
+	}
+
+	/**
+	 * linkDown -- count a link that has closed. When none is left the
+	 * waiting requests are added to those to be answered. Called with the
+	 * lock held.
+	 */
+	void linkDown(List<GatewayRequest> failed) {
+		if (--m_Connected > 0)
+			return;
+
+		GatewayRequest request;
+		while ((request = m_Queue.poll()) != null)
+			failed.add(request);
+	}
+
+	/**
+	 * replied -- send a reply read from the device to its client.
+	 * 
+	 * @param buffer
+	 *            the reply frame, MBAP header first.
+	 * @param length
+	 *            the length of the frame.
+	 */
+	void replied(GatewayRequest request, byte[] buffer, int length) {
+		m_Forwarded.increment();
+		try {
+			request.reply(buffer, GatewayRequest.UNIT_OFFSET, length
+					- GatewayRequest.UNIT_OFFSET);
+		} catch (IOException ex) {
+			request.getConnection().close();
+		}
+	}
+
+	/**
+	 * timedOut -- answer a request that got no reply.
+	 */
+	void timedOut(GatewayRequest request) {
+		m_Timeouts.increment();
+		try {
+			request.replyException(Modbus.GATEWAY_TARGET_NO_RESPONSE);
+		} catch (IOException ex) {
+			request.getConnection().close();
+		}
+	}
+
+	/**
+	 * Accepts client connections and starts a thread for each.
+	 */
+	public void run() {
+		ServerSocketChannel server;
+		try {
+			synchronized (this) {
+				server = ServerSocketChannel.open();
+				server.socket().setReuseAddress(true);
+				server.bind(m_Address == null ? new InetSocketAddress(m_Port)
+						: new InetSocketAddress(m_Address, m_Port));
+				m_Server = server;
+			}
+			if (Modbus.debug)
+				System.out.println("Proxy listening to " + server);
+
+			while (m_Listening) {
+				SocketChannel channel = server.accept();
+				channel.socket().setTcpNoDelay(true);
+
+				GatewayConnection connection = new GatewayConnection(
+						m_Handler, channel);
+				m_Connections.add(connection);
+				Thread thread = new Thread(connection, "Modbus proxy "
+						+ channel.socket().getRemoteSocketAddress());
+				thread.setDaemon(true);
+				thread.start();
+			}
+		} catch (IOException ex) {
+			if (m_Listening && Modbus.debug)
+				ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sets the <i>listening</i> state. While the proxy is not listening,
+	 * requests are answered with <tt>GATEWAY_PATH_UNAVAILABLE</tt>.
+	 */
+	public void setListening(boolean listening) {
+		m_Listening = listening;
+	}
+
+	public boolean isListening() {
+		return m_Listening;
+	}
+
+	/**
+	 * Starts the links to the device and the thread accepting clients.
+	 * 
+	 * @return the thread accepting clients.
+	 */
+	public synchronized Thread listen() {
+		m_Listening = true;
+		String device = m_DeviceAddress.getHostAddress() + ":" + m_DevicePort;
+		m_Links = new DeviceLink[m_LinkCount];
+		for (int i = 0; i < m_Links.length; i++) {
+			TCPMasterConnection connection = new TCPMasterConnection(
+					m_DeviceAddress);
+			connection.setPort(m_DevicePort);
+			m_Links[i] = new DeviceLink(this, m_Queue, connection,
+					"Modbus proxy link " + device + " #" + i);
+			Thread thread = new Thread(m_Links[i], m_Links[i].getName());
+			thread.setDaemon(true);
+			thread.start();
+		}
+		Thread result = new Thread(this, "Modbus proxy");
+		result.start();
+
+		return result;
+	}
+
+	/**
+	 * Closes the listening socket, the client connections and the links to
+	 * the device.
+	 */
+	public void stop() {
+		DeviceLink[] links;
+		synchronized (this) {
+			m_Listening = false;
+			if (m_Server != null) {
+				try {
+					m_Server.close();
+				} catch (IOException ex) {
+					// ignore
+				}
+				m_Server = null;
+			}
+			links = m_Links;
+			m_Links = new DeviceLink[0];
+		}
+		for (GatewayConnection connection : m_Connections)
+			connection.close();
+
+		for (DeviceLink link : links)
+			link.stop();
+
+		synchronized (m_Queue) {
+			m_Queue.clear();
+		}
+	}
+}
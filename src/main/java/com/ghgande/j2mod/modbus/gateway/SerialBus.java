@@ -0,0 +1,311 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.gateway;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.io.ModbusRTUTransport;
+import com.ghgande.j2mod.modbus.net.SerialConnection;
+
+/**
+ * SerialBus -- a Modbus RTU bus behind a {@link ModbusTCPGateway}.
+ * 
+ * <p>
+ * A single bus thread owns the transport and forwards one request at a time.
+ * Each client has its own queue on the bus and the thread takes from the
+ * queues in turn, so a client that sends a burst of requests delays the
+ * others by at most one transaction each. When the bus is full the gateway
+ * answers <tt>GATEWAY_PATH_UNAVAILABLE</tt> instead of queueing more.
+ * 
+ * <p>
+ * Frames are forwarded as they are, only the CRC is added on the way out and
+ * checked on the way back. A reply from another unit or for another function,
+ * such as a late one to an earlier request, is skipped. If no reply arrives
+ * within the receive timeout of the transport the client is answered with
+ * <tt>GATEWAY_TARGET_NO_RESPONSE</tt>.
+ */
+public class SerialBus implements Runnable {
+	private final ModbusRTUTransport m_Transport;
+	private final String m_Name;
+
+	private final ClientQueues m_Queue = new ClientQueues(64);
+
+	private volatile int m_Retries = 0;
+	private volatile int m_TransDelayMS = Modbus.DEFAULT_TRANSMIT_DELAY;
+	private volatile boolean m_Running;
+	private Thread m_Thread;
+
+	private final LongAdder m_Forwarded = new LongAdder();
+	private final LongAdder m_Timeouts = new LongAdder();
+	private final LongAdder m_Rejected = new LongAdder();
+
+	/**
+	 * start -- start the bus thread.
+	 * 
+	 * @return the bus thread.
+	 */
+	public synchronized Thread start() {
+		if (m_Thread == null) {
+			m_Running = true;
+			m_Thread = new Thread(this, "Modbus gateway bus " + m_Name);
+			m_Thread.setDaemon(true);
+			m_Thread.start();
+		}
+		return m_Thread;
+	}
+
+	/**
+	 * stop -- stop the bus thread. Requests still queued are dropped, a
+	 * transaction in progress is allowed to finish.
+	 */
+	public void stop() {
+		Thread thread;
+		synchronized (this) {
+			m_Running = false;
+			thread = m_Thread;
+			m_Thread = null;
+			m_Queue.clear();
+			notifyAll();
+		}
+		if (thread != null && thread != Thread.currentThread()) {
+			try {
+				thread.join();
+			} catch (InterruptedException x) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * submit -- queue a request behind the others of its client.
+	 * 
+	 * @return false if the bus is full or stopped.
+	 */
+	synchronized boolean submit(GatewayRequest request) {
+		if (!m_Running || !m_Queue.add(request)) {
+			m_Rejected.increment();
+			return false;
+		}
+		notifyAll();
+
+		return true;
+	}
+
+	/**
+	 * take -- the next request of the client whose turn it is.
+	 * 
+	 * @return the request, or null if the bus has been stopped.
+	 */
+	private synchronized GatewayRequest take() {
+		while (m_Running && m_Queue.isEmpty()) {
+			try {
+				wait();
+			} catch (InterruptedException x) {
+				// checked by the loop
+			}
+		}
+		if (!m_Running)
+			return null;
+
+		return m_Queue.poll();
+	}
+
+	/**
+	 * getQueueLength -- the number of requests waiting for the bus.
+	 */
+	public synchronized int getQueueLength() {
+		return m_Queue.size();
+	}
+
+	/**
+	 * setQueueLimit -- the number of requests that may wait for the bus,
+	 * from all clients together.
+	 */
+	public synchronized void setQueueLimit(int limit) {
+		m_Queue.setLimit(limit);
+	}
+
+	public synchronized int getQueueLimit() {
+		return m_Queue.getLimit();
+	}
+
+	public int getRetries() {
+		return m_Retries;
+	}
+
+	/**
+	 * setRetries -- the number of times a request is sent again when no
+	 * reply arrives. The default is none, the client retries itself.
+	 */
+	public void setRetries(int num) {
+		m_Retries = num;
+	}
+
+	public int getTransDelayMS() {
+		return m_TransDelayMS;
+	}
+
+	/**
+	 * setTransDelayMS -- set the minimum time between transactions. The bus
+	 * never waits less than t3.5.
+	 * 
+	 * @param ms
+	 *            the delay in milliseconds.
+	 */
+	public void setTransDelayMS(int ms) {
+		m_TransDelayMS = ms;
+	}
+
+	/**
+	 * Returns the number of requests that were answered by the bus.
+	 */
+	public long getForwarded() {
+		return m_Forwarded.sum();
+	}
+
+	/**
+	 * Returns the number of requests answered with
+	 * <tt>GATEWAY_TARGET_NO_RESPONSE</tt>.
+	 */
+	public long getTimeouts() {
+		return m_Timeouts.sum();
+	}
+
+	/**
+	 * Returns the number of requests turned away because the bus was full.
+	 */
+	public long getRejected() {
+		return m_Rejected.sum();
+	}
+
+	public ModbusRTUTransport getTransport() {
+		return m_Transport;
+	}
+
+	public void run() {
+		GatewayRequest request;
+		while ((request = take()) != null) {
+			if (request.getConnection().isClosed())
+				continue;
+
+			int length = forward(request);
+			try {
+				if (length > 0) {
+					m_Forwarded.increment();
+					request.reply(m_Transport.getDecoder().getBuffer(), length);
+				} else {
+					m_Timeouts.increment();
+					request.replyException(Modbus.GATEWAY_TARGET_NO_RESPONSE);
+				}
+			} catch (IOException ex) {
+				request.getConnection().close();
+			}
+		}
+	}
+
+	/**
+	 * forward -- send a request on the bus and read its reply into the
+	 * buffer of the decoder.
+	 * 
+	 * @return the length of the reply less the CRC, or -1 if there was none.
+	 */
+	private int forward(GatewayRequest request) {
+		long gap = Math.max(TimeUnit.MILLISECONDS.toNanos(m_TransDelayMS),
+				m_Transport.getInterFrameDelay());
+		byte[] reply = m_Transport.getDecoder().getBuffer();
+		try {
+			for (int attempt = 0; attempt <= m_Retries; attempt++) {
+				m_Transport.waitForGap(gap);
+				m_Transport.writeFrame(request.getFrame(),
+						GatewayRequest.UNIT_OFFSET, request.getLength());
+
+				long deadline = System.currentTimeMillis()
+						+ m_Transport.getReceiveTimeout();
+				do {
+					int length = m_Transport.readFrame();
+					if (length < 0)
+						break;
+
+					if ((reply[0] & 0xFF) == request.getUnitID()
+							&& (reply[1] & 0x7F) == request.getFunctionCode())
+						return length;
+				} while (System.currentTimeMillis() < deadline);
+			}
+		} catch (ModbusIOException ex) {
+			if (Modbus.debug)
+				ex.printStackTrace();
+		} catch (IOException ex) {
+			if (Modbus.debug)
+				ex.printStackTrace();
+		} finally {
+			m_Transport.endTransaction();
+		}
+		return -1;
+	}
+
+	/**
+	 * Constructs a new <tt>SerialBus</tt> for a transport. It is started by
+	 * the gateway it is routed from.
+	 * 
+	 * @param transport
+	 *            the transport of the bus.
+	 */
+	public SerialBus(ModbusRTUTransport transport) {
+		m_Transport = transport;
+		m_Name = transport.getSerialPort() == null ? "rtu" : transport
+				.getSerialPort().getName();
+	}
+
+	/**
+	 * Constructs a new <tt>SerialBus</tt> for an open connection.
+	 * 
+	 * @param con
+	 *            the serial connection of the bus, which must use the RTU
+	 *            encoding.
+	 */
+	public SerialBus(SerialConnection con) {
+		this(rtuTransport(con));
+	}
+
+	private static ModbusRTUTransport rtuTransport(SerialConnection con) {
+		if (!(con.getModbusTransport() instanceof ModbusRTUTransport))
+			throw new IllegalArgumentException("RTU encoding required");
+
+		return (ModbusRTUTransport) con.getModbusTransport();
+	}
+}
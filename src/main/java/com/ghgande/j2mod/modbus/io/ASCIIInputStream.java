@@ -57,6 +57,8 @@ import com.ghgande.j2mod.modbus.Modbus;
 public class ASCIIInputStream
     extends FilterInputStream {
 
+  private int m_Delimiter = 10;  //follows CR at the end of a frame
+
   /**
    * Constructs a new <tt>ASCIIInputStream</tt> instance
    * reading from the given <tt>InputStream</tt>.
@@ -67,6 +69,27 @@ public class ASCIIInputStream
     super(in);
   }//constructor
 
+  /**
+   * Returns the character which follows CR at the end of
+   * a frame.
+   *
+   * @return the delimiter, LF by default.
+   */
+  public int getDelimiter() {
+    return m_Delimiter;
+  }//getDelimiter
+
+  /**
+   * Sets the character which follows CR at the end of
+   * a frame, as changed by the Change ASCII Input Delimiter
+   * diagnostic.
+   *
+   * @param ch the delimiter.
+   */
+  public void setDelimiter(int ch) {
+    m_Delimiter = ch & 0xFF;
+  }//setDelimiter
+
   /**
    * Reads a byte from the ASCII encoded stream.
    *
@@ -86,7 +109,7 @@ public class ASCIIInputStream
       return ModbusASCIITransport.FRAME_START;
     } else {
       if (sbuf.charAt(0) == '\r') {
-        if (in.read() == 10) {
+        if (in.read() == m_Delimiter) {
           //System.out.println("FRAME END");
           return ModbusASCIITransport.FRAME_END;
         } else {
@@ -36,16 +36,20 @@ package com.ghgande.j2mod.modbus.io;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusCoupler;
 import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.metrics.ModbusEvents;
 import com.ghgande.j2mod.modbus.msg.ModbusMessage;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.msg.ModbusResponse;
-import com.ghgande.j2mod.modbus.util.ModbusUtil;
+import com.ghgande.j2mod.modbus.util.DiagnosticCounters;
+import com.ghgande.j2mod.modbus.util.FrameTrace;
+import com.ghgande.j2mod.modbus.util.LRC;
 
 /**
  * Class that implements the Modbus/ASCII transport
@@ -59,12 +63,15 @@ public class ModbusASCIITransport
   extends ModbusSerialTransport {
 
   private DataInputStream m_InputStream;     //used to read from
+  private ASCIIInputStream m_ASCIIIn;        //decodes the input
   private ASCIIOutputStream m_OutputStream;   //used to write to
 
   private byte[] m_InBuffer;
   private BytesInputStream m_ByteIn;         //to read message from
   private BytesOutputStream m_ByteInOut;     //to buffer message to
   private BytesOutputStream m_ByteOut;      //write frames
+  private final FrameTrace.Connection m_Connection =
+      FrameTrace.newConnection("ascii");
 
   /**
    * Constructs a new <tt>MobusASCIITransport</tt> instance.
@@ -86,6 +93,7 @@ public class ModbusASCIITransport
 
     try {
       synchronized (m_ByteOut) {
+        Object event = ModbusEvents.beginFrameWrite();
         //write message to byte out
         msg.setHeadless();
         msg.writeTo(m_ByteOut);
@@ -95,10 +103,14 @@ public class ModbusASCIITransport
         //write message
         m_OutputStream.write(FRAME_START);               //FRAMESTART
         m_OutputStream.write(buf, 0, len);                 //PDU
-        System.out.println("Writing: " + ModbusUtil.toHex(buf, 0, len));
-        m_OutputStream.write(calculateLRC(buf, 0, len)); //LRC
+        int lrc = LRC.calculate(buf, 0, len);
+        m_OutputStream.write(lrc);                        //LRC
         m_OutputStream.write(FRAME_END);                 //FRAMEEND
         m_OutputStream.flush();
+        ModbusEvents.endFrameWrite(event, "ascii", msg, len + 1);
+        m_ByteOut.writeByte(lrc);
+        FrameTrace.getReference().record(m_Connection, FrameTrace.SENT,
+            m_ByteOut.getBuffer(), 0, len + 1);
         m_ByteOut.reset();
         // clears out the echoed message
         // for RS485
@@ -108,7 +120,7 @@ public class ModbusASCIITransport
         }
       }
     } catch (Exception ex) {
-      throw new ModbusIOException("I/O failed to write");
+      throw new ModbusIOException("I/O failed to write", ex);
     }
   }//writeMessage
 
@@ -117,10 +129,13 @@ public class ModbusASCIITransport
 
     boolean done = false;
     ModbusRequest request = null;
+    DiagnosticCounters diag = ModbusCoupler.getReference().getDiagnostics();
 
     int in = -1;
+    m_ASCIIIn.setDelimiter(diag.getAsciiDelimiter());
 
     try {
+      Object event = ModbusEvents.beginFrameRead();
       do {
         //1. Skip to FRAME_START
         while ((in = m_InputStream.read()) != FRAME_START) ;
@@ -129,16 +144,20 @@ public class ModbusASCIITransport
           m_ByteInOut.reset();
           while ((in = m_InputStream.read()) != FRAME_END) {
             if (in == -1) {
-              throw new IOException("I/O exception - Serial port timeout.");
+              throw new InterruptedIOException("I/O exception - Serial port timeout.");
             }
             m_ByteInOut.writeByte(in);
           }
+          ModbusEvents.frameArrived(event);
+          FrameTrace.getReference().record(m_Connection, FrameTrace.RECEIVED,
+              m_InBuffer, 0, m_ByteInOut.size());
           //check LRC
-          if (m_InBuffer[m_ByteInOut.size()-1] !=
-              calculateLRC(m_InBuffer, 0, m_ByteInOut.size(), 1)) {
+          diag.increment(DiagnosticCounters.BUS_MESSAGES);
+          if (!LRC.check(m_InBuffer, 0, m_ByteInOut.size())) {
+            m_ChecksumErrors++;
+            diag.commError();
             continue;
           }
-          ;
           m_ByteIn.reset(m_InBuffer, m_ByteInOut.size());
           in = m_ByteIn.readUnsignedByte();
           //check message with this slave unit identifier
@@ -152,13 +171,15 @@ public class ModbusASCIITransport
           //read message
           m_ByteIn.reset(m_InBuffer, m_ByteInOut.size());
           request.readFrom(m_ByteIn);
+          ModbusEvents.endFrameRead(event, "ascii", request,
+              m_ByteInOut.size());
         }
         done = true;
       } while (!done);
       return request;
     } catch (Exception ex) {
       if(Modbus.debug) System.out.println(ex.getMessage());
-      throw new ModbusIOException("I/O exception - failed to read.");
+      throw new ModbusIOException("I/O exception - failed to read.", ex);
     }
 
   }//readRequest
@@ -171,11 +192,12 @@ public class ModbusASCIITransport
     int in = -1;
 
     try {
+      Object event = ModbusEvents.beginFrameRead();
       do {
         //1. Skip to FRAME_START
         while ((in = m_InputStream.read()) != FRAME_START) {
           if (in == -1) {
-            throw new IOException("I/O exception - Serial port timeout.");
+            throw new InterruptedIOException("I/O exception - Serial port timeout.");
           }
         }
         //2. Read to FRAME_END
@@ -183,16 +205,17 @@ public class ModbusASCIITransport
           m_ByteInOut.reset();
           while ((in = m_InputStream.read()) != FRAME_END) {
             if (in == -1) {
-              throw new IOException("I/O exception - Serial port timeout.");
+              throw new InterruptedIOException("I/O exception - Serial port timeout.");
             }
             m_ByteInOut.writeByte(in);
           }
+          ModbusEvents.frameArrived(event);
           int len = m_ByteInOut.size();
-          if (Modbus.debug)
-            System.out.println("Received: " +
-                               ModbusUtil.toHex(m_InBuffer, 0, len));
+          FrameTrace.getReference().record(m_Connection, FrameTrace.RECEIVED,
+              m_InBuffer, 0, len);
           //check LRC
-          if (m_InBuffer[len-1] != calculateLRC(m_InBuffer, 0, len, 1)) {
+          if (!LRC.check(m_InBuffer, 0, len)) {
+            m_ChecksumErrors++;
             continue;
           }
 
@@ -213,13 +236,15 @@ public class ModbusASCIITransport
           //read message
           m_ByteIn.reset(m_InBuffer, m_ByteInOut.size());
           response.readFrom(m_ByteIn);
+          ModbusEvents.endFrameRead(event, "ascii", response,
+              m_ByteInOut.size());
         }
         done = true;
       } while (!done);
       return response;
     } catch (Exception ex) {
       if(Modbus.debug) System.out.println(ex.getMessage());
-      throw new ModbusIOException("I/O exception - failed to read.");
+      throw new ModbusIOException("I/O exception - failed to read.", ex);
     }
   }//readResponse
 
@@ -234,7 +259,8 @@ public class ModbusASCIITransport
    * @throws IOException if an I\O related error occurs.
    */
   public void prepareStreams(InputStream in, OutputStream out) throws IOException {
-    m_InputStream = new DataInputStream(new ASCIIInputStream(in));
+    m_ASCIIIn = new ASCIIInputStream(in);
+    m_InputStream = new DataInputStream(m_ASCIIIn);
     m_OutputStream = new ASCIIOutputStream(out);
     m_ByteOut = new BytesOutputStream(Modbus.MAX_MESSAGE_LENGTH);
     m_InBuffer = new byte[Modbus.MAX_MESSAGE_LENGTH];
@@ -242,22 +268,18 @@ public class ModbusASCIITransport
     m_ByteInOut = new BytesOutputStream(m_InBuffer);
   }//prepareStreams
 
-  private final static int calculateLRC(byte[] data, int off, int len) {
-    int lrc = 0;
-    for (int i = off; i < len; i++) {
-      lrc += data[i];
-    }
-    return ((byte) lrc) & 0xff;
-  }//calculateLRC
+  /**
+   * <code>getFrameTime</code> returns how long a frame takes to send. An
+   * ASCII frame is a colon, two hex digits for each byte of the unit
+   * identifier, PDU and LRC, and CR LF.
+   *
+   * @param length the length of the unit identifier and PDU.
+   * @return the time in nanoseconds, 0 if the port has no line settings.
+   */
+  public long getFrameTime(int length) {
+    return getCharacterTime() * (2 * length + 5);
+  }//getFrameTime
 
-  private final byte calculateLRC(byte[] data, int off, int length, int tailskip) {
-    int lrc = 0;
-    for (int i = off; i < length - tailskip; i++) {
-      lrc += data[i];
-    }
-    return (byte) lrc;
-  }//calculateLRC
-  
   public boolean getDebug() {
 	  return "true".equals(System.getProperty("com.ghgande.j2mod.modbus.debug"));
   }
@@ -36,16 +36,20 @@ package com.ghgande.j2mod.modbus.io;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusCoupler;
 import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.metrics.ModbusEvents;
 import com.ghgande.j2mod.modbus.msg.ModbusMessage;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.msg.ModbusResponse;
-import com.ghgande.j2mod.modbus.util.ModbusUtil;
+import com.ghgande.j2mod.modbus.util.DiagnosticCounters;
+import com.ghgande.j2mod.modbus.util.FrameTrace;
+import com.ghgande.j2mod.modbus.util.CRC16;
 
 /**
  * Class that implements the Modbus/BIN transport
@@ -64,6 +68,8 @@ public class ModbusBINTransport
   private BytesInputStream m_ByteIn;         //to read message from
   private BytesOutputStream m_ByteInOut;     //to buffer message to
   private BytesOutputStream m_ByteOut;      //write frames
+  private final FrameTrace.Connection m_Connection =
+      FrameTrace.newConnection("bin");
 
   /**
    * Constructs a new <tt>MobusBINTransport</tt> instance.
@@ -86,6 +92,7 @@ public class ModbusBINTransport
     try {
       int len;
       synchronized (m_ByteOut) {
+        Object event = ModbusEvents.beginFrameWrite();
         //write message to byte out
         msg.setHeadless();
         msg.writeTo(m_ByteOut);
@@ -95,11 +102,16 @@ public class ModbusBINTransport
         //write message
         m_OutputStream.write(FRAME_START);               //FRAMESTART
         m_OutputStream.write(buf, 0, len);                 //PDU
-        int[] crc = ModbusUtil.calculateCRC(buf, 0, len); //CRC
-        m_OutputStream.write(crc[0]);
-        m_OutputStream.write(crc[1]);
+        int crc = CRC16.calculate(buf, 0, len);            //CRC
+        m_OutputStream.write(crc & 0xFF);                  //low byte first
+        m_OutputStream.write(crc >> 8);
         m_OutputStream.write(FRAME_END);                 //FRAMEEND
         m_OutputStream.flush();
+        ModbusEvents.endFrameWrite(event, "bin", msg, len + 2);
+        m_ByteOut.writeByte(crc & 0xFF);
+        m_ByteOut.writeByte(crc >> 8);
+        FrameTrace.getReference().record(m_Connection, FrameTrace.SENT,
+            m_ByteOut.getBuffer(), 0, len + 2);
         m_ByteOut.reset();
       }
       // clears out the echoed message
@@ -109,7 +121,7 @@ public class ModbusBINTransport
         readEcho(len + 4);
       }
     } catch (Exception ex) {
-      throw new ModbusIOException("I/O failed to write");
+      throw new ModbusIOException("I/O failed to write", ex);
     }
   }//writeMessage
 
@@ -118,10 +130,12 @@ public class ModbusBINTransport
 
     boolean done = false;
     ModbusRequest request = null;
+    DiagnosticCounters diag = ModbusCoupler.getReference().getDiagnostics();
 
     int in = -1;
 
     try {
+      Object event = ModbusEvents.beginFrameRead();
       do {
         //1. Skip to FRAME_START
         while ((in = m_InputStream.read()) != FRAME_START) ;
@@ -131,13 +145,14 @@ public class ModbusBINTransport
           while ((in = m_InputStream.read()) != FRAME_END) {
             m_ByteInOut.writeByte(in);
           }
+          ModbusEvents.frameArrived(event);
+          FrameTrace.getReference().record(m_Connection, FrameTrace.RECEIVED,
+              m_InBuffer, 0, m_ByteInOut.size());
           //check CRC
-          int[] crc = ModbusUtil.calculateCRC(m_InBuffer,0,m_ByteInOut.size()-2);
-
-          if (!(
-              m_InBuffer[m_ByteInOut.size()-2] == crc[0] //low byte first
-              &&  m_InBuffer[m_ByteInOut.size()-1] == crc[1] //hibyte
-          )) {
+          diag.increment(DiagnosticCounters.BUS_MESSAGES);
+          if (!CRC16.check(m_InBuffer, 0, m_ByteInOut.size())) {
+            m_ChecksumErrors++;
+            diag.commError();
             continue;
           }
           m_ByteIn.reset(m_InBuffer, m_ByteInOut.size());
@@ -153,13 +168,15 @@ public class ModbusBINTransport
           //read message
           m_ByteIn.reset(m_InBuffer, m_ByteInOut.size());
           request.readFrom(m_ByteIn);
+          ModbusEvents.endFrameRead(event, "bin", request,
+              m_ByteInOut.size());
         }
         done = true;
       } while (!done);
       return request;
     } catch (Exception ex) {
       if(Modbus.debug) System.out.println(ex.getMessage());
-      throw new ModbusIOException("I/O exception - failed to read.");
+      throw new ModbusIOException("I/O exception - failed to read.", ex);
     }
 
   }//readRequest
@@ -172,21 +189,29 @@ public class ModbusBINTransport
     int in = -1;
 
     try {
+      Object event = ModbusEvents.beginFrameRead();
       do {
         //1. Skip to FRAME_START
-        while ((in = m_InputStream.read()) != FRAME_START) ;
+        while ((in = m_InputStream.read()) != FRAME_START) {
+          if (in == -1) {
+            throw new InterruptedIOException("I/O exception - Serial port timeout.");
+          }
+        }
         //2. Read to FRAME_END
         synchronized (m_InBuffer) {
           m_ByteInOut.reset();
           while ((in = m_InputStream.read()) != FRAME_END) {
+            if (in == -1) {
+              throw new InterruptedIOException("I/O exception - Serial port timeout.");
+            }
             m_ByteInOut.writeByte(in);
           }
+          ModbusEvents.frameArrived(event);
+          FrameTrace.getReference().record(m_Connection, FrameTrace.RECEIVED,
+              m_InBuffer, 0, m_ByteInOut.size());
           //check CRC
-          int[] crc = ModbusUtil.calculateCRC(m_InBuffer,0,m_ByteInOut.size()-2);
-          if (!(
-              m_InBuffer[m_ByteInOut.size()-2] == crc[0] //low byte first
-              &&  m_InBuffer[m_ByteInOut.size()-1] == crc[1] //hibyte
-          )) {
+          if (!CRC16.check(m_InBuffer, 0, m_ByteInOut.size())) {
+            m_ChecksumErrors++;
             continue;
           }
           m_ByteIn.reset(m_InBuffer, m_ByteInOut.size());
@@ -208,13 +233,15 @@ public class ModbusBINTransport
           //read message
           m_ByteIn.reset(m_InBuffer, m_ByteInOut.size());
           response.readFrom(m_ByteIn);
+          ModbusEvents.endFrameRead(event, "bin", response,
+              m_ByteInOut.size());
         }
         done = true;
       } while (!done);
       return response;
     } catch (Exception ex) {
       if(Modbus.debug) System.out.println(ex.getMessage());
-      throw new ModbusIOException("I/O exception - failed to read.");
+      throw new ModbusIOException("I/O exception - failed to read.", ex);
     }
   }//readResponse
 
@@ -237,6 +264,18 @@ public class ModbusBINTransport
     m_ByteInOut = new BytesOutputStream(m_InBuffer);
   }//prepareStreams
 
+  /**
+   * <code>getFrameTime</code> returns how long a frame takes to send. A
+   * BIN frame is the start token, the unit identifier and PDU, the CRC
+   * and the end token.
+   *
+   * @param length the length of the unit identifier and PDU.
+   * @return the time in nanoseconds, 0 if the port has no line settings.
+   */
+  public long getFrameTime(int length) {
+    return getCharacterTime() * (length + 4);
+  }//getFrameTime
+
   /**
    * Defines a virtual number for the FRAME START token (COLON).
    */
@@ -33,19 +33,24 @@
  ***/
 package com.ghgande.j2mod.modbus.io;
 
-import gnu.io.UnsupportedCommOperationException;
-
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusCoupler;
 import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.metrics.ModbusEvents;
+import com.ghgande.j2mod.modbus.msg.CompiledRequest;
 import com.ghgande.j2mod.modbus.msg.ModbusMessage;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.util.CRC16;
+import com.ghgande.j2mod.modbus.util.DiagnosticCounters;
+import com.ghgande.j2mod.modbus.util.FrameTrace;
 import com.ghgande.j2mod.modbus.util.ModbusUtil;
+import com.ghgande.j2mod.modbus.util.SerialParameters;
 
 /**
  * Class that implements the ModbusRTU transport flavor.
@@ -65,13 +70,13 @@ public class ModbusRTUTransport extends ModbusSerialTransport {
 	private InputStream m_InputStream; // wrap into filter input
 	private OutputStream m_OutputStream; // wrap into filter output
 
-	private byte[] m_InBuffer;
 	private BytesInputStream m_ByteIn; // to read message from
-	private BytesOutputStream m_ByteInOut; // to buffer message to
 	private BytesOutputStream m_ByteOut; // write frames
 	private byte[] lastRequest = null;
-	private boolean osIsKnown = false;
-	private boolean osIsWindows = false;
+	private RTUFrameDecoder m_Decoder = new RTUFrameDecoder();
+	private int m_CRCErrors; // CRC errors already counted
+	private final FrameTrace.Connection m_Connection = FrameTrace
+			.newConnection("rtu");
 
 	public ModbusTransaction createTransaction() {
 		ModbusSerialTransaction transaction = new ModbusSerialTransaction();
@@ -84,177 +89,86 @@ public class ModbusRTUTransport extends ModbusSerialTransport {
 		try {
 			int len;
 			synchronized (m_ByteOut) {
+				Object event = ModbusEvents.beginFrameWrite();
 				// first clear any input from the receive buffer to prepare
 				// for the reply since RTU doesn't have message delimiters
 				clearInput();
-				// write message to byte out
-				m_ByteOut.reset();
 				msg.setHeadless();
-				msg.writeTo(m_ByteOut);
-				len = m_ByteOut.size();
-				int[] crc = ModbusUtil.calculateCRC(m_ByteOut.getBuffer(), 0,
-						len);
-				m_ByteOut.writeByte(crc[0]);
-				m_ByteOut.writeByte(crc[1]);
+				byte buf[];
+				int off = 0;
+				if (msg instanceof CompiledRequest) {
+					// already encoded, and RTU has no transaction identifier
+					CompiledRequest compiled = (CompiledRequest) msg;
+					buf = compiled.getFrame();
+					off = 6;
+					len = compiled.getFrameLength() + 2;
+				} else {
+					// write message to byte out
+					m_ByteOut.reset();
+					msg.writeTo(m_ByteOut);
+					len = m_ByteOut.size();
+					int crc = CRC16.calculate(m_ByteOut.getBuffer(), 0, len);
+					m_ByteOut.writeByte(crc & 0xFF);
+					m_ByteOut.writeByte(crc >> 8);
+					len = m_ByteOut.size();
+					buf = m_ByteOut.getBuffer();
+				}
 				// write message
-				len = m_ByteOut.size();
-				byte buf[] = m_ByteOut.getBuffer();
-				m_OutputStream.write(buf, 0, len); // PDU + CRC
+				m_OutputStream.write(buf, off, len); // PDU + CRC
 				m_OutputStream.flush();
-				if (Modbus.debug)
-					System.err
-							.println("Sent: " + ModbusUtil.toHex(buf, 0, len));
+				ModbusEvents.endFrameWrite(event, "rtu", msg, len);
+				FrameTrace.getReference().record(m_Connection, FrameTrace.SENT,
+						buf, off, len);
 				// clears out the echoed message
 				// for RS485
 				if (m_Echo) {
 					readEcho(len);
 				}
-				lastRequest = new byte[len];
-				System.arraycopy(buf, 0, lastRequest, 0, len);
+				// only printed when debugging, so only copied then
+				if (Modbus.debug) {
+					lastRequest = new byte[len];
+					System.arraycopy(buf, off, lastRequest, 0, len);
+				}
 			}
 		} catch (Exception ex) {
-			throw new ModbusIOException("I/O failed to write");
+			throw new ModbusIOException("I/O failed to write", ex);
 		}
 	}
 
 	/**
-	 * readRequestData - Read the data for a request of a given, fixed size
-	 * @throws IOException 
-	 */
-	private void readRequestData(int byteCount, byte inpBuf[], BytesOutputStream out) throws IOException {
-		int remaining = byteCount + 2;
-		int read = 0;
-		int loopCount = 0;
-
-		int tmOut = m_CommPort.getReceiveTimeout();
-		long timedOut = System.currentTimeMillis() + tmOut;
-		if (tmOut == 0) {
-			try {
-				m_CommPort.enableReceiveTimeout(250);
-				timedOut += 250;
-			} catch (UnsupportedCommOperationException e) {
-				// Who cares ...
-			}
-		}
-	
-		if (!osIsWindows)
-			setReceiveThreshold(remaining);
-		else
-			setReceiveThreshold(remaining > 16 ? 16 : remaining);
-		
-		/*
-		 * Read in the expected number of bytes.  loopCount is the
-		 * number of consecutive reads with no data.  The loop will
-		 * also end on a timeout.
-		 */
-		while (remaining > 0 && loopCount++ < 5) {
-			int readCount = m_InputStream.read(inpBuf, 0, remaining);
-			if (readCount > 0) {
-				out.write(inpBuf, 0, readCount);
-				read += readCount;
-				remaining -= readCount;
-				loopCount = 0;
-			}
-			if (readCount == 0
-					&& System.currentTimeMillis() > timedOut)
-				break;
-
-			if (remaining > 0)
-				Thread.yield();
-		}
-		if (Modbus.debug && remaining > 0) {
-			System.err.println("Error: looking for "
-					+ (byteCount + 2) + " bytes, received " + read);
-		}
-		m_CommPort.disableReceiveThreshold();
-	}
-	
-	/**
-	 * getRequest - Read a request, after the unit and function code
+	 * writeFrame - Write a frame that is already encoded, such as one being
+	 * forwarded by a gateway, without parsing it into a message. The CRC is
+	 * stored in the two bytes following the frame, so the buffer is written
+	 * as it is.
 	 * 
-	 * @param function
-	 *            - Modbus function code
-	 * @param out
-	 *            - Byte stream buffer to hold actual message
+	 * @param frame
+	 *            the buffer holding the unit identifier and PDU, with room
+	 *            for two more bytes after them.
+	 * @param off
+	 *            the offset of the unit identifier.
+	 * @param len
+	 *            the length of the unit identifier and PDU.
+	 * @throws ModbusIOException
 	 */
-	private void getRequest(int function, BytesOutputStream out)
-			throws IOException {
-		int byteCount = -1;
-		byte inpBuf[] = new byte[256];
-	
-		int tmOut = m_CommPort.getReceiveTimeout();
-		if (tmOut == 0) {
-			try {
-				m_CommPort.enableReceiveTimeout(250);
-			} catch (UnsupportedCommOperationException e) {
-				// Who cares ...
-			}
-		}
-	
-		if (!osIsKnown) {
-			String osName = System.getProperty("os.name");
-			if (osName.toLowerCase().startsWith("win"))
-				osIsWindows = true;
-	
-			osIsKnown = true;
-		}
-	
+	public void writeFrame(byte[] frame, int off, int len)
+			throws ModbusIOException {
 		try {
-			if ((function & 0x80) == 0) {
-				switch (function) {
-				case Modbus.READ_EXCEPTION_STATUS:
-				case Modbus.READ_COMM_EVENT_COUNTER:
-				case Modbus.READ_COMM_EVENT_LOG:
-				case Modbus.REPORT_SLAVE_ID:
-					readRequestData(0, inpBuf, out);
-					break;
-				case Modbus.READ_FIFO_QUEUE:
-					readRequestData(2, inpBuf, out);
-					break;
-				case Modbus.READ_MEI:
-					readRequestData(3, inpBuf, out);
-					break;
-				case Modbus.READ_COILS:
-				case Modbus.READ_INPUT_DISCRETES:
-				case Modbus.READ_MULTIPLE_REGISTERS:
-				case Modbus.READ_INPUT_REGISTERS:
-				case Modbus.WRITE_COIL:
-				case Modbus.WRITE_SINGLE_REGISTER:
-					readRequestData(4, inpBuf, out);
-					break;
-				case Modbus.MASK_WRITE_REGISTER:
-					readRequestData(6, inpBuf, out);
-					break;
-				case Modbus.READ_FILE_RECORD:
-				case Modbus.WRITE_FILE_RECORD:
-					byteCount = m_InputStream.read();
-					out.write(byteCount);
-					readRequestData(byteCount, inpBuf, out);
-					break;
-				case Modbus.WRITE_MULTIPLE_COILS:
-				case Modbus.WRITE_MULTIPLE_REGISTERS:
-					byteCount = m_InputStream.read(inpBuf, 0, 4);
-					if (byteCount > 0)
-						out.write(inpBuf, 0, byteCount);
-					
-					byteCount = m_InputStream.read();
-					out.write(byteCount);
-					readRequestData(byteCount, inpBuf, out);
-					break;
-				case Modbus.READ_WRITE_MULTIPLE:
-					readRequestData(8, inpBuf, out);
-					byteCount = m_InputStream.read();
-					out.write(byteCount);
-					readRequestData(byteCount, inpBuf, out);
-					break;
+			synchronized (m_ByteOut) {
+				clearInput();
+				int crc = CRC16.calculate(frame, off, len);
+				frame[off + len] = (byte) crc;
+				frame[off + len + 1] = (byte) (crc >> 8);
+				m_OutputStream.write(frame, off, len + 2);
+				m_OutputStream.flush();
+				FrameTrace.getReference().record(m_Connection, FrameTrace.SENT,
+						frame, off, len + 2);
+				if (m_Echo) {
+					readEcho(len + 2);
 				}
 			}
-		} catch (IOException e) {
-			m_CommPort.disableReceiveThreshold();
-			throw new IOException("getResponse serial port exception");
+		} catch (Exception ex) {
+			throw new ModbusIOException("I/O failed to write", ex);
 		}
-		if (tmOut == 0)
-			m_CommPort.disableReceiveTimeout();
 	}
 
 	/**
@@ -268,80 +182,31 @@ public class ModbusRTUTransport extends ModbusSerialTransport {
 		if (coupler == null || coupler.isMaster())
 			throw new RuntimeException("Operation not supported.");
 
-		boolean done = false;
-		ModbusRequest request = null;
-		int dlength = 0;
-
 		try {
-			do {
-				// 1. read to function code, create request and read function
-				// specific bytes
-				synchronized (m_ByteIn) {
-					int uid = m_InputStream.read();
-					if (uid != -1) {
-						int fc = m_InputStream.read();
-						m_ByteInOut.reset();
-						m_ByteInOut.writeByte(uid);
-						m_ByteInOut.writeByte(fc);
-
-						// create response to acquire length of message
-						request = ModbusRequest.createModbusRequest(fc);
-						request.setHeadless();
-
-						/*
-						 * With Modbus RTU, there is no end frame. Either we
-						 * assume the message is complete as is or we must do
-						 * function specific processing to know the correct
-						 * length. To avoid moving frame timing to the serial
-						 * input functions, we set the timeout and to message
-						 * specific parsing to read a response.
-						 */
-						getRequest(fc, m_ByteInOut);
-						dlength = m_ByteInOut.size() - 2; // less the crc
-						if (Modbus.debug)
-							System.err.println("Response: "
-									+ ModbusUtil.toHex(m_ByteInOut.getBuffer(),
-											0, dlength + 2));
-
-						m_ByteIn.reset(m_InBuffer, dlength);
-
-						// check CRC
-						int[] crc = ModbusUtil.calculateCRC(m_InBuffer, 0,
-								dlength); // does not include CRC
-						if (ModbusUtil.unsignedByteToInt(m_InBuffer[dlength]) != crc[0]
-								&& ModbusUtil
-										.unsignedByteToInt(m_InBuffer[dlength + 1]) != crc[1]) {
-							if (Modbus.debug)
-								System.err.println("CRC should be " + crc[0]
-										+ ", " + crc[1]);
-							
-							/*
-							 * Drain the input in case the frame was misread and more
-							 * was to follow.
-							 */
-							clearInput();
-							
-							throw new IOException(
-									"CRC Error in received frame: "
-											+ dlength
-											+ " bytes: "
-											+ ModbusUtil.toHex(
-													m_ByteIn.getBuffer(), 0,
-													dlength));
-						}
-					} else {
-						throw new IOException("Error reading response");
-					}
-
-					// read response
-					m_ByteIn.reset(m_InBuffer, dlength);
-					if (request != null) {
-						request.readFrom(m_ByteIn);
-					}
-					done = true;
+			synchronized (m_ByteIn) {
+				DiagnosticCounters diag = coupler.getDiagnostics();
+				Object event = ModbusEvents.beginFrameRead();
+				int dlength = readFrame();
+				ModbusEvents.frameArrived(event);
+
+				int errors = m_Decoder.getCRCErrors();
+				for (; m_CRCErrors != errors; m_CRCErrors++) {
+					diag.increment(DiagnosticCounters.BUS_MESSAGES);
+					diag.commError();
 				}
-			} while (!done);
-			return request;
+				countOverruns(diag);
+				if (dlength < 0)
+					return null;
+
+				diag.increment(DiagnosticCounters.BUS_MESSAGES);
+				ModbusRequest request = ModbusRequest
+						.createModbusRequest(m_Decoder.getBuffer()[1] & 0xFF);
+				request.setHeadless();
+				request.readFrom(m_ByteIn);
+				ModbusEvents.endFrameRead(event, "rtu", request, dlength + 2);
+
+				return request;
+			}
 		} catch (Exception ex) {
 			/*
 			 * An exception mostly means there is no request. The master should
@@ -357,6 +222,14 @@ public class ModbusRTUTransport extends ModbusSerialTransport {
 	 * @throws ModbusIOException
 	 */
 	public void clearInput() throws IOException {
+		m_Decoder.reset();
+		if (m_InputStream instanceof SerialInputBuffer) {
+			int len = ((SerialInputBuffer) m_InputStream).clear();
+			if (Modbus.debug && len > 0)
+				System.err.println("Clear input: " + len + " bytes");
+
+			return;
+		}
 		if (m_InputStream.available() > 0) {
 			int len = m_InputStream.available();
 			byte buf[] = new byte[len];
@@ -368,270 +241,67 @@ public class ModbusRTUTransport extends ModbusSerialTransport {
 	}
 
 	/**
-	 * getResponse - Read a <tt>ModbusResponse</tt> from a slave.
+	 * readResponse - Read the bytes for the response from the slave.
 	 * 
-	 * @param function
-	 * @param out
-	 * @throws IOException
+	 * @return a <tt>ModbusRespose</tt>
 	 */
-	private void getResponse(int function, BytesOutputStream out)
-			throws IOException {
-		int byteCount = -1;
-		int readCount = 0;
-		byte inpBuf[] = new byte[256];
-
-		int tmOut = m_CommPort.getReceiveTimeout();
-		long timedOut = System.currentTimeMillis() + tmOut;
-		if (tmOut == 0) {
-			try {
-				m_CommPort.enableReceiveTimeout(250);
-				timedOut += 250;
-			} catch (UnsupportedCommOperationException e) {
-				// Who cares ...
-			}
-		}
-
-		if (!osIsKnown) {
-			String osName = System.getProperty("os.name");
-			if (osName.toLowerCase().startsWith("win"))
-				osIsWindows = true;
-
-			osIsKnown = true;
-		}
-
+	public ModbusResponse readResponse() throws ModbusIOException {
 		try {
-			if ((function & 0x80) == 0) {
-				switch (function) {
-				case Modbus.READ_COILS:
-				case Modbus.READ_INPUT_DISCRETES:
-				case Modbus.READ_MULTIPLE_REGISTERS:
-				case Modbus.READ_INPUT_REGISTERS:
-				case Modbus.READ_COMM_EVENT_LOG:
-				case Modbus.REPORT_SLAVE_ID:
-				case Modbus.READ_FILE_RECORD:
-				case Modbus.WRITE_FILE_RECORD:
-				case Modbus.READ_WRITE_MULTIPLE:
-					/*
-					 * Read the data payload byte count. There will be two
-					 * additional CRC bytes afterwards.
-					 */
-					byteCount = m_InputStream.read();
-					out.write(byteCount);
-
-					int remaining = byteCount + 2;
-					int read = 0;
-					int loopCount = 0;
-					// now get the specified number of bytes and the 2 CRC bytes
-					while (remaining > 0 && loopCount++ < 5) {
-						if (!osIsWindows)
-							setReceiveThreshold(remaining);
-						else
-							setReceiveThreshold(remaining > 16 ? 16 : remaining);
-
-						readCount = m_InputStream.read(inpBuf, 0, remaining);
-						if (readCount > 0) {
-							out.write(inpBuf, 0, readCount);
-							read += readCount;
-							remaining -= readCount;
-							loopCount = 0;
-						}
-						if (readCount == 0
-								&& System.currentTimeMillis() > timedOut)
-							break;
-
-						if (remaining > 0)
-							Thread.yield();
-					}
-					if (Modbus.debug && remaining > 0) {
-						System.err.println("Error: looking for "
-								+ (byteCount + 2) + " bytes, received " + read);
-					}
-					m_CommPort.disableReceiveThreshold();
-					break;
-				case Modbus.WRITE_COIL:
-				case Modbus.WRITE_SINGLE_REGISTER:
-				case Modbus.READ_COMM_EVENT_COUNTER:
-				case Modbus.WRITE_MULTIPLE_COILS:
-				case Modbus.WRITE_MULTIPLE_REGISTERS:
-				case Modbus.READ_SERIAL_DIAGNOSTICS:
-					/*
-					 * read status: only the CRC remains after the two data
-					 * words.
-					 */
-					setReceiveThreshold(6);
-					readCount = m_InputStream.read(inpBuf, 0, 6);
-					out.write(inpBuf, 0, readCount);
-					m_CommPort.disableReceiveThreshold();
-					break;
-				case Modbus.READ_EXCEPTION_STATUS:
-					/*
-					 * read status: only the CRC remains after exception status
-					 * byte.
-					 */
-					setReceiveThreshold(3);
-					readCount = m_InputStream.read(inpBuf, 0, 3);
-					out.write(inpBuf, 0, readCount);
-					m_CommPort.disableReceiveThreshold();
-					break;
-				case Modbus.MASK_WRITE_REGISTER:
-					// eight bytes in addition to the address and function codes
-					setReceiveThreshold(8);
-					readCount = m_InputStream.read(inpBuf, 0, 8);
-					out.write(inpBuf, 0, readCount);
-					m_CommPort.disableReceiveThreshold();
-					break;
-				case Modbus.READ_FIFO_QUEUE:
-					int b1,
-					b2;
-					b1 = (byte) (m_InputStream.read() & 0xFF);
-					out.write(b1);
-					b2 = (byte) (m_InputStream.read() & 0xFF);
-					out.write(b2);
-
-					byteCount = ModbusUtil.makeWord(b1, b2);
-
-					/*
-					 * now get the specified number of bytes and the 2 CRC bytes
-					 */
-					setReceiveThreshold(byteCount + 2);
-					readCount = m_InputStream.read(inpBuf, 0, byteCount + 2);
-					out.write(inpBuf, 0, readCount);
-					m_CommPort.disableReceiveThreshold();
-					break;
-				case Modbus.READ_MEI:
-					// read the subcode. We only support 0x0e.
-					int sc = m_InputStream.read();
-					if (sc != 0x0e)
-						throw new IOException("Invalid subfunction code");
-
-					out.write(sc);
-					// next few bytes are just copied.
-					setReceiveThreshold(5);
-					int id,
-					fieldCount;
-					int cnt = m_InputStream.read(inpBuf, 0, 5);
-					out.write(inpBuf, 0, cnt);
-					id = (int) inpBuf[0];
-					fieldCount = (int) inpBuf[4];
-					for (int i = 0; i < fieldCount; i++) {
-						setReceiveThreshold(1);
-						id = m_InputStream.read();
-						out.write(id);
-						int len = m_InputStream.read();
-						out.write(len);
-						setReceiveThreshold(len);
-						len = m_InputStream.read(inpBuf, 0, len);
-						out.write(inpBuf, 0, len);
-					}
-					if (fieldCount == 0) {
-						setReceiveThreshold(1);
-						int err = m_InputStream.read();
-						out.write(err);
-					}
-					// now get the 2 CRC bytes
-					setReceiveThreshold(2);
-					readCount = m_InputStream.read(inpBuf, 0, 2);
-					out.write(inpBuf, 0, 2);
-					m_CommPort.disableReceiveThreshold();
-					m_CommPort.disableReceiveTimeout();
+			synchronized (m_ByteIn) {
+				Object event = ModbusEvents.beginFrameRead();
+				int dlength = readFrame();
+				if (dlength < 0) {
+					ModbusEvents.endFrameRead(event, "rtu", null, 0);
+					throw new InterruptedIOException("Timeout reading response");
 				}
-			} else {
-				// read the exception code, plus two CRC bytes.
-				setReceiveThreshold(3);
-				readCount = m_InputStream.read(inpBuf, 0, 3);
-				out.write(inpBuf, 0, 3);
-				m_CommPort.disableReceiveThreshold();
+				ModbusEvents.frameArrived(event);
 
+				ModbusResponse response = ModbusResponse
+						.createModbusResponse(m_Decoder.getBuffer()[1] & 0xFF);
+				response.setHeadless();
+				response.readFrom(m_ByteIn);
+				ModbusEvents.endFrameRead(event, "rtu", response, dlength + 2);
+
+				return response;
 			}
-		} catch (IOException e) {
-			m_CommPort.disableReceiveThreshold();
-			throw new IOException("getResponse serial port exception");
+		} catch (Exception ex) {
+			if (Modbus.debug) {
+				if (lastRequest != null)
+					System.err.println("Last request: "
+							+ ModbusUtil.toHex(lastRequest));
+				System.err.println(ex.getMessage());
+			}
+			throw new ModbusIOException("I/O exception - failed to read", ex);
 		}
-		if (tmOut == 0)
-			m_CommPort.disableReceiveTimeout();
 	}
 
 	/**
-	 * readResponse - Read the bytes for the response from the slave.
+	 * readFrame - Read the next frame and point <tt>m_ByteIn</tt> at it,
+	 * without the CRC. The frame is at the start of the buffer of the
+	 * decoder until the next read.
 	 * 
-	 * @return a <tt>ModbusRespose</tt>
+	 * <p>
+	 * With Modbus RTU there is no length and no end of frame marker, so the
+	 * frame is delimited by the silence that follows it rather than by
+	 * function code specific parsing.
+	 * 
+	 * @return the length of the frame less the CRC, or -1 on timeout.
+	 * @throws IOException
 	 */
-	public ModbusResponse readResponse() throws ModbusIOException {
-		boolean done = false;
-		ModbusResponse response = null;
-		int dlength = 0;
+	public int readFrame() throws IOException {
+		int length = m_Decoder.readFrame(m_InputStream, getReceiveTimeout());
+		if (length < 0)
+			return -1;
 
-		try {
-			do {
-				// 1. read to function code, create request and read function
-				// specific bytes
-				synchronized (m_ByteIn) {
-					int uid = m_InputStream.read();
-					if (uid != -1) {
-						int fc = m_InputStream.read();
-						m_ByteInOut.reset();
-						m_ByteInOut.writeByte(uid);
-						m_ByteInOut.writeByte(fc);
-
-						// create response to acquire length of message
-						response = ModbusResponse.createModbusResponse(fc);
-						response.setHeadless();
-
-						/*
-						 * With Modbus RTU, there is no end frame. Either we
-						 * assume the message is complete as is or we must do
-						 * function specific processing to know the correct
-						 * length. To avoid moving frame timing to the serial
-						 * input functions, we set the timeout and to message
-						 * specific parsing to read a response.
-						 */
-						getResponse(fc, m_ByteInOut);
-						dlength = m_ByteInOut.size() - 2; // less the crc
-						if (Modbus.debug)
-							System.err.println("Response: "
-									+ ModbusUtil.toHex(m_ByteInOut.getBuffer(),
-											0, dlength + 2));
-
-						m_ByteIn.reset(m_InBuffer, dlength);
-
-						// check CRC
-						int[] crc = ModbusUtil.calculateCRC(m_InBuffer, 0,
-								dlength); // does not include CRC
-						if (ModbusUtil.unsignedByteToInt(m_InBuffer[dlength]) != crc[0]
-								&& ModbusUtil
-										.unsignedByteToInt(m_InBuffer[dlength + 1]) != crc[1]) {
-							if (Modbus.debug)
-								System.err.println("CRC should be " + crc[0]
-										+ ", " + crc[1]);
-							throw new IOException(
-									"CRC Error in received frame: "
-											+ dlength
-											+ " bytes: "
-											+ ModbusUtil.toHex(
-													m_ByteIn.getBuffer(), 0,
-													dlength));
-						}
-					} else {
-						throw new IOException("Error reading response");
-					}
-
-					// read response
-					m_ByteIn.reset(m_InBuffer, dlength);
-					if (response != null) {
-						response.readFrom(m_ByteIn);
-					}
-					done = true;
-				}
-			} while (!done);
-			return response;
-		} catch (Exception ex) {
-			if (Modbus.debug) {
-				System.err.println("Last request: "
-						+ ModbusUtil.toHex(lastRequest));
-				System.err.println(ex.getMessage());
-			}
-			throw new ModbusIOException("I/O exception - failed to read");
-		}
+		byte[] frame = m_Decoder.getBuffer();
+		FrameTrace.getReference().record(m_Connection, FrameTrace.RECEIVED,
+				frame, 0, length);
+
+		// read the frame in place, less the CRC
+		int dlength = length - 2;
+		m_ByteIn.reset(frame, dlength);
+
+		return dlength;
 	}
 
 	/**
@@ -650,10 +320,41 @@ public class ModbusRTUTransport extends ModbusSerialTransport {
 		m_InputStream = in; // new RTUInputStream(in);
 		m_OutputStream = out;
 
+		// frames are delimited by timing, so the decoder needs the line speed
+		updateDecoder();
+
 		m_ByteOut = new BytesOutputStream(Modbus.MAX_MESSAGE_LENGTH);
-		m_InBuffer = new byte[Modbus.MAX_MESSAGE_LENGTH];
-		m_ByteIn = new BytesInputStream(m_InBuffer);
-		m_ByteInOut = new BytesOutputStream(m_InBuffer);
+		m_ByteIn = new BytesInputStream(m_Decoder.getBuffer());
+	}
+
+	public void setBaudRate(int baud) {
+		super.setBaudRate(baud);
+		updateDecoder();
+	}
+
+	public int getChecksumErrors() {
+		return m_Decoder.getCRCErrors();
+	}
+
+	/**
+	 * getDecoder - Get the frame decoder, for instance to widen the
+	 * inter-frame delay for a USB serial adapter.
+	 * 
+	 * @return the <tt>RTUFrameDecoder</tt> used by this transport.
+	 */
+	public RTUFrameDecoder getDecoder() {
+		return m_Decoder;
+	}
+
+	/**
+	 * updateDecoder - Give the decoder the character format of the serial
+	 * port.
+	 */
+	private void updateDecoder() {
+		SerialParameters params =
+				m_SerialPort == null ? null : m_SerialPort.getParameters();
+		if (params != null)
+			m_Decoder.setSerialParameters(params);
 	}
 
 	public void close() throws IOException {
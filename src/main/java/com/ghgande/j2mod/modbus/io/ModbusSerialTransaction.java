@@ -33,14 +33,27 @@
  ***/
 package com.ghgande.j2mod.modbus.io;
 
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusException;
 import com.ghgande.j2mod.modbus.ModbusIOException;
 import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.msg.CompiledRequest;
 import com.ghgande.j2mod.modbus.msg.ExceptionResponse;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.metrics.DeviceMetrics;
+import com.ghgande.j2mod.modbus.metrics.MetricsRegistry;
+import com.ghgande.j2mod.modbus.metrics.ModbusEvents;
 import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.msg.ReadCoilsRequest;
+import com.ghgande.j2mod.modbus.msg.ReadInputDiscretesRequest;
+import com.ghgande.j2mod.modbus.msg.ReadInputRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.ReadMultipleRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.ReadWriteMultipleRequest;
 import com.ghgande.j2mod.modbus.net.SerialConnection;
+import com.ghgande.j2mod.modbus.util.FrameTrace;
 
 /**
  * Class implementing the <tt>ModbusTransaction</tt>
@@ -66,6 +79,8 @@ public class ModbusSerialTransaction
   private int m_Retries = Modbus.DEFAULT_RETRIES;
   private int m_TransDelayMS = Modbus.DEFAULT_TRANSMIT_DELAY;
   private SerialConnection m_SerialCon;
+  private DeviceMetrics m_Metrics;
+  private RttEstimator m_Rtt;
 
   /**
    * Constructs a new <tt>ModbusSerialTransaction</tt>
@@ -105,10 +120,14 @@ public class ModbusSerialTransaction
   public void setSerialConnection(SerialConnection con) {
     m_SerialCon = con;
     m_IO = m_SerialCon.getModbusTransport();
+    m_Metrics = null;
+    m_Rtt = null;
   }//setConnection
   
   public void setTransport(ModbusSerialTransport transport) {
 	  m_IO = transport;
+	  m_Metrics = null;
+	  m_Rtt = null;
   }
 
   public int getTransactionID() {
@@ -154,7 +173,8 @@ public class ModbusSerialTransaction
   }
 
 /**
- * Set the TransDelayMS value.
+ * Set the TransDelayMS value. Transactions and their retries never
+ * wait less than t3.5 between frames.
  * @param newTransDelayMS The new TransDelayMS value.
  */
   public void setTransDelayMS(int newTransDelayMS) {
@@ -167,36 +187,124 @@ public class ModbusSerialTransaction
     //1. assert executeability
     assertExecutable();
 
+    DeviceMetrics metrics = getMetrics();
+    Object event = ModbusEvents.beginTransaction();
+    long start = 0;
+
     //3. write request, and read response,
     //   while holding the lock on the IO object
     synchronized (m_IO) {
       int tries = 0;
+      int checksumErrors = getChecksumErrors();
       boolean finished = false;
-      do {
-        try {
-          if (m_TransDelayMS > 0) {
+
+      //with adaptive timeouts the tries share the time they
+      //used to wait between them, and each waits for as long
+      //as the slave is expected to take, plus the time the
+      //request and response take on the wire
+      RttEstimator rtt = getEstimator();
+      ModbusSerialTransport transport = null;
+      int timeout = 0;
+      long transfer = 0;
+      int limit = Math.max(m_Retries, 1);
+      if (rtt != null) {
+        transport = (ModbusSerialTransport) m_IO;
+        timeout = transport.getReceiveTimeout();
+        if (timeout <= 0) {
+          //the port waits forever
+          rtt = null;
+        } else {
+          transfer = transport.getFrameTime(m_Request.getDataLength())
+              + transport.getFrameTime(getResponseLength(m_Request));
+        }
+      }
+      long budget = TimeUnit.MILLISECONDS.toNanos(timeout) + transfer;
+      long deadline = 0;
+      int unit = m_Request.getUnitID();
+      int function = m_Request.getFunctionCode();
+      try {
+        do {
+          int wait = 0;
+          try {
+            waitForGap();
+            if (tries == 0) {
+              start = System.nanoTime();
+              deadline = start + budget * limit;
+              ModbusEvents.requestSent(event);
+            }
+            if (rtt != null) {
+              wait = rtt.getTimeout(unit, function, timeout, deadline,
+                  tries == limit - 1, transfer);
+              if (wait == 0) {
+                FrameTrace.getReference().failed(getDeviceName()
+                    + ": deadline passed");
+                throw new ModbusIOException("Executing transaction failed"
+                    + " (deadline passed after " + tries + " tries)");
+              }
+              transport.setReceiveTimeout(wait);
+            }
+            long sent = System.nanoTime();
             try {
-              Thread.sleep(m_TransDelayMS);
-            } catch (InterruptedException ex) {
-            	if (Modbus.debug)
-            		System.err.println("InterruptedException: " +
-            				ex.getMessage());
+              //write request message
+              m_IO.writeMessage(m_Request);
+              //read response message
+              m_Response = m_IO.readResponse();
+            } finally {
+              if (wait > 0) {
+                transport.setReceiveTimeout(timeout);
+              }
+            }
+            if (rtt != null && tries == 0) {
+              rtt.sample(unit, function,
+                  Math.max(System.nanoTime() - sent - transfer, 1));
+            }
+            finished = true;
+          } catch (ModbusIOException e) {
+            if (wait == 0 && rtt != null) {
+              //the deadline passed
+              throw e;
+            }
+            if (wait > 0 && e.isTimeout()) {
+              rtt.timeout(unit, function, Math.max(wait
+                  - (int) TimeUnit.NANOSECONDS.toMillis(transfer), 1));
+            }
+            if (metrics != null) {
+              if (e.isTimeout()) {
+                metrics.timeout();
+              } else {
+                metrics.error();
+              }
+            }
+            if (++tries >= m_Retries) {
+              FrameTrace.getReference().failed(getDeviceName() + ": "
+                  + e.getMessage());
+              throw e;
+            }
+            if (metrics != null) {
+              metrics.retry();
+            }
+            if (Modbus.debug)
+          	  System.err.println("Execute try " + tries + " error: " +
+          			  e.getMessage());
+          } finally {
+            //the transmit delay counts from here
+            if (m_IO instanceof ModbusSerialTransport) {
+              ((ModbusSerialTransport) m_IO).endTransaction();
             }
           }
-          //write request message
-          m_IO.writeMessage(m_Request);
-          //read response message
-          m_Response = m_IO.readResponse();
-          finished = true;
-        } catch (ModbusIOException e) {
-          if (++tries >= m_Retries) {
-            throw e;
-          }
-          if (Modbus.debug)
-        	  System.err.println("Execute try " + tries + " error: " +
-        			  e.getMessage());
+        } while (!finished);
+      } finally {
+        if (metrics != null) {
+          metrics.checksumErrors(getChecksumErrors() - checksumErrors);
         }
-      } while (!finished);
+        if (event != null) {
+          ModbusEvents.endTransaction(event, getDeviceName(), m_Request,
+              finished ? m_Response : null, tries + (finished ? 1 : 0));
+        }
+      }
+    }
+    if (metrics != null) {
+      metrics.transaction(m_Request, m_Response, start);
     }
 
     //4. deal with exceptions
@@ -213,6 +321,122 @@ public class ModbusSerialTransaction
     toggleTransactionID();
   }//execute
 
+  /**
+   * Returns the expected length of the unit identifier and PDU of the
+   * response to a request. Responses whose length cannot be told from
+   * the request are taken to be as long as a frame can be.
+   */
+  private static int getResponseLength(ModbusRequest request) {
+    if (request instanceof CompiledRequest) {
+      request = ((CompiledRequest) request).getRequest();
+    }
+    if (request instanceof ReadCoilsRequest) {
+      return 3 + (((ReadCoilsRequest) request).getBitCount() + 7) / 8;
+    }
+    if (request instanceof ReadInputDiscretesRequest) {
+      return 3 + (((ReadInputDiscretesRequest) request).getBitCount() + 7) / 8;
+    }
+    if (request instanceof ReadMultipleRegistersRequest) {
+      return 3 + 2 * ((ReadMultipleRegistersRequest) request).getWordCount();
+    }
+    if (request instanceof ReadInputRegistersRequest) {
+      return 3 + 2 * ((ReadInputRegistersRequest) request).getWordCount();
+    }
+    if (request instanceof ReadWriteMultipleRequest) {
+      return 3 + 2 * ((ReadWriteMultipleRequest) request).getReadWordCount();
+    }
+    switch (request.getFunctionCode()) {
+      case Modbus.WRITE_COIL:
+      case Modbus.WRITE_SINGLE_REGISTER:
+      case Modbus.WRITE_MULTIPLE_COILS:
+      case Modbus.WRITE_MULTIPLE_REGISTERS:
+        return 6;
+      case Modbus.MASK_WRITE_REGISTER:
+        return 8;
+      default:
+        return Modbus.MAX_MESSAGE_LENGTH - 2;
+    }
+  }//getResponseLength
+
+  /**
+   * Returns the metrics of the unit addressed by the request, or
+   * <tt>null</tt> if metrics are not being recorded.
+   */
+  private DeviceMetrics getMetrics() {
+    MetricsRegistry registry = MetricsRegistry.getReference();
+    if (!registry.isEnabled()) {
+      return null;
+    }
+    DeviceMetrics metrics = m_Metrics;
+    if (metrics == null || metrics.getUnit() != m_Request.getUnitID()) {
+      m_Metrics = metrics = registry.getDevice(getDeviceName(),
+          m_Request.getUnitID());
+    }
+    return metrics;
+  }//getMetrics
+
+  /**
+   * Returns the name of the port, as used for metrics and events.
+   */
+  private String getDeviceName() {
+    if (m_IO instanceof ModbusSerialTransport &&
+        ((ModbusSerialTransport) m_IO).getSerialPort() != null) {
+      return "device:" + ((ModbusSerialTransport) m_IO).getSerialPort().getName();
+    }
+    return "device";
+  }//getDeviceName
+
+  /**
+   * Returns the round trip times of the slave, or <tt>null</tt> if
+   * adaptive timeouts are off or the transport is not a serial one.
+   */
+  private RttEstimator getEstimator() {
+    if (!RttEstimator.isEnabled() ||
+        !(m_IO instanceof ModbusSerialTransport)) {
+      return null;
+    }
+    RttEstimator rtt = m_Rtt;
+    if (rtt == null) {
+      m_Rtt = rtt = RttEstimator.getEstimator(getDeviceName());
+    }
+    return rtt;
+  }//getEstimator
+
+  /**
+   * Returns the checksum errors counted by the transport.
+   */
+  private int getChecksumErrors() {
+    if (m_IO instanceof ModbusSerialTransport) {
+      return ((ModbusSerialTransport) m_IO).getChecksumErrors();
+    }
+    return 0;
+  }//getChecksumErrors
+
+  /**
+   * Waits for the transmit delay, but at least t3.5, counted from the
+   * end of the previous transaction or try on the same port.
+   */
+  private void waitForGap() {
+    try {
+      if (m_IO instanceof ModbusSerialTransport) {
+        ModbusSerialTransport transport = (ModbusSerialTransport) m_IO;
+        transport.waitForGap(Math.max(
+            TimeUnit.MILLISECONDS.toNanos(m_TransDelayMS),
+            transport.getInterFrameDelay()));
+      } else if (m_TransDelayMS > 0) {
+        Thread.sleep(m_TransDelayMS);
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      if (Modbus.debug)
+        System.err.println("InterruptedException: " + ex.getMessage());
+    } catch (InterruptedIOException ex) {
+      //the transport has restored the interrupt
+      if (Modbus.debug)
+        System.err.println("InterruptedException: " + ex.getMessage());
+    }
+  }//waitForGap
+
   /**
    * Asserts if this <tt>ModbusTCPTransaction</tt> is
    * executable.
@@ -36,16 +36,22 @@ package com.ghgande.j2mod.modbus.io;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
 
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusIOException;
 import com.ghgande.j2mod.modbus.msg.ModbusMessage;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.serial.RXTXSerialPort;
+import com.ghgande.j2mod.modbus.serial.SerialPortAdapter;
+import com.ghgande.j2mod.modbus.util.DiagnosticCounters;
 import com.ghgande.j2mod.modbus.util.ModbusUtil;
+import com.ghgande.j2mod.modbus.util.SerialParameters;
 
-import gnu.io.*;
+import gnu.io.CommPort;
 
 /**
  * Abstract base class for serial <tt>ModbusTransport</tt>
@@ -58,8 +64,27 @@ import gnu.io.*;
  */
 abstract public class ModbusSerialTransport
     implements ModbusTransport {
+
+  /**
+   * How long the reader thread's bulk read waits on the port before
+   * checking whether it has been closed, in milliseconds.
+   */
+  private static final int READER_POLL_MS = 100;
+
+  protected SerialPortAdapter m_SerialPort;
+  /**
+   * The RXTX port behind <tt>m_SerialPort</tt>, or <tt>null</tt> for other
+   * port implementations.
+   *
+   * @deprecated use {@link #m_SerialPort}.
+   */
+  @Deprecated
   protected CommPort  m_CommPort;
+  protected SerialInputBuffer m_SerialInput;  // buffered port input
   protected boolean   m_Echo = false;     // require RS-485 echo processing
+  private volatile long m_LastTransaction = System.nanoTime(); // end of last transaction
+  private int m_Overruns;                 // overruns already counted
+  protected int m_ChecksumErrors;         // frames with a bad CRC or LRC
 
   /**
    * <code>prepareStreams</code> prepares the input and output streams of this
@@ -114,17 +139,204 @@ abstract public class ModbusSerialTransport
   /**
    * <code>setCommPort</code> sets the comm port member and prepares the input
    * and output streams to be used for reading from and writing to.
+   * <p>
+   * This is a convenience for RXTX ports, see {@link #setSerialPort}.
    *
    * @param cp the comm port to read from/write to.
    * @throws IOException if an I/O related error occurs.
    */
   public void setCommPort(CommPort cp) throws IOException {
-    m_CommPort = cp;
-    if (cp != null) {
-      prepareStreams(cp.getInputStream(), cp.getOutputStream());
+    setSerialPort(cp == null ? null : new RXTXSerialPort(cp));
+  }
+
+  /**
+   * <code>setSerialPort</code> sets the serial port and prepares the input
+   * and output streams to be used for reading from and writing to.
+   * <p>
+   * The port's input is drained in bulk by a <tt>SerialInputBuffer</tt>
+   * reader thread, so the transport reads from memory rather than making
+   * a driver call per byte. The port's read timeout becomes the
+   * timeout of the buffer. The reader of a previous port is stopped
+   * first; unread input it had buffered is dropped.
+   *
+   * @param port the serial port to read from/write to.
+   * @throws IOException if an I/O related error occurs.
+   */
+  public void setSerialPort(SerialPortAdapter port) throws IOException {
+    SerialInputBuffer previous = m_SerialInput;
+    if (previous != null) {
+      // only one reader may drain a port
+      previous.stop();
+      m_SerialInput = null;
+    }
+    RXTXSerialPort rxtx = toRXTX(port);
+    m_SerialPort = port;
+    m_CommPort = rxtx == null ? null : rxtx.getCommPort();
+    if (port != null) {
+      int timeout = 0;
+      if (previous != null) {
+        timeout = previous.getTimeout();
+      } else if (rxtx != null) {
+        timeout = rxtx.getReadTimeout();
+      }
+
+      // the reader thread wants whatever has arrived, and regular wakeups
+      port.setReadTimeout(READER_POLL_MS);
+      m_SerialInput = new SerialInputBuffer(port.getInputStream());
+      m_SerialInput.setTimeout(timeout);
+      m_SerialInput.start(port.getName());
+      prepareStreams(m_SerialInput, port.getOutputStream());
+    }
+  }
+
+  /**
+   * <code>toRXTX</code> returns the port as an RXTX port. The type check
+   * loads RXTX, which other port implementations do not need installed.
+   *
+   * @param port the serial port, may be <tt>null</tt>.
+   * @return the RXTX port, or <tt>null</tt> for other implementations.
+   */
+  private static RXTXSerialPort toRXTX(SerialPortAdapter port) {
+    try {
+      return port instanceof RXTXSerialPort ? (RXTXSerialPort) port : null;
+    } catch (NoClassDefFoundError ex) {
+      // RXTX is not installed, so this cannot be one of its ports
+      return null;
+    }
+  }//toRXTX
+
+  /**
+   * <code>getChecksumErrors</code> returns the number of frames this
+   * transport has discarded for a bad CRC or LRC.
+   *
+   * @return the count since the transport was created.
+   */
+  public int getChecksumErrors() {
+    return m_ChecksumErrors;
+  }
+
+  /**
+   * <code>countOverruns</code> carries the character overruns seen by the
+   * input buffer since the last call into the slave's diagnostic counters.
+   *
+   * @param diag the counters of the slave.
+   */
+  protected void countOverruns(DiagnosticCounters diag) {
+    if (m_SerialInput == null) {
+      return;
     }
+    int overruns = m_SerialInput.getOverruns();
+    for (; m_Overruns != overruns; m_Overruns++) {
+      diag.overrun();
+    }
+  }
+
+  /**
+   * <code>getSerialPort</code> returns the serial port of this transport.
+   *
+   * @return the port, or <tt>null</tt> if none has been set.
+   */
+  public SerialPortAdapter getSerialPort() {
+    return m_SerialPort;
+  }
+
+  /**
+   * <code>getReceiveTimeout</code> returns the time a read waits for data.
+   *
+   * @return the timeout in milliseconds, 0 if reads wait forever or the
+   *         transport has no comm port.
+   */
+  public int getReceiveTimeout() {
+    if (m_SerialInput != null) {
+      return m_SerialInput.getTimeout();
+    }
+    return 0;
   }
   
+  /**
+   * <code>getInterFrameDelay</code> returns the silence the line needs
+   * between two frames, t3.5 at the port's character format.
+   *
+   * @return the delay in nanoseconds, 0 if the port has no line settings.
+   */
+  public long getInterFrameDelay() {
+    SerialParameters params =
+        m_SerialPort == null ? null : m_SerialPort.getParameters();
+    if (params == null) {
+      return 0;
+    }
+    return params.getInterFrameTimeNanos();
+  }
+
+  /**
+   * <code>getFrameTime</code> returns how long a frame takes to send at
+   * the port's character format. An RTU frame is the unit identifier and
+   * PDU followed by the CRC.
+   *
+   * @param length the length of the unit identifier and PDU.
+   * @return the time in nanoseconds, 0 if the port has no line settings.
+   */
+  public long getFrameTime(int length) {
+    return getCharacterTime() * (length + 2);
+  }
+
+  /**
+   * <code>getCharacterTime</code> returns the time one character takes
+   * to send at the port's character format.
+   *
+   * @return the time in nanoseconds, 0 if the port has no line settings.
+   */
+  protected long getCharacterTime() {
+    SerialParameters params =
+        m_SerialPort == null ? null : m_SerialPort.getParameters();
+    if (params == null) {
+      return 0;
+    }
+    return params.getCharacterTimeNanos();
+  }
+
+  /**
+   * <code>endTransaction</code> records that a request/response exchange
+   * has just finished, which starts the gap before the next one.
+   * <p>
+   * The gap counts from the last character received, since the line has
+   * been quiet from then on. Reading a frame already waited out part of it.
+   */
+  public void endTransaction() {
+    m_LastTransaction = m_SerialInput != null ?
+        m_SerialInput.getLastArrival() : System.nanoTime();
+  }
+
+  /**
+   * <code>getGapRemaining</code> returns how much longer the line must stay
+   * quiet before the next transaction may start.
+   *
+   * @param gap the gap between transactions in nanoseconds.
+   * @return the remaining time in nanoseconds, 0 if the gap is over.
+   */
+  public long getGapRemaining(long gap) {
+    return Math.max(0, m_LastTransaction + gap - System.nanoTime());
+  }
+
+  /**
+   * <code>waitForGap</code> waits until the gap since the last transaction
+   * is over. The wait parks for exactly the remaining time, rather than
+   * a whole number of milliseconds.
+   *
+   * @param gap the gap between transactions in nanoseconds.
+   * @throws InterruptedIOException if the thread is interrupted.
+   */
+  public void waitForGap(long gap) throws InterruptedIOException {
+    long remaining;
+    while ((remaining = getGapRemaining(gap)) > 0) {
+      LockSupport.parkNanos(remaining);
+      if (Thread.interrupted()) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+  }
+
   /**
    * <code>isEcho</code> method returns the output echo state.
    *
@@ -146,15 +358,15 @@ abstract public class ModbusSerialTransport
 
   /**
    * Describe <code>setReceiveThreshold</code> method here.
+   * <p>
+   * Input is read by the reader thread in whatever amounts arrive, so
+   * this has no effect.
    *
    * @param th an <code>int</code> value
+   * @deprecated the transport no longer reads the port directly.
    */
+  @Deprecated
   public void setReceiveThreshold(int th) {
-    try {
-      m_CommPort.enableReceiveThreshold(th); /* chars */
-    } catch (UnsupportedCommOperationException e) {
-      System.out.println(e.getMessage());
-    }
   }
   
   /**
@@ -163,14 +375,8 @@ abstract public class ModbusSerialTransport
    * @param ms an <code>int</code> value
    */
   public void setReceiveTimeout(int ms) {
-    try {
-      m_CommPort.enableReceiveTimeout(ms); /* milliseconds */
-      
-      int thresh = m_CommPort.getReceiveThreshold();
-      if (thresh <= 0)
-    	  m_CommPort.enableReceiveThreshold(2);
-    } catch (UnsupportedCommOperationException e) {
-      System.out.println(e.getMessage());
+    if (m_SerialInput != null) {
+      m_SerialInput.setTimeout(ms);
     }
   }
   
@@ -179,30 +385,23 @@ abstract public class ModbusSerialTransport
    * 
    * @param baud - an <code>int</code> value
    */
- public void setBaudRate(int baud) {
-		try {
-			SerialPort physicalPort = null;
-			int	stop;
-			int data;
-			int parity;
-			
-			if (!(m_CommPort instanceof SerialPort))
-				throw new UnsupportedCommOperationException(
-						"Cannot change baud rate on non-serial device.");
-			
-			physicalPort = (SerialPort) m_CommPort;
-			stop = physicalPort.getStopBits();
-			data = physicalPort.getDataBits();
-			parity = physicalPort.getParity();
-			
-			physicalPort.setSerialPortParams(baud, data, stop, parity);
-			
-			if (Modbus.debug)
-				System.err.println("baud rate is now " + physicalPort.getBaudRate());
-		} catch (UnsupportedCommOperationException x) {
-			System.out.println(x.getMessage());
-		}
- }
+  public void setBaudRate(int baud) {
+    SerialParameters params =
+        m_SerialPort == null ? null : m_SerialPort.getParameters();
+    if (params == null) {
+      System.out.println("Cannot change baud rate on non-serial device.");
+      return;
+    }
+    params.setBaudRate(baud);
+    try {
+      m_SerialPort.setParameters(params);
+
+      if (Modbus.debug)
+        System.err.println("baud rate is now " + baud);
+    } catch (IOException x) {
+      System.out.println(x.getMessage());
+    }
+  }
 
   /**
    * Reads the own message echo produced in RS485 Echo Mode
@@ -216,12 +415,15 @@ abstract public class ModbusSerialTransport
   public void readEcho(int len) throws IOException {
 
     byte echoBuf[] = new byte[len];
-    setReceiveThreshold(len);
-    int echoLen = m_CommPort.getInputStream().read(echoBuf, 0, len);
+    int echoLen = 0;
+    int count;
+    while (echoLen < len &&
+        (count = m_SerialInput.read(echoBuf, echoLen, len - echoLen)) > 0) {
+      echoLen += count;
+    }
     if (Modbus.debug)
       System.out.println("Echo: " +
                          ModbusUtil.toHex(echoBuf, 0, echoLen));
-    m_CommPort.disableReceiveThreshold();
     if (echoLen != len) {
       if (Modbus.debug)
         System.err.println("Error: Transmit echo not received.");
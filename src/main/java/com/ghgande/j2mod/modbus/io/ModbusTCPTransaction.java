@@ -33,14 +33,23 @@
  ***/
 package com.ghgande.j2mod.modbus.io;
 
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusException;
 import com.ghgande.j2mod.modbus.ModbusIOException;
 import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.metrics.DeviceMetrics;
+import com.ghgande.j2mod.modbus.metrics.MetricsRegistry;
+import com.ghgande.j2mod.modbus.metrics.ModbusEvents;
 import com.ghgande.j2mod.modbus.msg.ExceptionResponse;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.net.CircuitBreaker;
+import com.ghgande.j2mod.modbus.net.TCPConnectionPool;
 import com.ghgande.j2mod.modbus.net.TCPMasterConnection;
+import com.ghgande.j2mod.modbus.util.FrameTrace;
 
 /**
  * Class implementing the <tt>ModbusTransaction</tt> interface.
@@ -58,12 +67,19 @@ public class ModbusTCPTransaction implements ModbusTransaction {
 
 	// instance attributes and associations
 	private TCPMasterConnection m_Connection;
+	private TCPConnectionPool m_Pool;
+	private InetAddress m_Address;
+	private int m_Port;
 	private ModbusTransport m_IO;
 	private ModbusRequest m_Request;
 	private ModbusResponse m_Response;
 	private boolean m_ValidityCheck = Modbus.DEFAULT_VALIDITYCHECK;
 	private boolean m_Reconnecting = Modbus.DEFAULT_RECONNECTING;
 	private int m_Retries = Modbus.DEFAULT_RETRIES;
+	private DeviceMetrics m_Metrics;
+	private CircuitBreaker m_Breaker;
+	private boolean m_UsingBreaker = true;
+	private RttEstimator m_Rtt;
 
 	/**
 	 * Constructs a new <tt>ModbusTCPTransaction</tt> instance.
@@ -96,6 +112,26 @@ public class ModbusTCPTransaction implements ModbusTransaction {
 		m_IO = con.getModbusTransport();
 	}
 
+	/**
+	 * Constructs a new <tt>ModbusTCPTransaction</tt> instance that borrows a
+	 * connection from a pool for each execution, and gives it back after.
+	 * A connection the execution failed on is closed rather than given back.
+	 * <p>
+	 * 
+	 * @param pool
+	 *            the pool.
+	 * @param address
+	 *            the address of the slave.
+	 * @param port
+	 *            the port of the slave.
+	 */
+	public ModbusTCPTransaction(TCPConnectionPool pool, InetAddress address,
+			int port) {
+		m_Pool = pool;
+		m_Address = address;
+		m_Port = port;
+	}
+
 	/**
 	 * Sets the connection on which this <tt>ModbusTransaction</tt> should be
 	 * executed.
@@ -108,8 +144,12 @@ public class ModbusTCPTransaction implements ModbusTransaction {
 	 *            a <tt>TCPMasterConnection</tt>.
 	 */
 	public void setConnection(TCPMasterConnection con) {
+		m_Pool = null;
+		m_Breaker = null;
+		m_Rtt = null;
 		m_Connection = con;
 		m_IO = con.getModbusTransport();
+		m_Metrics = null;
 	}
 
 	public void setRequest(ModbusRequest req) {
@@ -148,7 +188,8 @@ public class ModbusTCPTransaction implements ModbusTransaction {
 
 	/**
 	 * Sets the flag that controls whether a connection is opened and closed
-	 * for <b>each</b> execution or not.
+	 * for <b>each</b> execution or not. It has no effect when connections
+	 * are borrowed from a pool.
 	 * <p>
 	 * 
 	 * @param b
@@ -169,6 +210,23 @@ public class ModbusTCPTransaction implements ModbusTransaction {
 		return m_Reconnecting;
 	}
 
+	/**
+	 * Sets whether transactions go through the circuit breaker of the slave,
+	 * as they do by default. Without it a transaction is tried whatever the
+	 * state of the breaker, and its outcome does not change it, as for a
+	 * probe that silence from the slave is expected of.
+	 * 
+	 * @param b
+	 *            true to use the breaker, false otherwise.
+	 */
+	public void setUsingBreaker(boolean b) {
+		m_UsingBreaker = b;
+	}
+
+	public boolean isUsingBreaker() {
+		return m_UsingBreaker;
+	}
+
 	public int getRetries() {
 		return m_Retries;
 	}
@@ -180,86 +238,272 @@ public class ModbusTCPTransaction implements ModbusTransaction {
 	public void execute() throws ModbusIOException, ModbusSlaveException,
 			ModbusException {
 
-		if (m_Request == null || m_Connection == null)
+		// a request that cannot be sent says nothing about the slave
+		if (m_Request == null || (m_Pool == null && m_Connection == null))
 			throw new ModbusException("Invalid request or connection");
 
+		CircuitBreaker breaker = getBreaker();
+		if (breaker == null) {
+			executeOnce();
+			return;
+		}
+		if (!breaker.allowRequest()) {
+			throw new ModbusIOException("Circuit open, " + breaker.getName()
+					+ " not tried.");
+		}
+		boolean answered = false;
+		try {
+			executeOnce();
+			answered = true;
+		} catch (ModbusSlaveException ex) {
+			// the slave answered, if only with an exception
+			answered = true;
+			throw ex;
+		} finally {
+			/*
+			 * Anything else, including a request that was never sent, says
+			 * nothing good about the slave.
+			 */
+			if (answered)
+				breaker.success();
+			else
+				breaker.failure();
+		}
+	}
+
+	/**
+	 * getBreaker -- the circuit breaker of the slave, or <tt>null</tt> if
+	 * breakers are off.
+	 */
+	private CircuitBreaker getBreaker() {
+		if (!m_UsingBreaker || !CircuitBreaker.isEnabled())
+			return null;
+
+		CircuitBreaker breaker = m_Breaker;
+		if (breaker == null) {
+			String name;
+			if (m_Pool != null)
+				name = "tcp:" + m_Address.getHostAddress() + ":" + m_Port;
+			else if (m_Connection != null)
+				name = getDeviceName();
+			else
+				return null;
+
+			m_Breaker = breaker = CircuitBreaker.getBreaker(name);
+		}
+		return breaker;
+	}
+
+	/**
+	 * getEstimator -- the round trip times of the slave, or <tt>null</tt> if
+	 * adaptive timeouts are off.
+	 */
+	private RttEstimator getEstimator() {
+		if (!RttEstimator.isEnabled())
+			return null;
+
+		RttEstimator rtt = m_Rtt;
+		if (rtt == null)
+			m_Rtt = rtt = RttEstimator.getEstimator(getDeviceName());
+
+		return rtt;
+	}
+
+	/**
+	 * executeOnce -- run the transaction, on a connection borrowed from the
+	 * pool if there is one.
+	 */
+	private void executeOnce() throws ModbusIOException, ModbusSlaveException,
+			ModbusException {
+
+		if (m_Pool == null) {
+			execute(m_Connection);
+			return;
+		}
+		if (m_Request == null)
+			throw new ModbusException("Invalid request or connection");
+
+		TCPMasterConnection connection = m_Pool.borrow(m_Address, m_Port);
+		boolean healthy = false;
+		try {
+			execute(connection);
+			healthy = true;
+		} catch (ModbusSlaveException ex) {
+			healthy = true;
+			throw ex;
+		} finally {
+			if (healthy)
+				m_Pool.release(connection);
+			else
+				m_Pool.invalidate(connection);
+		}
+	}
+
+	/**
+	 * execute -- run the transaction on a connection.
+	 */
+	private void execute(TCPMasterConnection connection)
+			throws ModbusIOException, ModbusSlaveException, ModbusException {
+
+		if (m_Request == null || connection == null)
+			throw new ModbusException("Invalid request or connection");
+
+		// pooled connections all have the same slave, and so the same metrics
+		m_Connection = connection;
+
+		DeviceMetrics metrics = getMetrics();
+		Object event = ModbusEvents.beginTransaction();
+
 		/*
 		 * Automatically re-connect if disconnected.
 		 */
 		if (!m_Connection.isConnected()) {
 			try {
 				m_Connection.connect();
+				if (metrics != null)
+					metrics.reconnect();
 			} catch (Exception ex) {
 				throw new ModbusIOException("Connection failed.");
 			}
 		}
+		m_IO = m_Connection.getModbusTransport();
 
 		/*
 		 * Try sending the message up to m_Retries time. Note that the message
 		 * is read immediately after being written, with no flushing of buffers.
+		 * 
+		 * With adaptive timeouts the attempts share the timeout of the
+		 * connection, and each waits for as long as the slave is expected to
+		 * take.
 		 */
 		int retryCounter = 0;
 		int retryLimit = (m_Retries > 0 ? m_Retries:1);
+		long start = System.nanoTime();
+		ModbusEvents.requestSent(event);
+
+		RttEstimator rtt = getEstimator();
+		int budget = m_Connection.getTimeout();
+		if (budget <= 0)
+			rtt = null; // the connection waits forever
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(budget);
+		int unit = m_Request.getUnitID();
+		int function = m_Request.getFunctionCode();
 		
-		while (retryCounter < retryLimit) {
-			try {
-				synchronized (m_IO) {
-					if (Modbus.debug)
-						System.err.println("request transaction ID = " + m_Request.getTransactionID());
-					
-					m_IO.writeMessage(m_Request);
-					m_Response = null;
-					do {
-						m_Response = m_IO.readResponse();
-						if (Modbus.debug) {
-							System.err.println("response transaction ID = " + m_Response.getTransactionID());
+		boolean success = false;
+		try {
+			while (retryCounter < retryLimit) {
+				int wait = 0;
+				if (rtt != null) {
+					wait = rtt.getTimeout(unit, function, budget / retryLimit,
+							deadline, retryCounter == retryLimit - 1);
+					if (wait == 0) {
+						FrameTrace.getReference().failed(getDeviceName()
+								+ ": deadline passed");
+						throw new ModbusIOException(
+								"Executing transaction failed (deadline passed after "
+										+ retryCounter + " tries)");
+					}
+				}
+				try {
+					synchronized (m_IO) {
+						if (Modbus.debug)
+							System.err.println("request transaction ID = " + m_Request.getTransactionID());
+
+						ModbusTCPTransport transport = null;
+						if (wait > 0 && m_IO instanceof ModbusTCPTransport) {
+							transport = (ModbusTCPTransport) m_IO;
+							transport.setTimeout(wait);
+						}
+						long sent = System.nanoTime();
+						try {
+							m_IO.writeMessage(m_Request);
+							m_Response = null;
+							do {
+								m_Response = m_IO.readResponse();
+								if (Modbus.debug) {
+									System.err.println("response transaction ID = " + m_Response.getTransactionID());
 						
-							if (m_Response.getTransactionID() != m_Request.getTransactionID()) {
-								System.err.println("expected " + m_Request.getTransactionID() +
-										", got " + m_Response.getTransactionID());
+									if (m_Response.getTransactionID() != m_Request.getTransactionID()) {
+										System.err.println("expected " + m_Request.getTransactionID() +
+												", got " + m_Response.getTransactionID());
+									}
+								}
+							} while (m_Response != null
+									&& (! isCheckingValidity() ||
+											(m_Request.getTransactionID() != 0 &&
+										m_Request.getTransactionID() !=
+											m_Response.getTransactionID()))
+									&& ++retryCounter < retryLimit);
+
+							if (retryCounter >= retryLimit) {
+								throw new ModbusIOException(
+										"Executing transaction failed (tried "
+												+ m_Retries + " times)");
 							}
+
+							/*
+							 * Both methods were successful, so the transaction must
+							 * have been executed.
+							 */
+						} finally {
+							if (transport != null)
+								transport.setTimeout(m_Connection.getTimeout());
 						}
-					} while (m_Response != null
-							&& (! isCheckingValidity() ||
-									(m_Request.getTransactionID() != 0 &&
-								m_Request.getTransactionID() !=
-									m_Response.getTransactionID()))
-							&& ++retryCounter < retryLimit);
-
-					if (retryCounter >= retryLimit) {
-						throw new ModbusIOException(
-								"Executing transaction failed (tried "
-										+ m_Retries + " times)");
-					}
+						if (rtt != null && retryCounter == 0)
+							rtt.sample(unit, function, System.nanoTime() - sent);
 
-					/*
-					 * Both methods were successful, so the transaction must
-					 * have been executed.
-					 */
-					break;
-				}
-			} catch (ModbusIOException ex) {
-				if (! m_Connection.isConnected()) {
-					try {
-						m_Connection.connect();
-					} catch (Exception e) {
-						/*
-						 * Nope, fail this transaction.
-						 */
-						throw new ModbusIOException("Connection lost.");
+						break;
+					}
+				} catch (ModbusIOException ex) {
+					boolean timedOut = ex.isTimeout();
+					if (metrics != null) {
+						if (timedOut)
+							metrics.timeout();
+						else
+							metrics.error();
+					}
+					if (wait > 0 && timedOut)
+						rtt.timeout(unit, function, wait);
+
+					if (! m_Connection.isConnected()) {
+						try {
+							m_Connection.connect();
+							m_IO = m_Connection.getModbusTransport();
+							if (metrics != null)
+								metrics.reconnect();
+						} catch (Exception e) {
+							/*
+							 * Nope, fail this transaction.
+							 */
+							FrameTrace.getReference().failed(getDeviceName()
+									+ ": connection lost");
+							throw new ModbusIOException("Connection lost.");
+						}
+					}
+					if (++retryCounter >= retryLimit) {
+						FrameTrace.getReference().failed(getDeviceName() + ": "
+								+ ex.getMessage());
+						throw new ModbusIOException(
+								"Executing transaction failed (tried " + m_Retries
+										+ " times)");
+					} else {
+						if (metrics != null)
+							metrics.retry();
+						continue;
 					}
-				}
-				if (retryCounter >= retryLimit) {
-					throw new ModbusIOException(
-							"Executing transaction failed (tried " + m_Retries
-									+ " times)");
-				} else {
-					retryCounter++;
-					continue;
 				}
 			}
+			success = true;
+		} finally {
+			if (event != null)
+				ModbusEvents.endTransaction(event, getDeviceName(), m_Request,
+						success ? m_Response : null, Math.min(retryCounter,
+								retryLimit - 1) + 1);
 		}
 
+		if (metrics != null)
+			metrics.transaction(m_Request, m_Response, start);
+
 		/*
 		 * The slave may have returned an exception -- check for that.
 		 */
@@ -270,7 +514,7 @@ public class ModbusTCPTransaction implements ModbusTransaction {
 		/*
 		 * Close the connection if it isn't supposed to stick around.
 		 */
-		if (isReconnecting())
+		if (isReconnecting() && m_Pool == null)
 			m_Connection.close();
 
 		/*
@@ -282,6 +526,32 @@ public class ModbusTCPTransaction implements ModbusTransaction {
 		incrementTransactionID();
 	}
 
+	/**
+	 * getMetrics -- the metrics of the unit addressed by the request, or
+	 * <tt>null</tt> if metrics are not being recorded.
+	 */
+	private DeviceMetrics getMetrics() {
+		MetricsRegistry registry = MetricsRegistry.getReference();
+		if (!registry.isEnabled())
+			return null;
+
+		DeviceMetrics metrics = m_Metrics;
+		if (metrics == null || metrics.getUnit() != m_Request.getUnitID()) {
+			m_Metrics = metrics = registry.getDevice(getDeviceName(),
+					m_Request.getUnitID());
+		}
+		return metrics;
+	}
+
+	/**
+	 * getDeviceName -- the name of the connection, as used for metrics and
+	 * events.
+	 */
+	private String getDeviceName() {
+		return "tcp:" + m_Connection.getAddress().getHostAddress() + ":"
+				+ m_Connection.getPort();
+	}
+
 	/**
 	 * checkValidity -- Verify the transaction IDs match or are zero.
 	 * 
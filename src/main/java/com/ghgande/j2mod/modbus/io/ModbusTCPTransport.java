@@ -45,10 +45,13 @@ import java.net.SocketTimeoutException;
 
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.metrics.ModbusEvents;
+import com.ghgande.j2mod.modbus.msg.CompiledRequest;
 import com.ghgande.j2mod.modbus.msg.ModbusMessage;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.msg.ModbusResponse;
 import com.ghgande.j2mod.modbus.net.TCPMasterConnection;
+import com.ghgande.j2mod.modbus.util.FrameTrace;
 import com.ghgande.j2mod.modbus.util.ModbusUtil;
 
 /**
@@ -71,6 +74,9 @@ public class ModbusTCPTransport implements ModbusTransport {
 	private Socket m_Socket = null;
 	private	TCPMasterConnection m_Master = null;
 	private boolean headless = false; // Some TCP implementations are.
+	private volatile long m_LastReceived = System.nanoTime();
+	private final FrameTrace.Connection m_Connection = FrameTrace
+			.newConnection("tcp");
 
 	/**
 	 * Sets the <tt>Socket</tt> used for message transport and prepares the
@@ -90,8 +96,20 @@ public class ModbusTCPTransport implements ModbusTransport {
 		setTimeout(m_Timeout);
 
 		prepareStreams(socket);
+		m_LastReceived = System.nanoTime();
 	}// setSocket
 
+	/**
+	 * getLastReceived -- the time a frame was last received, or the socket
+	 * set, from <tt>System.nanoTime()</tt>. A connection that has received
+	 * recently is known to be alive without testing it.
+	 * 
+	 * @return the time in nanoseconds.
+	 */
+	public long getLastReceived() {
+		return m_LastReceived;
+	}
+
 	public void setHeadless() {
 		headless = true;
 	}
@@ -127,6 +145,23 @@ public class ModbusTCPTransport implements ModbusTransport {
 
 	public void writeMessage(ModbusMessage msg) throws ModbusIOException {
 		try {
+			Object event = ModbusEvents.beginFrameWrite();
+			if (msg instanceof CompiledRequest) {
+				/*
+				 * Already encoded, with the current transaction identifier.
+				 */
+				CompiledRequest compiled = (CompiledRequest) msg;
+				byte frame[] = compiled.getFrame();
+				int off = headless ? 6 : 0;
+				int len = compiled.getFrameLength() + 6 - off;
+
+				m_Output.write(frame, off, len);
+				m_Output.flush();
+				ModbusEvents.endFrameWrite(event, "tcp", msg, len);
+				FrameTrace.getReference().record(m_Connection,
+						FrameTrace.SENT, frame, off, len);
+				return;
+			}
 			byte message[] = msg.getMessage();
 
 			m_ByteOut.reset();
@@ -141,21 +176,15 @@ public class ModbusTCPTransport implements ModbusTransport {
 			if (message != null && message.length > 0)
 				m_ByteOut.write(message);
 
-			m_Output.write(m_ByteOut.toByteArray());
+			m_Output.write(m_ByteOut.getBuffer(), 0, m_ByteOut.size());
 			m_Output.flush();
-			if (Modbus.debug)
-				System.err.println("Sent: "
-						+ ModbusUtil.toHex(m_ByteOut.toByteArray()));
-			// write more sophisticated exception handling
-		} catch (SocketException ex) {
-			if (! m_Master.isConnected()) {
-				try {
-					m_Master.connect();
-				} catch (Exception e) {
-					// Do nothing.
-				}
-			}
-			throw new ModbusIOException("I/O exception - failed to write.");
+			ModbusEvents.endFrameWrite(event, "tcp", msg, m_ByteOut.size());
+			FrameTrace.getReference().record(m_Connection, FrameTrace.SENT,
+					m_ByteOut.getBuffer(), 0, m_ByteOut.size());
+			/*
+			 * A failed write does not reconnect here. The transaction does
+			 * that, subject to the slave's circuit breaker.
+			 */
 		} catch (Exception ex) {
 			throw new ModbusIOException("I/O exception - failed to write.");
 		}
@@ -176,13 +205,15 @@ public class ModbusTCPTransport implements ModbusTransport {
 
 			synchronized (m_ByteIn) {
 				byte[] buffer = m_ByteIn.getBuffer();
+				Object event = ModbusEvents.beginFrameRead();
 
 				if (!headless) {
 					if (m_Input.read(buffer, 0, 6) == -1)
 						throw new EOFException(
 								"Premature end of stream (Header truncated).");
+					ModbusEvents.frameArrived(event);
 
-					int transaction = ModbusUtil.registerToShort(buffer, 0);
+					int transaction = ModbusUtil.registerToUnsignedShort(buffer, 0);
 					int protocol = ModbusUtil.registerToShort(buffer, 2);
 					int count = ModbusUtil.registerToShort(buffer, 4);
 
@@ -190,9 +221,8 @@ public class ModbusTCPTransport implements ModbusTransport {
 						throw new ModbusIOException(
 								"Premature end of stream (Message truncated).");
 
-					if (Modbus.debug)
-						System.err.println("Read: "
-								+ ModbusUtil.toHex(buffer, 0, count + 6));
+					FrameTrace.getReference().record(m_Connection,
+							FrameTrace.RECEIVED, buffer, 0, count + 6);
 					
 					m_ByteIn.reset(buffer, (6 + count));
 					m_ByteIn.skip(6);
@@ -210,12 +240,14 @@ public class ModbusTCPTransport implements ModbusTransport {
 					req.setDataLength(count);
 
 					req.readFrom(m_ByteIn);
+					ModbusEvents.endFrameRead(event, "tcp", req, 6 + count);
 				} else {
 					
 					/*
 					 * This is a headless request.
 					 */
 					int unit = m_Input.readByte();
+					ModbusEvents.frameArrived(event);
 					int function = m_Input.readByte();
 
 					req = ModbusRequest.createModbusRequest(function);
@@ -229,10 +261,13 @@ public class ModbusTCPTransport implements ModbusTransport {
 					 * proper error correction and recovery.
 					 */
 					m_Input.readShort();
+					ModbusEvents.endFrameRead(event, "tcp", req,
+							req.getDataLength() + 2);
 					if (Modbus.debug)
 						System.err.println("Read: "	+ req.getHexMessage());
 				}
 			}
+			m_LastReceived = System.nanoTime();
 			return req;
 		} catch (EOFException eoex) {
 			throw new ModbusIOException("End of File", true);
@@ -254,17 +289,14 @@ public class ModbusTCPTransport implements ModbusTransport {
 			synchronized (m_ByteIn) {
 				// use same buffer
 				byte[] buffer = m_ByteIn.getBuffer();
-				if (Modbus.debug)
-					System.err.println("Read: " +
-							ModbusUtil.toHex(buffer, 0, m_ByteIn.count));
-				
+				Object event = ModbusEvents.beginFrameRead();
 				if (!headless) {
 					/*
 					 * All Modbus TCP transactions start with 6 bytes. Get them.
 					 */
 					if (m_Input.read(buffer, 0, 6) == -1)
-						throw new ModbusIOException(
-								"Premature end of stream (Header truncated).");
+						throw endOfStream("Header truncated");
+					ModbusEvents.frameArrived(event);
 
 					/*
 					 * The transaction ID is the first word (offset 0) in the
@@ -278,15 +310,16 @@ public class ModbusTCPTransport implements ModbusTransport {
 					 * the data that was just read. That's what I need in order
 					 * to read the rest of the response.
 					 */
-					int transaction = ModbusUtil.registerToShort(buffer, 0);
+					int transaction = ModbusUtil.registerToUnsignedShort(buffer, 0);
 					int protocol = ModbusUtil.registerToShort(buffer, 2);
 					int count = ModbusUtil.registerToShort(buffer, 4);
 
 					if (m_Input.read(buffer, 6, count) == -1)
-						throw new ModbusIOException(
-								"Premature end of stream (Message truncated).");
+						throw endOfStream("Message truncated");
 
 					m_ByteIn.reset(buffer, (6 + count));
+					FrameTrace.getReference().record(m_Connection,
+							FrameTrace.RECEIVED, buffer, 0, count + 6);
 
 					m_ByteIn.reset();
 					m_ByteIn.skip(7);
@@ -302,12 +335,14 @@ public class ModbusTCPTransport implements ModbusTransport {
 
 					response.setTransactionID(transaction);
 					response.setProtocolID(protocol);
+					ModbusEvents.endFrameRead(event, "tcp", response, 6 + count);
 				} else {
 					/*
 					 * This is a headless response. It has the same format as a
 					 * RTU over Serial response.
 					 */
 					int unit = m_Input.readByte();
+					ModbusEvents.frameArrived(event);
 					int function = m_Input.readByte();
 
 					response = ModbusResponse.createModbusResponse(function);
@@ -320,12 +355,95 @@ public class ModbusTCPTransport implements ModbusTransport {
 					 * because this is a TCP transport.
 					 */
 					m_Input.readShort();
+					ModbusEvents.endFrameRead(event, "tcp", response,
+							response.getDataLength() + 2);
 				}
 			}
+			m_LastReceived = System.nanoTime();
 			return response;
 		} catch (SocketTimeoutException ex) {
-			throw new ModbusIOException("Timeout reading response");
+			throw new ModbusIOException("Timeout reading response", ex);
+		} catch (ModbusIOException ex) {
+			throw ex;
 		} catch (Exception ex) {
+			throw new ModbusIOException("I/O exception - failed to read.", ex);
+		}
+	}
+
+	/**
+	 * endOfStream -- the slave closed the connection, as some do after a
+	 * request they do not understand. Closing the socket here lets the
+	 * connection see that, and the transaction reconnect when it retries.
+	 * 
+	 * @param what
+	 *            what was being read.
+	 * @return the exception to throw.
+	 */
+	private ModbusIOException endOfStream(String what) {
+		try {
+			close();
+		} catch (IOException ex) {
+			// closed anyway
+		}
+		return new ModbusIOException("Premature end of stream (" + what
+				+ ").");
+	}
+
+	/**
+	 * writeFrame -- write a frame that has already been encoded, MBAP header
+	 * first, as a proxy does when passing requests through.
+	 * 
+	 * @param frame
+	 *            the buffer holding the frame.
+	 * @param off
+	 *            the offset of the MBAP header.
+	 * @param len
+	 *            the length of the frame.
+	 * @throws ModbusIOException
+	 *             if the frame cannot be written.
+	 */
+	public void writeFrame(byte[] frame, int off, int len)
+			throws ModbusIOException {
+		try {
+			m_Output.write(frame, off, len);
+			m_Output.flush();
+			FrameTrace.getReference().record(m_Connection, FrameTrace.SENT,
+					frame, off, len);
+		} catch (IOException ex) {
+			throw new ModbusIOException("I/O exception - failed to write.");
+		}
+	}
+
+	/**
+	 * readFrame -- read a frame, MBAP header first, without decoding it.
+	 * 
+	 * @param buffer
+	 *            the buffer to read into, with room for the header and the
+	 *            longest message.
+	 * @return the length of the frame.
+	 * @throws ModbusIOException
+	 *             if no frame can be read, or the stream cannot be framed.
+	 */
+	public int readFrame(byte[] buffer) throws ModbusIOException {
+		try {
+			m_Input.readFully(buffer, 0, 6);
+			int protocol = ModbusUtil.registerToUnsignedShort(buffer, 2);
+			int count = ModbusUtil.registerToUnsignedShort(buffer, 4);
+			if (protocol != 0 || count < 2 || count > Modbus.MAX_MESSAGE_LENGTH)
+				throw new ModbusIOException("Invalid MBAP header");
+
+			m_Input.readFully(buffer, 6, count);
+			FrameTrace.getReference().record(m_Connection,
+					FrameTrace.RECEIVED, buffer, 0, count + 6);
+
+			m_LastReceived = System.nanoTime();
+			return count + 6;
+		} catch (SocketTimeoutException ex) {
+			throw new ModbusIOException("Timeout reading response");
+		} catch (EOFException ex) {
+			throw new ModbusIOException(
+					"Premature end of stream (Message truncated).");
+		} catch (IOException ex) {
 			throw new ModbusIOException("I/O exception - failed to read.");
 		}
 	}
@@ -355,11 +473,16 @@ public class ModbusTCPTransport implements ModbusTransport {
 			// Do nothing.
 		}
 
+		/*
+		 * A frame is written with one flush and read with at most two reads,
+		 * so buffers of one frame do. The default 8K each add up when a
+		 * slave has thousands of connections.
+		 */
 		m_Input = new DataInputStream(new BufferedInputStream(
-				socket.getInputStream()));
+				socket.getInputStream(), Modbus.MAX_MESSAGE_LENGTH + 6));
 
 		m_Output = new DataOutputStream(new BufferedOutputStream(
-				socket.getOutputStream()));
+				socket.getOutputStream(), Modbus.MAX_MESSAGE_LENGTH + 6));
 
 		/*
 		 * Modbus/TCP adds a header which must be accounted for.
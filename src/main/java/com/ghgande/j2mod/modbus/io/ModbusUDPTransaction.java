@@ -33,15 +33,22 @@
  ***/
 package com.ghgande.j2mod.modbus.io;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusException;
 import com.ghgande.j2mod.modbus.ModbusIOException;
 import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.metrics.DeviceMetrics;
+import com.ghgande.j2mod.modbus.metrics.MetricsRegistry;
+import com.ghgande.j2mod.modbus.metrics.ModbusEvents;
 import com.ghgande.j2mod.modbus.msg.ExceptionResponse;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.msg.ModbusResponse;
 import com.ghgande.j2mod.modbus.net.UDPMasterConnection;
 import com.ghgande.j2mod.modbus.net.UDPTerminal;
+import com.ghgande.j2mod.modbus.util.FrameTrace;
 
 /**
  * Class implementing the <tt>ModbusTransaction</tt>
@@ -54,11 +61,12 @@ public class ModbusUDPTransaction
     implements ModbusTransaction {
 
   //class attributes
-  private static int c_TransactionID =
-      Modbus.DEFAULT_TRANSACTION_ID;
+  private static final AtomicInteger c_TransactionID =
+      new AtomicInteger(Modbus.DEFAULT_TRANSACTION_ID);
 
   //instance attributes and associations
   private UDPTerminal m_Terminal;
+  private UDPMasterConnection m_Connection;
   private ModbusTransport m_IO;
   private ModbusRequest m_Request;
   private ModbusResponse m_Response;
@@ -66,6 +74,9 @@ public class ModbusUDPTransaction
       Modbus.DEFAULT_VALIDITYCHECK;
   private int m_Retries = Modbus.DEFAULT_RETRIES;
   private int m_RetryCounter = 0;
+  private DeviceMetrics m_Metrics;
+  private RttEstimator m_Rtt;
+  private String m_Name = "udp";
 
   /**
    * Constructs a new <tt>ModbusUDPTransaction</tt>
@@ -105,6 +116,8 @@ public class ModbusUDPTransaction
    */
   public ModbusUDPTransaction(UDPMasterConnection con) {
     setTerminal(con.getTerminal());
+    m_Connection = con;
+    m_Name = "udp:" + con.getAddress().getHostAddress() + ":" + con.getPort();
   }//constructor
 
   /**
@@ -115,6 +128,10 @@ public class ModbusUDPTransaction
    */
   public void setTerminal(UDPTerminal terminal) {
     m_Terminal = terminal;
+    m_Connection = null;
+    m_Name = "udp";
+    m_Metrics = null;
+    m_Rtt = null;
     if (terminal.isActive()) {
       m_IO = terminal.getModbusTransport();
     }
@@ -134,7 +151,8 @@ public class ModbusUDPTransaction
   }//getResponse
 
   public int getTransactionID() {
-    return c_TransactionID;
+    return Math.floorMod(c_TransactionID.get(),
+        Modbus.MAX_TRANSACTION_ID + 1);
   }//getTransactionID
 
   public void setCheckingValidity(boolean b) {
@@ -160,6 +178,8 @@ public class ModbusUDPTransaction
 
     //1. assert executeability
     assertExecutable();
+    toggleTransactionID();
+    Object event = ModbusEvents.beginTransaction();
     //2. open the connection if not connected
     if (!m_Terminal.isActive()) {
       try {
@@ -172,25 +192,100 @@ ex.printStackTrace();
       }
     }
 
+    DeviceMetrics metrics = getMetrics();
+    long start = System.nanoTime();
+    ModbusEvents.requestSent(event);
+
     //3. Retry transaction m_Retries times, in case of
-    //I/O Exception problems.
+    //I/O Exception problems. With adaptive timeouts the
+    //tries share the timeout of the connection, and each
+    //waits for as long as the slave is expected to take.
+    RttEstimator rtt = getEstimator();
+    int budget = 0;
+    if (rtt != null) {
+      synchronized (m_IO) {
+        budget = m_Connection.getTimeout();
+      }
+      if (budget <= 0) {
+        //the connection waits forever
+        rtt = null;
+      }
+    }
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(budget);
+    int unit = m_Request.getUnitID();
+    int function = m_Request.getFunctionCode();
+
     m_RetryCounter = 0;
+    boolean success = false;
     while (m_RetryCounter <= m_Retries) {
+      int wait = 0;
+      if (rtt != null) {
+        wait = rtt.getTimeout(unit, function, budget / (m_Retries + 1),
+            deadline, m_RetryCounter == m_Retries);
+        if (wait == 0) {
+          break;
+        }
+      }
       try {
         //3. write request, and read response,
         //   while holding the lock on the IO object
         synchronized (m_IO) {
-          //write request message
-          m_IO.writeMessage(m_Request);
-          //read response message
-          m_Response = m_IO.readResponse();
+          long sent = System.nanoTime();
+          if (wait > 0) {
+            m_Connection.setTimeout(wait);
+          }
+          try {
+            //write request message
+            m_IO.writeMessage(m_Request);
+            //read response message, skipping late answers
+            //to requests that were given up on
+            do {
+              m_Response = m_IO.readResponse();
+            } while (isCheckingValidity() && m_Response != null
+                && m_Response.getTransactionID() != m_Request.getTransactionID());
+          } finally {
+            if (wait > 0) {
+              m_Connection.setTimeout(budget);
+            }
+          }
+          if (rtt != null && m_RetryCounter == 0) {
+            rtt.sample(unit, function, System.nanoTime() - sent);
+          }
+          if (metrics != null) {
+            metrics.transaction(m_Request, m_Response, start);
+          }
+          success = true;
           break;
         }
       } catch (ModbusIOException ex) {
+        if (wait > 0 && ex.isTimeout()) {
+          rtt.timeout(unit, function, wait);
+        }
+        if (metrics != null) {
+          if (ex.isTimeout()) {
+            metrics.timeout();
+          } else {
+            metrics.error();
+          }
+          if (m_RetryCounter < m_Retries) {
+            metrics.retry();
+          }
+        }
         m_RetryCounter++;
         continue;
       }
     }
+    if (!success) {
+      FrameTrace.getReference().failed(m_Name + ": no response");
+    }
+    if (event != null) {
+      ModbusEvents.endTransaction(event, m_Name, m_Request,
+          success ? m_Response : null, m_RetryCounter + (success ? 1 : 0));
+    }
+    if (!success) {
+      throw new ModbusIOException("Executing transaction failed (tried "
+          + m_RetryCounter + " times)");
+    }
 
     //4. deal with "application level" exceptions
     if (m_Response instanceof ExceptionResponse) {
@@ -202,11 +297,39 @@ ex.printStackTrace();
     if (isCheckingValidity()) {
       checkValidity();
     }
-
-    //toggle the id
-    toggleTransactionID();
   }//execute
 
+  /**
+   * Returns the round trip times of the slave, or <tt>null</tt> if
+   * adaptive timeouts are off or there is no connection to time.
+   */
+  private RttEstimator getEstimator() {
+    if (!RttEstimator.isEnabled() || m_Connection == null) {
+      return null;
+    }
+    RttEstimator rtt = m_Rtt;
+    if (rtt == null) {
+      m_Rtt = rtt = RttEstimator.getEstimator(m_Name);
+    }
+    return rtt;
+  }//getEstimator
+
+  /**
+   * Returns the metrics of the unit addressed by the request, or
+   * <tt>null</tt> if metrics are not being recorded.
+   */
+  private DeviceMetrics getMetrics() {
+    MetricsRegistry registry = MetricsRegistry.getReference();
+    if (!registry.isEnabled()) {
+      return null;
+    }
+    DeviceMetrics metrics = m_Metrics;
+    if (metrics == null || metrics.getUnit() != m_Request.getUnitID()) {
+      m_Metrics = metrics = registry.getDevice(m_Name, m_Request.getUnitID());
+    }
+    return metrics;
+  }//getMetrics
+
   /**
    * Asserts if this <tt>ModbusTCPTransaction</tt> is
    * executable.
@@ -245,16 +368,18 @@ ex.printStackTrace();
    * identifier.<br>
    * When the maximum value of 65535 has been reached,
    * the identifiers will start from zero again.
+   * <p>
+   * The identifier is taken before the request is sent and in one
+   * atomic step, because the slave routes its replies by identifier
+   * and concurrent transactions must not share one.
    */
   private void toggleTransactionID() {
     if (isCheckingValidity()) {
-      if (c_TransactionID == Modbus.MAX_TRANSACTION_ID) {
-        c_TransactionID = 0;
-      } else {
-        c_TransactionID++;
-      }
+      m_Request.setTransactionID(Math.floorMod(
+          c_TransactionID.incrementAndGet(), Modbus.MAX_TRANSACTION_ID + 1));
+    } else {
+      m_Request.setTransactionID(getTransactionID());
     }
-    m_Request.setTransactionID(getTransactionID());
   }//toggleTransactionID
 
 }//class ModbusUDPTransaction
@@ -40,10 +40,12 @@ import java.util.Arrays;
 
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.metrics.ModbusEvents;
 import com.ghgande.j2mod.modbus.msg.ModbusMessage;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.msg.ModbusResponse;
 import com.ghgande.j2mod.modbus.net.UDPTerminal;
+import com.ghgande.j2mod.modbus.util.FrameTrace;
 
 
 /**
@@ -60,6 +62,8 @@ public class ModbusUDPTransport
   private UDPTerminal m_Terminal;
   private BytesOutputStream m_ByteOut;
   private BytesInputStream m_ByteIn;
+  private final FrameTrace.Connection m_Connection =
+      FrameTrace.newConnection("udp");
 
   public void close()
       throws IOException {
@@ -81,15 +85,19 @@ public class ModbusUDPTransport
       throws ModbusIOException {
     try {
       synchronized (m_ByteOut) {
+    	  Object event = ModbusEvents.beginFrameWrite();
     	  int len = msg.getOutputLength();
     	  m_ByteOut.reset();
     	  msg.writeTo((DataOutput) m_ByteOut);
     	  byte data[] = m_ByteOut.getBuffer();
     	  data = Arrays.copyOf(data, len);
     	  m_Terminal.sendMessage(data);
+    	  FrameTrace.getReference().record(m_Connection, FrameTrace.SENT, data, 0,
+    	      len);
+    	  ModbusEvents.endFrameWrite(event, "udp", msg, len);
       }
     } catch (Exception ex) {
-      throw new ModbusIOException("I/O exception - failed to write.");
+      throw new ModbusIOException("I/O exception - failed to write.", ex);
     }
   }//write
 
@@ -98,12 +106,18 @@ public class ModbusUDPTransport
     try {
       ModbusRequest req = null;
       synchronized (m_ByteIn) {
-        m_ByteIn.reset(m_Terminal.receiveMessage());
+        Object event = ModbusEvents.beginFrameRead();
+        byte[] frame = m_Terminal.receiveMessage();
+        ModbusEvents.frameArrived(event);
+        FrameTrace.getReference().record(m_Connection, FrameTrace.RECEIVED,
+            frame, 0, frame.length);
+        m_ByteIn.reset(frame);
         m_ByteIn.skip(7);
         int functionCode = m_ByteIn.readUnsignedByte();
         m_ByteIn.reset();
         req = ModbusRequest.createModbusRequest(functionCode);
         req.readFrom(m_ByteIn);
+        ModbusEvents.endFrameRead(event, "udp", req, frame.length);
       }
       return req;
 
@@ -132,7 +146,7 @@ public class ModbusUDPTransport
       return request;
       */
     } catch (Exception ex) {
-      throw new ModbusIOException("I/O exception - failed to read.");
+      throw new ModbusIOException("I/O exception - failed to read.", ex);
     }
   }//readRequest
 
@@ -142,12 +156,18 @@ public class ModbusUDPTransport
     try {
       ModbusResponse res = null;
       synchronized (m_ByteIn) {
-        m_ByteIn.reset(m_Terminal.receiveMessage());
+        Object event = ModbusEvents.beginFrameRead();
+        byte[] frame = m_Terminal.receiveMessage();
+        ModbusEvents.frameArrived(event);
+        FrameTrace.getReference().record(m_Connection, FrameTrace.RECEIVED,
+            frame, 0, frame.length);
+        m_ByteIn.reset(frame);
         m_ByteIn.skip(7);
         int functionCode = m_ByteIn.readUnsignedByte();
         m_ByteIn.reset();
         res = ModbusResponse.createModbusResponse(functionCode);
         res.readFrom(m_ByteIn);
+        ModbusEvents.endFrameRead(event, "udp", res, frame.length);
       }
       return res;
 
@@ -171,10 +191,10 @@ public class ModbusUDPTransport
       return response;
       */
     } catch (InterruptedIOException ioex) {
-      throw new ModbusIOException("Socket timed out.");
+      throw new ModbusIOException("Socket timed out.", ioex);
     } catch (Exception ex) {
       ex.printStackTrace();
-      throw new ModbusIOException("I/O exception - failed to read.");
+      throw new ModbusIOException("I/O exception - failed to read.", ex);
     }
   }//readResponse
 
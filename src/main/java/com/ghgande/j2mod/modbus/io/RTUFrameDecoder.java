@@ -0,0 +1,358 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.util.CRC16;
+import com.ghgande.j2mod.modbus.util.ModbusUtil;
+import com.ghgande.j2mod.modbus.util.SerialParameters;
+
+/**
+ * RTUFrameDecoder -- split a stream of Modbus RTU characters into frames.
+ * 
+ * <p>
+ * Modbus RTU frames carry no length and no delimiters. The end of a frame is
+ * the silence of at least 3.5 character times (t3.5) that follows it. This
+ * decoder reads whatever characters are available, remembers when the last
+ * one arrived and declares the frame complete once the line has been quiet
+ * for t3.5. A plain stream is polled every t1.5, the longest gap allowed
+ * inside a frame. A {@link SerialInputBuffer} supplies the arrival times
+ * itself and is waited on instead.
+ * 
+ * <p>
+ * The CRC is the secondary check. A delimited frame whose CRC is wrong is
+ * searched for the shortest leading part that does have a correct CRC, which
+ * recovers frames that arrived back to back because the host was too slow to
+ * see the gap between them. The rest of the data is kept as the start of the
+ * next frame.
+ * 
+ * <p>
+ * If no part of the data is a valid frame it is held and joined with the
+ * data after the next silence, which recovers frames split by a USB serial
+ * adapter that paused longer than t3.5 in the middle of them. If the joined
+ * data is not valid either the held part is discarded and the rest is
+ * checked on its own, so after noise the decoder resynchronizes within one
+ * frame.
+ * 
+ * <p>
+ * No knowledge of function codes is needed, so user defined and unknown
+ * function codes are delimited the same as any other.
+ */
+public class RTUFrameDecoder {
+	/**
+	 * The shortest valid frame is a unit, function code and CRC.
+	 */
+	private static final int MIN_FRAME = 4;
+
+	private byte[] m_Buffer = new byte[Modbus.MAX_MESSAGE_LENGTH * 2];
+	private int m_Count;
+	private int m_Frame;
+	private int m_Held; // leading bytes that failed their CRC on their own
+	private long m_LastNanos;
+	private long m_InterCharNanos;
+	private long m_InterFrameNanos;
+	private int m_CRCErrors;
+
+	/**
+	 * Constructs a new <tt>RTUFrameDecoder</tt> with the timing of the
+	 * default serial parameters.
+	 */
+	public RTUFrameDecoder() {
+		setSerialParameters(new SerialParameters());
+	}
+
+	/**
+	 * setSerialParameters -- compute t1.5 and t3.5 from the baud rate and
+	 * character format.
+	 * 
+	 * @param params
+	 *            the parameters of the serial line.
+	 */
+	public void setSerialParameters(SerialParameters params) {
+		m_InterCharNanos = params.getInterCharacterTimeNanos();
+		m_InterFrameNanos = params.getInterFrameTimeNanos();
+	}
+
+	/**
+	 * getInterFrameDelay -- the silence which ends a frame.
+	 * 
+	 * @return t3.5 in nanoseconds.
+	 */
+	public long getInterFrameDelay() {
+		return m_InterFrameNanos;
+	}
+
+	/**
+	 * setInterFrameDelay -- override the silence which ends a frame.
+	 * 
+	 * <p>
+	 * USB serial adapters deliver data in bursts and can show gaps inside a
+	 * frame which are longer than t3.5. Such a frame is normally recovered
+	 * by joining its parts, but a frame split twice is lost. Raising the
+	 * delay to a little more than the adapter's latency keeps such frames
+	 * whole.
+	 * 
+	 * @param nanos
+	 *            the delay in nanoseconds.
+	 */
+	public void setInterFrameDelay(long nanos) {
+		m_InterFrameNanos = nanos;
+		if (m_InterCharNanos > nanos)
+			m_InterCharNanos = nanos;
+	}
+
+	/**
+	 * getCRCErrors -- the number of delimited frames that were discarded
+	 * because no part of them had a correct CRC.
+	 * 
+	 * @return the error count.
+	 */
+	public int getCRCErrors() {
+		return m_CRCErrors;
+	}
+
+	/**
+	 * getBuffer -- the buffer which holds the last frame returned by
+	 * {@link #readFrame(InputStream, int)}. The frame starts at offset 0 and
+	 * remains valid until the next call.
+	 * 
+	 * @return the frame buffer.
+	 */
+	public byte[] getBuffer() {
+		return m_Buffer;
+	}
+
+	/**
+	 * reset -- discard any data that has been read but not yet returned as a
+	 * frame.
+	 */
+	public void reset() {
+		m_Count = 0;
+		m_Frame = 0;
+		m_Held = 0;
+	}
+
+	/**
+	 * readFrame -- read the next frame with a correct CRC.
+	 * 
+	 * @param in
+	 *            the stream to read characters from.
+	 * @param timeout
+	 *            the time in milliseconds to wait for the start of a frame.
+	 *            If zero or less, only one attempt is made to read, which
+	 *            blocks for as long as the stream does, and -1 is returned
+	 *            if the data read up to the next silence is not a valid
+	 *            frame.
+	 * @return the length of the frame, including the CRC, or -1 if no frame
+	 *         arrived in time.
+	 * @throws IOException
+	 *             if the stream fails or reaches its end.
+	 */
+	public int readFrame(InputStream in, int timeout) throws IOException {
+		long deadline = System.currentTimeMillis() + timeout;
+
+		/*
+		 * Drop the frame returned by the previous call, keeping whatever
+		 * followed it.
+		 */
+		if (m_Frame > 0) {
+			m_Count -= m_Frame;
+			System.arraycopy(m_Buffer, m_Frame, m_Buffer, 0, m_Count);
+			m_Frame = 0;
+		}
+
+		for (;;) {
+			if (m_Count == m_Held) {
+				int n = in.read(m_Buffer, m_Count, m_Buffer.length - m_Count);
+				if (n < 0)
+					throw new EOFException("End of serial input");
+
+				if (n == 0) {
+					if (System.currentTimeMillis() >= deadline) {
+						discard(m_Held);
+						return -1;
+					}
+					continue;
+				}
+				m_Count += n;
+				m_LastNanos = System.nanoTime();
+			}
+			readToSilence(in);
+
+			int length = delimit();
+			if (length > 0) {
+				m_Frame = length;
+				return length;
+			}
+			if (timeout <= 0 || System.currentTimeMillis() >= deadline) {
+				discard(m_Held);
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * readToSilence -- keep reading until the line has been quiet for t3.5
+	 * or the buffer is full.
+	 */
+	private void readToSilence(InputStream in) throws IOException {
+		if (in instanceof SerialInputBuffer) {
+			readToSilence((SerialInputBuffer) in);
+			return;
+		}
+		while (m_Count < m_Buffer.length) {
+			int avail = in.available();
+			if (avail > 0) {
+				int n = in.read(m_Buffer, m_Count,
+						Math.min(avail, m_Buffer.length - m_Count));
+				if (n < 0)
+					throw new EOFException("End of serial input");
+
+				if (n > 0) {
+					m_Count += n;
+					m_LastNanos = System.nanoTime();
+				}
+				continue;
+			}
+			long idle = System.nanoTime() - m_LastNanos;
+			if (idle >= m_InterFrameNanos)
+				return;
+
+			LockSupport.parkNanos(Math.min(m_InterCharNanos,
+					m_InterFrameNanos - idle));
+		}
+	}
+
+	/**
+	 * readToSilence -- the same, using the arrival times recorded by the
+	 * buffer's reader thread, and waiting on it rather than polling.
+	 */
+	private void readToSilence(SerialInputBuffer in) throws IOException {
+		m_LastNanos = in.getLastArrival();
+		while (m_Count < m_Buffer.length) {
+			int avail = in.available();
+			if (avail > 0) {
+				m_Count += in.read(m_Buffer, m_Count,
+						Math.min(avail, m_Buffer.length - m_Count));
+				m_LastNanos = in.getLastArrival();
+				continue;
+			}
+			long idle = System.nanoTime() - m_LastNanos;
+			if (idle >= m_InterFrameNanos)
+				return;
+
+			in.await(m_InterFrameNanos - idle);
+		}
+	}
+
+	/**
+	 * delimit -- find the frame at the start of the buffer.
+	 * 
+	 * @return the frame length, or 0 if the data was held or discarded.
+	 */
+	private int delimit() {
+		for (;;) {
+			int length = findFrame();
+			if (length > 0) {
+				m_Held = 0;
+				return length;
+			}
+			if (m_Held == 0)
+				break;
+
+			// the held data did not join up with what followed
+			discard(m_Held);
+		}
+		if (m_Count < Modbus.MAX_MESSAGE_LENGTH) {
+			// may be the first part of a frame split by a pause
+			m_Held = m_Count;
+			return 0;
+		}
+		discard(m_Count);
+		return 0;
+	}
+
+	/**
+	 * findFrame -- the length of the shortest leading part of the data with a
+	 * correct CRC.
+	 * 
+	 * @return the frame length, or 0 if there is none.
+	 */
+	private int findFrame() {
+		if (m_Count >= MIN_FRAME && m_Count <= Modbus.MAX_MESSAGE_LENGTH
+				&& CRC16.check(m_Buffer, 0, m_Count))
+			return m_Count;
+
+		/*
+		 * The CRC residue is zero at the end of a valid frame, so one pass
+		 * finds the shortest valid prefix.
+		 */
+		int crc = CRC16.INITIAL_VALUE;
+		int limit = Math.min(m_Count, Modbus.MAX_MESSAGE_LENGTH);
+		for (int i = 0; i < limit; i++) {
+			crc = CRC16.update(crc, m_Buffer, i, 1);
+			if (crc == 0 && i + 1 >= MIN_FRAME)
+				return i + 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * discard -- drop leading data that is not part of a valid frame.
+	 * 
+	 * @param length
+	 *            the number of bytes to drop, if any.
+	 */
+	private void discard(int length) {
+		if (length == 0)
+			return;
+
+		m_CRCErrors++;
+		if (Modbus.debug)
+			System.err.println("Discarding " + length + " bytes: "
+					+ ModbusUtil.toHex(m_Buffer, 0, length));
+
+		m_Count -= length;
+		System.arraycopy(m_Buffer, length, m_Buffer, 0, m_Count);
+		if (m_Held > length)
+			m_Held -= length;
+		else
+			m_Held = 0;
+	}
+}
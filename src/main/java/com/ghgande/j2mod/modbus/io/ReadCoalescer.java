@@ -0,0 +1,410 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.io;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.msg.ExceptionResponse;
+import com.ghgande.j2mod.modbus.msg.MaskWriteRegisterRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.msg.ReadWriteMultipleRequest;
+import com.ghgande.j2mod.modbus.msg.WriteCoilRequest;
+import com.ghgande.j2mod.modbus.msg.WriteMultipleCoilsRequest;
+import com.ghgande.j2mod.modbus.msg.WriteMultipleRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.WriteSingleRegisterRequest;
+
+/**
+ * ReadCoalescer -- lets the threads sharing one master share its reads.
+ * 
+ * <p>
+ * A thread that asks for a read (FC 1 to 4) while an identical read, the same
+ * function, unit, reference and count, is waiting for or holding the master
+ * joins that read instead of queueing one of its own. Only the thread that
+ * started it, the leader, executes the transaction; the others wait for it
+ * and each receive their own copy of the response.
+ * 
+ * <p>
+ * Optionally responses are also kept for a short time to live, so readers
+ * arriving just after a read are served without a transaction at all. A
+ * write issued through the same master drops every kept response of the unit
+ * it overlaps, for coils (FC 5 and 15) or holding registers (FC 6, 16, 22 and
+ * 23). Masters whose unit identifiers do not select a device, as over TCP,
+ * drop the overlapping responses of every unit instead. Input registers and
+ * discrete inputs only expire.
+ * 
+ * <p>
+ * The master must complete a flight and invalidate after a write while it
+ * still holds its transaction lock. A reader then never sees a response that
+ * was received before a write through the same master returned.
+ */
+public class ReadCoalescer {
+	/**
+	 * Passed as the unit to invalidate the kept responses of every unit.
+	 */
+	public static final int ANY_UNIT = -1;
+
+	/**
+	 * Expired responses are swept once this many are kept.
+	 */
+	private static final int SWEEP_SIZE = 256;
+
+	private final Map<Long, Flight> m_Flights = new HashMap<Long, Flight>();
+	private final Map<Long, Flight> m_Cache = new HashMap<Long, Flight>();
+	private volatile long m_TTLNanos;
+	private final LongAdder m_Transactions = new LongAdder();
+	private final LongAdder m_Joined = new LongAdder();
+	private final LongAdder m_Hits = new LongAdder();
+
+	/**
+	 * Flight -- one read and everyone waiting for its response.
+	 */
+	public final class Flight {
+		private final Long m_Key;
+		private final Thread m_Leader;
+		private final CountDownLatch m_Done = new CountDownLatch(1);
+		private int m_Function;
+		private byte[] m_Message;
+		private ModbusException m_Failure;
+		private long m_Expires;
+
+		Flight(Long key) {
+			m_Key = key;
+			m_Leader = Thread.currentThread();
+		}
+
+		/**
+		 * isLeader -- test if the calling thread must execute the read.
+		 * 
+		 * @return true for the thread that started the flight.
+		 */
+		public boolean isLeader() {
+			return m_Leader == Thread.currentThread() && m_Done.getCount() > 0;
+		}
+
+		/**
+		 * execute -- execute the read as the leader and share the outcome.
+		 * 
+		 * @param transaction
+		 *            the transaction of the master.
+		 * @param request
+		 *            the read request.
+		 * @return the response, which belongs to the leader.
+		 * @throws ModbusException
+		 *             if the transaction fails; the waiting threads get the
+		 *             same exception.
+		 */
+		public ModbusResponse execute(ModbusTransaction transaction,
+				ModbusRequest request) throws ModbusException {
+			ModbusResponse response = null;
+			try {
+				transaction.setRequest(request);
+				transaction.execute();
+				response = transaction.getResponse();
+				m_Function = response.getFunctionCode();
+				m_Message = response.getMessage();
+				return response;
+			} catch (ModbusException x) {
+				m_Failure = x;
+				throw x;
+			} catch (RuntimeException x) {
+				m_Failure = new ModbusException(x.toString());
+				throw x;
+			} finally {
+				if (m_Message == null && m_Failure == null)
+					m_Failure = new ModbusException("Read failed");
+				complete(this, response);
+			}
+		}
+
+		/**
+		 * getResponse -- wait for the read and return a copy of its response.
+		 * 
+		 * @return the response.
+		 * @throws ModbusException
+		 *             if the read failed.
+		 */
+		public ModbusResponse getResponse() throws ModbusException {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					m_Done.await();
+					break;
+				} catch (InterruptedException x) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+
+			if (m_Failure != null)
+				throw m_Failure;
+
+			ModbusResponse copy = ModbusResponse.createModbusResponse(m_Function);
+			copy.setUnitID(unitOf(m_Key));
+			try {
+				copy.readData(new DataInputStream(new FastByteArrayInputStream(
+						m_Message)));
+			} catch (IOException x) {
+				throw new ModbusException(x.getMessage());
+			}
+			return copy;
+		}
+	}
+
+	/**
+	 * join -- join the flight of an identical read, or start one.
+	 * 
+	 * <p>
+	 * If the returned flight's {@link Flight#isLeader()} is true the caller
+	 * must take the master's transaction lock and call
+	 * {@link Flight#execute(ModbusTransaction, ModbusRequest)}; otherwise it
+	 * calls {@link Flight#getResponse()}.
+	 * 
+	 * @param unit
+	 *            the unit identifier.
+	 * @param function
+	 *            the function code, 1 to 4.
+	 * @param ref
+	 *            the first address.
+	 * @param count
+	 *            the number of coils, inputs or registers.
+	 * @return the flight.
+	 */
+	public Flight join(int unit, int function, int ref, int count) {
+		Long key = Long.valueOf(keyOf(unit, function, ref, count));
+		synchronized (this) {
+			Flight flight = m_Cache.get(key);
+			if (flight != null) {
+				if (flight.m_Expires - System.nanoTime() > 0) {
+					m_Hits.increment();
+					return flight;
+				}
+				m_Cache.remove(key);
+			}
+			flight = m_Flights.get(key);
+			if (flight != null) {
+				m_Joined.increment();
+				return flight;
+			}
+			flight = new Flight(key);
+			m_Flights.put(key, flight);
+			m_Transactions.increment();
+			return flight;
+		}
+	}
+
+	/**
+	 * invalidate -- drop the kept responses a write may have changed. Call
+	 * this after the write, before releasing the transaction lock.
+	 * 
+	 * @param request
+	 *            the write request; other requests are ignored.
+	 */
+	public void invalidate(ModbusRequest request) {
+		invalidate(request, request.getUnitID());
+	}
+
+	/**
+	 * invalidate -- drop the kept responses of a unit that a write may have
+	 * changed, whatever unit the write was sent to.
+	 * 
+	 * @param request
+	 *            the write request; other requests are ignored.
+	 * @param unit
+	 *            the unit identifier, or {@link #ANY_UNIT}.
+	 */
+	public void invalidate(ModbusRequest request, int unit) {
+		switch (request.getFunctionCode()) {
+		case Modbus.WRITE_COIL:
+			invalidate(unit, Modbus.READ_COILS,
+					((WriteCoilRequest) request).getReference(), 1);
+			break;
+		case Modbus.WRITE_MULTIPLE_COILS:
+			WriteMultipleCoilsRequest coils = (WriteMultipleCoilsRequest) request;
+			invalidate(unit, Modbus.READ_COILS, coils.getReference(),
+					coils.getBitCount());
+			break;
+		case Modbus.WRITE_SINGLE_REGISTER:
+			invalidate(unit, Modbus.READ_MULTIPLE_REGISTERS,
+					((WriteSingleRegisterRequest) request).getReference(), 1);
+			break;
+		case Modbus.WRITE_MULTIPLE_REGISTERS:
+			WriteMultipleRegistersRequest registers = (WriteMultipleRegistersRequest) request;
+			invalidate(unit, Modbus.READ_MULTIPLE_REGISTERS,
+					registers.getReference(), registers.getWordCount());
+			break;
+		case Modbus.MASK_WRITE_REGISTER:
+			invalidate(unit, Modbus.READ_MULTIPLE_REGISTERS,
+					((MaskWriteRegisterRequest) request).getReference(), 1);
+			break;
+		case Modbus.READ_WRITE_MULTIPLE:
+			ReadWriteMultipleRequest rw = (ReadWriteMultipleRequest) request;
+			invalidate(unit, Modbus.READ_MULTIPLE_REGISTERS,
+					rw.getWriteReference(), rw.getWriteWordCount());
+			break;
+		}
+	}
+
+	/**
+	 * invalidate -- drop the kept responses that overlap a range.
+	 * 
+	 * @param unit
+	 *            the unit identifier, or {@link #ANY_UNIT}.
+	 * @param function
+	 *            the read function code of the table.
+	 * @param ref
+	 *            the first address written.
+	 * @param count
+	 *            the number of addresses written.
+	 */
+	public synchronized void invalidate(int unit, int function, int ref,
+			int count) {
+		if (m_Cache.isEmpty())
+			return;
+
+		for (Iterator<Long> i = m_Cache.keySet().iterator(); i.hasNext();) {
+			long key = i.next().longValue();
+			if ((unit != ANY_UNIT && unitOf(key) != unit)
+					|| functionOf(key) != function)
+				continue;
+
+			int first = refOf(key);
+			if (first < ref + count && ref < first + countOf(key))
+				i.remove();
+		}
+	}
+
+	/**
+	 * clear -- drop all kept responses.
+	 */
+	public synchronized void clear() {
+		m_Cache.clear();
+	}
+
+	/**
+	 * getTTL -- how long responses are kept.
+	 * 
+	 * @return the time to live in milliseconds, 0 if responses are only
+	 *         shared while the read is in flight.
+	 */
+	public long getTTL() {
+		return TimeUnit.NANOSECONDS.toMillis(m_TTLNanos);
+	}
+
+	/**
+	 * setTTL -- set how long responses are kept. The default is 0, which
+	 * shares reads in flight but keeps nothing.
+	 * 
+	 * @param ms
+	 *            the time to live in milliseconds.
+	 */
+	public void setTTL(long ms) {
+		m_TTLNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ms));
+		if (ms <= 0)
+			clear();
+	}
+
+	/**
+	 * getTransactionCount -- the number of reads executed.
+	 */
+	public long getTransactionCount() {
+		return m_Transactions.sum();
+	}
+
+	/**
+	 * getJoinedCount -- the number of reads that joined one in flight.
+	 */
+	public long getJoinedCount() {
+		return m_Joined.sum();
+	}
+
+	/**
+	 * getHitCount -- the number of reads served from a kept response.
+	 */
+	public long getHitCount() {
+		return m_Hits.sum();
+	}
+
+	/**
+	 * complete -- retire a flight, keeping a successful response if a time to
+	 * live is set, and release the threads waiting for it.
+	 */
+	private synchronized void complete(Flight flight, ModbusResponse response) {
+		m_Flights.remove(flight.m_Key);
+		long ttl = m_TTLNanos;
+		if (ttl > 0 && flight.m_Failure == null
+				&& !(response instanceof ExceptionResponse)) {
+			long now = System.nanoTime();
+			if (m_Cache.size() >= SWEEP_SIZE) {
+				for (Iterator<Flight> i = m_Cache.values().iterator(); i.hasNext();)
+					if (i.next().m_Expires - now <= 0)
+						i.remove();
+			}
+			flight.m_Expires = now + ttl;
+			m_Cache.put(flight.m_Key, flight);
+		}
+		flight.m_Done.countDown();
+	}
+
+	private static long keyOf(int unit, int function, int ref, int count) {
+		return (long) (unit & 0xFF) << 40 | (long) (function & 0xFF) << 32
+				| (long) (ref & 0xFFFF) << 16 | count & 0xFFFF;
+	}
+
+	private static int unitOf(long key) {
+		return (int) (key >>> 40) & 0xFF;
+	}
+
+	private static int functionOf(long key) {
+		return (int) (key >>> 32) & 0xFF;
+	}
+
+	private static int refOf(long key) {
+		return (int) (key >>> 16) & 0xFFFF;
+	}
+
+	private static int countOf(long key) {
+		return (int) key & 0xFFFF;
+	}
+}
@@ -0,0 +1,373 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RttEstimator -- learns how long a slave takes to answer, and so how long
+ * a master should wait for it before trying again.
+ * 
+ * <p>
+ * The estimate is kept per unit and function code, the way TCP estimates
+ * its retransmission timeout (RFC 6298): a smoothed round trip time plus
+ * four times its smoothed variation, between a floor and a ceiling. Only
+ * answers to a first attempt are measured, as an answer after a retry may
+ * be a late answer to the attempt before. When an attempt times out the
+ * wait doubles, until an answer is measured again.
+ * 
+ * <p>
+ * On a serial line the time the frames spend on the wire depends on their
+ * length, which differs between requests for the same function. Serial
+ * transactions therefore measure only the turnaround of the slave, and add
+ * the time to send the request and the expected response to each wait.
+ * 
+ * <p>
+ * Adaptive timeouts are off unless enabled, so that masters keep waiting
+ * for their configured timeouts.
+ * 
+ * <p>
+ * There is one estimator per slave address and port, or serial port,
+ * shared by all the masters in this JVM, from {@link #getEstimator(String)}.
+ */
+public class RttEstimator {
+	private static final ConcurrentHashMap<String, RttEstimator> c_Estimators =
+			new ConcurrentHashMap<String, RttEstimator>();
+	private static volatile boolean c_Enabled = "true".equals(System
+			.getProperty("com.ghgande.modbus.adaptive"));
+
+	// the clock granularity, the least the variation adds to the wait
+	private static final long GRANULARITY = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final String m_Name;
+	private final ConcurrentHashMap<Integer, Estimate> m_Estimates =
+			new ConcurrentHashMap<Integer, Estimate>();
+	private volatile int m_Floor = 10;
+	private volatile int m_Ceiling = 10000;
+
+	/**
+	 * Estimate -- the round trip time of one function of one unit.
+	 */
+	private static class Estimate {
+		long m_Srtt; // nanoseconds, 0 until measured
+		long m_RttVar; // nanoseconds
+		volatile int m_Timeout; // milliseconds, 0 until measured or backed off
+	}
+
+	/**
+	 * getEstimator -- the estimator of a slave, created on first use.
+	 * 
+	 * @param name
+	 *            the name of the connection, as used for metrics.
+	 * @return the estimator.
+	 */
+	public static RttEstimator getEstimator(String name) {
+		RttEstimator result = c_Estimators.get(name);
+		if (result == null) {
+			RttEstimator created = new RttEstimator(name);
+			result = c_Estimators.putIfAbsent(name, created);
+			if (result == null)
+				result = created;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the estimators of all slaves seen so far.
+	 */
+	public static List<RttEstimator> getEstimators() {
+		return new ArrayList<RttEstimator>(c_Estimators.values());
+	}
+
+	/**
+	 * isEnabled -- whether transactions wait for as long as the estimate,
+	 * with one deadline for all their attempts. If not, every attempt waits
+	 * for the configured timeout, as it does by default. Set the system
+	 * property <tt>com.ghgande.modbus.adaptive</tt> to <tt>true</tt> to turn
+	 * the estimates on from the start.
+	 */
+	public static boolean isEnabled() {
+		return c_Enabled;
+	}
+
+	public static void setEnabled(boolean enabled) {
+		c_Enabled = enabled;
+	}
+
+	/**
+	 * Constructs a new <tt>RttEstimator</tt> that is not shared.
+	 * 
+	 * @param name
+	 *            the name of the slave.
+	 */
+	public RttEstimator(String name) {
+		m_Name = name;
+	}
+
+	public String getName() {
+		return m_Name;
+	}
+
+	/**
+	 * setFloor -- the least time to wait for an answer, 10 milliseconds by
+	 * default.
+	 * 
+	 * @param ms
+	 *            the time in milliseconds.
+	 */
+	public void setFloor(int ms) {
+		if (ms < 1)
+			throw new IllegalArgumentException("invalid floor " + ms);
+
+		m_Floor = ms;
+	}
+
+	public int getFloor() {
+		return m_Floor;
+	}
+
+	/**
+	 * setCeiling -- the most time to wait for an answer, 10 seconds by
+	 * default. The deadline of the transaction may cut it short.
+	 * 
+	 * @param ms
+	 *            the time in milliseconds.
+	 */
+	public void setCeiling(int ms) {
+		if (ms < 1)
+			throw new IllegalArgumentException("invalid ceiling " + ms);
+
+		m_Ceiling = ms;
+	}
+
+	public int getCeiling() {
+		return m_Ceiling;
+	}
+
+	/**
+	 * getTimeout -- how long to wait for the answer to an attempt.
+	 * 
+	 * @param unit
+	 *            the unit addressed.
+	 * @param function
+	 *            the function code of the request.
+	 * @param initial
+	 *            the time to wait while nothing has been measured.
+	 * @param deadline
+	 *            the time the transaction must be over by, from
+	 *            <tt>System.nanoTime()</tt>.
+	 * @param last
+	 *            whether this is the last attempt, which waits for whatever
+	 *            time is left.
+	 * @return the time in milliseconds, or 0 if the deadline has passed.
+	 */
+	public int getTimeout(int unit, int function, int initial, long deadline,
+			boolean last) {
+		return getTimeout(unit, function, initial, deadline, last, 0);
+	}
+
+	/**
+	 * getTimeout -- how long to wait for the answer to an attempt whose
+	 * frames take time to send, on top of the turnaround of the slave.
+	 * 
+	 * @param unit
+	 *            the unit addressed.
+	 * @param function
+	 *            the function code of the request.
+	 * @param initial
+	 *            the time to wait while nothing has been measured.
+	 * @param deadline
+	 *            the time the transaction must be over by, from
+	 *            <tt>System.nanoTime()</tt>.
+	 * @param last
+	 *            whether this is the last attempt, which waits for whatever
+	 *            time is left.
+	 * @param transfer
+	 *            the time to send the request and the response in
+	 *            nanoseconds, which the samples did not include.
+	 * @return the time in milliseconds, or 0 if the deadline has passed.
+	 */
+	public int getTimeout(int unit, int function, int initial, long deadline,
+			boolean last, long transfer) {
+		long left = deadline - System.nanoTime();
+		if (left <= 0)
+			return 0;
+
+		// round up, a wait of 0 is forever
+		long leftMs = (left + 999999) / 1000000;
+		if (last)
+			return (int) Math.min(leftMs, Integer.MAX_VALUE);
+
+		Estimate estimate = m_Estimates.get(key(unit, function));
+		long timeout = estimate == null ? 0 : estimate.m_Timeout;
+		if (timeout == 0)
+			timeout = clamp(initial);
+		timeout += (transfer + 999999) / 1000000;
+
+		return (int) Math.min(timeout, leftMs);
+	}
+
+	/**
+	 * Returns the time an attempt waits for the function of the unit, or 0
+	 * if nothing has been measured.
+	 */
+	public int getTimeout(int unit, int function) {
+		Estimate estimate = m_Estimates.get(key(unit, function));
+		return estimate == null ? 0 : estimate.m_Timeout;
+	}
+
+	/**
+	 * Returns the smoothed round trip time of the function of the unit in
+	 * nanoseconds, or 0 if nothing has been measured.
+	 */
+	public long getSmoothedRtt(int unit, int function) {
+		Estimate estimate = m_Estimates.get(key(unit, function));
+		if (estimate == null)
+			return 0;
+
+		synchronized (estimate) {
+			return estimate.m_Srtt;
+		}
+	}
+
+	/**
+	 * sample -- the answer to a first attempt arrived.
+	 * 
+	 * @param unit
+	 *            the unit addressed.
+	 * @param function
+	 *            the function code of the request.
+	 * @param nanos
+	 *            the time from sending the request to the answer.
+	 */
+	public void sample(int unit, int function, long nanos) {
+		Estimate estimate = getEstimate(unit, function);
+		synchronized (estimate) {
+			if (estimate.m_Srtt == 0) {
+				estimate.m_Srtt = Math.max(nanos, 1);
+				estimate.m_RttVar = nanos / 2;
+			} else {
+				long error = Math.abs(estimate.m_Srtt - nanos);
+				estimate.m_RttVar += (error - estimate.m_RttVar) / 4;
+				estimate.m_Srtt += (nanos - estimate.m_Srtt) / 8;
+			}
+			long rto = estimate.m_Srtt
+					+ Math.max(GRANULARITY, 4 * estimate.m_RttVar);
+			estimate.m_Timeout = clamp(TimeUnit.NANOSECONDS.toMillis(rto
+					+ 999999));
+		}
+	}
+
+	/**
+	 * seed -- start the estimate of a function from earlier measurements,
+	 * such as those of a device profile. An estimate that has already been
+	 * measured is kept.
+	 * 
+	 * @param unit
+	 *            the unit addressed.
+	 * @param function
+	 *            the function code of the request.
+	 * @param srtt
+	 *            the round trip time in nanoseconds.
+	 * @param rttvar
+	 *            its variation in nanoseconds.
+	 */
+	public void seed(int unit, int function, long srtt, long rttvar) {
+		Estimate estimate = getEstimate(unit, function);
+		synchronized (estimate) {
+			if (estimate.m_Srtt != 0 || srtt <= 0)
+				return;
+
+			estimate.m_Srtt = srtt;
+			estimate.m_RttVar = Math.max(rttvar, 0);
+			long rto = srtt + Math.max(GRANULARITY, 4 * estimate.m_RttVar);
+			estimate.m_Timeout = clamp(TimeUnit.NANOSECONDS.toMillis(rto
+					+ 999999));
+		}
+	}
+
+	/**
+	 * timeout -- an attempt was not answered. The next attempt waits twice
+	 * as long.
+	 * 
+	 * @param unit
+	 *            the unit addressed.
+	 * @param function
+	 *            the function code of the request.
+	 * @param waited
+	 *            the time the attempt waited, in milliseconds.
+	 */
+	public void timeout(int unit, int function, int waited) {
+		Estimate estimate = getEstimate(unit, function);
+		synchronized (estimate) {
+			int timeout = clamp(2L * waited);
+			if (timeout > estimate.m_Timeout)
+				estimate.m_Timeout = timeout;
+		}
+	}
+
+	/**
+	 * reset -- forget what has been measured.
+	 */
+	public void reset() {
+		m_Estimates.clear();
+	}
+
+	public String toString() {
+		return m_Name + ": " + m_Estimates.size() + " estimates";
+	}
+
+	private Estimate getEstimate(int unit, int function) {
+		Integer key = key(unit, function);
+		Estimate result = m_Estimates.get(key);
+		if (result == null) {
+			Estimate created = new Estimate();
+			result = m_Estimates.putIfAbsent(key, created);
+			if (result == null)
+				result = created;
+		}
+		return result;
+	}
+
+	private static Integer key(int unit, int function) {
+		return Integer.valueOf((unit & 0xFF) << 8 | (function & 0xFF));
+	}
+
+	private int clamp(long ms) {
+		return (int) Math.max(m_Floor, Math.min(ms, m_Ceiling));
+	}
+}
@@ -0,0 +1,361 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.net.SerialConnection;
+
+/**
+ * SerialBusExecutor -- runs the transactions of many threads on one serial
+ * bus, most urgent first.
+ * 
+ * <p>
+ * A single bus thread owns the transport. Requests are queued by priority,
+ * then by deadline, then in the order they were submitted, and the results
+ * are returned as futures. Writes are queued ahead of reads by default, so an
+ * operator's command does not wait behind a round of polls.
+ * 
+ * <p>
+ * Between transactions the bus thread waits out the transmit delay or t3.5,
+ * whichever is longer, by parking for the exact remaining time. The queue is
+ * consulted again after the gap, so a request that arrives during it can
+ * still go first.
+ */
+public class SerialBusExecutor implements Runnable {
+	/**
+	 * Priority for alarms and other requests that must go first.
+	 */
+	public static final int PRIORITY_URGENT = 0;
+
+	/**
+	 * Priority for writes, the default for write function codes.
+	 */
+	public static final int PRIORITY_WRITE = 1;
+
+	/**
+	 * Priority for ordinary reads, the default for other function codes.
+	 */
+	public static final int PRIORITY_NORMAL = 2;
+
+	/**
+	 * Priority for bulk polling that can wait.
+	 */
+	public static final int PRIORITY_BULK = 3;
+
+	private final ModbusSerialTransport m_Transport;
+	private final PriorityBlockingQueue<Job> m_Queue = new PriorityBlockingQueue<Job>();
+	private final AtomicLong m_Sequence = new AtomicLong();
+	private volatile int m_Retries = Modbus.DEFAULT_RETRIES;
+	private volatile int m_TransDelayMS = Modbus.DEFAULT_TRANSMIT_DELAY;
+	private volatile boolean m_Running;
+	private Thread m_Thread;
+
+	/**
+	 * Job -- a queued request and the future of its response.
+	 */
+	private class Job extends FutureTask<ModbusResponse> implements
+			Comparable<Job> {
+		final int m_Priority;
+		final boolean m_HasDeadline;
+		final long m_Deadline; // System.nanoTime(), if there is one
+		final long m_Sequence;
+
+		Job(final ModbusRequest request, int priority, boolean hasDeadline,
+				long deadline) {
+			super(new Callable<ModbusResponse>() {
+				public ModbusResponse call() throws ModbusException {
+					ModbusSerialTransaction trans = new ModbusSerialTransaction(
+							request);
+					trans.setTransport(m_Transport);
+					trans.setRetries(m_Retries);
+					// the bus thread has waited the first gap, retries wait
+					// their own
+					trans.setTransDelayMS(m_TransDelayMS);
+					trans.execute();
+
+					return trans.getResponse();
+				}
+			});
+			m_Priority = priority;
+			m_HasDeadline = hasDeadline;
+			m_Deadline = deadline;
+			m_Sequence = SerialBusExecutor.this.m_Sequence.getAndIncrement();
+		}
+
+		/**
+		 * expire -- fail the request because it could not be sent in time.
+		 */
+		void expire() {
+			setException(new ModbusException("Deadline expired before the request was sent"));
+		}
+
+		public int compareTo(Job other) {
+			if (m_Priority != other.m_Priority)
+				return m_Priority < other.m_Priority ? -1 : 1;
+
+			// nanoTime() values only compare by their difference
+			if (m_HasDeadline != other.m_HasDeadline)
+				return m_HasDeadline ? -1 : 1;
+
+			if (m_HasDeadline && m_Deadline != other.m_Deadline)
+				return m_Deadline - other.m_Deadline < 0 ? -1 : 1;
+
+			return m_Sequence < other.m_Sequence ? -1
+					: (m_Sequence == other.m_Sequence ? 0 : 1);
+		}
+	}
+
+	/**
+	 * start -- start the bus thread.
+	 * 
+	 * @return the bus thread.
+	 */
+	public synchronized Thread start() {
+		if (m_Thread == null) {
+			m_Running = true;
+			String name = m_Transport.getSerialPort() == null ? "" : " "
+					+ m_Transport.getSerialPort().getName();
+			m_Thread = new Thread(this, "Modbus serial bus" + name);
+			m_Thread.setDaemon(true);
+			m_Thread.start();
+		}
+		return m_Thread;
+	}
+
+	/**
+	 * stop -- stop the bus thread. Requests still queued are cancelled, a
+	 * transaction in progress is allowed to finish.
+	 */
+	public void stop() {
+		Thread thread;
+		synchronized (this) {
+			m_Running = false;
+			thread = m_Thread;
+			m_Thread = null;
+		}
+		if (thread != null) {
+			// wake the bus thread if it is idle, without interrupting I/O
+			m_Queue.add(new Job(null, Integer.MIN_VALUE, false, 0));
+			LockSupport.unpark(thread);
+			if (thread != Thread.currentThread()) {
+				try {
+					thread.join();
+				} catch (InterruptedException x) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		List<Job> pending = new ArrayList<Job>();
+		m_Queue.drainTo(pending);
+		for (Job job : pending)
+			job.cancel(false);
+	}
+
+	/**
+	 * submit -- queue a request at the default priority for its function
+	 * code.
+	 * 
+	 * @param request
+	 *            the request.
+	 * @return the future response.
+	 */
+	public Future<ModbusResponse> submit(ModbusRequest request) {
+		return submit(request, getDefaultPriority(request), 0);
+	}
+
+	/**
+	 * submit -- queue a request.
+	 * 
+	 * @param request
+	 *            the request.
+	 * @param priority
+	 *            the priority, lower values go first.
+	 * @return the future response.
+	 */
+	public Future<ModbusResponse> submit(ModbusRequest request, int priority) {
+		return submit(request, priority, 0);
+	}
+
+	/**
+	 * submit -- queue a request that must be sent within a time limit.
+	 * 
+	 * <p>
+	 * Among requests of the same priority the one with the earliest deadline
+	 * goes first. If the deadline passes before the request is sent, the
+	 * future fails with a <tt>ModbusException</tt> and the bus is not used.
+	 * 
+	 * @param request
+	 *            the request.
+	 * @param priority
+	 *            the priority, lower values go first.
+	 * @param deadlineMS
+	 *            the time limit in milliseconds, 0 for none.
+	 * @return the future response.
+	 */
+	public Future<ModbusResponse> submit(ModbusRequest request, int priority,
+			long deadlineMS) {
+		if (!m_Running)
+			throw new IllegalStateException("Serial bus executor not running");
+
+		boolean hasDeadline = deadlineMS > 0;
+		long deadline = hasDeadline ? System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(deadlineMS) : 0;
+		Job job = new Job(request, priority, hasDeadline, deadline);
+		m_Queue.add(job);
+		if (!m_Running && m_Queue.remove(job))
+			job.cancel(false); // lost a race with stop()
+
+		return job;
+	}
+
+	/**
+	 * getQueueLength -- the number of requests waiting for the bus.
+	 * 
+	 * @return the number of queued requests.
+	 */
+	public int getQueueLength() {
+		return m_Queue.size();
+	}
+
+	public int getRetries() {
+		return m_Retries;
+	}
+
+	public void setRetries(int num) {
+		m_Retries = num;
+	}
+
+	/**
+	 * getTransDelayMS -- the minimum time between transactions.
+	 * 
+	 * @return the delay in milliseconds.
+	 */
+	public int getTransDelayMS() {
+		return m_TransDelayMS;
+	}
+
+	/**
+	 * setTransDelayMS -- set the minimum time between transactions. The bus
+	 * never waits less than t3.5.
+	 * 
+	 * @param ms
+	 *            the delay in milliseconds.
+	 */
+	public void setTransDelayMS(int ms) {
+		m_TransDelayMS = ms;
+	}
+
+	public void run() {
+		while (m_Running) {
+			Job job;
+			try {
+				job = m_Queue.take();
+			} catch (InterruptedException x) {
+				continue;
+			}
+			if (!m_Running)
+				break;
+
+			long gap = Math.max(TimeUnit.MILLISECONDS.toNanos(m_TransDelayMS),
+					m_Transport.getInterFrameDelay());
+			long remaining = m_Transport.getGapRemaining(gap);
+			if (remaining > 0) {
+				// let anything more urgent that arrives meanwhile go first
+				m_Queue.add(job);
+				LockSupport.parkNanos(remaining);
+				continue;
+			}
+			if (job.isCancelled())
+				continue;
+
+			if (job.m_HasDeadline && job.m_Deadline - System.nanoTime() < 0) {
+				job.expire();
+				continue;
+			}
+			job.run();
+		}
+	}
+
+	/**
+	 * getDefaultPriority -- writes before reads.
+	 */
+	private static int getDefaultPriority(ModbusRequest request) {
+		switch (request.getFunctionCode()) {
+		case Modbus.WRITE_COIL:
+		case Modbus.WRITE_SINGLE_REGISTER:
+		case Modbus.WRITE_MULTIPLE_COILS:
+		case Modbus.WRITE_MULTIPLE_REGISTERS:
+		case Modbus.WRITE_FILE_RECORD:
+		case Modbus.MASK_WRITE_REGISTER:
+		case Modbus.READ_WRITE_MULTIPLE:
+			return PRIORITY_WRITE;
+		default:
+			return PRIORITY_NORMAL;
+		}
+	}
+
+	/**
+	 * Constructs a new <tt>SerialBusExecutor</tt> for a transport. Call
+	 * {@link #start()} before submitting requests.
+	 * 
+	 * @param transport
+	 *            the transport of the bus.
+	 */
+	public SerialBusExecutor(ModbusSerialTransport transport) {
+		m_Transport = transport;
+	}
+
+	/**
+	 * Constructs a new <tt>SerialBusExecutor</tt> for an open connection.
+	 * 
+	 * @param con
+	 *            the serial connection of the bus.
+	 */
+	public SerialBusExecutor(SerialConnection con) {
+		this((ModbusSerialTransport) con.getModbusTransport());
+	}
+}
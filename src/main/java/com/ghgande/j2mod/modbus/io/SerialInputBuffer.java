@@ -0,0 +1,376 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.ghgande.j2mod.modbus.Modbus;
+
+/**
+ * SerialInputBuffer -- drain a serial port's input into a ring buffer on a
+ * dedicated thread.
+ * 
+ * <p>
+ * With RXTX every call to the port's input stream is a trip through JNI,
+ * and the serial transports used to make several of those for each frame,
+ * one byte at a time. The reader thread here makes one blocking bulk read
+ * for whatever the driver has, copies it into the ring and records when it
+ * arrived. Transports then read from the ring, which costs no more than an
+ * array copy.
+ * 
+ * <p>
+ * Reads follow RXTX's timeout conventions so transports behave the same
+ * whether or not the input is buffered: <tt>read()</tt> returns -1 and
+ * <tt>read(byte[], int, int)</tt> returns 0 when the timeout expires with no
+ * data.
+ * 
+ * <p>
+ * If the ring fills up because nobody is reading, further input is dropped
+ * and counted as an overrun.
+ */
+public class SerialInputBuffer extends InputStream implements Runnable {
+	/**
+	 * Default size of the ring, in bytes. Must be a power of two.
+	 */
+	public static final int DEFAULT_SIZE = 4096;
+
+	private final InputStream m_In;
+	private final byte[] m_Ring;
+	private final int m_Mask;
+	private long m_Head; // next byte to read
+	private long m_Tail; // next byte to write
+	private long m_LastArrival;
+	private int m_Timeout;
+	private int m_Overruns;
+	private IOException m_Error;
+	private boolean m_Closed;
+	private Thread m_Reader;
+
+	/**
+	 * Constructs a new <tt>SerialInputBuffer</tt> with the default size.
+	 * 
+	 * @param in
+	 *            the serial port's input stream.
+	 */
+	public SerialInputBuffer(InputStream in) {
+		this(in, DEFAULT_SIZE);
+	}
+
+	/**
+	 * Constructs a new <tt>SerialInputBuffer</tt>.
+	 * 
+	 * @param in
+	 *            the serial port's input stream.
+	 * @param size
+	 *            the size of the ring, rounded up to a power of two.
+	 */
+	public SerialInputBuffer(InputStream in, int size) {
+		int n = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+
+		m_In = in;
+		m_Ring = new byte[n];
+		m_Mask = n - 1;
+		m_LastArrival = System.nanoTime();
+	}
+
+	/**
+	 * start -- start the reader thread.
+	 * 
+	 * @param name
+	 *            a name for the thread, normally the port name.
+	 */
+	public synchronized void start(String name) {
+		if (m_Reader != null)
+			return;
+
+		m_Reader = new Thread(this, "Modbus serial input " + name);
+		m_Reader.setDaemon(true);
+		m_Reader.start();
+	}
+
+	/**
+	 * run -- the reader thread. Reads in bulk from the port until it is
+	 * closed.
+	 */
+	public void run() {
+		byte[] chunk = new byte[m_Ring.length];
+
+		while (!isClosed()) {
+			int n;
+			try {
+				n = m_In.read(chunk, 0, chunk.length);
+			} catch (IOException x) {
+				fail(x);
+				return;
+			}
+			if (n < 0) {
+				fail(new IOException("End of serial input"));
+				return;
+			}
+			if (n > 0)
+				put(chunk, n, System.nanoTime());
+		}
+	}
+
+	private synchronized void put(byte[] chunk, int n, long nanos) {
+		int space = m_Ring.length - (int) (m_Tail - m_Head);
+		if (n > space) {
+			m_Overruns++;
+			if (Modbus.debug)
+				System.err.println("Serial input overrun, dropped "
+						+ (n - space) + " bytes");
+
+			n = space;
+		}
+		for (int i = 0; i < n;) {
+			int pos = (int) (m_Tail & m_Mask);
+			int count = Math.min(n - i, m_Ring.length - pos);
+			System.arraycopy(chunk, i, m_Ring, pos, count);
+			m_Tail += count;
+			i += count;
+		}
+		m_LastArrival = nanos;
+		notifyAll();
+	}
+
+	private synchronized void fail(IOException x) {
+		if (!m_Closed)
+			m_Error = x;
+
+		notifyAll();
+	}
+
+	private synchronized boolean isClosed() {
+		return m_Closed;
+	}
+
+	/**
+	 * getTimeout -- the time a read waits for data.
+	 * 
+	 * @return the timeout in milliseconds, 0 waits forever.
+	 */
+	public synchronized int getTimeout() {
+		return m_Timeout;
+	}
+
+	/**
+	 * setTimeout -- set the time a read waits for data.
+	 * 
+	 * @param ms
+	 *            the timeout in milliseconds, 0 waits forever.
+	 */
+	public synchronized void setTimeout(int ms) {
+		m_Timeout = ms;
+	}
+
+	/**
+	 * getLastArrival -- when the most recent data arrived.
+	 * 
+	 * @return the <tt>System.nanoTime()</tt> at which the reader thread
+	 *         received the last chunk.
+	 */
+	public synchronized long getLastArrival() {
+		return m_LastArrival;
+	}
+
+	/**
+	 * getOverruns -- the number of times input was dropped because the ring
+	 * was full.
+	 * 
+	 * @return the overrun count.
+	 */
+	public synchronized int getOverruns() {
+		return m_Overruns;
+	}
+
+	/**
+	 * await -- wait for data to become available.
+	 * 
+	 * @param nanos
+	 *            the longest time to wait.
+	 * @return <tt>true</tt> if there is data to read.
+	 * @throws IOException
+	 *             if the port failed or was closed.
+	 */
+	public synchronized boolean await(long nanos) throws IOException {
+		long deadline = System.nanoTime() + nanos;
+		while (m_Tail == m_Head) {
+			check();
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0)
+				return false;
+
+			try {
+				wait(remaining / 1000000, (int) (remaining % 1000000));
+			} catch (InterruptedException x) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public synchronized int available() throws IOException {
+		if (m_Tail == m_Head)
+			check();
+
+		return (int) (m_Tail - m_Head);
+	}
+
+	public synchronized int read() throws IOException {
+		if (!waitForData())
+			return -1;
+
+		return m_Ring[(int) (m_Head++ & m_Mask)] & 0xFF;
+	}
+
+	public synchronized int read(byte[] b, int off, int len)
+			throws IOException {
+		if (len == 0)
+			return 0;
+
+		if (!waitForData())
+			return 0;
+
+		int n = Math.min(len, (int) (m_Tail - m_Head));
+		for (int i = 0; i < n;) {
+			int pos = (int) (m_Head & m_Mask);
+			int count = Math.min(n - i, m_Ring.length - pos);
+			System.arraycopy(m_Ring, pos, b, off + i, count);
+			m_Head += count;
+			i += count;
+		}
+		return n;
+	}
+
+	public synchronized long skip(long n) throws IOException {
+		long count = Math.min(Math.max(n, 0), m_Tail - m_Head);
+		m_Head += count;
+
+		return count;
+	}
+
+	/**
+	 * clear -- discard everything that has been read from the port.
+	 * 
+	 * @return the number of bytes discarded.
+	 */
+	public synchronized int clear() {
+		int count = (int) (m_Tail - m_Head);
+		m_Head = m_Tail;
+
+		return count;
+	}
+
+	/**
+	 * close -- stop the reader thread and close the port's input stream.
+	 */
+	public void close() throws IOException {
+		shutdown(true);
+	}
+
+	/**
+	 * stop -- stop the reader thread but leave the port's input stream open,
+	 * so that another reader can take over the port. Waits for a read in
+	 * progress to return, which takes up to the port's read timeout.
+	 */
+	public void stop() {
+		try {
+			shutdown(false);
+		} catch (IOException x) {
+			// nothing is closed
+		}
+	}
+
+	private void shutdown(boolean closeInput) throws IOException {
+		Thread reader;
+		synchronized (this) {
+			if (m_Closed)
+				return;
+
+			m_Closed = true;
+			reader = m_Reader;
+			notifyAll();
+		}
+		try {
+			if (closeInput)
+				m_In.close();
+		} finally {
+			if (reader != null && reader != Thread.currentThread()) {
+				reader.interrupt();
+				try {
+					reader.join(1000);
+				} catch (InterruptedException x) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	/**
+	 * waitForData -- wait up to the timeout for at least one byte. Must be
+	 * called while holding the lock.
+	 */
+	private boolean waitForData() throws IOException {
+		if (m_Tail != m_Head)
+			return true;
+
+		if (m_Timeout <= 0) {
+			while (m_Tail == m_Head) {
+				check();
+				try {
+					wait();
+				} catch (InterruptedException x) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return true;
+		}
+		return await(m_Timeout * 1000000L);
+	}
+
+	/**
+	 * check -- report a closed or failed port once the data read before the
+	 * failure has been consumed.
+	 */
+	private void check() throws IOException {
+		if (m_Closed)
+			throw new IOException("Serial input closed");
+
+		if (m_Error != null)
+			throw m_Error;
+	}
+}
@@ -0,0 +1,237 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.ghgande.j2mod.modbus.msg.ExceptionResponse;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+
+/**
+ * DeviceMetrics -- the transaction metrics of one unit on a connection or
+ * serial port, with a {@link FunctionMetrics} for each function code used.
+ * 
+ * <p>
+ * Masters name a device after the connection they use, such as
+ * <tt>tcp:10.0.0.5:502</tt> or <tt>device:/dev/ttyS0</tt>. Slaves prefix the
+ * name of the connection they listen on with <tt>slave:</tt>.
+ */
+public class DeviceMetrics implements DeviceMetricsMBean {
+	private final MetricsRegistry m_Registry;
+	private final String m_Name;
+	private final int m_Unit;
+	private final AtomicReferenceArray<FunctionMetrics> m_Functions =
+			new AtomicReferenceArray<FunctionMetrics>(128);
+
+	private final LongAdder m_Retries = new LongAdder();
+	private final LongAdder m_Timeouts = new LongAdder();
+	private final LongAdder m_Errors = new LongAdder();
+	private final LongAdder m_ChecksumErrors = new LongAdder();
+	private final LongAdder m_Reconnects = new LongAdder();
+
+	public String getName() {
+		return m_Name;
+	}
+
+	public int getUnit() {
+		return m_Unit;
+	}
+
+	/**
+	 * getFunction -- the metrics of a function code, created on first use.
+	 * 
+	 * @param functionCode
+	 *            the function code. The exception bit is ignored.
+	 * @return the metrics.
+	 */
+	public FunctionMetrics getFunction(int functionCode) {
+		int index = functionCode & 0x7F;
+
+		FunctionMetrics result = m_Functions.get(index);
+		if (result == null) {
+			FunctionMetrics created = new FunctionMetrics(this, index);
+			if (m_Functions.compareAndSet(index, null, created)) {
+				m_Registry.created(created);
+				result = created;
+			} else {
+				result = m_Functions.get(index);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * getFunctions -- the metrics of the function codes used so far.
+	 * 
+	 * @return the metrics, by function code.
+	 */
+	public List<FunctionMetrics> getFunctions() {
+		List<FunctionMetrics> result = new ArrayList<FunctionMetrics>();
+		for (int i = 0; i < m_Functions.length(); i++) {
+			FunctionMetrics function = m_Functions.get(i);
+			if (function != null)
+				result.add(function);
+		}
+		return result;
+	}
+
+	/**
+	 * transaction -- record a completed transaction.
+	 * 
+	 * @param request
+	 *            the request.
+	 * @param response
+	 *            the response. An exception response is counted by its
+	 *            exception code.
+	 * @param start
+	 *            the <tt>System.nanoTime()</tt> at which the transaction
+	 *            started.
+	 */
+	public void transaction(ModbusRequest request, ModbusResponse response,
+			long start) {
+		FunctionMetrics function = getFunction(request.getFunctionCode());
+		function.getLatency().record(System.nanoTime() - start);
+
+		if (response instanceof ExceptionResponse)
+			function.exception(((ExceptionResponse) response)
+					.getExceptionCode());
+	}
+
+	/**
+	 * retry -- count a request sent again.
+	 */
+	public void retry() {
+		m_Retries.increment();
+	}
+
+	/**
+	 * timeout -- count a request that got no valid response.
+	 */
+	public void timeout() {
+		m_Timeouts.increment();
+	}
+
+	/**
+	 * error -- count a request that failed for another reason than a
+	 * timeout, such as a reset connection or a malformed response.
+	 */
+	public void error() {
+		m_Errors.increment();
+	}
+
+	/**
+	 * checksumErrors -- count frames discarded for a bad CRC or LRC.
+	 * 
+	 * @param count
+	 *            the number of frames.
+	 */
+	public void checksumErrors(int count) {
+		if (count > 0)
+			m_ChecksumErrors.add(count);
+	}
+
+	/**
+	 * reconnect -- count the connection being opened again.
+	 */
+	public void reconnect() {
+		m_Reconnects.increment();
+	}
+
+	public long getTransactions() {
+		long result = 0;
+		for (FunctionMetrics function : getFunctions())
+			result += function.getCount();
+
+		return result;
+	}
+
+	public long getExceptions() {
+		long result = 0;
+		for (FunctionMetrics function : getFunctions())
+			result += function.getExceptions();
+
+		return result;
+	}
+
+	public long getRetries() {
+		return m_Retries.sum();
+	}
+
+	public long getTimeouts() {
+		return m_Timeouts.sum();
+	}
+
+	public long getErrors() {
+		return m_Errors.sum();
+	}
+
+	public long getChecksumErrors() {
+		return m_ChecksumErrors.sum();
+	}
+
+	public long getReconnects() {
+		return m_Reconnects.sum();
+	}
+
+	public void reset() {
+		m_Retries.reset();
+		m_Timeouts.reset();
+		m_Errors.reset();
+		m_ChecksumErrors.reset();
+		m_Reconnects.reset();
+		for (FunctionMetrics function : getFunctions())
+			function.reset();
+	}
+
+	/**
+	 * Constructs the metrics of a device. Use
+	 * {@link MetricsRegistry#getDevice(String, int)} rather than this.
+	 * 
+	 * @param registry
+	 *            the registry the device belongs to.
+	 * @param name
+	 *            the name of the connection or port.
+	 * @param unit
+	 *            the unit number.
+	 */
+	public DeviceMetrics(MetricsRegistry registry, String name, int unit) {
+		m_Registry = registry;
+		m_Name = name;
+		m_Unit = unit;
+	}
+}
@@ -0,0 +1,92 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.metrics;
+
+/**
+ * Management interface of the metrics of one device, that is one unit on a
+ * connection or serial port.
+ */
+public interface DeviceMetricsMBean {
+
+	/**
+	 * @return the name of the connection or port.
+	 */
+	public String getName();
+
+	/**
+	 * @return the unit number.
+	 */
+	public int getUnit();
+
+	/**
+	 * @return the number of transactions completed, for all function codes.
+	 */
+	public long getTransactions();
+
+	/**
+	 * @return the number of exception responses, for all function codes.
+	 */
+	public long getExceptions();
+
+	/**
+	 * @return the number of times a request was sent again.
+	 */
+	public long getRetries();
+
+	/**
+	 * @return the number of requests that got no valid response in time.
+	 */
+	public long getTimeouts();
+
+	/**
+	 * @return the number of requests that failed for another reason, such as
+	 *         a reset connection.
+	 */
+	public long getErrors();
+
+	/**
+	 * @return the number of frames discarded for a bad CRC or LRC.
+	 */
+	public long getChecksumErrors();
+
+	/**
+	 * @return the number of times the connection was opened again.
+	 */
+	public long getReconnects();
+
+	/**
+	 * Discards the counts and the metrics of all function codes.
+	 */
+	public void reset();
+}
@@ -0,0 +1,300 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import com.ghgande.j2mod.modbus.msg.ExceptionResponse;
+import com.ghgande.j2mod.modbus.msg.ModbusMessage;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+
+/**
+ * FlightRecorderSink -- commits the events of {@link ModbusEvents} to the
+ * Java Flight Recorder. This is the only class that refers to
+ * <tt>jdk.jfr</tt>, and it is only loaded when the JVM has it. It is only
+ * compiled when the JDK has it too, by the <tt>jfr</tt> build profile.
+ */
+class FlightRecorderSink implements ModbusEvents.EventSink {
+
+	@Name("com.ghgande.j2mod.ModbusTransaction")
+	@Label("Modbus Transaction")
+	@Category("Modbus")
+	@Description("A master sends a request and reads the response")
+	static class TransactionEvent extends Event {
+		transient long start;
+		transient long split;
+
+		@Label("Device")
+		String device;
+
+		@Label("Unit ID")
+		int unitId;
+
+		@Label("Function Code")
+		int functionCode;
+
+		@Label("Transaction ID")
+		int transactionId;
+
+		@Label("Tries")
+		int tries;
+
+		@Label("Success")
+		boolean success;
+
+		@Label("Exception Code")
+		@Description("The exception code of an exception response, 0 if none")
+		int exceptionCode;
+
+		@Label("Wait Time")
+		@Description("Time before the request was first sent")
+		@Timespan(Timespan.NANOSECONDS)
+		long waitTime;
+
+		@Label("Processing Time")
+		@Description("Time from sending the request to reading the response")
+		@Timespan(Timespan.NANOSECONDS)
+		long processingTime;
+	}
+
+	@Name("com.ghgande.j2mod.ModbusFrameRead")
+	@Label("Modbus Frame Read")
+	@Category("Modbus")
+	@Description("A transport reads a request or response frame")
+	static class FrameReadEvent extends Event {
+		transient long start;
+		transient long split;
+
+		@Label("Transport")
+		String transport;
+
+		@Label("Unit ID")
+		int unitId;
+
+		@Label("Function Code")
+		int functionCode;
+
+		@Label("Transaction ID")
+		int transactionId;
+
+		@Label("Byte Count")
+		int byteCount;
+
+		@Label("Wait Time")
+		@Description("Time waiting for the frame to arrive")
+		@Timespan(Timespan.NANOSECONDS)
+		long waitTime;
+
+		@Label("Processing Time")
+		@Description("Time decoding the frame")
+		@Timespan(Timespan.NANOSECONDS)
+		long processingTime;
+	}
+
+	@Name("com.ghgande.j2mod.ModbusFrameWrite")
+	@Label("Modbus Frame Write")
+	@Category("Modbus")
+	@Description("A transport writes a request or response frame")
+	static class FrameWriteEvent extends Event {
+		@Label("Transport")
+		String transport;
+
+		@Label("Unit ID")
+		int unitId;
+
+		@Label("Function Code")
+		int functionCode;
+
+		@Label("Transaction ID")
+		int transactionId;
+
+		@Label("Byte Count")
+		int byteCount;
+	}
+
+	@Name("com.ghgande.j2mod.ModbusReconnect")
+	@Label("Modbus Reconnect")
+	@Category("Modbus")
+	@Description("A master opens its connection")
+	static class ReconnectEvent extends Event {
+		@Label("Device")
+		String device;
+
+		@Label("Success")
+		boolean success;
+	}
+
+	/*
+	 * The types of the events, which tell whether a recording wants them
+	 * before one is allocated. The events are returned as Object, so the
+	 * allocation could not be optimized away.
+	 */
+	private static final EventType c_Transaction = EventType
+			.getEventType(TransactionEvent.class);
+	private static final EventType c_FrameRead = EventType
+			.getEventType(FrameReadEvent.class);
+	private static final EventType c_FrameWrite = EventType
+			.getEventType(FrameWriteEvent.class);
+	private static final EventType c_Reconnect = EventType
+			.getEventType(ReconnectEvent.class);
+
+	public Object beginTransaction() {
+		if (!c_Transaction.isEnabled())
+			return null;
+
+		TransactionEvent event = new TransactionEvent();
+
+		event.begin();
+		event.start = System.nanoTime();
+		return event;
+	}
+
+	public void requestSent(Object e) {
+		TransactionEvent event = (TransactionEvent) e;
+		if (event.split == 0)
+			event.split = System.nanoTime();
+	}
+
+	public void endTransaction(Object e, String device,
+			ModbusRequest request, ModbusResponse response, int tries) {
+		TransactionEvent event = (TransactionEvent) e;
+		event.end();
+		if (!event.shouldCommit())
+			return;
+
+		event.device = device;
+		event.unitId = request.getUnitID();
+		event.functionCode = request.getFunctionCode();
+		event.transactionId = request.getTransactionID();
+		event.tries = tries;
+		event.success = response != null;
+		if (response instanceof ExceptionResponse)
+			event.exceptionCode = ((ExceptionResponse) response)
+					.getExceptionCode();
+		long end = System.nanoTime();
+		long split = event.split != 0 ? event.split : end;
+		event.waitTime = split - event.start;
+		event.processingTime = end - split;
+		event.commit();
+	}
+
+	public Object beginFrameRead() {
+		if (!c_FrameRead.isEnabled())
+			return null;
+
+		FrameReadEvent event = new FrameReadEvent();
+
+		event.begin();
+		event.start = System.nanoTime();
+		return event;
+	}
+
+	public void frameArrived(Object e) {
+		((FrameReadEvent) e).split = System.nanoTime();
+	}
+
+	public void endFrameRead(Object e, String transport,
+			ModbusMessage message, int byteCount) {
+		FrameReadEvent event = (FrameReadEvent) e;
+		event.end();
+		if (!event.shouldCommit())
+			return;
+
+		event.transport = transport;
+		if (message != null) {
+			event.unitId = message.getUnitID();
+			event.functionCode = message.getFunctionCode();
+			event.transactionId = message.getTransactionID();
+		}
+		event.byteCount = byteCount;
+		long end = System.nanoTime();
+		long split = event.split != 0 ? event.split : end;
+		event.waitTime = split - event.start;
+		event.processingTime = end - split;
+		event.commit();
+	}
+
+	public Object beginFrameWrite() {
+		if (!c_FrameWrite.isEnabled())
+			return null;
+
+		FrameWriteEvent event = new FrameWriteEvent();
+
+		event.begin();
+		return event;
+	}
+
+	public void endFrameWrite(Object e, String transport,
+			ModbusMessage message, int byteCount) {
+		FrameWriteEvent event = (FrameWriteEvent) e;
+		event.end();
+		if (!event.shouldCommit())
+			return;
+
+		event.transport = transport;
+		event.unitId = message.getUnitID();
+		event.functionCode = message.getFunctionCode();
+		event.transactionId = message.getTransactionID();
+		event.byteCount = byteCount;
+		event.commit();
+	}
+
+	public Object beginReconnect() {
+		if (!c_Reconnect.isEnabled())
+			return null;
+
+		ReconnectEvent event = new ReconnectEvent();
+
+		event.begin();
+		return event;
+	}
+
+	public void endReconnect(Object e, String device, boolean success) {
+		ReconnectEvent event = (ReconnectEvent) e;
+		event.end();
+		if (!event.shouldCommit())
+			return;
+
+		event.device = device;
+		event.success = success;
+		event.commit();
+	}
+}
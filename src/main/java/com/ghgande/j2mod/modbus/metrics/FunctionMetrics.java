@@ -0,0 +1,145 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * FunctionMetrics -- the latency histogram and exception counts of one
+ * function code on one device.
+ */
+public class FunctionMetrics implements FunctionMetricsMBean {
+	private final DeviceMetrics m_Device;
+	private final int m_FunctionCode;
+	private final LatencyHistogram m_Latency = new LatencyHistogram();
+	private final AtomicLongArray m_Exceptions = new AtomicLongArray(256);
+
+	/**
+	 * getDevice -- the device the function code was sent to or served by.
+	 * 
+	 * @return the device.
+	 */
+	public DeviceMetrics getDevice() {
+		return m_Device;
+	}
+
+	public int getFunctionCode() {
+		return m_FunctionCode;
+	}
+
+	/**
+	 * getLatency -- the durations of the transactions.
+	 * 
+	 * @return the histogram.
+	 */
+	public LatencyHistogram getLatency() {
+		return m_Latency;
+	}
+
+	public long getCount() {
+		return m_Latency.getCount();
+	}
+
+	public long getMean() {
+		return m_Latency.getMean();
+	}
+
+	public long get50thPercentile() {
+		return m_Latency.getPercentile(50);
+	}
+
+	public long get90thPercentile() {
+		return m_Latency.getPercentile(90);
+	}
+
+	public long get99thPercentile() {
+		return m_Latency.getPercentile(99);
+	}
+
+	public long get999thPercentile() {
+		return m_Latency.getPercentile(99.9);
+	}
+
+	public long getMax() {
+		return m_Latency.getMax();
+	}
+
+	/**
+	 * exception -- count an exception response.
+	 * 
+	 * @param code
+	 *            the exception code.
+	 */
+	public void exception(int code) {
+		m_Exceptions.incrementAndGet(code & 0xFF);
+	}
+
+	/**
+	 * getExceptions -- the number of exception responses with a given code.
+	 * 
+	 * @param code
+	 *            the exception code.
+	 * @return the count.
+	 */
+	public long getExceptions(int code) {
+		return m_Exceptions.get(code & 0xFF);
+	}
+
+	public long getExceptions() {
+		long result = 0;
+		for (int i = 0; i < m_Exceptions.length(); i++)
+			result += m_Exceptions.get(i);
+
+		return result;
+	}
+
+	public void reset() {
+		m_Latency.reset();
+		for (int i = 0; i < m_Exceptions.length(); i++)
+			m_Exceptions.set(i, 0);
+	}
+
+	/**
+	 * Constructs the metrics of a function code on a device.
+	 * 
+	 * @param device
+	 *            the device.
+	 * @param functionCode
+	 *            the function code.
+	 */
+	public FunctionMetrics(DeviceMetrics device, int functionCode) {
+		m_Device = device;
+		m_FunctionCode = functionCode;
+	}
+}
@@ -0,0 +1,92 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.metrics;
+
+/**
+ * Management interface of the metrics of one function code on one device.
+ * Durations are in nanoseconds, from writing the request to reading the
+ * response, including retries.
+ */
+public interface FunctionMetricsMBean {
+
+	/**
+	 * @return the function code.
+	 */
+	public int getFunctionCode();
+
+	/**
+	 * @return the number of transactions completed.
+	 */
+	public long getCount();
+
+	/**
+	 * @return the mean duration.
+	 */
+	public long getMean();
+
+	/**
+	 * @return the median duration.
+	 */
+	public long get50thPercentile();
+
+	/**
+	 * @return the 90th percentile duration.
+	 */
+	public long get90thPercentile();
+
+	/**
+	 * @return the 99th percentile duration.
+	 */
+	public long get99thPercentile();
+
+	/**
+	 * @return the 99.9th percentile duration.
+	 */
+	public long get999thPercentile();
+
+	/**
+	 * @return the longest duration.
+	 */
+	public long getMax();
+
+	/**
+	 * @return the number of exception responses.
+	 */
+	public long getExceptions();
+
+	/**
+	 * Discards the recorded durations and exceptions.
+	 */
+	public void reset();
+}
@@ -0,0 +1,186 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram -- a lock-free histogram of durations in nanoseconds.
+ * 
+ * <p>
+ * Values below 64 ns have a bucket each. Above that every power of two is
+ * split into 32 buckets, so a recorded value is reported within about 3% of
+ * its true value. Durations above about 18 minutes are recorded as 18
+ * minutes.
+ * 
+ * <p>
+ * Recording is an atomic increment and never blocks, so it is cheap enough
+ * to do on every transaction. Readers see a consistent enough view for
+ * monitoring, but not a snapshot.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 6;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int HALF_COUNT = SUB_COUNT >> 1;
+	private static final long MAX_VALUE = (1L << 40) - 1;
+	private static final int BUCKETS = indexOf(MAX_VALUE) + 1;
+
+	private final AtomicLongArray m_Counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder m_Count = new LongAdder();
+	private final LongAdder m_Sum = new LongAdder();
+	private final AtomicLong m_Max = new AtomicLong();
+
+	/**
+	 * indexOf -- the bucket a value is counted in.
+	 */
+	private static int indexOf(long value) {
+		if (value < SUB_COUNT)
+			return (int) value;
+
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+		return SUB_COUNT + (shift - 1) * HALF_COUNT
+				+ (int) (value >>> shift) - HALF_COUNT;
+	}
+
+	/**
+	 * highestEquivalent -- the largest value counted in a bucket.
+	 */
+	private static long highestEquivalent(int index) {
+		if (index < SUB_COUNT)
+			return index;
+
+		int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+		long sub = (index - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	/**
+	 * record -- add a duration to the histogram.
+	 * 
+	 * @param nanos
+	 *            the duration in nanoseconds.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		else if (nanos > MAX_VALUE)
+			nanos = MAX_VALUE;
+
+		m_Counts.incrementAndGet(indexOf(nanos));
+		m_Count.increment();
+		m_Sum.add(nanos);
+
+		long max = m_Max.get();
+		while (nanos > max && !m_Max.compareAndSet(max, nanos))
+			max = m_Max.get();
+	}
+
+	/**
+	 * getCount -- the number of durations recorded.
+	 * 
+	 * @return the count.
+	 */
+	public long getCount() {
+		return m_Count.sum();
+	}
+
+	/**
+	 * getSum -- the total of the durations recorded.
+	 * 
+	 * @return the sum in nanoseconds.
+	 */
+	public long getSum() {
+		return m_Sum.sum();
+	}
+
+	/**
+	 * getMean -- the mean of the durations recorded.
+	 * 
+	 * @return the mean in nanoseconds, or 0 if nothing has been recorded.
+	 */
+	public long getMean() {
+		long count = m_Count.sum();
+		return count == 0 ? 0 : m_Sum.sum() / count;
+	}
+
+	/**
+	 * getMax -- the longest duration recorded.
+	 * 
+	 * @return the maximum in nanoseconds.
+	 */
+	public long getMax() {
+		return m_Max.get();
+	}
+
+	/**
+	 * getPercentile -- the duration that a percentage of the recorded
+	 * durations did not exceed.
+	 * 
+	 * @param percentile
+	 *            the percentage, from 0 to 100.
+	 * @return the duration in nanoseconds, or 0 if nothing has been recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			total += m_Counts.get(i);
+
+		if (total == 0)
+			return 0;
+
+		long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += m_Counts.get(i);
+			if (seen >= target)
+				return Math.min(highestEquivalent(i), m_Max.get());
+		}
+		return m_Max.get();
+	}
+
+	/**
+	 * reset -- discard everything recorded. Durations recorded while the
+	 * reset is under way may be partly kept.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			m_Counts.set(i, 0);
+
+		m_Count.reset();
+		m_Sum.reset();
+		m_Max.set(0);
+	}
+}
@@ -0,0 +1,368 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.net.CircuitBreaker;
+
+/**
+ * MetricsRegistry -- the transaction metrics of all devices in this JVM.
+ * 
+ * <p>
+ * Masters record every transaction they execute, slaves every request they
+ * answer. Collectors can pull the metrics through {@link #getDevices()},
+ * scrape them as text with {@link #scrape()}, or read them as MBeans in the
+ * <tt>com.ghgande.j2mod</tt> domain once {@link #registerMBeans()} has been
+ * called.
+ * 
+ * <p>
+ * Set the system property <tt>com.ghgande.modbus.metrics</tt> to
+ * <tt>false</tt> to turn recording off, and
+ * <tt>com.ghgande.modbus.jmx</tt> to <tt>true</tt> to register the MBeans
+ * from the start.
+ */
+public class MetricsRegistry {
+	/**
+	 * The JMX domain of the MBeans.
+	 */
+	public static final String DOMAIN = "com.ghgande.j2mod";
+
+	private static final MetricsRegistry c_Self = new MetricsRegistry();
+
+	private final ConcurrentMap<String, DeviceMetrics> m_Devices =
+			new ConcurrentHashMap<String, DeviceMetrics>();
+	private volatile boolean m_Enabled = !"false".equals(System
+			.getProperty("com.ghgande.modbus.metrics"));
+	private volatile MBeanServer m_Server;
+
+	/**
+	 * isEnabled -- whether transactions are being recorded.
+	 * 
+	 * @return <tt>true</tt> if recording.
+	 */
+	public boolean isEnabled() {
+		return m_Enabled;
+	}
+
+	/**
+	 * setEnabled -- turn recording on or off. Metrics already recorded are
+	 * kept.
+	 * 
+	 * @param enabled
+	 *            <tt>true</tt> to record transactions.
+	 */
+	public void setEnabled(boolean enabled) {
+		m_Enabled = enabled;
+	}
+
+	/**
+	 * getDevice -- the metrics of a device, created on first use.
+	 * 
+	 * @param name
+	 *            the name of the connection or port.
+	 * @param unit
+	 *            the unit number.
+	 * @return the metrics.
+	 */
+	public DeviceMetrics getDevice(String name, int unit) {
+		String key = name + '/' + unit;
+
+		DeviceMetrics result = m_Devices.get(key);
+		if (result == null) {
+			DeviceMetrics created = new DeviceMetrics(this, name, unit);
+			result = m_Devices.putIfAbsent(key, created);
+			if (result == null) {
+				register(created, deviceName(created));
+				result = created;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * transaction -- record a completed transaction, if recording is on.
+	 * 
+	 * @param name
+	 *            the name of the connection or port.
+	 * @param request
+	 *            the request, addressing the unit.
+	 * @param response
+	 *            the response.
+	 * @param start
+	 *            the <tt>System.nanoTime()</tt> at which the transaction
+	 *            started.
+	 */
+	public void transaction(String name, ModbusRequest request,
+			ModbusResponse response, long start) {
+		if (m_Enabled)
+			getDevice(name, request.getUnitID()).transaction(request,
+					response, start);
+	}
+
+	/**
+	 * getDevices -- the metrics of all devices seen so far.
+	 * 
+	 * @return the devices.
+	 */
+	public List<DeviceMetrics> getDevices() {
+		return new ArrayList<DeviceMetrics>(m_Devices.values());
+	}
+
+	/**
+	 * reset -- discard the metrics of all devices.
+	 */
+	public void reset() {
+		for (DeviceMetrics device : m_Devices.values())
+			device.reset();
+	}
+
+	/**
+	 * registerMBeans -- register the devices and function codes seen so far
+	 * with the platform MBean server, and those seen later as they appear.
+	 */
+	public synchronized void registerMBeans() {
+		if (m_Server != null)
+			return;
+
+		m_Server = ManagementFactory.getPlatformMBeanServer();
+		for (DeviceMetrics device : m_Devices.values()) {
+			register(device, deviceName(device));
+			for (FunctionMetrics function : device.getFunctions())
+				register(function, functionName(function));
+		}
+	}
+
+	/**
+	 * unregisterMBeans -- remove the MBeans registered by
+	 * <tt>registerMBeans()</tt>.
+	 */
+	public synchronized void unregisterMBeans() {
+		MBeanServer server = m_Server;
+		if (server == null)
+			return;
+
+		m_Server = null;
+		try {
+			for (ObjectName name : server.queryNames(new ObjectName(DOMAIN
+					+ ":*"), null))
+				server.unregisterMBean(name);
+		} catch (JMException x) {
+			if (Modbus.debug)
+				x.printStackTrace();
+		}
+	}
+
+	/**
+	 * created -- a device has started using a function code.
+	 */
+	void created(FunctionMetrics function) {
+		register(function, functionName(function));
+	}
+
+	private void register(Object mbean, String name) {
+		MBeanServer server = m_Server;
+		if (server == null)
+			return;
+
+		try {
+			ObjectName objectName = new ObjectName(name);
+			if (!server.isRegistered(objectName))
+				server.registerMBean(mbean, objectName);
+		} catch (JMException x) {
+			if (Modbus.debug)
+				x.printStackTrace();
+		}
+	}
+
+	private static String deviceName(DeviceMetrics device) {
+		return DOMAIN + ":type=Device,name="
+				+ ObjectName.quote(device.getName()) + ",unit="
+				+ device.getUnit();
+	}
+
+	private static String functionName(FunctionMetrics function) {
+		DeviceMetrics device = function.getDevice();
+		return DOMAIN + ":type=Function,name="
+				+ ObjectName.quote(device.getName()) + ",unit="
+				+ device.getUnit() + ",function=" + function.getFunctionCode();
+	}
+
+	/**
+	 * scrape -- the metrics of all devices in the Prometheus text format.
+	 * Durations are in seconds. The state of a circuit breaker is 0 when
+	 * closed, 1 when open and 2 when half open.
+	 * 
+	 * @return the metrics.
+	 */
+	public String scrape() {
+		StringBuilder out = new StringBuilder(4096);
+		List<DeviceMetrics> devices = getDevices();
+
+		out.append("# TYPE modbus_transaction_seconds summary\n");
+		for (DeviceMetrics device : devices) {
+			for (FunctionMetrics function : device.getFunctions()) {
+				String labels = labels(device) + ",function=\""
+						+ function.getFunctionCode() + "\"";
+				LatencyHistogram latency = function.getLatency();
+				for (double quantile : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+					sample(out, "modbus_transaction_seconds", labels
+							+ ",quantile=\"" + quantile + "\"",
+							seconds(latency.getPercentile(quantile * 100)));
+				}
+				sample(out, "modbus_transaction_seconds_sum", labels,
+						seconds(latency.getSum()));
+				sample(out, "modbus_transaction_seconds_count", labels,
+						Long.toString(latency.getCount()));
+			}
+		}
+
+		out.append("# TYPE modbus_exceptions_total counter\n");
+		for (DeviceMetrics device : devices) {
+			for (FunctionMetrics function : device.getFunctions()) {
+				for (int code = 1; code < 256; code++) {
+					long count = function.getExceptions(code);
+					if (count > 0)
+						sample(out, "modbus_exceptions_total", labels(device)
+								+ ",function=\"" + function.getFunctionCode()
+								+ "\",code=\"" + code + "\"",
+								Long.toString(count));
+				}
+			}
+		}
+
+		out.append("# TYPE modbus_retries_total counter\n");
+		for (DeviceMetrics device : devices)
+			sample(out, "modbus_retries_total", labels(device),
+					Long.toString(device.getRetries()));
+
+		out.append("# TYPE modbus_timeouts_total counter\n");
+		for (DeviceMetrics device : devices)
+			sample(out, "modbus_timeouts_total", labels(device),
+					Long.toString(device.getTimeouts()));
+
+		out.append("# TYPE modbus_errors_total counter\n");
+		for (DeviceMetrics device : devices)
+			sample(out, "modbus_errors_total", labels(device),
+					Long.toString(device.getErrors()));
+
+		out.append("# TYPE modbus_checksum_errors_total counter\n");
+		for (DeviceMetrics device : devices)
+			sample(out, "modbus_checksum_errors_total", labels(device),
+					Long.toString(device.getChecksumErrors()));
+
+		out.append("# TYPE modbus_reconnects_total counter\n");
+		for (DeviceMetrics device : devices)
+			sample(out, "modbus_reconnects_total", labels(device),
+					Long.toString(device.getReconnects()));
+
+		List<CircuitBreaker> breakers = CircuitBreaker.getBreakers();
+		if (breakers.isEmpty())
+			return out.toString();
+
+		out.append("# TYPE modbus_circuit_state gauge\n");
+		for (CircuitBreaker breaker : breakers)
+			sample(out, "modbus_circuit_state", labels(breaker),
+					Integer.toString(breaker.getState()));
+
+		out.append("# TYPE modbus_circuit_transitions_total counter\n");
+		for (CircuitBreaker breaker : breakers) {
+			sample(out, "modbus_circuit_transitions_total", labels(breaker)
+					+ ",state=\"open\"", Long.toString(breaker.getOpenCount()));
+			sample(out, "modbus_circuit_transitions_total", labels(breaker)
+					+ ",state=\"half_open\"",
+					Long.toString(breaker.getHalfOpenCount()));
+			sample(out, "modbus_circuit_transitions_total", labels(breaker)
+					+ ",state=\"closed\"",
+					Long.toString(breaker.getCloseCount()));
+		}
+
+		out.append("# TYPE modbus_circuit_rejected_total counter\n");
+		for (CircuitBreaker breaker : breakers)
+			sample(out, "modbus_circuit_rejected_total", labels(breaker),
+					Long.toString(breaker.getRejectedCount()));
+
+		return out.toString();
+	}
+
+	private static void sample(StringBuilder out, String metric,
+			String labels, String value) {
+		out.append(metric).append('{').append(labels).append("} ")
+				.append(value).append('\n');
+	}
+
+	private static String labels(DeviceMetrics device) {
+		return "device=\"" + escape(device.getName()) + "\",unit=\""
+				+ device.getUnit() + "\"";
+	}
+
+	private static String labels(CircuitBreaker breaker) {
+		return "device=\"" + escape(breaker.getName()) + "\"";
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"")
+				.replace("\n", "\\n");
+	}
+
+	private static String seconds(long nanos) {
+		return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+	}
+
+	/**
+	 * Returns the registry.
+	 * 
+	 * @return the <tt>MetricsRegistry</tt> of this JVM.
+	 */
+	public static MetricsRegistry getReference() {
+		return c_Self;
+	}
+
+	private MetricsRegistry() {
+		if ("true".equals(System.getProperty("com.ghgande.modbus.jmx")))
+			registerMBeans();
+	}
+}
@@ -0,0 +1,278 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.metrics;
+
+import com.ghgande.j2mod.modbus.msg.ModbusMessage;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+
+/**
+ * ModbusEvents -- Java Flight Recorder events for transactions, frames and
+ * reconnects.
+ * 
+ * <p>
+ * Each <tt>begin</tt> method returns an event to pass to the matching
+ * <tt>end</tt> method, or <tt>null</tt> when no recording wants the event.
+ * When nothing is being recorded the JIT removes the event entirely. On a
+ * JVM without <tt>jdk.jfr</tt> every method does nothing, so callers need
+ * not care whether the recorder exists.
+ * 
+ * <p>
+ * The events are named <tt>com.ghgande.j2mod.ModbusTransaction</tt>,
+ * <tt>ModbusFrameRead</tt>, <tt>ModbusFrameWrite</tt> and
+ * <tt>ModbusReconnect</tt>, in the <tt>Modbus</tt> category.
+ */
+public final class ModbusEvents {
+	private static final EventSink c_Sink = createSink();
+
+	/**
+	 * EventSink -- where the events go.
+	 */
+	interface EventSink {
+		Object beginTransaction();
+
+		void requestSent(Object event);
+
+		void endTransaction(Object event, String device,
+				ModbusRequest request, ModbusResponse response, int tries);
+
+		Object beginFrameRead();
+
+		void frameArrived(Object event);
+
+		void endFrameRead(Object event, String transport,
+				ModbusMessage message, int byteCount);
+
+		Object beginFrameWrite();
+
+		void endFrameWrite(Object event, String transport,
+				ModbusMessage message, int byteCount);
+
+		Object beginReconnect();
+
+		void endReconnect(Object event, String device, boolean success);
+	}
+
+	/**
+	 * The sink of a JVM without a flight recorder.
+	 */
+	private static class NoEventSink implements EventSink {
+		public Object beginTransaction() {
+			return null;
+		}
+
+		public void requestSent(Object event) {
+		}
+
+		public void endTransaction(Object event, String device,
+				ModbusRequest request, ModbusResponse response, int tries) {
+		}
+
+		public Object beginFrameRead() {
+			return null;
+		}
+
+		public void frameArrived(Object event) {
+		}
+
+		public void endFrameRead(Object event, String transport,
+				ModbusMessage message, int byteCount) {
+		}
+
+		public Object beginFrameWrite() {
+			return null;
+		}
+
+		public void endFrameWrite(Object event, String transport,
+				ModbusMessage message, int byteCount) {
+		}
+
+		public Object beginReconnect() {
+			return null;
+		}
+
+		public void endReconnect(Object event, String device, boolean success) {
+		}
+	}
+
+	private static EventSink createSink() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return (EventSink) Class.forName(
+					"com.ghgande.j2mod.modbus.metrics.FlightRecorderSink")
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException x) {
+			return new NoEventSink();
+		} catch (LinkageError x) {
+			return new NoEventSink();
+		}
+	}
+
+	/**
+	 * beginTransaction -- a master starts executing a transaction.
+	 * 
+	 * @return the event, or <tt>null</tt>.
+	 */
+	public static Object beginTransaction() {
+		return c_Sink.beginTransaction();
+	}
+
+	/**
+	 * requestSent -- the request of a transaction is being sent for the
+	 * first time. The time before this is the wait time of the transaction,
+	 * the time after it the processing time.
+	 * 
+	 * @param event
+	 *            the event from <tt>beginTransaction()</tt>.
+	 */
+	public static void requestSent(Object event) {
+		if (event != null)
+			c_Sink.requestSent(event);
+	}
+
+	/**
+	 * endTransaction -- a master has finished executing a transaction.
+	 * 
+	 * @param event
+	 *            the event from <tt>beginTransaction()</tt>.
+	 * @param device
+	 *            the name of the connection or port.
+	 * @param request
+	 *            the request.
+	 * @param response
+	 *            the response, or <tt>null</tt> if the transaction failed.
+	 * @param tries
+	 *            the number of times the request was sent.
+	 */
+	public static void endTransaction(Object event, String device,
+			ModbusRequest request, ModbusResponse response, int tries) {
+		if (event != null)
+			c_Sink.endTransaction(event, device, request, response, tries);
+	}
+
+	/**
+	 * beginFrameRead -- a transport starts waiting for a frame.
+	 * 
+	 * @return the event, or <tt>null</tt>.
+	 */
+	public static Object beginFrameRead() {
+		return c_Sink.beginFrameRead();
+	}
+
+	/**
+	 * frameArrived -- the frame being read has arrived. The time before this
+	 * is the wait time of the read, the time after it the decoding time.
+	 * 
+	 * @param event
+	 *            the event from <tt>beginFrameRead()</tt>.
+	 */
+	public static void frameArrived(Object event) {
+		if (event != null)
+			c_Sink.frameArrived(event);
+	}
+
+	/**
+	 * endFrameRead -- a transport has read a frame.
+	 * 
+	 * @param event
+	 *            the event from <tt>beginFrameRead()</tt>.
+	 * @param transport
+	 *            the kind of transport, such as <tt>rtu</tt> or
+	 *            <tt>tcp</tt>.
+	 * @param message
+	 *            the message read, or <tt>null</tt> if none was.
+	 * @param byteCount
+	 *            the length of the frame.
+	 */
+	public static void endFrameRead(Object event, String transport,
+			ModbusMessage message, int byteCount) {
+		if (event != null)
+			c_Sink.endFrameRead(event, transport, message, byteCount);
+	}
+
+	/**
+	 * beginFrameWrite -- a transport starts writing a frame.
+	 * 
+	 * @return the event, or <tt>null</tt>.
+	 */
+	public static Object beginFrameWrite() {
+		return c_Sink.beginFrameWrite();
+	}
+
+	/**
+	 * endFrameWrite -- a transport has written a frame.
+	 * 
+	 * @param event
+	 *            the event from <tt>beginFrameWrite()</tt>.
+	 * @param transport
+	 *            the kind of transport.
+	 * @param message
+	 *            the message written.
+	 * @param byteCount
+	 *            the length of the frame.
+	 */
+	public static void endFrameWrite(Object event, String transport,
+			ModbusMessage message, int byteCount) {
+		if (event != null)
+			c_Sink.endFrameWrite(event, transport, message, byteCount);
+	}
+
+	/**
+	 * beginReconnect -- a master starts opening a connection.
+	 * 
+	 * @return the event, or <tt>null</tt>.
+	 */
+	public static Object beginReconnect() {
+		return c_Sink.beginReconnect();
+	}
+
+	/**
+	 * endReconnect -- a master has tried to open a connection.
+	 * 
+	 * @param event
+	 *            the event from <tt>beginReconnect()</tt>.
+	 * @param device
+	 *            the name of the connection.
+	 * @param success
+	 *            <tt>true</tt> if the connection was opened.
+	 */
+	public static void endReconnect(Object event, String device,
+			boolean success) {
+		if (event != null)
+			c_Sink.endReconnect(event, device, success);
+	}
+
+	private ModbusEvents() {
+	}
+}
@@ -0,0 +1,197 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.msg;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.io.BytesOutputStream;
+import com.ghgande.j2mod.modbus.util.CRC16;
+
+/**
+ * CompiledRequest -- a request that is encoded once, for polling the same
+ * data over and over.
+ * 
+ * <p>
+ * The frame holds the MBAP header, the unit identifier, the PDU and the CRC,
+ * so that the TCP transport writes all but the CRC and the RTU transport all
+ * but the header, each with a single write and without encoding or copying
+ * anything. The transaction identifier, protocol identifier and unit
+ * identifier are patched into the frame when they are set. Nothing else
+ * changes, so the wrapped request must not be changed after it has been
+ * compiled; compile it again instead.
+ * 
+ * <p>
+ * Responses are created by the wrapped request, so a transaction with a
+ * <tt>CompiledRequest</tt> returns the same response as one with the
+ * request itself.
+ */
+public final class CompiledRequest extends ModbusRequest {
+	private static final int HEADER_LENGTH = 6;
+
+	private final ModbusRequest m_Request;
+	private final byte[] m_Frame;
+	private final int m_Length; // unit identifier and PDU
+
+	/**
+	 * Constructs a new <tt>CompiledRequest</tt> from the current contents of
+	 * a request.
+	 * 
+	 * @param request
+	 *            the request.
+	 * @throws IllegalArgumentException
+	 *             if the request cannot be encoded.
+	 */
+	public CompiledRequest(ModbusRequest request) {
+		m_Request = request;
+
+		BytesOutputStream out = new BytesOutputStream(Modbus.MAX_MESSAGE_LENGTH);
+		try {
+			out.writeByte(request.getUnitID());
+			out.writeByte(request.getFunctionCode());
+			request.writeData(out);
+		} catch (IOException ex) {
+			throw new IllegalArgumentException("cannot encode request: "
+					+ ex.getMessage());
+		}
+		m_Length = out.size();
+		m_Frame = new byte[HEADER_LENGTH + m_Length + 2];
+		System.arraycopy(out.getBuffer(), 0, m_Frame, HEADER_LENGTH, m_Length);
+		m_Frame[4] = (byte) (m_Length >> 8);
+		m_Frame[5] = (byte) m_Length;
+		updateCRC();
+
+		setFunctionCode(request.getFunctionCode());
+		setDataLength(m_Length - 2);
+		setHeadless(request.isHeadless());
+		setProtocolID(request.getProtocolID());
+		setTransactionID(request.getTransactionID());
+		setUnitID(request.getUnitID());
+	}
+
+	/**
+	 * getRequest -- the request that was compiled.
+	 * 
+	 * @return the request.
+	 */
+	public ModbusRequest getRequest() {
+		return m_Request;
+	}
+
+	/**
+	 * getFrame -- the encoded frame. The MBAP header starts at offset 0,
+	 * the unit identifier at offset 6, and the CRC follows the PDU.
+	 * 
+	 * @return the frame, which must not be changed.
+	 */
+	public byte[] getFrame() {
+		return m_Frame;
+	}
+
+	/**
+	 * getFrameLength -- the length of the unit identifier and PDU, without
+	 * the MBAP header or the CRC.
+	 * 
+	 * @return the length in bytes.
+	 */
+	public int getFrameLength() {
+		return m_Length;
+	}
+
+	public void setTransactionID(int tid) {
+		super.setTransactionID(tid);
+		m_Request.setTransactionID(tid);
+		m_Frame[0] = (byte) (tid >> 8);
+		m_Frame[1] = (byte) tid;
+	}
+
+	public void setProtocolID(int pid) {
+		super.setProtocolID(pid);
+		m_Request.setProtocolID(pid);
+		m_Frame[2] = (byte) (pid >> 8);
+		m_Frame[3] = (byte) pid;
+	}
+
+	public void setUnitID(int num) {
+		super.setUnitID(num);
+		m_Request.setUnitID(num);
+		if ((m_Frame[HEADER_LENGTH] & 0xFF) != (num & 0xFF)) {
+			m_Frame[HEADER_LENGTH] = (byte) num;
+			updateCRC();
+		}
+	}
+
+	public void setHeadless() {
+		setHeadless(true);
+	}
+
+	public void setHeadless(boolean b) {
+		super.setHeadless(b);
+		m_Request.setHeadless(b);
+	}
+
+	public ModbusResponse getResponse() {
+		return m_Request.getResponse();
+	}
+
+	public ModbusResponse createResponse() {
+		return m_Request.createResponse();
+	}
+
+	public void writeData(DataOutput dout) throws IOException {
+		dout.write(m_Frame, HEADER_LENGTH + 2, m_Length - 2);
+	}
+
+	/**
+	 * readData -- a compiled request is only ever sent, never read.
+	 */
+	public void readData(DataInput din) throws IOException {
+		throw new IOException("compiled requests cannot be read");
+	}
+
+	public byte[] getMessage() {
+		byte result[] = new byte[m_Length - 2];
+		System.arraycopy(m_Frame, HEADER_LENGTH + 2, result, 0, m_Length - 2);
+
+		return result;
+	}
+
+	private void updateCRC() {
+		int crc = CRC16.calculate(m_Frame, HEADER_LENGTH, m_Length);
+		m_Frame[HEADER_LENGTH + m_Length] = (byte) crc;
+		m_Frame[HEADER_LENGTH + m_Length + 1] = (byte) (crc >> 8);
+	}
+}
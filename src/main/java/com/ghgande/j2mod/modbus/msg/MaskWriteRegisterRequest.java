@@ -72,8 +72,10 @@ import java.io.IOException;
 
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusCoupler;
-import com.ghgande.j2mod.modbus.procimg.IllegalAddressException;
+import com.ghgande.j2mod.modbus.procimg.AtomicProcessImage;
+import com.ghgande.j2mod.modbus.procimg.AtomicRegister;
 import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.procimg.ProcessImageException;
 import com.ghgande.j2mod.modbus.procimg.Register;
 
 
@@ -173,23 +175,30 @@ public final class MaskWriteRegisterRequest extends ModbusRequest {
 		 */
 		ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
 		try {
-			Register register = procimg.getRegister(m_Reference);
-			
 			/*
-			 * Get the original value.  The AND mask will first be
-			 * applied to clear any bits, then the OR mask will be
-			 * applied to set them.
+			 * The AND mask will first be applied to clear any bits, then
+			 * the OR mask will be applied to set them.  This must be done
+			 * atomically, or a concurrent write could be lost.
 			 */
-			int value = register.getValue();
-			
-			value = (value & m_AndMask) | (m_OrMask & ~m_AndMask);
-			
-			/*
-			 * Store the modified value back where it came from.
-			 */
-			register.setValue(value);
-		} catch (IllegalAddressException iaex) {
-			return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+			if (procimg instanceof AtomicProcessImage) {
+				((AtomicProcessImage) procimg).maskRegister(m_Reference,
+						m_AndMask, m_OrMask);
+			} else {
+				Register register = procimg.getRegister(m_Reference);
+
+				if (register instanceof AtomicRegister) {
+					((AtomicRegister) register).mask(m_AndMask, m_OrMask);
+				} else {
+					synchronized (register) {
+						int value = register.getValue();
+
+						value = (value & m_AndMask) | (m_OrMask & ~m_AndMask);
+						register.setValue(value);
+					}
+				}
+			}
+		} catch (ProcessImageException iaex) {
+			return createExceptionResponse(iaex.getExceptionCode());
 		}
 		response = (MaskWriteRegisterResponse) getResponse();
 		
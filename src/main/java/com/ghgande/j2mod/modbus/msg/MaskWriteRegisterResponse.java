@@ -99,6 +99,7 @@ public final class MaskWriteRegisterResponse
 	public MaskWriteRegisterResponse() {
 		super();
 		setFunctionCode(Modbus.MASK_WRITE_REGISTER);
+		setDataLength(6);
 	}
 
 	/**
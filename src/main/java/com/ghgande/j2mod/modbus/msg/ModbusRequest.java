@@ -130,6 +130,7 @@ public abstract class ModbusRequest extends ModbusMessageImpl {
 	public ModbusResponse createExceptionResponse(int code) {
 		ExceptionResponse response = new ExceptionResponse(getFunctionCode(),
 				code);
+		response.setUnitID(getUnitID());
 		if (!isHeadless()) {
 			response.setTransactionID(getTransactionID());
 			response.setProtocolID(getProtocolID());
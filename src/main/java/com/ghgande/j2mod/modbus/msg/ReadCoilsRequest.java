@@ -40,8 +40,8 @@ import java.io.IOException;
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusCoupler;
 import com.ghgande.j2mod.modbus.procimg.DigitalOut;
-import com.ghgande.j2mod.modbus.procimg.IllegalAddressException;
 import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.procimg.ProcessImageException;
 
 /**
  * Class implementing a <tt>ReadCoilsRequest</tt>. The implementation directly
@@ -119,12 +119,8 @@ public final class ReadCoilsRequest extends ModbusRequest {
 		try {
 			douts = procimg.getDigitalOutRange(getReference(),
 					getBitCount());
-		} catch (IllegalAddressException e) {
-			response = new IllegalAddressExceptionResponse();
-			response.setUnitID(getUnitID());
-			response.setFunctionCode(getFunctionCode());
-			
-			return response;
+		} catch (ProcessImageException e) {
+			return createExceptionResponse(e.getExceptionCode());
 		}
 		response = getResponse();
 		
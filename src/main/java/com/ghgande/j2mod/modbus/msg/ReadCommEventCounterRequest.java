@@ -71,6 +71,8 @@ import java.io.DataOutput;
 import java.io.IOException;
 
 import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusCoupler;
+import com.ghgande.j2mod.modbus.util.DiagnosticCounters;
 
 /**
  * Class implementing a <tt>Read MEI Data</tt> request.
@@ -110,10 +112,18 @@ public final class ReadCommEventCounterRequest extends ModbusRequest {
 	}
 
 	/**
-	 * The ModbusCoupler doesn't have a means of reporting the event counters.
+	 * createResponse -- report the ModbusCoupler's communication event
+	 * counter. The slave is never busy with a program command.
 	 */
 	public ModbusResponse createResponse() {
-		throw new RuntimeException();
+		DiagnosticCounters diag = ModbusCoupler.getReference().getDiagnostics();
+		ReadCommEventCounterResponse response =
+				(ReadCommEventCounterResponse) getResponse();
+
+		response.setStatus(0);
+		response.setEventCount((int) diag.getEventCount() & 0xFFFF);
+
+		return response;
 	}
 
 	/**
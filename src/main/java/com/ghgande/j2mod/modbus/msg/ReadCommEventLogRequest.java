@@ -71,6 +71,8 @@ import java.io.DataOutput;
 import java.io.IOException;
 
 import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusCoupler;
+import com.ghgande.j2mod.modbus.util.DiagnosticCounters;
 
 
 /**
@@ -111,11 +113,21 @@ public final class ReadCommEventLogRequest extends ModbusRequest {
 	}
 	
 	/**
-	 * The ModbusCoupler doesn't have a means of reporting the slave
-	 * state or ID information.
+	 * createResponse -- report the ModbusCoupler's communication event
+	 * counter, bus message count and event log.
 	 */
 	public ModbusResponse createResponse() {
-		throw new RuntimeException();
+		DiagnosticCounters diag = ModbusCoupler.getReference().getDiagnostics();
+		ReadCommEventLogResponse response =
+				(ReadCommEventLogResponse) getResponse();
+
+		response.setStatus(0);
+		response.setEventCount((int) diag.getEventCount() & 0xFFFF);
+		response.setMessageCount((int) diag
+				.get(DiagnosticCounters.BUS_MESSAGES) & 0xFFFF);
+		response.setEvents(diag.getEventLog().getEvents());
+
+		return response;
 	}
 
 	/**
@@ -175,6 +175,8 @@ public final class ReadCommEventLogResponse extends ModbusResponse {
 		m_Events = new byte[events.length];
 		if (m_Events.length > 0)
 			System.arraycopy(events, 0, m_Events, 0, events.length);
+
+		setDataLength(7 + m_Events.length);
 	}
 	
 	public void setEvents(int count) {
@@ -182,6 +184,7 @@ public final class ReadCommEventLogResponse extends ModbusResponse {
 			throw new IllegalArgumentException("invalid event list size (0 <= count <= 64)");
 		
 		m_Events = new byte[count];
+		setDataLength(7 + count);
 	}
 
 	/**
@@ -196,7 +199,7 @@ public final class ReadCommEventLogResponse extends ModbusResponse {
 	 * such as for Modbus/TCP, it will have been read already.
 	 */
 	public void readData(DataInput din) throws IOException {
-		m_ByteCount = din.readByte();
+		m_ByteCount = din.readUnsignedByte();
 		m_Status = din.readShort();
 		m_EventCount = din.readShort();
 		m_MessageCount = din.readShort();
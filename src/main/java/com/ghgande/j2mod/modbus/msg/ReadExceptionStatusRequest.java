@@ -112,10 +112,15 @@ public final class ReadExceptionStatusRequest extends ModbusRequest {
 	
 	/**
 	 * The ModbusCoupler doesn't have a means of reporting the serial
-	 * device exception status.
+	 * device exception status, so no status bits are ever set.
 	 */
 	public ModbusResponse createResponse() {
-		throw new RuntimeException();
+		ReadExceptionStatusResponse response =
+				(ReadExceptionStatusResponse) getResponse();
+
+		response.setStatus(0);
+
+		return response;
 	}
 
 	/**
@@ -72,7 +72,7 @@ import java.io.IOException;
 
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusCoupler;
-import com.ghgande.j2mod.modbus.procimg.IllegalAddressException;
+import com.ghgande.j2mod.modbus.procimg.ProcessImageException;
 import com.ghgande.j2mod.modbus.procimg.InputRegister;
 import com.ghgande.j2mod.modbus.procimg.ProcessImage;
 import com.ghgande.j2mod.modbus.procimg.Register;
@@ -157,8 +157,8 @@ public final class ReadFIFOQueueRequest extends ModbusRequest {
 				return createExceptionResponse(Modbus.ILLEGAL_VALUE_EXCEPTION);
 
 			registers = procimg.getRegisterRange(m_Reference + 1, count);
-		} catch (IllegalAddressException e) {
-			return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+		} catch (ProcessImageException e) {
+			return createExceptionResponse(e.getExceptionCode());
 		}
 		response = (ReadFIFOQueueResponse) getResponse();
 		response.setRegisters(registers);
@@ -74,8 +74,8 @@ import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusCoupler;
 import com.ghgande.j2mod.modbus.msg.ReadFileRecordResponse.RecordResponse;
 import com.ghgande.j2mod.modbus.procimg.File;
-import com.ghgande.j2mod.modbus.procimg.IllegalAddressException;
 import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.procimg.ProcessImageException;
 import com.ghgande.j2mod.modbus.procimg.Record;
 import com.ghgande.j2mod.modbus.procimg.Register;
 
@@ -267,8 +267,8 @@ public final class ReadFileRecordRequest extends ModbusRequest {
 						data);
 				response.addResponse(recordResponse);
 			}
-		} catch (IllegalAddressException e) {
-			return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+		} catch (ProcessImageException e) {
+			return createExceptionResponse(e.getExceptionCode());
 		}
 		return response;
 	}
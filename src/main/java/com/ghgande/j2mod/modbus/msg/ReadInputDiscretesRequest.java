@@ -40,8 +40,8 @@ import java.io.IOException;
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusCoupler;
 import com.ghgande.j2mod.modbus.procimg.DigitalIn;
-import com.ghgande.j2mod.modbus.procimg.IllegalAddressException;
 import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.procimg.ProcessImageException;
 
 /**
  * Class implementing a <tt>ReadInputDiscretesRequest</tt>. The implementation
@@ -130,8 +130,8 @@ public final class ReadInputDiscretesRequest extends ModbusRequest {
 		try {
 			dins = procimg.getDigitalInRange(getReference(),
 					getBitCount());
-		} catch (IllegalAddressException e) {
-			return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+		} catch (ProcessImageException e) {
+			return createExceptionResponse(e.getExceptionCode());
 		}
 		response = getResponse();
 		
@@ -39,7 +39,7 @@ import java.io.IOException;
 
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusCoupler;
-import com.ghgande.j2mod.modbus.procimg.IllegalAddressException;
+import com.ghgande.j2mod.modbus.procimg.ProcessImageException;
 import com.ghgande.j2mod.modbus.procimg.InputRegister;
 import com.ghgande.j2mod.modbus.procimg.ProcessImage;
 
@@ -114,8 +114,8 @@ public final class ReadInputRegistersRequest extends ModbusRequest {
 		try {
 			inpregs = procimg.getInputRegisterRange(getReference(),
 					getWordCount());
-		} catch (IllegalAddressException iaex) {
-			return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+		} catch (ProcessImageException iaex) {
+			return createExceptionResponse(iaex.getExceptionCode());
 		}
 		response = getResponse();
 		response.setRegisters(inpregs);
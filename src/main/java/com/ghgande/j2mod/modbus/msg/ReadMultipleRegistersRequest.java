@@ -39,9 +39,11 @@ import java.io.IOException;
 
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusCoupler;
-import com.ghgande.j2mod.modbus.procimg.IllegalAddressException;
+import com.ghgande.j2mod.modbus.procimg.AtomicProcessImage;
 import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.procimg.ProcessImageException;
 import com.ghgande.j2mod.modbus.procimg.Register;
+import com.ghgande.j2mod.modbus.procimg.SimpleRegister;
 
 /**
  * Class implementing a <tt>ReadMultipleRegistersRequest</tt>. The
@@ -109,11 +111,21 @@ public final class ReadMultipleRegistersRequest extends ModbusRequest {
 
 		// 1. get process image
 		ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
-		// 2. get input registers range
+		// 2. get input registers range, atomically if the process image
+		//    supports it, so a concurrent write is never seen half done
 		try {
-			regs = procimg.getRegisterRange(getReference(), getWordCount());
-		} catch (IllegalAddressException e) {
-			return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+			if (procimg instanceof AtomicProcessImage) {
+				int[] values = ((AtomicProcessImage) procimg).readRegisters(
+						getReference(), getWordCount());
+
+				regs = new Register[values.length];
+				for (int i = 0; i < values.length; i++)
+					regs[i] = new SimpleRegister(values[i]);
+			} else {
+				regs = procimg.getRegisterRange(getReference(), getWordCount());
+			}
+		} catch (ProcessImageException e) {
+			return createExceptionResponse(e.getExceptionCode());
 		}
 		response = (ReadMultipleRegistersResponse) getResponse();
 		response.setRegisters(regs);
@@ -71,6 +71,8 @@ import java.io.DataOutput;
 import java.io.IOException;
 
 import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusCoupler;
+import com.ghgande.j2mod.modbus.util.DiagnosticCounters;
 
 
 /**
@@ -206,11 +208,52 @@ public final class ReadSerialDiagnosticsRequest extends ModbusRequest {
 	}
 	
 	/**
-	 * The ModbusCoupler doesn't have a means of reporting the slave
-	 * state or ID information.
+	 * createResponse -- perform the diagnostic sub-function using the
+	 * ModbusCoupler's diagnostic counters.
+	 * 
+	 * <p>
+	 * Force Listen Only Mode creates a response like the other
+	 * sub-functions, the listener does not send it.
 	 */
 	public ModbusResponse createResponse() {
-		throw new RuntimeException();
+		DiagnosticCounters diag = ModbusCoupler.getReference().getDiagnostics();
+		ReadSerialDiagnosticsResponse response =
+				(ReadSerialDiagnosticsResponse) getResponse();
+
+		switch (m_Function) {
+		case 0:		// Return Query Data
+			for (int i = 0;i < getWordCount();i++)
+				response.setData(i, getData(i));
+			break;
+		case 1:		// Restart Communications Option
+			diag.restart((getData() & 0xFFFF) == 0xFF00);
+			response.setData(getData());
+			break;
+		case 2:		// Return Diagnostic Register
+			response.setData(diag.getDiagnosticRegister());
+			break;
+		case 3:		// Change ASCII Input Delimiter
+			diag.setAsciiDelimiter(getData() >> 8);
+			response.setData(getData());
+			break;
+		case 4:		// Force Listen Only Mode
+			diag.setListenOnly();
+			break;
+		case 10:	// Clear Counters and Diagnostic Register
+			diag.clear();
+			response.setData(getData());
+			break;
+		case 20:	// Clear Overrun Counter and Flag
+			diag.clearOverruns();
+			response.setData(getData());
+			break;
+		default:
+			if (! DiagnosticCounters.isCounter(m_Function))
+				return createExceptionResponse(Modbus.ILLEGAL_FUNCTION_EXCEPTION);
+
+			response.setData((int) diag.get(m_Function));
+		}
+		return response;
 	}
 
 	/**
@@ -257,7 +300,7 @@ public final class ReadSerialDiagnosticsRequest extends ModbusRequest {
 	public ReadSerialDiagnosticsRequest() {
 		super();
 		
-		setFunctionCode(Modbus.REPORT_SLAVE_ID);
+		setFunctionCode(Modbus.READ_SERIAL_DIAGNOSTICS);
 		
 		/*
 		 * Default to function 0, which has a word of data.
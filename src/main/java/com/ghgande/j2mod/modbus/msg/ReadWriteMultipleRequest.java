@@ -73,7 +73,8 @@ import java.io.IOException;
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusCoupler;
 import com.ghgande.j2mod.modbus.io.NonWordDataHandler;
-import com.ghgande.j2mod.modbus.procimg.IllegalAddressException;
+import com.ghgande.j2mod.modbus.procimg.AtomicProcessImage;
+import com.ghgande.j2mod.modbus.procimg.ProcessImageException;
 import com.ghgande.j2mod.modbus.procimg.InputRegister;
 import com.ghgande.j2mod.modbus.procimg.ProcessImage;
 import com.ghgande.j2mod.modbus.procimg.Register;
@@ -130,24 +131,39 @@ public final class ReadWriteMultipleRequest extends ModbusRequest {
 
 		// 1. get process image
 		ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
-		// 2. get input registers range
+		// 2. read and write the register ranges, atomically if the process
+		//    image supports it
 		try {
-			readRegs = procimg.getRegisterRange(getReadReference(),
-					getReadWordCount());
+			if (procimg instanceof AtomicProcessImage) {
+				int[] values = new int[getWriteWordCount()];
+				for (int i = 0; i < values.length; i++)
+					values[i] = getRegister(i).getValue();
 
-			InputRegister[] dummy = new InputRegister[readRegs.length];
-			for (int i = 0; i < readRegs.length; i++)
-				dummy[i] = new SimpleInputRegister(readRegs[i].getValue());
+				int[] read = ((AtomicProcessImage) procimg).readWriteRegisters(
+						getReadReference(), getReadWordCount(),
+						getWriteReference(), values);
 
-			readRegs = dummy;
+				readRegs = new InputRegister[read.length];
+				for (int i = 0; i < read.length; i++)
+					readRegs[i] = new SimpleInputRegister(read[i]);
+			} else {
+				readRegs = procimg.getRegisterRange(getReadReference(),
+						getReadWordCount());
 
-			writeRegs = procimg.getRegisterRange(getWriteReference(),
-					getWriteWordCount());
+				InputRegister[] dummy = new InputRegister[readRegs.length];
+				for (int i = 0; i < readRegs.length; i++)
+					dummy[i] = new SimpleInputRegister(readRegs[i].getValue());
 
-			for (int i = 0; i < writeRegs.length; i++)
-				writeRegs[i].setValue(getRegister(i).getValue());
-		} catch (IllegalAddressException e) {
-			return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+				readRegs = dummy;
+
+				writeRegs = procimg.getRegisterRange(getWriteReference(),
+						getWriteWordCount());
+
+				for (int i = 0; i < writeRegs.length; i++)
+					writeRegs[i].setValue(getRegister(i).getValue());
+			}
+		} catch (ProcessImageException e) {
+			return createExceptionResponse(e.getExceptionCode());
 		}
 		response = (ReadWriteMultipleResponse) getResponse();
 		response.setRegisters(readRegs);
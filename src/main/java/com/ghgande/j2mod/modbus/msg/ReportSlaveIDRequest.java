@@ -71,6 +71,7 @@ import java.io.DataOutput;
 import java.io.IOException;
 
 import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusCoupler;
 
 
 /**
@@ -111,11 +112,18 @@ public final class ReportSlaveIDRequest extends ModbusRequest {
 	}
 	
 	/**
-	 * The ModbusCoupler doesn't have a means of reporting the slave
-	 * state or ID information.
+	 * createResponse -- report the ModbusCoupler's unit ID and
+	 * identification data.  A slave that answers is running.
 	 */
 	public ModbusResponse createResponse() {
-		throw new RuntimeException();
+		ModbusCoupler coupler = ModbusCoupler.getReference();
+		ReportSlaveIDResponse response = (ReportSlaveIDResponse) getResponse();
+
+		response.setSlaveID(coupler.getUnitID());
+		response.setStatus(true);
+		response.setData(coupler.getIdentification());
+
+		return response;
 	}
 
 	/**
@@ -161,6 +161,7 @@ public final class ReportSlaveIDResponse
 		if (data == null) {
 			m_length = 2;
 			m_data = new byte[0];
+			setDataLength(1 + m_length);
 
 			return;
 		}
@@ -172,6 +173,7 @@ public final class ReportSlaveIDResponse
 		
 		m_data = new byte[data.length];
 		System.arraycopy(data, 0, m_data, 0, data.length);
+		setDataLength(1 + m_length);
 	}
   
 	/**
@@ -216,13 +218,13 @@ public final class ReportSlaveIDResponse
 	 * getMessage -- format the message into a byte array.
 	 */
 	public byte[] getMessage() {
-		byte result[] = new byte[3 + m_length];
+		byte result[] = new byte[1 + m_length];
 		int offset = 0;
 
-		result[offset++] = (byte) (m_length + 2);
+		result[offset++] = (byte) m_length;
 		result[offset++] = (byte) m_slaveId;
 		result[offset++] = (byte) m_status;
-		if (m_length > 0)
+		if (m_length > 2)
 			System.arraycopy(m_data, 0, result, offset, m_length - 2);
 
 		return result;
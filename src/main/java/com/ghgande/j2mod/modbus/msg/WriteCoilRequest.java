@@ -40,8 +40,8 @@ import java.io.IOException;
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusCoupler;
 import com.ghgande.j2mod.modbus.procimg.DigitalOut;
-import com.ghgande.j2mod.modbus.procimg.IllegalAddressException;
 import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.procimg.ProcessImageException;
 
 /**
  * Class implementing a <tt>WriteCoilRequest</tt>. The implementation directly
@@ -111,8 +111,8 @@ public final class WriteCoilRequest extends ModbusRequest {
 			dout = procimg.getDigitalOut(getReference());
 			// 3. set coil
 			dout.set(getCoil());
-		} catch (IllegalAddressException iaex) {
-			return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+		} catch (ProcessImageException iaex) {
+			return createExceptionResponse(iaex.getExceptionCode());
 		}
 		response = (WriteCoilResponse) getResponse();
 		response.setReference(getReference());
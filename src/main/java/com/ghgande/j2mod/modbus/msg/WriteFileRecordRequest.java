@@ -43,6 +43,7 @@ import com.ghgande.j2mod.modbus.msg.WriteFileRecordResponse.RecordResponse;
 import com.ghgande.j2mod.modbus.procimg.File;
 import com.ghgande.j2mod.modbus.procimg.IllegalAddressException;
 import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.procimg.ProcessImageException;
 import com.ghgande.j2mod.modbus.procimg.Record;
 import com.ghgande.j2mod.modbus.procimg.Register;
 import com.ghgande.j2mod.modbus.procimg.SimpleRegister;
@@ -257,8 +258,8 @@ public final class WriteFileRecordRequest extends ModbusRequest {
 						file.getFileNumber(), record.getRecordNumber(), data);
 				response.addResponse(recordResponse);
 			}
-		} catch (IllegalAddressException e) {
-			return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+		} catch (ProcessImageException e) {
+			return createExceptionResponse(e.getExceptionCode());
 		}
 		return response;
 	}
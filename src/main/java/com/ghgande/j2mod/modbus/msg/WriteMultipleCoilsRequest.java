@@ -40,8 +40,8 @@ import java.io.IOException;
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusCoupler;
 import com.ghgande.j2mod.modbus.procimg.DigitalOut;
-import com.ghgande.j2mod.modbus.procimg.IllegalAddressException;
 import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.procimg.ProcessImageException;
 import com.ghgande.j2mod.modbus.util.BitVector;
 
 /**
@@ -92,8 +92,8 @@ public final class WriteMultipleCoilsRequest extends ModbusRequest {
 			for (int i = 0; i < douts.length; i++) {
 				douts[i].set(m_Coils.getBit(i));
 			}
-		} catch (IllegalAddressException iaex) {
-			return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+		} catch (ProcessImageException iaex) {
+			return createExceptionResponse(iaex.getExceptionCode());
 		}
 		response = (WriteMultipleCoilsResponse) getResponse();
 
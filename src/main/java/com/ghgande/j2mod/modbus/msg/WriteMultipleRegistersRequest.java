@@ -133,14 +133,25 @@ public final class WriteMultipleRegistersRequest extends ModbusRequest {
 			Register[] regs = null;
 			// 1. get process image
 			ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
-			// 2. get registers
+			// 2. set the registers, atomically if the process image
+			//    supports it
 			try {
-				regs = procimg.getRegisterRange(getReference(), getWordCount());
-				// 3. set Register values
-				for (int i = 0; i < regs.length; i++)
-					regs[i].setValue(this.getRegister(i).getValue());
-			} catch (IllegalAddressException iaex) {
-				return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+				if (procimg instanceof AtomicProcessImage) {
+					int[] values = new int[getWordCount()];
+					for (int i = 0; i < values.length; i++)
+						values[i] = getRegister(i).getValue();
+
+					((AtomicProcessImage) procimg).writeRegisters(
+							getReference(), values);
+				} else {
+					regs = procimg.getRegisterRange(getReference(),
+							getWordCount());
+					// 3. set Register values
+					for (int i = 0; i < regs.length; i++)
+						regs[i].setValue(this.getRegister(i).getValue());
+				}
+			} catch (ProcessImageException iaex) {
+				return createExceptionResponse(iaex.getExceptionCode());
 			}
 			response = (WriteMultipleRegistersResponse) getResponse();
 
@@ -195,6 +206,10 @@ public final class WriteMultipleRegistersRequest extends ModbusRequest {
 	 */
 	public void setRegisters(Register[] registers) {
 		m_Registers = registers;
+
+		// update data length
+		if (registers != null)
+			setDataLength(5 + registers.length * 2);
 	}
 
 	/**
@@ -317,6 +332,9 @@ public final class WriteMultipleRegistersRequest extends ModbusRequest {
 		} else {
 			m_NonWordDataHandler.readData(input, m_Reference, registerCount);
 		}
+
+		// update data length
+		setDataLength(5 + byteCount);
 	}
 
 	public byte[] getMessage() {
@@ -39,8 +39,8 @@ import java.io.IOException;
 
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusCoupler;
-import com.ghgande.j2mod.modbus.procimg.IllegalAddressException;
 import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.procimg.ProcessImageException;
 import com.ghgande.j2mod.modbus.procimg.Register;
 import com.ghgande.j2mod.modbus.procimg.SimpleRegister;
 
@@ -112,8 +112,8 @@ public final class WriteSingleRegisterRequest extends ModbusRequest {
 			reg = procimg.getRegister(m_Reference);
 			// 3. set Register
 			reg.setValue(m_Register.toBytes());
-		} catch (IllegalAddressException iaex) {
-			return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+		} catch (ProcessImageException iaex) {
+			return createExceptionResponse(iaex.getExceptionCode());
 		}
 		response = (WriteSingleRegisterResponse) getResponse();
 
@@ -0,0 +1,324 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CircuitBreaker -- stops masters from hammering a slave that is not
+ * answering, such as a PLC that is rebooting.
+ * 
+ * <p>
+ * The breaker is closed while the slave answers. After a number of failures
+ * in a row it opens, and transactions fail at once, without connecting,
+ * until a backoff delay has passed. Then it is half open: one transaction
+ * is let through, and closes the breaker if it succeeds. If it fails the
+ * breaker opens again, for twice the delay. The delay is up to the maximum,
+ * and each is shortened by a random part of up to half, so that masters
+ * that lost a slave together do not all come back at once.
+ * 
+ * <p>
+ * There is one breaker per slave address and port, shared by all the
+ * masters in this JVM, from {@link #getBreaker(String)}. The transitions
+ * are counted, and scraped with the transaction metrics.
+ */
+public class CircuitBreaker {
+	/**
+	 * Transactions are let through.
+	 */
+	public static final int CLOSED = 0;
+
+	/**
+	 * Transactions fail at once.
+	 */
+	public static final int OPEN = 1;
+
+	/**
+	 * One transaction is let through, to test the slave.
+	 */
+	public static final int HALF_OPEN = 2;
+
+	private static final ConcurrentHashMap<String, CircuitBreaker> c_Breakers =
+			new ConcurrentHashMap<String, CircuitBreaker>();
+	private static volatile boolean c_Enabled = !"false".equals(System
+			.getProperty("com.ghgande.modbus.breaker"));
+
+	private final String m_Name;
+	private volatile int m_State = CLOSED;
+	private volatile int m_Failures; // in a row, written under this
+	private int m_Opened; // times in a row, guarded by this
+	private long m_RetryAt; // guarded by this
+
+	private volatile int m_Threshold = 3;
+	private volatile long m_BaseDelay = TimeUnit.SECONDS.toNanos(1);
+	private volatile long m_MaxDelay = TimeUnit.SECONDS.toNanos(60);
+
+	private final LongAdder m_Opens = new LongAdder();
+	private final LongAdder m_HalfOpens = new LongAdder();
+	private final LongAdder m_Closes = new LongAdder();
+	private final LongAdder m_Rejected = new LongAdder();
+
+	/**
+	 * getBreaker -- the breaker of a slave, created on first use.
+	 * 
+	 * @param name
+	 *            the name of the connection, as used for metrics.
+	 * @return the breaker.
+	 */
+	public static CircuitBreaker getBreaker(String name) {
+		CircuitBreaker result = c_Breakers.get(name);
+		if (result == null) {
+			CircuitBreaker created = new CircuitBreaker(name);
+			result = c_Breakers.putIfAbsent(name, created);
+			if (result == null)
+				result = created;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the breakers of all slaves seen so far.
+	 */
+	public static List<CircuitBreaker> getBreakers() {
+		return new ArrayList<CircuitBreaker>(c_Breakers.values());
+	}
+
+	/**
+	 * isEnabled -- whether transactions consult the breakers. Set the system
+	 * property <tt>com.ghgande.modbus.breaker</tt> to <tt>false</tt> to turn
+	 * them off from the start.
+	 */
+	public static boolean isEnabled() {
+		return c_Enabled;
+	}
+
+	public static void setEnabled(boolean enabled) {
+		c_Enabled = enabled;
+	}
+
+	/**
+	 * Constructs a new, closed <tt>CircuitBreaker</tt> that is not shared.
+	 * 
+	 * @param name
+	 *            the name of the slave.
+	 */
+	public CircuitBreaker(String name) {
+		m_Name = name;
+	}
+
+	public String getName() {
+		return m_Name;
+	}
+
+	/**
+	 * Returns the state, <tt>CLOSED</tt>, <tt>OPEN</tt> or
+	 * <tt>HALF_OPEN</tt>.
+	 */
+	public int getState() {
+		return m_State;
+	}
+
+	/**
+	 * setThreshold -- the number of failures in a row that opens the
+	 * breaker, 3 by default.
+	 * 
+	 * @param count
+	 *            the number of failures.
+	 */
+	public void setThreshold(int count) {
+		if (count < 1)
+			throw new IllegalArgumentException("invalid count " + count);
+
+		m_Threshold = count;
+	}
+
+	public int getThreshold() {
+		return m_Threshold;
+	}
+
+	/**
+	 * setBaseDelay -- how long the breaker first stays open, 1 second by
+	 * default.
+	 * 
+	 * @param ms
+	 *            the delay in milliseconds.
+	 */
+	public void setBaseDelay(long ms) {
+		m_BaseDelay = TimeUnit.MILLISECONDS.toNanos(ms);
+	}
+
+	public long getBaseDelay() {
+		return TimeUnit.NANOSECONDS.toMillis(m_BaseDelay);
+	}
+
+	/**
+	 * setMaxDelay -- the longest the breaker stays open, 60 seconds by
+	 * default.
+	 * 
+	 * @param ms
+	 *            the delay in milliseconds.
+	 */
+	public void setMaxDelay(long ms) {
+		m_MaxDelay = TimeUnit.MILLISECONDS.toNanos(ms);
+	}
+
+	public long getMaxDelay() {
+		return TimeUnit.NANOSECONDS.toMillis(m_MaxDelay);
+	}
+
+	/**
+	 * Returns the number of times the breaker opened.
+	 */
+	public long getOpenCount() {
+		return m_Opens.sum();
+	}
+
+	/**
+	 * Returns the number of times the breaker let a test transaction through.
+	 */
+	public long getHalfOpenCount() {
+		return m_HalfOpens.sum();
+	}
+
+	/**
+	 * Returns the number of times the breaker closed again.
+	 */
+	public long getCloseCount() {
+		return m_Closes.sum();
+	}
+
+	/**
+	 * Returns the number of transactions failed at once.
+	 */
+	public long getRejectedCount() {
+		return m_Rejected.sum();
+	}
+
+	/**
+	 * allowRequest -- whether a transaction may go ahead. If it may, the
+	 * caller must report how it went with {@link #success()} or
+	 * {@link #failure()}.
+	 * 
+	 * @return <tt>true</tt> if closed, or if the delay has passed and this is
+	 *         the test transaction.
+	 */
+	public boolean allowRequest() {
+		if (m_State == CLOSED)
+			return true;
+
+		synchronized (this) {
+			if (m_State == CLOSED)
+				return true;
+
+			if (m_State == OPEN && System.nanoTime() - m_RetryAt >= 0) {
+				m_State = HALF_OPEN;
+				m_HalfOpens.increment();
+				return true;
+			}
+		}
+		m_Rejected.increment();
+		return false;
+	}
+
+	/**
+	 * success -- the slave answered.
+	 */
+	public void success() {
+		if (m_State == CLOSED && m_Failures == 0)
+			return;
+
+		synchronized (this) {
+			m_Failures = 0;
+			m_Opened = 0;
+			if (m_State != CLOSED) {
+				m_State = CLOSED;
+				m_Closes.increment();
+			}
+		}
+	}
+
+	/**
+	 * failure -- the slave could not be reached, or did not answer.
+	 */
+	public synchronized void failure() {
+		// transactions that started before the breaker opened
+		if (m_State == OPEN)
+			return;
+
+		if (m_State == CLOSED && ++m_Failures < m_Threshold)
+			return;
+
+		// closed past the threshold, or the test transaction failed
+		long delay = m_BaseDelay << Math.min(m_Opened, 30);
+		if (delay <= 0 || delay > m_MaxDelay)
+			delay = m_MaxDelay;
+		delay -= ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+
+		m_Opened++;
+		m_Failures = 0;
+		m_RetryAt = System.nanoTime() + delay;
+		if (m_State != OPEN) {
+			m_State = OPEN;
+			m_Opens.increment();
+		}
+	}
+
+	/**
+	 * reset -- close the breaker.
+	 */
+	public synchronized void reset() {
+		m_Failures = 0;
+		m_Opened = 0;
+		if (m_State != CLOSED) {
+			m_State = CLOSED;
+			m_Closes.increment();
+		}
+	}
+
+	public String toString() {
+		switch (m_State) {
+		case OPEN:
+			return m_Name + ": open";
+		case HALF_OPEN:
+			return m_Name + ": half open";
+		default:
+			return m_Name + ": closed";
+		}
+	}
+}
@@ -0,0 +1,289 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.net;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.io.ModbusTransport;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ReadSerialDiagnosticsRequest;
+
+/**
+ * ConnectionMonitor -- finds Modbus/TCP master connections whose slave has
+ * gone away, in the background, so that the next transaction reconnects
+ * instead of waiting for a timeout.
+ * 
+ * <p>
+ * A connection that has received a frame within the idle time is known to
+ * be alive. One that has been idle longer is sent a heartbeat request, by
+ * default a diagnostics echo. Any answer, an exception response included,
+ * shows that the slave is there. A connection that gets no answer is
+ * closed, which also finds connections left half open by a slave that was
+ * powered off or cut off without closing them. Connections watched without
+ * a heartbeat are only checked for having been closed by the slave.
+ * 
+ * <p>
+ * The checks run on one thread shared by all watched connections. A
+ * heartbeat holds the connection's transport, as a transaction does, and a
+ * transaction started meanwhile waits for it.
+ */
+public class ConnectionMonitor {
+	private static final ConnectionMonitor c_Monitor = new ConnectionMonitor();
+
+	/**
+	 * The Modbus/TCP unit identifier of a device that has none of its own.
+	 */
+	private static final int NO_UNIT = 0xFF;
+
+	private final ConcurrentHashMap<TCPMasterConnection, ModbusRequest> m_Watched =
+			new ConcurrentHashMap<TCPMasterConnection, ModbusRequest>();
+	private final ModbusRequest m_None = new ReadSerialDiagnosticsRequest();
+	private volatile long m_IdleTime = TimeUnit.SECONDS.toNanos(10);
+	private volatile int m_Timeout = 1000;
+	private ScheduledExecutorService m_Executor;
+	private ScheduledFuture<?> m_Task;
+
+	private final LongAdder m_Heartbeats = new LongAdder();
+	private final LongAdder m_Lost = new LongAdder();
+
+	/**
+	 * Returns the monitor shared by default.
+	 */
+	public static ConnectionMonitor getReference() {
+		return c_Monitor;
+	}
+
+	/**
+	 * setIdleTime -- how long a connection may go without receiving before it
+	 * is checked, 10 seconds by default. Connections are looked at four times
+	 * in this time.
+	 * 
+	 * @param ms
+	 *            the time in milliseconds.
+	 */
+	public synchronized void setIdleTime(long ms) {
+		if (ms < 4)
+			throw new IllegalArgumentException("invalid idle time " + ms);
+
+		m_IdleTime = TimeUnit.MILLISECONDS.toNanos(ms);
+		if (m_Task != null) {
+			m_Task.cancel(false);
+			m_Task = null;
+			schedule();
+		}
+	}
+
+	public long getIdleTime() {
+		return TimeUnit.NANOSECONDS.toMillis(m_IdleTime);
+	}
+
+	/**
+	 * setTimeout -- how long to wait for the answer to a heartbeat, 1000
+	 * milliseconds by default.
+	 * 
+	 * @param ms
+	 *            the timeout in milliseconds.
+	 */
+	public void setTimeout(int ms) {
+		m_Timeout = ms;
+	}
+
+	public int getTimeout() {
+		return m_Timeout;
+	}
+
+	/**
+	 * Returns the number of heartbeats sent.
+	 */
+	public long getHeartbeatCount() {
+		return m_Heartbeats.sum();
+	}
+
+	/**
+	 * Returns the number of connections found dead and closed.
+	 */
+	public long getLostCount() {
+		return m_Lost.sum();
+	}
+
+	/**
+	 * watch -- check a connection with a diagnostics echo, sent to unit 255,
+	 * when it is idle.
+	 * 
+	 * <p>
+	 * Unit 255 is the Modbus/TCP address of a device that has no unit
+	 * identifier of its own. Unit 0 would be a broadcast, which gateways do
+	 * not answer. A gateway may not answer unit 255 either, so watch a
+	 * connection to a gateway with {@link #watch(TCPMasterConnection, int)}
+	 * and the unit of a device behind it.
+	 * 
+	 * @param connection
+	 *            the connection.
+	 */
+	public void watch(TCPMasterConnection connection) {
+		watch(connection, NO_UNIT);
+	}
+
+	/**
+	 * watch -- check a connection with a diagnostics echo, sent to a given
+	 * unit, when it is idle.
+	 * 
+	 * @param connection
+	 *            the connection.
+	 * @param unit
+	 *            the unit that must answer, from 1 to 255.
+	 */
+	public void watch(TCPMasterConnection connection, int unit) {
+		if (unit < 1 || unit > 255)
+			throw new IllegalArgumentException("invalid unit " + unit);
+
+		ModbusRequest heartbeat = new ReadSerialDiagnosticsRequest();
+		heartbeat.setUnitID(unit);
+		watch(connection, heartbeat);
+	}
+
+	/**
+	 * watch -- check a connection with a given heartbeat request when it is
+	 * idle. The request should not change anything in the slave, for example
+	 * a read of a single register.
+	 * 
+	 * @param connection
+	 *            the connection.
+	 * @param heartbeat
+	 *            the request, or <tt>null</tt> to check only whether the
+	 *            slave has closed the connection.
+	 */
+	public void watch(TCPMasterConnection connection, ModbusRequest heartbeat) {
+		m_Watched.put(connection, heartbeat == null ? m_None : heartbeat);
+		synchronized (this) {
+			schedule();
+		}
+	}
+
+	/**
+	 * unwatch -- stop checking a connection.
+	 * 
+	 * @param connection
+	 *            the connection.
+	 */
+	public void unwatch(TCPMasterConnection connection) {
+		m_Watched.remove(connection);
+	}
+
+	/**
+	 * Tests if a connection is being checked.
+	 */
+	public boolean isWatching(TCPMasterConnection connection) {
+		return m_Watched.containsKey(connection);
+	}
+
+	private void schedule() {
+		if (m_Task != null)
+			return;
+
+		if (m_Executor == null) {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+					1, new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "connection-monitor");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			executor.setRemoveOnCancelPolicy(true);
+			m_Executor = executor;
+		}
+		long period = m_IdleTime / 4;
+		m_Task = m_Executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				for (TCPMasterConnection connection : m_Watched.keySet()) {
+					try {
+						check(connection);
+					} catch (RuntimeException ex) {
+						// keep checking the others
+						if (Modbus.debug)
+							ex.printStackTrace();
+					}
+				}
+			}
+		}, period, period, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * check -- send a heartbeat on a connection if it has been idle.
+	 */
+	private void check(TCPMasterConnection connection) {
+		ModbusRequest heartbeat = m_Watched.get(connection);
+		if (heartbeat == null || !connection.isConnected()
+				|| System.nanoTime() - connection.getLastReceived() < m_IdleTime)
+			return;
+
+		/*
+		 * Transactions hold the lock on the transport, so a check never
+		 * reads from under one.
+		 */
+		ModbusTransport transport = connection.getModbusTransport();
+		synchronized (transport) {
+			// a transaction may have run while waiting for it
+			if (System.nanoTime() - connection.getLastReceived() < m_IdleTime)
+				return;
+
+			if (heartbeat == m_None) {
+				if (!connection.isAlive())
+					m_Lost.increment();
+				return;
+			}
+			int timeout = connection.getTimeout();
+			connection.setTimeout(m_Timeout);
+			try {
+				m_Heartbeats.increment();
+				transport.writeMessage(heartbeat);
+				transport.readResponse();
+			} catch (ModbusIOException ex) {
+				connection.close();
+				m_Lost.increment();
+			} finally {
+				connection.setTimeout(timeout);
+			}
+		}
+	}
+}
@@ -5,9 +5,6 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 
-import gnu.io.CommPort;
-import gnu.io.PortInUseException;
-import gnu.io.RXTXPort;
 import gnu.io.SerialPort;
 
 import com.ghgande.j2mod.modbus.Modbus;
@@ -15,6 +12,8 @@ import com.ghgande.j2mod.modbus.io.ModbusRTUTransport;
 import com.ghgande.j2mod.modbus.io.ModbusTCPTransport;
 import com.ghgande.j2mod.modbus.io.ModbusTransport;
 import com.ghgande.j2mod.modbus.io.ModbusUDPTransport;
+import com.ghgande.j2mod.modbus.serial.SerialPortAdapter;
+import com.ghgande.j2mod.modbus.serial.SerialPortFactory;
 import com.ghgande.j2mod.modbus.util.SerialParameters;
 
 /**
@@ -35,9 +34,15 @@ public class ModbusMasterFactory {
 			 * 19200 baud, no parity, using the specified device. If there is an
 			 * additional part after the device name, it will be used as the
 			 * Modbus unit number.
+			 * 
+			 * Port names with a prefix, such as "mem:bus", are taken whole.
 			 */
+			String portName = parts[1];
+			if (parts.length > 2 && SerialPortFactory.isPrefix(parts[1] + ":"))
+				portName = parts[1] + ":" + parts[2];
+
 			SerialParameters parms = new SerialParameters();
-			parms.setPortName(parts[1]);
+			parms.setPortName(portName);
 			parms.setBaudRate(19200);
 			parms.setDatabits(8);
 			parms.setEcho(false);
@@ -46,14 +51,12 @@ public class ModbusMasterFactory {
 
 			try {
 				ModbusRTUTransport transport = new ModbusRTUTransport();
-				CommPort port = new RXTXPort(parms.getPortName());
+				SerialPortAdapter port = SerialPortFactory.openPort(parms);
 
-				transport.setCommPort(port);
+				transport.setSerialPort(port);
 				transport.setEcho(false);
 
 				return transport;
-			} catch (PortInUseException e) {
-				return null;
 			} catch (IOException e) {
 				return null;
 			}
@@ -70,8 +70,11 @@ import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusCoupler;
 import com.ghgande.j2mod.modbus.ModbusIOException;
 import com.ghgande.j2mod.modbus.io.ModbusTransport;
+import com.ghgande.j2mod.modbus.metrics.MetricsRegistry;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.msg.ReadSerialDiagnosticsRequest;
+import com.ghgande.j2mod.modbus.util.DiagnosticCounters;
 import com.ghgande.j2mod.modbus.util.SerialParameters;
 
 /**
@@ -89,6 +92,7 @@ public class ModbusSerialListener implements ModbusListener {
 	private boolean m_Running = true;
 	private SerialConnection m_SerialCon;
 	private int m_Unit = 0;
+	private String m_Name;
 
 	/**
 	 * run
@@ -115,9 +119,26 @@ public class ModbusSerialListener implements ModbusListener {
 						if (request == null)
 							continue;
 						
-						if (m_Unit != 0 && m_Unit != request.getUnitID())
+						if (m_Unit != 0 && request.getUnitID() != 0
+								&& m_Unit != request.getUnitID())
 							continue;
 
+						/*
+						 * Broadcasts are carried out but never answered. In
+						 * listen only mode only a restart is carried out.
+						 */
+						DiagnosticCounters diag = ModbusCoupler.getReference()
+								.getDiagnostics();
+						diag.requestReceived(request);
+						long start = System.nanoTime();
+
+						boolean silent = request.getUnitID() == 0
+								|| diag.isListenOnly();
+						if (diag.isListenOnly() && !isRestart(request)) {
+							diag.noResponse(request);
+							continue;
+						}
+
 						/*
 						 * Create the response using a ProcessImage. A Modbus
 						 * ILLEGAL FUNCTION exception will be thrown if there is
@@ -149,7 +170,14 @@ public class ModbusSerialListener implements ModbusListener {
 						/*
 						 * Write the response.
 						 */
+						if (silent) {
+							diag.noResponse(request);
+							continue;
+						}
 						transport.writeMessage(response);
+						diag.responseSent(request, response);
+						MetricsRegistry.getReference().transaction(m_Name,
+								request, response, start);
 					} catch (ModbusIOException ex) {
 						if (Modbus.debug)
 							ex.printStackTrace();
@@ -179,6 +207,15 @@ public class ModbusSerialListener implements ModbusListener {
 		}
 	}
 
+	/**
+	 * Tests if a request is a Restart Communications Option (FC 8, sub-function
+	 * 1), the only request a slave in listen only mode acts on.
+	 */
+	private static boolean isRestart(ModbusRequest request) {
+		return request instanceof ReadSerialDiagnosticsRequest
+				&& ((ReadSerialDiagnosticsRequest) request).getFunction() == 1;
+	}
+
 	/**
 	 * Sets the Modbus unit number for this <tt>ModbusSerialListener</tt>
 	 * 
@@ -247,5 +284,6 @@ public class ModbusSerialListener implements ModbusListener {
 	 */
 	public ModbusSerialListener(SerialParameters params) {
 		m_SerialCon = new SerialConnection(params);
+		m_Name = "slave:device:" + params.getPortName();
 	}
 }
@@ -74,8 +74,10 @@ import com.ghgande.j2mod.modbus.ModbusCoupler;
 import com.ghgande.j2mod.modbus.ModbusIOException;
 import com.ghgande.j2mod.modbus.io.ModbusTransport;
 import com.ghgande.j2mod.modbus.io.ModbusUDPTransport;
+import com.ghgande.j2mod.modbus.metrics.MetricsRegistry;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.util.DiagnosticCounters;
 
 /**
  * Class that implements a ModbusUDPListener.<br>
@@ -89,6 +91,7 @@ import com.ghgande.j2mod.modbus.msg.ModbusResponse;
  */
 public class ModbusUDPListener implements ModbusListener {
 	private int m_Port = Modbus.DEFAULT_PORT;
+	private String m_Name; // for the metrics
 	private boolean m_Listening = false;
 	private boolean m_Continue = false;
 	private InetAddress m_Interface;
@@ -138,6 +141,7 @@ public class ModbusUDPListener implements ModbusListener {
 			}
 			m_Terminal.setLocalPort(m_Port);
 			m_Terminal.activate();
+			m_Name = "slave:udp:" + m_Port;
 
 			m_Transport = new ModbusUDPTransport(m_Terminal);
 		} catch (Exception e) {
@@ -165,6 +169,12 @@ public class ModbusUDPListener implements ModbusListener {
 				ModbusRequest request = m_Transport.readRequest();
 				ModbusResponse response = null;
 
+				DiagnosticCounters diag = ModbusCoupler.getReference()
+						.getDiagnostics();
+				diag.increment(DiagnosticCounters.BUS_MESSAGES);
+				diag.requestReceived(request);
+				long start = System.nanoTime();
+
 				/*
 				 * Make sure there is a process image to handle the request.
 				 */
@@ -181,6 +191,9 @@ public class ModbusUDPListener implements ModbusListener {
 					System.err.println("Response:" + response.getHexMessage());
 				}
 				m_Transport.writeMessage(response);
+				diag.responseSent(request, response);
+				MetricsRegistry.getReference().transaction(m_Name, request,
+						response, start);
 			}
 		} catch (ModbusIOException ex) {
 			if (!ex.isEOF()) {
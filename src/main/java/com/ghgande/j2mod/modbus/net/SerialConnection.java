@@ -66,31 +66,31 @@
  ***/
 package com.ghgande.j2mod.modbus.net;
 
-import gnu.io.*;
-
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.TooManyListenersException;
 
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.io.*;
+import com.ghgande.j2mod.modbus.serial.SerialPortAdapter;
+import com.ghgande.j2mod.modbus.serial.SerialPortFactory;
 import com.ghgande.j2mod.modbus.util.SerialParameters;
 
 /**
  * Class that implements a serial connection which can be used for master and
  * slave implementations.
+ * <p>
+ * The port is opened with {@link SerialPortFactory}, so the port name
+ * selects the implementation, e.g. <tt>mem:slave</tt> for an in-memory port.
  * 
  * @author Dieter Wimberger
  * @author John Charlton
  * @version 1.2rc1 (09/11/2004)
  */
-public class SerialConnection implements SerialPortEventListener {
+public class SerialConnection {
 
 	private SerialParameters m_Parameters;
 	private ModbusSerialTransport m_Transport;
-	private SerialPort m_SerialPort;
+	private SerialPortAdapter m_SerialPort;
 	private boolean m_Open;
-	private InputStream m_SerialIn;
 
 	/**
 	 * Returns the <tt>ModbusTransport</tt> instance to be used for receiving
@@ -109,49 +109,13 @@ public class SerialConnection implements SerialPortEventListener {
 	 *             if an error occurs.
 	 */
 	public void open() throws Exception {
-		CommPortIdentifier m_PortIdentifier;
-		
 		try {
-			/*
-			 * 1. obtain a CommPortIdentifier instance
-			 */
-			m_PortIdentifier = CommPortIdentifier
-					.getPortIdentifier(m_Parameters.getPortName());
-			
-			/*
-			 * open the port, wait for given timeout
-			 */
-			m_SerialPort = (SerialPort) m_PortIdentifier.open(
-					"Modbus Serial Master", 30000);
-		} catch (PortInUseException e) {
+			m_SerialPort = SerialPortFactory.openPort(m_Parameters);
+		} catch (IOException e) {
 			if (Modbus.debug)
 				System.out.println(e.getMessage());
 
 			throw new Exception(e.getMessage());
-		} catch (NoSuchPortException e) {
-
-			/*
-			 * It's possible there is no CommPortIdentifier because RXTX does
-			 * not look for all of them.
-			 */
-			try {
-				m_SerialPort = new RXTXPort(m_Parameters.getPortName());
-			} catch (PortInUseException x) {
-				if (Modbus.debug)
-					x.printStackTrace();
-
-				throw new Exception(x.getMessage());
-			}
-		}
-		// 3. set the parameters
-		try {
-			setConnectionParameters();
-		} catch (Exception e) {
-			// ensure it is closed
-			m_SerialPort.close();
-			if (Modbus.debug)
-				System.out.println(e.getMessage());
-			throw e;
 		}
 
 		if (Modbus.SERIAL_ENCODING_ASCII.equals(m_Parameters.getEncoding())) {
@@ -168,10 +132,7 @@ public class SerialConnection implements SerialPortEventListener {
 		// Open the input and output streams for the connection. If they won't
 		// open, close the port before throwing an exception.
 		try {
-			m_SerialIn = m_SerialPort.getInputStream();
-			m_Transport.setCommPort(m_SerialPort);
-			// m_Transport.prepareStreams(m_SerialIn,
-			// m_SerialPort.getOutputStream());
+			m_Transport.setSerialPort(m_SerialPort);
 		} catch (IOException e) {
 			m_SerialPort.close();
 			if (Modbus.debug)
@@ -179,80 +140,33 @@ public class SerialConnection implements SerialPortEventListener {
 
 			throw new Exception("Error opening i/o streams");
 		}
-		// System.out.println("i/o Streams prepared");
-
-		// Add this object as an event listener for the serial port.
-		try {
-			m_SerialPort.addEventListener(this);
-		} catch (TooManyListenersException e) {
-			m_SerialPort.close();
-			if (Modbus.debug)
-				System.out.println(e.getMessage());
-			throw new Exception("too many listeners added");
-		}
-
-		// Set notifyOnBreakInterrup to allow event driven break handling.
-		m_SerialPort.notifyOnBreakInterrupt(true);
 
 		// Set receive timeout to allow breaking out of polling loop during
 		// input handling.
-		try {
-			m_SerialPort.enableReceiveTimeout(200);
-		} catch (UnsupportedCommOperationException e) {
-			if (Modbus.debug)
-				System.out.println(e.getMessage());
-
-		}
+		m_Transport.setReceiveTimeout(200);
 		m_Open = true;
 	}// open
 
 	/**
 	 * Sets the connection parameters to the setting in the parameters object.
-	 * If set fails return the parameters object to origional settings and throw
-	 * exception.
+	 * If set fails the port keeps its previous settings and an exception is
+	 * thrown.
 	 * 
 	 * @throws Exception
 	 *             if the configured parameters cannot be set properly on the
 	 *             port.
 	 */
 	public void setConnectionParameters() throws Exception {
-
-		// Save state of parameters before trying a set.
-		int oldBaudRate = m_SerialPort.getBaudRate();
-		int oldDatabits = m_SerialPort.getDataBits();
-		int oldStopbits = m_SerialPort.getStopBits();
-		int oldParity = m_SerialPort.getParity();
-		int oldFlowControl = m_SerialPort.getFlowControlMode();
-
-		// Set connection parameters, if set fails return parameters object
-		// to original state.
 		try {
-			m_SerialPort.setSerialPortParams(m_Parameters.getBaudRate(),
-					m_Parameters.getDatabits(), m_Parameters.getStopbits(),
-					m_Parameters.getParity());
-		} catch (UnsupportedCommOperationException e) {
-			m_Parameters.setBaudRate(oldBaudRate);
-			m_Parameters.setDatabits(oldDatabits);
-			m_Parameters.setStopbits(oldStopbits);
-			m_Parameters.setParity(oldParity);
-			m_Parameters.setFlowControlIn(oldFlowControl);
-			
-			if (Modbus.debug)
-				System.out.println(e.getMessage());
-
-			throw new Exception("Unsupported parameter");
-		}
-
-		// Set flow control.
-		try {
-			m_SerialPort.setFlowControlMode(m_Parameters.getFlowControlIn()
-					| m_Parameters.getFlowControlOut());
-		} catch (UnsupportedCommOperationException e) {
+			m_SerialPort.setParameters(m_Parameters);
+		} catch (IOException e) {
 			if (Modbus.debug)
 				System.out.println(e.getMessage());
 
-			throw new Exception("Unsupported flow control");
+			throw new Exception(e.getMessage());
 		}
+		if (m_Transport instanceof ModbusRTUTransport)
+			m_Transport.setBaudRate(m_Parameters.getBaudRate());
 	}
 
 	/**
@@ -268,7 +182,6 @@ public class SerialConnection implements SerialPortEventListener {
 		if (m_SerialPort != null) {
 			try {
 				m_Transport.close();
-				m_SerialIn.close();
 			} catch (IOException e) {
 				System.err.println(e);
 			}
@@ -287,24 +200,6 @@ public class SerialConnection implements SerialPortEventListener {
 		return m_Open;
 	}
 
-	public void serialEvent(SerialPortEvent e) {
-		// Determine type of event.
-		switch (e.getEventType()) {
-		case SerialPortEvent.DATA_AVAILABLE:
-			// This event is ignored, the application reads directly from
-			// the serial input stream
-			break;
-		case SerialPortEvent.BI:
-			if (Modbus.debug)
-				System.out.println("Serial port break detected");
-			
-			break;
-		default:
-			if (Modbus.debug)
-				System.out.println("Serial port event: " + e.getEventType());
-		}
-	}
-
 	/**
 	 * Creates a SerialConnection object and initializes variables passed in as
 	 * params.
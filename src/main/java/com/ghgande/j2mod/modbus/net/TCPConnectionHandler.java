@@ -37,9 +37,11 @@ import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.ModbusCoupler;
 import com.ghgande.j2mod.modbus.ModbusIOException;
 import com.ghgande.j2mod.modbus.io.ModbusTransport;
+import com.ghgande.j2mod.modbus.metrics.MetricsRegistry;
 import com.ghgande.j2mod.modbus.msg.ModbusRequest;
 import com.ghgande.j2mod.modbus.msg.ModbusResponse;
 import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.util.DiagnosticCounters;
 
 /**
  * Class implementing a handler for incoming Modbus/TCP requests.
@@ -50,6 +52,7 @@ import com.ghgande.j2mod.modbus.procimg.ProcessImage;
 public class TCPConnectionHandler implements Runnable {
 	private TCPSlaveConnection m_Connection;
 	private ModbusTransport m_Transport;
+	private String m_Name;
 
 	/**
 	 * Constructs a new <tt>TCPConnectionHandler</tt> instance.
@@ -76,6 +79,7 @@ public class TCPConnectionHandler implements Runnable {
 	public void setConnection(TCPSlaveConnection con) {
 		m_Connection = con;
 		m_Transport = m_Connection.getModbusTransport();
+		m_Name = "slave:tcp:" + m_Connection.getPort();
 	}
 
 	public void run() {
@@ -85,6 +89,10 @@ public class TCPConnectionHandler implements Runnable {
 				ModbusRequest request = m_Transport.readRequest();
 				ModbusResponse response = null;
 
+				DiagnosticCounters diag = ModbusCoupler.getReference()
+						.getDiagnostics();
+				diag.increment(DiagnosticCounters.BUS_MESSAGES);
+
 				/*
 				 * test if Process image exists.
 				 */
@@ -107,6 +115,8 @@ public class TCPConnectionHandler implements Runnable {
 				}
 
 				// 2. create the response.
+				diag.requestReceived(request);
+				long start = System.nanoTime();
 				response = request.createResponse();
 
 				if (Modbus.debug) {
@@ -116,6 +126,9 @@ public class TCPConnectionHandler implements Runnable {
 
 				// 3. write the response message.
 				m_Transport.writeMessage(response);
+				diag.responseSent(request, response);
+				MetricsRegistry.getReference().transaction(m_Name, request,
+						response, start);
 			} while (true);
 		} catch (ModbusIOException ex) {
 			if (!ex.isEOF() && Modbus.debug)
@@ -0,0 +1,513 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.net;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+
+/**
+ * TCPConnectionPool -- keeps connections to Modbus/TCP slaves open between
+ * transactions, so that they are not set up and torn down for each burst of
+ * requests.
+ * 
+ * <p>
+ * Connections are pooled per slave address and port. A connection is
+ * borrowed for a transaction and returned after it, or invalidated if the
+ * transaction failed on it. A borrowed connection is only checked locally,
+ * the slave is never sent anything. A background thread closes connections
+ * that have been idle too long, keeps the minimum number open, and checks
+ * the idle ones with {@link TCPMasterConnection#isAlive()}, which closes
+ * those the slave has dropped.
+ * 
+ * <p>
+ * A <tt>ModbusTCPTransaction</tt> or <tt>ModbusTCPMaster</tt> constructed
+ * with a pool borrows and returns connections by itself.
+ */
+public class TCPConnectionPool {
+	private static final TCPConnectionPool c_Pool = new TCPConnectionPool();
+
+	private final ConcurrentHashMap<String, Endpoint> m_Endpoints =
+			new ConcurrentHashMap<String, Endpoint>();
+	private volatile int m_MinIdle = 0;
+	private volatile int m_MaxSize = 8;
+	private volatile long m_IdleTimeout = TimeUnit.SECONDS.toNanos(60);
+	private volatile long m_CheckInterval = TimeUnit.SECONDS.toNanos(10);
+	private volatile long m_WaitTimeout = TimeUnit.MILLISECONDS
+			.toNanos(Modbus.DEFAULT_TIMEOUT);
+	private volatile int m_Timeout = Modbus.DEFAULT_TIMEOUT;
+	private Thread m_Evictor;
+	private volatile boolean m_Closed;
+
+	private final LongAdder m_Created = new LongAdder();
+	private final LongAdder m_Reused = new LongAdder();
+	private final LongAdder m_Evicted = new LongAdder();
+	private final LongAdder m_Dropped = new LongAdder();
+
+	/**
+	 * Returns the pool shared by default.
+	 */
+	public static TCPConnectionPool getReference() {
+		return c_Pool;
+	}
+
+	/**
+	 * setMinIdle -- the number of connections kept open to each slave the
+	 * pool has been used for, 0 by default.
+	 * 
+	 * @param count
+	 *            the number of connections.
+	 */
+	public void setMinIdle(int count) {
+		if (count < 0)
+			throw new IllegalArgumentException("invalid count " + count);
+
+		m_MinIdle = count;
+	}
+
+	public int getMinIdle() {
+		return m_MinIdle;
+	}
+
+	/**
+	 * setMaxSize -- the greatest number of connections to each slave, in use
+	 * or idle, 8 by default. Borrowers wait when all are in use.
+	 * 
+	 * @param count
+	 *            the number of connections.
+	 */
+	public void setMaxSize(int count) {
+		if (count < 1)
+			throw new IllegalArgumentException("invalid count " + count);
+
+		m_MaxSize = count;
+	}
+
+	public int getMaxSize() {
+		return m_MaxSize;
+	}
+
+	/**
+	 * setIdleTimeout -- the time after which an idle connection is closed,
+	 * unless it is needed for the minimum, 60 seconds by default.
+	 * 
+	 * @param ms
+	 *            the time in milliseconds.
+	 */
+	public void setIdleTimeout(long ms) {
+		m_IdleTimeout = TimeUnit.MILLISECONDS.toNanos(ms);
+	}
+
+	public long getIdleTimeout() {
+		return TimeUnit.NANOSECONDS.toMillis(m_IdleTimeout);
+	}
+
+	/**
+	 * setCheckInterval -- how often idle connections are evicted and
+	 * checked, 10 seconds by default. A connection is checked once it has
+	 * been idle this long.
+	 * 
+	 * @param ms
+	 *            the interval in milliseconds.
+	 */
+	public void setCheckInterval(long ms) {
+		if (ms < 1)
+			throw new IllegalArgumentException("invalid interval " + ms);
+
+		m_CheckInterval = TimeUnit.MILLISECONDS.toNanos(ms);
+	}
+
+	public long getCheckInterval() {
+		return TimeUnit.NANOSECONDS.toMillis(m_CheckInterval);
+	}
+
+	/**
+	 * setWaitTimeout -- how long a borrower waits for a connection when all
+	 * are in use, <tt>Modbus.DEFAULT_TIMEOUT</tt> by default.
+	 * 
+	 * @param ms
+	 *            the time in milliseconds.
+	 */
+	public void setWaitTimeout(long ms) {
+		m_WaitTimeout = TimeUnit.MILLISECONDS.toNanos(ms);
+	}
+
+	public long getWaitTimeout() {
+		return TimeUnit.NANOSECONDS.toMillis(m_WaitTimeout);
+	}
+
+	/**
+	 * setTimeout -- the response timeout of new connections,
+	 * <tt>Modbus.DEFAULT_TIMEOUT</tt> by default.
+	 * 
+	 * @param ms
+	 *            the timeout in milliseconds.
+	 */
+	public void setTimeout(int ms) {
+		m_Timeout = ms;
+	}
+
+	public int getTimeout() {
+		return m_Timeout;
+	}
+
+	/**
+	 * Returns the number of connections opened.
+	 */
+	public long getCreatedCount() {
+		return m_Created.sum();
+	}
+
+	/**
+	 * Returns the number of times an open connection was borrowed.
+	 */
+	public long getReusedCount() {
+		return m_Reused.sum();
+	}
+
+	/**
+	 * Returns the number of connections closed for being idle too long.
+	 */
+	public long getEvictedCount() {
+		return m_Evicted.sum();
+	}
+
+	/**
+	 * Returns the number of connections found closed, or closed because a
+	 * transaction failed on them.
+	 */
+	public long getDroppedCount() {
+		return m_Dropped.sum();
+	}
+
+	/**
+	 * Returns the number of open connections to a slave, in use or idle.
+	 */
+	public int getSize(InetAddress address, int port) {
+		Endpoint endpoint = m_Endpoints.get(key(address, port));
+		if (endpoint == null)
+			return 0;
+
+		synchronized (endpoint) {
+			return endpoint.m_Size;
+		}
+	}
+
+	/**
+	 * Returns the number of idle connections to a slave.
+	 */
+	public int getIdle(InetAddress address, int port) {
+		Endpoint endpoint = m_Endpoints.get(key(address, port));
+		if (endpoint == null)
+			return 0;
+
+		synchronized (endpoint) {
+			return endpoint.m_Idle.size();
+		}
+	}
+
+	/**
+	 * borrow -- take a connection to a slave, opening one if none is idle.
+	 * 
+	 * @param address
+	 *            the address of the slave.
+	 * @param port
+	 *            the port of the slave.
+	 * @return the connection, which must be given back with
+	 *         {@link #release(TCPMasterConnection)} or
+	 *         {@link #invalidate(TCPMasterConnection)}.
+	 * @throws ModbusIOException
+	 *             if no connection could be opened, or none became free in
+	 *             time.
+	 */
+	public TCPMasterConnection borrow(InetAddress address, int port)
+			throws ModbusIOException {
+		Endpoint endpoint = endpoint(address, port);
+		long deadline = System.nanoTime() + m_WaitTimeout;
+
+		synchronized (endpoint) {
+			while (true) {
+				Idle idle = endpoint.m_Idle.pollFirst();
+				if (idle != null) {
+					if (idle.m_Connection.isConnected()) {
+						m_Reused.increment();
+						return idle.m_Connection;
+					}
+					endpoint.m_Size--;
+					m_Dropped.increment();
+					continue;
+				}
+				if (endpoint.m_Size < m_MaxSize) {
+					endpoint.m_Size++;
+					break;
+				}
+				long wait = deadline - System.nanoTime();
+				if (wait <= 0)
+					throw new ModbusIOException("No free connection.");
+
+				try {
+					TimeUnit.NANOSECONDS.timedWait(endpoint, wait);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new ModbusIOException("Interrupted.");
+				}
+			}
+		}
+		try {
+			return open(endpoint);
+		} catch (Exception ex) {
+			synchronized (endpoint) {
+				endpoint.m_Size--;
+				endpoint.notify();
+			}
+			throw new ModbusIOException("Connection failed.");
+		}
+	}
+
+	/**
+	 * release -- give back a connection after a successful transaction.
+	 * 
+	 * @param connection
+	 *            the connection.
+	 */
+	public void release(TCPMasterConnection connection) {
+		Endpoint endpoint = m_Endpoints.get(key(connection.getAddress(),
+				connection.getPort()));
+		if (endpoint == null) {
+			connection.close();
+			return;
+		}
+		synchronized (endpoint) {
+			if (!m_Closed && connection.isConnected()) {
+				endpoint.m_Idle.addFirst(new Idle(connection));
+			} else {
+				endpoint.m_Size--;
+				connection.close();
+			}
+			endpoint.notify();
+		}
+	}
+
+	/**
+	 * invalidate -- give back a connection that a transaction failed on. It
+	 * is closed, as a late response could still arrive on it.
+	 * 
+	 * @param connection
+	 *            the connection.
+	 */
+	public void invalidate(TCPMasterConnection connection) {
+		connection.close();
+		m_Dropped.increment();
+
+		Endpoint endpoint = m_Endpoints.get(key(connection.getAddress(),
+				connection.getPort()));
+		if (endpoint == null)
+			return;
+
+		synchronized (endpoint) {
+			endpoint.m_Size--;
+			endpoint.notify();
+		}
+	}
+
+	/**
+	 * close -- close the idle connections and stop the background thread.
+	 * Connections in use are closed when they are given back.
+	 */
+	public void close() {
+		synchronized (this) {
+			m_Closed = true;
+			if (m_Evictor != null)
+				m_Evictor.interrupt();
+			m_Evictor = null;
+		}
+		for (Endpoint endpoint : m_Endpoints.values()) {
+			synchronized (endpoint) {
+				for (Idle idle : endpoint.m_Idle) {
+					idle.m_Connection.close();
+					endpoint.m_Size--;
+				}
+				endpoint.m_Idle.clear();
+			}
+		}
+	}
+
+	private static String key(InetAddress address, int port) {
+		return address.getHostAddress() + ":" + port;
+	}
+
+	private Endpoint endpoint(InetAddress address, int port) {
+		String key = key(address, port);
+		Endpoint endpoint = m_Endpoints.get(key);
+		if (endpoint == null) {
+			Endpoint created = new Endpoint(address, port);
+			endpoint = m_Endpoints.putIfAbsent(key, created);
+			if (endpoint == null)
+				endpoint = created;
+			startEvictor();
+		}
+		return endpoint;
+	}
+
+	private TCPMasterConnection open(Endpoint endpoint) throws Exception {
+		TCPMasterConnection connection = new TCPMasterConnection(
+				endpoint.m_Address);
+		connection.setPort(endpoint.m_Port);
+		connection.setTimeout(m_Timeout);
+		connection.connect();
+		m_Created.increment();
+
+		return connection;
+	}
+
+	private synchronized void startEvictor() {
+		if (m_Evictor != null || m_Closed)
+			return;
+
+		m_Evictor = new Thread("tcp-pool") {
+			public void run() {
+				try {
+					while (!isInterrupted()) {
+						TimeUnit.NANOSECONDS.sleep(m_CheckInterval);
+						for (Endpoint endpoint : m_Endpoints.values())
+							maintain(endpoint);
+					}
+				} catch (InterruptedException ex) {
+					// closed
+				}
+			}
+		};
+		m_Evictor.setDaemon(true);
+		m_Evictor.start();
+	}
+
+	/**
+	 * maintain -- evict, check and top up the idle connections to a slave.
+	 */
+	private void maintain(Endpoint endpoint) {
+		long now = System.nanoTime();
+		List<TCPMasterConnection> evicted = new ArrayList<TCPMasterConnection>();
+		List<Idle> checked = new ArrayList<Idle>();
+
+		synchronized (endpoint) {
+			// the oldest are at the end
+			Iterator<Idle> idle = endpoint.m_Idle.descendingIterator();
+			while (idle.hasNext()) {
+				Idle entry = idle.next();
+				long age = now - entry.m_Since;
+				if (age > m_IdleTimeout && endpoint.m_Size > m_MinIdle) {
+					idle.remove();
+					endpoint.m_Size--;
+					evicted.add(entry.m_Connection);
+				} else if (age > m_CheckInterval) {
+					idle.remove();
+					checked.add(entry);
+				}
+			}
+		}
+		for (TCPMasterConnection connection : evicted) {
+			connection.close();
+			m_Evicted.increment();
+		}
+
+		for (Idle entry : checked) {
+			boolean alive = entry.m_Connection.isAlive();
+			synchronized (endpoint) {
+				if (alive && !m_Closed) {
+					endpoint.m_Idle.addLast(entry);
+				} else {
+					endpoint.m_Size--;
+					entry.m_Connection.close();
+					m_Dropped.increment();
+				}
+				endpoint.notify();
+			}
+		}
+
+		while (!m_Closed) {
+			synchronized (endpoint) {
+				if (endpoint.m_Size >= m_MinIdle)
+					return;
+
+				endpoint.m_Size++;
+			}
+			try {
+				TCPMasterConnection connection = open(endpoint);
+				synchronized (endpoint) {
+					endpoint.m_Idle.addLast(new Idle(connection));
+					endpoint.notify();
+				}
+			} catch (Exception ex) {
+				synchronized (endpoint) {
+					endpoint.m_Size--;
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Endpoint -- the connections to one slave.
+	 */
+	private static final class Endpoint {
+		final InetAddress m_Address;
+		final int m_Port;
+		// most recently returned first
+		final ArrayDeque<Idle> m_Idle = new ArrayDeque<Idle>();
+		// idle, in use and being opened
+		int m_Size;
+
+		Endpoint(InetAddress address, int port) {
+			m_Address = address;
+			m_Port = port;
+		}
+	}
+
+	private static final class Idle {
+		final TCPMasterConnection m_Connection;
+		final long m_Since = System.nanoTime();
+
+		Idle(TCPMasterConnection connection) {
+			m_Connection = connection;
+		}
+	}
+}
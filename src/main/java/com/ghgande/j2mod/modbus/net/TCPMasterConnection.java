@@ -36,10 +36,12 @@ package com.ghgande.j2mod.modbus.net;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 
 import com.ghgande.j2mod.modbus.Modbus;
 import com.ghgande.j2mod.modbus.io.ModbusTCPTransport;
 import com.ghgande.j2mod.modbus.io.ModbusTransport;
+import com.ghgande.j2mod.modbus.metrics.ModbusEvents;
 
 /**
  * Class that implements a TCPMasterConnection.
@@ -50,15 +52,15 @@ import com.ghgande.j2mod.modbus.io.ModbusTransport;
 public class TCPMasterConnection {
 
 	// instance attributes
-	private Socket m_Socket;
+	private volatile Socket m_Socket;
 	private int m_Timeout = Modbus.DEFAULT_TIMEOUT;
-	private boolean m_Connected;
+	private volatile boolean m_Connected;
 
 	private InetAddress m_Address;
 	private int m_Port = Modbus.DEFAULT_PORT;
 
 	// private int m_Retries = Modbus.DEFAULT_RETRIES;
-	private ModbusTCPTransport m_ModbusTransport;
+	private volatile ModbusTCPTransport m_ModbusTransport;
 	
 	/**
 	 * m_useUrgentData - sent a byte of urgent data when testing the TCP
@@ -92,50 +94,117 @@ public class TCPMasterConnection {
 			if (Modbus.debug)
 				System.out.println("connect()");
 			
-			m_Socket = new Socket(m_Address, m_Port);
-			m_Socket.setReuseAddress(true);
-			m_Socket.setSoLinger(true, 1);
-			m_Socket.setKeepAlive(true);
-			
-			setTimeout(m_Timeout);
-			prepareTransport();
-			
-			m_Connected = true;
+			Object event = ModbusEvents.beginReconnect();
+			try {
+				m_Socket = new Socket(m_Address, m_Port);
+				m_Socket.setReuseAddress(true);
+				m_Socket.setSoLinger(true, 1);
+				m_Socket.setKeepAlive(true);
+				
+				setTimeout(m_Timeout);
+				prepareTransport();
+				
+				m_Connected = true;
+			} finally {
+				if (event != null)
+					ModbusEvents.endReconnect(event, "tcp:"
+							+ m_Address.getHostAddress() + ":" + m_Port,
+							m_Connected);
+			}
 		}
 	}// connect
 
 	/**
 	 * Tests if this <tt>TCPMasterConnection</tt> is connected.
 	 * 
+	 * <p>
+	 * Only the local state of the socket is checked, without locking, as this
+	 * is called for every transaction. A slave that has gone away without
+	 * closing the connection is not noticed until a transaction times out,
+	 * or a {@link ConnectionMonitor} watching the connection finds it.
+	 * Urgent data can be sent on every call instead, with
+	 * {@link #setUseUrgentData(boolean)}, but some slaves take it for a
+	 * request.
+	 * 
 	 * @return <tt>true</tt> if connected, <tt>false</tt> otherwise.
 	 */
-	public synchronized boolean isConnected() {
-		if (m_Connected && m_Socket != null) {
-			if (!m_Socket.isConnected() || m_Socket.isClosed()
-					|| m_Socket.isInputShutdown()
-					|| m_Socket.isOutputShutdown()) {
-				try {
-					m_Socket.close();
-				} catch (IOException e) {
-					// Blah.
-				}
+	public boolean isConnected() {
+		if (!m_Connected)
+			return false;
+
+		Socket socket = m_Socket;
+		if (socket == null)
+			return false;
+
+		if (!socket.isConnected() || socket.isClosed()
+				|| socket.isInputShutdown() || socket.isOutputShutdown()) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Blah.
+			}
+			m_Connected = false;
+		} else if (m_useUrgentData) {
+			try {
+				socket.sendUrgentData(0);
+			} catch (IOException e) {
 				m_Connected = false;
-			} else {
 				try {
-					m_Socket.sendUrgentData(0);
-				} catch (IOException e) {
-					m_Connected = false;
-					try {
-						m_Socket.close();
-					} catch (IOException e1) {
-						// Do nothing.
-					}
+					socket.close();
+				} catch (IOException e1) {
+					// Do nothing.
 				}
 			}
 		}
 		return m_Connected;
 	}// isConnected
 
+	/**
+	 * getLastReceived -- the time a frame was last received on this
+	 * connection, or it was opened, from <tt>System.nanoTime()</tt>.
+	 * 
+	 * @return the time in nanoseconds, or 0 if it was never opened.
+	 */
+	public long getLastReceived() {
+		ModbusTCPTransport transport = m_ModbusTransport;
+		return transport == null ? 0 : transport.getLastReceived();
+	}
+
+	/**
+	 * isAlive -- tests if the slave is still there, without sending it
+	 * anything. The connection must be idle: it waits a millisecond for the
+	 * slave to close it, and any data that arrives is taken for a fault.
+	 * Callers hold the lock on the transport, as transactions do, so that
+	 * none can start meanwhile.
+	 * 
+	 * @return <tt>true</tt> if the connection is open and quiet, otherwise
+	 *         <tt>false</tt> and the connection is closed.
+	 */
+	public synchronized boolean isAlive() {
+		if (!isConnected())
+			return false;
+
+		try {
+			m_Socket.setSoTimeout(1);
+			m_Socket.getInputStream().read();
+
+			// closed by the slave, or data nobody asked for
+			close();
+			return false;
+		} catch (SocketTimeoutException ex) {
+			return true;
+		} catch (IOException ex) {
+			close();
+			return false;
+		} finally {
+			try {
+				m_Socket.setSoTimeout(m_Timeout);
+			} catch (IOException ex) {
+				// closed
+			}
+		}
+	}
+
 	/**
 	 * Closes this <tt>TCPMasterConnection</tt>.
 	 */
@@ -186,6 +255,9 @@ public class TCPMasterConnection {
 	 */
 	public void setTimeout(int timeout) {
 		m_Timeout = timeout;
+		if (m_Socket == null)
+			return;
+
 		try {
 			m_Socket.setSoTimeout(m_Timeout);
 		} catch (IOException ex) {
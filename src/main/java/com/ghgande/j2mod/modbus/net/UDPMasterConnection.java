@@ -75,7 +75,7 @@ public class UDPMasterConnection {
     if (!m_Connected) {
       m_Terminal = new UDPMasterTerminal();
       m_Terminal.setLocalAddress(InetAddress.getLocalHost());
-      m_Terminal.setLocalPort(5000);
+      m_Terminal.setLocalPort(0); // any free port, so masters can coexist
       m_Terminal.setRemoteAddress(m_Address);
       m_Terminal.setRemotePort(m_Port);
       m_Terminal.setTimeout(m_Timeout);
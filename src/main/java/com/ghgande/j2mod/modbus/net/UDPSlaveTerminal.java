@@ -127,8 +127,10 @@ class UDPSlaveTerminal implements UDPTerminal {
 				System.out.println("UDPSlaveTerminal::addr=:"
 						+ m_LocalAddress.toString() + ":port=" + m_LocalPort);
 
-			m_Socket.setReceiveBufferSize(1024);
-			m_Socket.setSendBufferSize(1024);
+			/*
+			 * Keep the system's socket buffers. Requests from every master
+			 * queue up here, and a 1K buffer drops them after a few.
+			 */
 			m_PacketReceiver = new PacketReceiver();
 			m_Receiver = new Thread(m_PacketReceiver);
 			m_Receiver.start();
@@ -0,0 +1,130 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.procimg;
+
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Interface defining a process image with atomic operations on its holding
+ * registers.
+ * 
+ * <p>
+ * The operations on ranges are atomic with respect to each other: a range
+ * read never sees a range write half done. The operations on a single
+ * register are atomic with respect to them as well, so they neither see a
+ * range half done nor change a register in the middle of one. Plain <tt>getValue()</tt> and <tt>setValue()</tt> calls on
+ * the registers remain atomic per register only, so requests that read or
+ * write ranges use the operations of this interface.
+ */
+public interface AtomicProcessImage extends ProcessImage {
+
+	/**
+	 * Atomically replaces the value of a register with the result of a
+	 * function.
+	 * 
+	 * @param ref
+	 *            the reference of the register.
+	 * @param function
+	 *            computes the new value from the current one. It may be
+	 *            called more than once.
+	 * @return the new value as unsigned short.
+	 * @throws IllegalAddressException
+	 *             if the reference is invalid.
+	 */
+	public int updateRegister(int ref, IntUnaryOperator function)
+			throws IllegalAddressException;
+
+	/**
+	 * Atomically applies a Modbus mask write to a register.
+	 * 
+	 * @param ref
+	 *            the reference of the register.
+	 * @param andMask
+	 *            the AND mask.
+	 * @param orMask
+	 *            the OR mask.
+	 * @return the new value as unsigned short.
+	 * @throws IllegalAddressException
+	 *             if the reference is invalid.
+	 */
+	public int maskRegister(int ref, int andMask, int orMask)
+			throws IllegalAddressException;
+
+	/**
+	 * Atomically reads a range of registers.
+	 * 
+	 * @param ref
+	 *            the reference of the first register.
+	 * @param count
+	 *            the number of registers.
+	 * @return the values, as unsigned shorts.
+	 * @throws IllegalAddressException
+	 *             if the range is invalid.
+	 */
+	public int[] readRegisters(int ref, int count)
+			throws IllegalAddressException;
+
+	/**
+	 * Atomically writes a range of registers.
+	 * 
+	 * @param ref
+	 *            the reference of the first register.
+	 * @param values
+	 *            the values to write, as unsigned shorts.
+	 * @throws IllegalAddressException
+	 *             if the range is invalid. Nothing is written.
+	 */
+	public void writeRegisters(int ref, int[] values)
+			throws IllegalAddressException;
+
+	/**
+	 * Atomically reads one range of registers and then writes another. No
+	 * other range operation sees the write half done, and none changes the
+	 * values read until the write is complete.
+	 * 
+	 * @param readRef
+	 *            the reference of the first register to read.
+	 * @param readCount
+	 *            the number of registers to read.
+	 * @param writeRef
+	 *            the reference of the first register to write.
+	 * @param values
+	 *            the values to write, as unsigned shorts.
+	 * @return the values read, as unsigned shorts.
+	 * @throws IllegalAddressException
+	 *             if either range is invalid. Nothing is written.
+	 */
+	public int[] readWriteRegisters(int readRef, int readCount, int writeRef,
+			int[] values) throws IllegalAddressException;
+}
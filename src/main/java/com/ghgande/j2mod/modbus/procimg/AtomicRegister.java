@@ -0,0 +1,80 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.procimg;
+
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Interface defining a register with atomic read-modify-write operations.
+ * 
+ * <p>
+ * Values are unsigned 16-bit words. An update that races with another write
+ * is retried, so no write is lost.
+ */
+public interface AtomicRegister extends Register {
+
+	/**
+	 * Sets the value of this register if it currently has the expected value.
+	 * 
+	 * @param expect
+	 *            the expected value as unsigned short.
+	 * @param update
+	 *            the new value.
+	 * @return <tt>true</tt> if the value was set.
+	 */
+	public boolean compareAndSet(int expect, int update);
+
+	/**
+	 * Atomically replaces the value of this register with the result of a
+	 * function. The function may be called more than once, so it should have
+	 * no side effects.
+	 * 
+	 * @param function
+	 *            computes the new value from the current one.
+	 * @return the new value as unsigned short.
+	 */
+	public int updateAndGet(IntUnaryOperator function);
+
+	/**
+	 * Atomically applies a Modbus mask write: the AND mask clears bits, then
+	 * bits of the OR mask are set where the AND mask is 0.
+	 * 
+	 * @param andMask
+	 *            the AND mask.
+	 * @param orMask
+	 *            the OR mask.
+	 * @return the new value as unsigned short.
+	 */
+	public int mask(int andMask, int orMask);
+}
@@ -33,6 +33,8 @@
  ***/
 package com.ghgande.j2mod.modbus.procimg;
 
+import com.ghgande.j2mod.modbus.Modbus;
+
 /**
  * Class implementing an <tt>IllegalAddressException</tt>. This exception is
  * thrown when a non-existant spot in the process image was addressed.
@@ -43,7 +45,7 @@ package com.ghgande.j2mod.modbus.procimg;
  * @author Dieter Wimberger
  * @version 1.2rc1 (09/11/2004)
  */
-public class IllegalAddressException extends RuntimeException {
+public class IllegalAddressException extends ProcessImageException {
 
 	/**
 	 * 
@@ -54,6 +56,7 @@ public class IllegalAddressException extends RuntimeException {
 	 * Constructs a new <tt>IllegalAddressException</tt>.
 	 */
 	public IllegalAddressException() {
+		super(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
 	}
 
 	/**
@@ -63,6 +66,6 @@ public class IllegalAddressException extends RuntimeException {
 	 *            a message as <tt>String</tt>.
 	 */
 	public IllegalAddressException(String message) {
-		super(message);
+		super(Modbus.ILLEGAL_ADDRESS_EXCEPTION, message);
 	}
 }
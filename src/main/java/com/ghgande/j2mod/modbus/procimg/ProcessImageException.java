@@ -0,0 +1,81 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.procimg;
+
+/**
+ * ProcessImageException -- thrown by a process image that cannot serve a
+ * request, with the Modbus exception code to answer it with.
+ * 
+ * <p>
+ * The request classes answer any <tt>ProcessImageException</tt> with its
+ * code. An image that stands in for other devices uses this to report, for
+ * example, that their data is too old to be served.
+ */
+public class ProcessImageException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	private final int m_Code;
+
+	/**
+	 * Constructs a new <tt>ProcessImageException</tt>.
+	 * 
+	 * @param code
+	 *            the Modbus exception code.
+	 */
+	public ProcessImageException(int code) {
+		m_Code = code;
+	}
+
+	/**
+	 * Constructs a new <tt>ProcessImageException</tt> with the given message.
+	 * 
+	 * @param code
+	 *            the Modbus exception code.
+	 * @param message
+	 *            a message as <tt>String</tt>.
+	 */
+	public ProcessImageException(int code, String message) {
+		super(message);
+		m_Code = code;
+	}
+
+	/**
+	 * Returns the Modbus exception code to answer the request with.
+	 * 
+	 * @return the exception code.
+	 */
+	public int getExceptionCode() {
+		return m_Code;
+	}
+}
@@ -67,6 +67,8 @@
 package com.ghgande.j2mod.modbus.procimg;
 
 import java.util.Vector;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntUnaryOperator;
 
 /**
  * Class implementing a simple process image to be able to run unit tests or
@@ -82,7 +84,8 @@ import java.util.Vector;
  * 
  * @author Julie Added support for files of records.
  */
-public class SimpleProcessImage implements ProcessImageImplementation {
+public class SimpleProcessImage implements ProcessImageImplementation,
+		AtomicProcessImage {
 
 	// instance attributes
 	protected Vector<DigitalIn> m_DigitalInputs;
@@ -94,6 +97,21 @@ public class SimpleProcessImage implements ProcessImageImplementation {
 	protected boolean m_Locked = false;
 	protected int m_Unit = 0;
 
+	/**
+	 * Locks for the ranged register operations, one per register reference
+	 * modulo their number. A ranged operation takes those of all registers it
+	 * touches in ascending order, shared for those it only reads. Operations
+	 * on a single register take its lock exclusively as well, even for an
+	 * <tt>AtomicRegister</tt>, so that they cannot change a register between
+	 * the read and the write of a read/write multiple registers.
+	 */
+	private final ReentrantReadWriteLock[] m_RegisterLocks =
+			new ReentrantReadWriteLock[Long.SIZE];
+	{
+		for (int i = 0; i < m_RegisterLocks.length; i++)
+			m_RegisterLocks[i] = new ReentrantReadWriteLock();
+	}
+
 	/**
 	 * Constructs a new <tt>SimpleProcessImage</tt> instance.
 	 */
@@ -342,6 +360,143 @@ public class SimpleProcessImage implements ProcessImageImplementation {
 		}
 	}
 
+	public int updateRegister(int ref, IntUnaryOperator function)
+			throws IllegalAddressException {
+		Register reg = getRegister(ref);
+
+		long locks = lockBits(ref, 1);
+		lock(0, locks);
+		try {
+			if (reg instanceof AtomicRegister)
+				return ((AtomicRegister) reg).updateAndGet(function);
+
+			synchronized (reg) {
+				int value = function.applyAsInt(reg.getValue()) & 0xFFFF;
+				reg.setValue(value);
+
+				return value;
+			}
+		} finally {
+			unlock(0, locks);
+		}
+	}
+
+	public int maskRegister(int ref, final int andMask, final int orMask)
+			throws IllegalAddressException {
+		Register reg = getRegister(ref);
+		if (reg instanceof AtomicRegister) {
+			long locks = lockBits(ref, 1);
+			lock(0, locks);
+			try {
+				return ((AtomicRegister) reg).mask(andMask, orMask);
+			} finally {
+				unlock(0, locks);
+			}
+		}
+		return updateRegister(ref, new IntUnaryOperator() {
+			public int applyAsInt(int value) {
+				return (value & andMask) | (orMask & ~andMask);
+			}
+		});
+	}
+
+	public int[] readRegisters(int ref, int count)
+			throws IllegalAddressException {
+		Register[] regs = getRegisterRange(ref, count);
+
+		long locks = lockBits(ref, count);
+		lock(locks, 0);
+		try {
+			int[] result = new int[count];
+			for (int i = 0; i < count; i++)
+				result[i] = regs[i].getValue();
+
+			return result;
+		} finally {
+			unlock(locks, 0);
+		}
+	}
+
+	public void writeRegisters(int ref, int[] values)
+			throws IllegalAddressException {
+		Register[] regs = getRegisterRange(ref, values.length);
+
+		long locks = lockBits(ref, values.length);
+		lock(0, locks);
+		try {
+			// a gap in the range must fail before anything is written
+			for (int i = 0; i < regs.length; i++)
+				regs[i].getValue();
+
+			for (int i = 0; i < regs.length; i++)
+				regs[i].setValue(values[i]);
+		} finally {
+			unlock(0, locks);
+		}
+	}
+
+	public int[] readWriteRegisters(int readRef, int readCount, int writeRef,
+			int[] values) throws IllegalAddressException {
+		Register[] readRegs = getRegisterRange(readRef, readCount);
+		Register[] writeRegs = getRegisterRange(writeRef, values.length);
+
+		long writeLocks = lockBits(writeRef, values.length);
+		long readLocks = lockBits(readRef, readCount) & ~writeLocks;
+		lock(readLocks, writeLocks);
+		try {
+			int[] result = new int[readCount];
+			for (int i = 0; i < readCount; i++)
+				result[i] = readRegs[i].getValue();
+
+			// a gap in the write range must fail before anything is written
+			for (int i = 0; i < writeRegs.length; i++)
+				writeRegs[i].getValue();
+
+			for (int i = 0; i < writeRegs.length; i++)
+				writeRegs[i].setValue(values[i]);
+
+			return result;
+		} finally {
+			unlock(readLocks, writeLocks);
+		}
+	}
+
+	/**
+	 * lockBits -- the register locks covering a range, as a bit mask.
+	 */
+	private long lockBits(int ref, int count) {
+		if (count >= m_RegisterLocks.length)
+			return -1L;
+
+		long bits = 0;
+		for (int i = 0; i < count; i++)
+			bits |= 1L << ((ref + i) & (m_RegisterLocks.length - 1));
+
+		return bits;
+	}
+
+	/**
+	 * lock -- take register locks in ascending order, shared or exclusive.
+	 * The masks must not overlap.
+	 */
+	private void lock(long shared, long exclusive) {
+		for (int i = 0; i < m_RegisterLocks.length; i++) {
+			if ((shared & (1L << i)) != 0)
+				m_RegisterLocks[i].readLock().lock();
+			else if ((exclusive & (1L << i)) != 0)
+				m_RegisterLocks[i].writeLock().lock();
+		}
+	}
+
+	private void unlock(long shared, long exclusive) {
+		for (int i = m_RegisterLocks.length - 1; i >= 0; i--) {
+			if ((shared & (1L << i)) != 0)
+				m_RegisterLocks[i].readLock().unlock();
+			else if ((exclusive & (1L << i)) != 0)
+				m_RegisterLocks[i].writeLock().unlock();
+		}
+	}
+
 	public void addFile(File newFile) {
 		if (!isLocked())
 			m_Files.add(newFile);
@@ -66,13 +66,26 @@
  ***/
 package com.ghgande.j2mod.modbus.procimg;
 
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.IntUnaryOperator;
+
 /**
- * Abstract class with synchronized register operations.
+ * Abstract class with thread safe register operations.
+ * 
+ * <p>
+ * The word is never modified in place. Each write installs a new
+ * <tt>byte[2]</tt>, so a reader always sees both bytes of the same value and
+ * read-modify-write operations are lock free compare-and-set loops.
  * 
  * @author Dieter Wimberger
  * @version 1.2rc1 (09/11/2004)
  */
-public abstract class SynchronizedAbstractRegister implements Register {
+public abstract class SynchronizedAbstractRegister implements AtomicRegister {
+
+	private static final AtomicReferenceFieldUpdater<SynchronizedAbstractRegister, byte[]> c_Register =
+			AtomicReferenceFieldUpdater.newUpdater(
+					SynchronizedAbstractRegister.class, byte[].class,
+					"m_Register");
 
 	/**
 	 * The word (<tt>byte[2]</tt>) holding the state of this register.
@@ -80,59 +93,95 @@ public abstract class SynchronizedAbstractRegister implements Register {
 	 * Note that a superclass may set m_Register to null to create a
 	 * gap in a Modbus map.
 	 */
-	protected byte[] m_Register = new byte[2];
+	protected volatile byte[] m_Register = new byte[2];
 
 	public int getValue() {
-		if (m_Register == null)
-			throw new IllegalAddressException();
-		
-		return ((m_Register[0] & 0xff) << 8 | (m_Register[1] & 0xff));
+		return valueOf(word());
 	}
 
+	/**
+	 * Returns the word holding the value. The array must not be modified.
+	 */
 	public byte[] toBytes() {
 		return m_Register;
 	}
 
 	public final short toShort() {
-		if (m_Register == null)
-			throw new IllegalAddressException();
-		
-		return (short) ((m_Register[0] << 8) | (m_Register[1] & 0xff));
+		return (short) valueOf(word());
 	}
 
 	public final int toUnsignedShort() {
-		if (m_Register == null)
-			throw new IllegalAddressException();
-		
-		return ((m_Register[0] & 0xff) << 8 | (m_Register[1] & 0xff));
+		return valueOf(word());
 	}
 
-	public final synchronized void setValue(int v) {
-		if (m_Register == null)
-			throw new IllegalAddressException();
-		
-		m_Register[0] = (byte) (0xff & (v >> 8));
-		m_Register[1] = (byte) (0xff & v);
+	public final void setValue(int v) {
+		word();
+		m_Register = wordOf(v);
 	}
 
-	public final synchronized void setValue(short s) {
-		if (m_Register == null)
-			throw new IllegalAddressException();
-		
-		m_Register[0] = (byte) (0xff & (s >> 8));
-		m_Register[1] = (byte) (0xff & s);
+	public final void setValue(short s) {
+		word();
+		m_Register = wordOf(s);
 	}
 
-	public final synchronized void setValue(byte[] bytes) {
+	public final void setValue(byte[] bytes) {
 		if (bytes.length < 2) {
 			throw new IllegalArgumentException();
 		} else {
-			if (m_Register == null)
-				throw new IllegalAddressException();
-			
-			m_Register[0] = bytes[0];
-			m_Register[1] = bytes[1];
+			word();
+			m_Register = new byte[] { bytes[0], bytes[1] };
+		}
+	}
+
+	public final boolean compareAndSet(int expect, int update) {
+		byte[] current = word();
+		byte[] next = wordOf(update);
+
+		while (valueOf(current) == (expect & 0xFFFF)) {
+			if (c_Register.compareAndSet(this, current, next))
+				return true;
+
+			current = word();
+		}
+		return false;
+	}
+
+	public final int updateAndGet(IntUnaryOperator function) {
+		for (;;) {
+			byte[] current = word();
+			int value = function.applyAsInt(valueOf(current)) & 0xFFFF;
+
+			if (c_Register.compareAndSet(this, current, wordOf(value)))
+				return value;
+		}
+	}
+
+	public final int mask(int andMask, int orMask) {
+		for (;;) {
+			byte[] current = word();
+			int value = ((valueOf(current) & andMask) | (orMask & ~andMask)) & 0xFFFF;
+
+			if (c_Register.compareAndSet(this, current, wordOf(value)))
+				return value;
 		}
 	}
 
+	/**
+	 * Returns the current word, or throws if this register is a gap.
+	 */
+	private byte[] word() {
+		byte[] word = m_Register;
+		if (word == null)
+			throw new IllegalAddressException();
+
+		return word;
+	}
+
+	private static int valueOf(byte[] word) {
+		return ((word[0] & 0xff) << 8 | (word[1] & 0xff));
+	}
+
+	private static byte[] wordOf(int v) {
+		return new byte[] { (byte) (0xff & (v >> 8)), (byte) (0xff & v) };
+	}
 }
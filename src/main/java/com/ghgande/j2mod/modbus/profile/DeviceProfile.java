@@ -0,0 +1,352 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.profile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.io.RttEstimator;
+
+/**
+ * DeviceProfile -- what a slave was found to support: the function codes it
+ * implements, the most it returns for each read function, and how long it
+ * takes to answer.
+ * 
+ * <p>
+ * A profile is made by a {@link DeviceProfiler}, and stored as a properties
+ * file so that masters can size their requests and timeouts from it at
+ * startup, without probing the slave again. The word order of 32 bit
+ * values cannot be found by probing, and is only kept for the application
+ * to set and read back.
+ */
+public class DeviceProfile {
+	private final String m_Name;
+	private final int m_Unit;
+	private int m_Reference;
+	private boolean m_WordSwapped;
+	private long m_Created = System.currentTimeMillis();
+
+	private final boolean[] m_Supported = new boolean[128];
+	private final int[] m_MaxCount = new int[128];
+	private final long[] m_Turnaround = new long[128];
+	private final long[] m_Deviation = new long[128];
+
+	/**
+	 * getLimit -- the most a request of the function may ask for under the
+	 * protocol.
+	 * 
+	 * @param function
+	 *            the function code.
+	 * @return the count, or 0 if the function does not read a count.
+	 */
+	public static int getLimit(int function) {
+		switch (function) {
+		case Modbus.READ_COILS:
+		case Modbus.READ_INPUT_DISCRETES:
+			return Modbus.MAX_BITS;
+		case Modbus.READ_MULTIPLE_REGISTERS:
+		case Modbus.READ_INPUT_REGISTERS:
+			return 125;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Constructs a new, empty <tt>DeviceProfile</tt>.
+	 * 
+	 * @param name
+	 *            the name of the connection to the slave, as used for
+	 *            metrics.
+	 * @param unit
+	 *            the unit.
+	 */
+	public DeviceProfile(String name, int unit) {
+		m_Name = name;
+		m_Unit = unit;
+	}
+
+	public String getName() {
+		return m_Name;
+	}
+
+	public int getUnit() {
+		return m_Unit;
+	}
+
+	/**
+	 * Returns the reference the read functions were probed at.
+	 */
+	public int getReference() {
+		return m_Reference;
+	}
+
+	public void setReference(int ref) {
+		m_Reference = ref;
+	}
+
+	/**
+	 * Returns whether 32 bit values have their low word first.
+	 */
+	public boolean isWordSwapped() {
+		return m_WordSwapped;
+	}
+
+	public void setWordSwapped(boolean swapped) {
+		m_WordSwapped = swapped;
+	}
+
+	/**
+	 * Returns the time the profile was made, in milliseconds since the
+	 * epoch.
+	 */
+	public long getCreated() {
+		return m_Created;
+	}
+
+	public boolean isSupported(int function) {
+		return function > 0 && function < 128 && m_Supported[function];
+	}
+
+	public void setSupported(int function, boolean supported) {
+		m_Supported[function] = supported;
+	}
+
+	/**
+	 * getMaxCount -- the most the slave returns for one request of a read
+	 * function.
+	 * 
+	 * @param function
+	 *            the function code.
+	 * @return the count, or 0 if not known.
+	 */
+	public int getMaxCount(int function) {
+		return function > 0 && function < 128 ? m_MaxCount[function] : 0;
+	}
+
+	public void setMaxCount(int function, int count) {
+		m_MaxCount[function] = count;
+	}
+
+	/**
+	 * getChunkSize -- the most a master should ask for in one request of a
+	 * read function.
+	 * 
+	 * @param function
+	 *            the function code.
+	 * @return the count found by probing, or else the protocol limit.
+	 */
+	public int getChunkSize(int function) {
+		int count = getMaxCount(function);
+		return count > 0 ? count : getLimit(function);
+	}
+
+	/**
+	 * Returns the mean time the slave takes to answer the function, in
+	 * nanoseconds, or 0 if not measured.
+	 */
+	public long getTurnaround(int function) {
+		return function > 0 && function < 128 ? m_Turnaround[function] : 0;
+	}
+
+	/**
+	 * Returns the mean deviation of the time the slave takes to answer the
+	 * function, in nanoseconds.
+	 */
+	public long getDeviation(int function) {
+		return function > 0 && function < 128 ? m_Deviation[function] : 0;
+	}
+
+	public void setTurnaround(int function, long mean, long deviation) {
+		m_Turnaround[function] = mean;
+		m_Deviation[function] = deviation;
+	}
+
+	/**
+	 * seed -- start the round trip estimates of the slave from the measured
+	 * turnaround times, so that the first transactions already wait for
+	 * about as long as the slave takes.
+	 * 
+	 * @param estimator
+	 *            the estimator of the connection to the slave.
+	 * @param unit
+	 *            the unit the master addresses the slave as.
+	 */
+	public void seed(RttEstimator estimator, int unit) {
+		for (int function = 1; function < 128; function++) {
+			if (m_Turnaround[function] > 0)
+				estimator.seed(unit, function, m_Turnaround[function],
+						m_Deviation[function]);
+		}
+	}
+
+	/**
+	 * store -- write the profile as properties.
+	 * 
+	 * @param out
+	 *            the stream to write to.
+	 * @throws IOException
+	 *             if the stream cannot be written.
+	 */
+	public void store(OutputStream out) throws IOException {
+		Properties props = new Properties();
+		props.setProperty("name", m_Name);
+		props.setProperty("unit", Integer.toString(m_Unit));
+		props.setProperty("reference", Integer.toString(m_Reference));
+		props.setProperty("wordswap", Boolean.toString(m_WordSwapped));
+		props.setProperty("created", Long.toString(m_Created));
+
+		StringBuilder functions = new StringBuilder();
+		for (int function = 1; function < 128; function++) {
+			if (m_Supported[function]) {
+				if (functions.length() > 0)
+					functions.append(',');
+				functions.append(function);
+			}
+			if (m_MaxCount[function] > 0)
+				props.setProperty("max." + function,
+						Integer.toString(m_MaxCount[function]));
+			if (m_Turnaround[function] > 0) {
+				props.setProperty("turnaround." + function, Long
+						.toString(TimeUnit.NANOSECONDS
+								.toMicros(m_Turnaround[function])));
+				props.setProperty("deviation." + function, Long
+						.toString(TimeUnit.NANOSECONDS
+								.toMicros(m_Deviation[function])));
+			}
+		}
+		props.setProperty("functions", functions.toString());
+
+		props.store(out, "Modbus device profile, times in microseconds");
+	}
+
+	/**
+	 * load -- read a profile written by {@link #store(OutputStream)}.
+	 * 
+	 * @param in
+	 *            the stream to read from.
+	 * @return the profile.
+	 * @throws IOException
+	 *             if the stream cannot be read or is not a profile.
+	 */
+	public static DeviceProfile load(InputStream in) throws IOException {
+		Properties props = new Properties();
+		props.load(in);
+
+		String name = props.getProperty("name");
+		String unit = props.getProperty("unit");
+		if (name == null || unit == null)
+			throw new IOException("not a device profile");
+
+		try {
+			DeviceProfile profile = new DeviceProfile(name,
+					Integer.parseInt(unit));
+			profile.m_Reference = Integer.parseInt(props.getProperty(
+					"reference", "0"));
+			profile.m_WordSwapped = Boolean.parseBoolean(props
+					.getProperty("wordswap"));
+			profile.m_Created = Long.parseLong(props.getProperty("created",
+					"0"));
+
+			String functions = props.getProperty("functions", "").trim();
+			if (functions.length() > 0) {
+				for (String function : functions.split(","))
+					profile.m_Supported[Integer.parseInt(function.trim())] = true;
+			}
+			for (int function = 1; function < 128; function++) {
+				String max = props.getProperty("max." + function);
+				if (max != null)
+					profile.m_MaxCount[function] = Integer.parseInt(max);
+
+				String turnaround = props.getProperty("turnaround." + function);
+				if (turnaround != null) {
+					profile.m_Turnaround[function] = TimeUnit.MICROSECONDS
+							.toNanos(Long.parseLong(turnaround));
+					profile.m_Deviation[function] = TimeUnit.MICROSECONDS
+							.toNanos(Long.parseLong(props.getProperty(
+									"deviation." + function, "0")));
+				}
+			}
+			return profile;
+		} catch (RuntimeException ex) {
+			throw new IOException("invalid device profile: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * store -- write the profile to a file.
+	 */
+	public void store(File file) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			store(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * load -- read a profile from a file.
+	 */
+	public static DeviceProfile load(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return load(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	public String toString() {
+		StringBuilder result = new StringBuilder();
+		result.append(m_Name).append(" unit ").append(m_Unit)
+				.append(": functions");
+		for (int function = 1; function < 128; function++) {
+			if (!m_Supported[function])
+				continue;
+
+			result.append(' ').append(function);
+			if (m_MaxCount[function] > 0)
+				result.append(" (max ").append(m_MaxCount[function]).append(')');
+		}
+		return result.toString();
+	}
+}
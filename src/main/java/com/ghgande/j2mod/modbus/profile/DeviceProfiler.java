@@ -0,0 +1,353 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.profile;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.ModbusSlaveException;
+import com.ghgande.j2mod.modbus.io.ModbusSerialTransaction;
+import com.ghgande.j2mod.modbus.io.ModbusTCPTransaction;
+import com.ghgande.j2mod.modbus.io.ModbusTransaction;
+import com.ghgande.j2mod.modbus.msg.MaskWriteRegisterRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.msg.ReadCoilsRequest;
+import com.ghgande.j2mod.modbus.msg.ReadCoilsResponse;
+import com.ghgande.j2mod.modbus.msg.ReadCommEventCounterRequest;
+import com.ghgande.j2mod.modbus.msg.ReadCommEventLogRequest;
+import com.ghgande.j2mod.modbus.msg.ReadExceptionStatusRequest;
+import com.ghgande.j2mod.modbus.msg.ReadFIFOQueueRequest;
+import com.ghgande.j2mod.modbus.msg.ReadInputDiscretesRequest;
+import com.ghgande.j2mod.modbus.msg.ReadInputDiscretesResponse;
+import com.ghgande.j2mod.modbus.msg.ReadInputRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.ReadInputRegistersResponse;
+import com.ghgande.j2mod.modbus.msg.ReadMEIRequest;
+import com.ghgande.j2mod.modbus.msg.ReadMultipleRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.ReadMultipleRegistersResponse;
+import com.ghgande.j2mod.modbus.msg.ReadSerialDiagnosticsRequest;
+import com.ghgande.j2mod.modbus.msg.ReadWriteMultipleRequest;
+import com.ghgande.j2mod.modbus.msg.ReportSlaveIDRequest;
+import com.ghgande.j2mod.modbus.msg.WriteMultipleCoilsRequest;
+import com.ghgande.j2mod.modbus.msg.WriteMultipleRegistersRequest;
+import com.ghgande.j2mod.modbus.procimg.Register;
+
+/**
+ * DeviceProfiler -- finds out what a slave supports by asking it, through
+ * any master transaction.
+ * 
+ * <p>
+ * Each function code is sent once. An answer, or any exception but
+ * <tt>illegal function</tt>, means the function is supported. The write
+ * functions are probed with requests that change nothing: multiple writes
+ * of no values, and a mask write that keeps every bit. The largest count
+ * each read function returns at the reference is found by a binary search,
+ * and the time the slave takes to answer a read of that size is sampled.
+ * 
+ * <p>
+ * A slave that does not answer an unsupported function costs a timeout for
+ * each one. Unanswered probes do not count against the circuit breaker of
+ * the slave.
+ */
+public class DeviceProfiler {
+	private static final int[] FUNCTIONS = { Modbus.READ_COILS,
+			Modbus.READ_INPUT_DISCRETES, Modbus.READ_MULTIPLE_REGISTERS,
+			Modbus.READ_INPUT_REGISTERS, Modbus.READ_EXCEPTION_STATUS,
+			Modbus.READ_SERIAL_DIAGNOSTICS, Modbus.READ_COMM_EVENT_COUNTER,
+			Modbus.READ_COMM_EVENT_LOG, Modbus.WRITE_MULTIPLE_COILS,
+			Modbus.WRITE_MULTIPLE_REGISTERS, Modbus.REPORT_SLAVE_ID,
+			Modbus.MASK_WRITE_REGISTER, Modbus.READ_WRITE_MULTIPLE,
+			Modbus.READ_FIFO_QUEUE, Modbus.READ_MEI };
+
+	// the outcome of a probe that was not answered, else the exception code
+	private static final int ANSWERED = 0;
+	private static final int NO_ANSWER = -1;
+
+	private final ModbusTransaction m_Transaction;
+	private final String m_Name;
+	private final int m_Unit;
+	private int m_Reference;
+	private int m_Samples = 10;
+	private int m_Probes;
+
+	/**
+	 * Constructs a new <tt>DeviceProfiler</tt>.
+	 * 
+	 * @param transaction
+	 *            a transaction on the connection to the slave.
+	 * @param name
+	 *            the name of the connection, as used for metrics.
+	 * @param unit
+	 *            the unit to profile.
+	 */
+	public DeviceProfiler(ModbusTransaction transaction, String name, int unit) {
+		m_Transaction = transaction;
+		m_Name = name;
+		m_Unit = unit;
+	}
+
+	/**
+	 * setReference -- where the read functions are probed, 0 by default.
+	 * The largest count found is the most that can be read from there, so
+	 * the reference should be at the start of the longest block the slave
+	 * has.
+	 * 
+	 * @param ref
+	 *            the reference.
+	 */
+	public void setReference(int ref) {
+		m_Reference = ref;
+	}
+
+	public int getReference() {
+		return m_Reference;
+	}
+
+	/**
+	 * setSamples -- the number of reads timed for each read function, 10 by
+	 * default.
+	 * 
+	 * @param count
+	 *            the number of reads.
+	 */
+	public void setSamples(int count) {
+		m_Samples = count;
+	}
+
+	public int getSamples() {
+		return m_Samples;
+	}
+
+	/**
+	 * Returns the number of requests sent by the last profiling.
+	 */
+	public int getProbes() {
+		return m_Probes;
+	}
+
+	/**
+	 * profile -- probe the slave.
+	 * 
+	 * @return the profile.
+	 * @throws ModbusIOException
+	 *             if the slave did not answer at all.
+	 */
+	public DeviceProfile profile() throws ModbusException {
+		/*
+		 * Silence is expected of some slaves, and is not an outage, so the
+		 * probes bypass the breaker the slave shares with other masters.
+		 */
+		ModbusTCPTransaction tcp = null;
+		boolean usingBreaker = false;
+		if (m_Transaction instanceof ModbusTCPTransaction) {
+			tcp = (ModbusTCPTransaction) m_Transaction;
+			usingBreaker = tcp.isUsingBreaker();
+			tcp.setUsingBreaker(false);
+		}
+		try {
+			return probeAll();
+		} finally {
+			if (tcp != null)
+				tcp.setUsingBreaker(usingBreaker);
+		}
+	}
+
+	private DeviceProfile probeAll() throws ModbusException {
+		DeviceProfile profile = new DeviceProfile(m_Name, m_Unit);
+		profile.setReference(m_Reference);
+		m_Probes = 0;
+
+		boolean answered = false;
+		for (int function : FUNCTIONS) {
+			int outcome = probe(createRequest(function, 1));
+			if (outcome != NO_ANSWER)
+				answered = true;
+
+			profile.setSupported(function, outcome == ANSWERED
+					|| outcome > 0 && outcome != Modbus.ILLEGAL_FUNCTION_EXCEPTION);
+		}
+		if (!answered)
+			throw new ModbusIOException("No answer from " + m_Name);
+
+		for (int function = Modbus.READ_COILS; function <= Modbus.READ_INPUT_REGISTERS; function++) {
+			if (!profile.isSupported(function))
+				continue;
+
+			int count = findMaxCount(function);
+			profile.setMaxCount(function, count);
+			if (count > 0)
+				sample(profile, function, count);
+		}
+		return profile;
+	}
+
+	/**
+	 * findMaxCount -- the largest count a read function returns at the
+	 * reference, or 0 if it returns nothing there.
+	 */
+	private int findMaxCount(int function) throws ModbusException {
+		int limit = Math.min(DeviceProfile.getLimit(function),
+				65536 - m_Reference);
+		if (read(function, limit))
+			return limit;
+
+		if (!read(function, 1))
+			return 0;
+
+		// the lower bound is known to read, the upper one not
+		int low = 1;
+		int high = limit;
+		while (high - low > 1) {
+			int mid = (low + high) >>> 1;
+			if (read(function, mid))
+				low = mid;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * sample -- time reads of the largest count.
+	 */
+	private void sample(DeviceProfile profile, int function, int count)
+			throws ModbusException {
+		long[] times = new long[m_Samples];
+		int n = 0;
+		for (int i = 0; i < m_Samples; i++) {
+			long start = System.nanoTime();
+			if (read(function, count))
+				times[n++] = System.nanoTime() - start;
+		}
+		if (n == 0)
+			return;
+
+		long sum = 0;
+		for (int i = 0; i < n; i++)
+			sum += times[i];
+		long mean = sum / n;
+
+		long deviation = 0;
+		for (int i = 0; i < n; i++)
+			deviation += Math.abs(times[i] - mean);
+
+		profile.setTurnaround(function, mean, deviation / n);
+	}
+
+	/**
+	 * read -- whether a read of the count is answered in full.
+	 */
+	private boolean read(int function, int count) throws ModbusException {
+		if (probe(createRequest(function, count)) != ANSWERED)
+			return false;
+
+		ModbusResponse response = m_Transaction.getResponse();
+		switch (function) {
+		case Modbus.READ_COILS:
+			return ((ReadCoilsResponse) response).getBitCount() >= count;
+		case Modbus.READ_INPUT_DISCRETES:
+			return ((ReadInputDiscretesResponse) response).getBitCount() >= count;
+		case Modbus.READ_MULTIPLE_REGISTERS:
+			return ((ReadMultipleRegistersResponse) response).getWordCount() == count;
+		default:
+			return ((ReadInputRegistersResponse) response).getWordCount() == count;
+		}
+	}
+
+	/**
+	 * probe -- send a request.
+	 * 
+	 * @return <tt>ANSWERED</tt>, <tt>NO_ANSWER</tt> or the exception code.
+	 */
+	private int probe(ModbusRequest request) {
+		request.setUnitID(m_Unit);
+		request.setHeadless(m_Transaction instanceof ModbusSerialTransaction);
+		m_Transaction.setRequest(request);
+		m_Probes++;
+		try {
+			m_Transaction.execute();
+			return ANSWERED;
+		} catch (ModbusSlaveException ex) {
+			return ex.getType();
+		} catch (ModbusException ex) {
+			if (Modbus.debug)
+				System.err.println(m_Name + ": function "
+						+ request.getFunctionCode() + ": " + ex.getMessage());
+
+			return NO_ANSWER;
+		}
+	}
+
+	/**
+	 * createRequest -- a request of the function that changes nothing.
+	 */
+	private ModbusRequest createRequest(int function, int count) {
+		switch (function) {
+		case Modbus.READ_COILS:
+			return new ReadCoilsRequest(m_Reference, count);
+		case Modbus.READ_INPUT_DISCRETES:
+			return new ReadInputDiscretesRequest(m_Reference, count);
+		case Modbus.READ_MULTIPLE_REGISTERS:
+			return new ReadMultipleRegistersRequest(m_Reference, count);
+		case Modbus.READ_INPUT_REGISTERS:
+			return new ReadInputRegistersRequest(m_Reference, count);
+		case Modbus.READ_EXCEPTION_STATUS:
+			return new ReadExceptionStatusRequest();
+		case Modbus.READ_SERIAL_DIAGNOSTICS:
+			return new ReadSerialDiagnosticsRequest();
+		case Modbus.READ_COMM_EVENT_COUNTER:
+			return new ReadCommEventCounterRequest();
+		case Modbus.READ_COMM_EVENT_LOG:
+			return new ReadCommEventLogRequest();
+		case Modbus.WRITE_MULTIPLE_COILS:
+			return new WriteMultipleCoilsRequest(m_Reference, 0);
+		case Modbus.WRITE_MULTIPLE_REGISTERS:
+			return new WriteMultipleRegistersRequest(m_Reference,
+					new Register[0]);
+		case Modbus.REPORT_SLAVE_ID:
+			return new ReportSlaveIDRequest();
+		case Modbus.MASK_WRITE_REGISTER:
+			return new MaskWriteRegisterRequest(m_Reference, 0xFFFF, 0);
+		case Modbus.READ_WRITE_MULTIPLE:
+			return new ReadWriteMultipleRequest(m_Unit, m_Reference, 1,
+					m_Reference, 0);
+		case Modbus.READ_FIFO_QUEUE:
+			ReadFIFOQueueRequest fifo = new ReadFIFOQueueRequest();
+			fifo.setReference(m_Reference);
+			return fifo;
+		default:
+			return new ReadMEIRequest(1, 0);
+		}
+	}
+}
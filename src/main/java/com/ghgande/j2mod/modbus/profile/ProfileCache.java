@@ -0,0 +1,151 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.profile;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.ghgande.j2mod.modbus.Modbus;
+
+/**
+ * ProfileCache -- a directory of device profiles, one file per slave and
+ * unit.
+ * 
+ * <p>
+ * A master looks its slave up at startup, and only profiles it if there is
+ * no profile yet:
+ * 
+ * <pre>
+ * DeviceProfile profile = cache.get(name, unit);
+ * if (profile == null)
+ * 	cache.put(profile = new DeviceProfiler(transaction, name, unit).profile());
+ * </pre>
+ */
+public class ProfileCache {
+	private final File m_Directory;
+
+	/**
+	 * Constructs a new <tt>ProfileCache</tt>.
+	 * 
+	 * @param directory
+	 *            the directory the profiles are kept in. It is created when
+	 *            the first profile is stored.
+	 */
+	public ProfileCache(File directory) {
+		m_Directory = directory;
+	}
+
+	public File getDirectory() {
+		return m_Directory;
+	}
+
+	/**
+	 * getFile -- the file the profile of a slave is kept in.
+	 * 
+	 * @param name
+	 *            the name of the connection to the slave, as used for
+	 *            metrics.
+	 * @param unit
+	 *            the unit.
+	 * @return the file, which may not exist.
+	 */
+	public File getFile(String name, int unit) {
+		StringBuilder file = new StringBuilder(name.length() + 16);
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (Character.isLetterOrDigit(c) || c == '.' || c == '-')
+				file.append(c);
+			else
+				file.append('_');
+		}
+		file.append('-').append(unit).append(".properties");
+		return new File(m_Directory, file.toString());
+	}
+
+	/**
+	 * get -- the stored profile of a slave.
+	 * 
+	 * @param name
+	 *            the name of the connection to the slave.
+	 * @param unit
+	 *            the unit.
+	 * @return the profile, or <tt>null</tt> if there is none or it cannot be
+	 *         read.
+	 */
+	public DeviceProfile get(String name, int unit) {
+		File file = getFile(name, unit);
+		if (!file.isFile())
+			return null;
+
+		try {
+			DeviceProfile profile = DeviceProfile.load(file);
+			if (profile.getName().equals(name) && profile.getUnit() == unit)
+				return profile;
+		} catch (IOException ex) {
+			if (Modbus.debug)
+				System.err.println(file + ": " + ex.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * put -- store the profile of a slave, replacing any earlier one.
+	 * 
+	 * @param profile
+	 *            the profile.
+	 * @throws IOException
+	 *             if the profile cannot be written.
+	 */
+	public void put(DeviceProfile profile) throws IOException {
+		if (!m_Directory.isDirectory() && !m_Directory.mkdirs())
+			throw new IOException("cannot create " + m_Directory);
+
+		File file = getFile(profile.getName(), profile.getUnit());
+		File temp = new File(m_Directory, file.getName() + ".tmp");
+		profile.store(temp);
+		if (!temp.renameTo(file)) {
+			// not atomic where the target has to go first
+			file.delete();
+			if (!temp.renameTo(file))
+				throw new IOException("cannot write " + file);
+		}
+	}
+
+	/**
+	 * remove -- forget the profile of a slave, so that it is probed again.
+	 */
+	public boolean remove(String name, int unit) {
+		return getFile(name, unit).delete();
+	}
+}
@@ -0,0 +1,446 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.util.SerialParameters;
+
+/**
+ * MemorySerialPort -- one end of an in-process null modem cable.
+ * 
+ * <p>
+ * What is written to one end can be read from the other, at the speed a real
+ * line would carry it. Each character becomes readable one character time
+ * after the previous one finished, using the baud rate and framing of the
+ * sending end, so inter-character gaps and the RTU inter-frame silence look
+ * the same as on a wire. <tt>flush()</tt> waits until everything written has
+ * been transmitted.
+ * 
+ * <p>
+ * Pairs are created with {@link #createPair(String, String, SerialParameters)}
+ * and can then be opened by name through {@link SerialPortFactory}, e.g. as
+ * <tt>mem:master</tt> and <tt>mem:slave</tt>.
+ */
+public class MemorySerialPort implements SerialPortAdapter {
+	/**
+	 * The port name prefix for in-memory ports.
+	 */
+	public static final String PREFIX = "mem:";
+
+	/**
+	 * The number of characters a port can hold before input is lost.
+	 */
+	public static final int BUFFER_SIZE = 4096;
+
+	private static final Map<String, MemorySerialPort> c_Ports =
+			new HashMap<String, MemorySerialPort>();
+
+	private final String m_Name;
+	private final Line m_Line = new Line();
+	private MemorySerialPort m_Peer;
+	private SerialParameters m_Parameters;
+	private volatile int m_ReadTimeout;
+	private volatile boolean m_Open;
+	private InputStream m_In;
+	private OutputStream m_Out;
+
+	/**
+	 * Factory -- opens the ends of pairs created with
+	 * {@link MemorySerialPort#createPair(String, String, SerialParameters)}.
+	 */
+	public static class Factory extends SerialPortFactory {
+		public SerialPortAdapter open(SerialParameters params)
+				throws IOException {
+			MemorySerialPort port;
+			synchronized (c_Ports) {
+				port = c_Ports.get(params.getPortName());
+			}
+			if (port == null)
+				throw new IOException("No such port: " + params.getPortName());
+
+			port.open(params);
+			return port;
+		}
+	}
+
+	/**
+	 * createPair -- create two connected ports and make them available to
+	 * {@link SerialPortFactory}.
+	 * 
+	 * @param nameA
+	 *            the name of one end, <tt>"mem:"</tt> is added if missing.
+	 * @param nameB
+	 *            the name of the other end.
+	 * @param params
+	 *            the initial line settings of both ends.
+	 * @return the two ports, not yet open.
+	 */
+	public static MemorySerialPort[] createPair(String nameA, String nameB,
+			SerialParameters params) {
+		MemorySerialPort a = new MemorySerialPort(prefixed(nameA));
+		MemorySerialPort b = new MemorySerialPort(prefixed(nameB));
+		a.m_Peer = b;
+		b.m_Peer = a;
+		a.m_Parameters = copy(params);
+		a.m_Parameters.setPortName(a.m_Name);
+		b.m_Parameters = copy(params);
+		b.m_Parameters.setPortName(b.m_Name);
+
+		synchronized (c_Ports) {
+			c_Ports.put(a.m_Name, a);
+			c_Ports.put(b.m_Name, b);
+		}
+		return new MemorySerialPort[] { a, b };
+	}
+
+	/**
+	 * remove -- forget a port created by <tt>createPair</tt>, so it can no
+	 * longer be opened by name.
+	 * 
+	 * @param name
+	 *            the port name.
+	 */
+	public static void remove(String name) {
+		synchronized (c_Ports) {
+			c_Ports.remove(prefixed(name));
+		}
+	}
+
+	private static String prefixed(String name) {
+		return name.startsWith(PREFIX) ? name : PREFIX + name;
+	}
+
+	/**
+	 * open -- open the port with the given settings. Anything sent to it
+	 * while it was closed has been lost.
+	 * 
+	 * @param params
+	 *            the line settings, the port name is ignored.
+	 * @throws IOException
+	 *             if the port is already open.
+	 */
+	public synchronized void open(SerialParameters params) throws IOException {
+		if (m_Open)
+			throw new IOException("Port in use: " + m_Name);
+
+		setParameters(params);
+		m_Line.reset();
+		m_In = new PortInputStream();
+		m_Out = new PortOutputStream();
+		m_Open = true;
+	}
+
+	public String getName() {
+		return m_Name;
+	}
+
+	public synchronized InputStream getInputStream() throws IOException {
+		if (!m_Open)
+			throw new IOException("Port closed");
+
+		return m_In;
+	}
+
+	public synchronized OutputStream getOutputStream() throws IOException {
+		if (!m_Open)
+			throw new IOException("Port closed");
+
+		return m_Out;
+	}
+
+	public synchronized SerialParameters getParameters() {
+		return copy(m_Parameters);
+	}
+
+	public synchronized void setParameters(SerialParameters params) {
+		m_Parameters = copy(params);
+		m_Parameters.setPortName(m_Name);
+	}
+
+	public void setReadTimeout(int ms) {
+		m_ReadTimeout = ms;
+	}
+
+	/**
+	 * getOverruns -- the number of characters lost because this end was not
+	 * read quickly enough.
+	 * 
+	 * @return the overrun count.
+	 */
+	public int getOverruns() {
+		return m_Line.getOverruns();
+	}
+
+	/**
+	 * getPeer -- the other end of the cable.
+	 * 
+	 * @return the peer port.
+	 */
+	public MemorySerialPort getPeer() {
+		return m_Peer;
+	}
+
+	public synchronized void close() {
+		if (!m_Open)
+			return;
+
+		m_Open = false;
+		m_Line.close();
+	}
+
+	private synchronized long getCharacterTimeNanos() {
+		return m_Parameters.getCharacterTimeNanos();
+	}
+
+	private static SerialParameters copy(SerialParameters params) {
+		SerialParameters result = new SerialParameters(params.getPortName(),
+				params.getBaudRate(), params.getFlowControlIn(),
+				params.getFlowControlOut(), params.getDatabits(),
+				params.getStopbits(), params.getParity(), params.isEcho());
+		result.setEncoding(params.getEncoding());
+
+		return result;
+	}
+
+	/**
+	 * PortInputStream -- reads the characters that have arrived by now.
+	 */
+	private class PortInputStream extends InputStream {
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+
+			return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+
+			return m_Line.receive(b, off, len, m_ReadTimeout);
+		}
+
+		public int available() throws IOException {
+			return m_Line.available();
+		}
+
+		public void close() {
+			// closed with the port
+		}
+	}
+
+	/**
+	 * PortOutputStream -- sends characters to the peer.
+	 */
+	private class PortOutputStream extends OutputStream {
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (!m_Open)
+				throw new IOException("Port closed");
+
+			m_Peer.m_Line.send(b, off, len, getCharacterTimeNanos());
+		}
+
+		public void flush() throws IOException {
+			m_Peer.m_Line.drain();
+		}
+
+		public void close() {
+			// closed with the port
+		}
+	}
+
+	/**
+	 * Line -- the characters on their way to one end, each with the time it
+	 * finishes arriving.
+	 */
+	private static class Line {
+		private final byte[] m_Data = new byte[BUFFER_SIZE];
+		private final long[] m_Due = new long[BUFFER_SIZE];
+		private final ReentrantLock m_Lock = new ReentrantLock();
+		private final Condition m_Changed = m_Lock.newCondition();
+		private long m_Head;
+		private long m_Tail;
+		private long m_LastDue;
+		private int m_Overruns;
+		private boolean m_Closed;
+
+		void send(byte[] b, int off, int len, long charNanos) {
+			m_Lock.lock();
+			try {
+				if (m_Closed)
+					return; // nobody listening
+
+				long due = Math.max(System.nanoTime(), m_LastDue);
+				for (int i = 0; i < len; i++) {
+					due += charNanos;
+					if (m_Tail - m_Head == BUFFER_SIZE) {
+						m_Overruns++;
+						if (Modbus.debug)
+							System.err.println("Memory serial port overrun");
+
+						continue;
+					}
+					int pos = (int) (m_Tail % BUFFER_SIZE);
+					m_Data[pos] = b[off + i];
+					m_Due[pos] = due;
+					m_Tail++;
+				}
+				m_LastDue = due;
+				m_Changed.signalAll();
+			} finally {
+				m_Lock.unlock();
+			}
+		}
+
+		int receive(byte[] b, int off, int len, int timeoutMs)
+				throws IOException {
+			long deadline = timeoutMs > 0 ? System.nanoTime()
+					+ TimeUnit.MILLISECONDS.toNanos(timeoutMs) : Long.MAX_VALUE;
+
+			m_Lock.lock();
+			try {
+				for (;;) {
+					if (m_Closed)
+						throw new IOException("Port closed");
+
+					long now = System.nanoTime();
+					int count = 0;
+					while (count < len && m_Head < m_Tail
+							&& m_Due[(int) (m_Head % BUFFER_SIZE)] <= now) {
+						b[off + count++] = m_Data[(int) (m_Head++ % BUFFER_SIZE)];
+					}
+					if (count > 0)
+						return count;
+
+					long wait = deadline - now;
+					if (wait <= 0)
+						return 0;
+
+					if (m_Head < m_Tail)
+						wait = Math.min(wait,
+								m_Due[(int) (m_Head % BUFFER_SIZE)] - now);
+
+					m_Changed.awaitNanos(wait);
+				}
+			} catch (InterruptedException x) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			} finally {
+				m_Lock.unlock();
+			}
+		}
+
+		int available() throws IOException {
+			m_Lock.lock();
+			try {
+				if (m_Closed)
+					throw new IOException("Port closed");
+
+				long now = System.nanoTime();
+				int count = 0;
+				for (long i = m_Head; i < m_Tail
+						&& m_Due[(int) (i % BUFFER_SIZE)] <= now; i++) {
+					count++;
+				}
+				return count;
+			} finally {
+				m_Lock.unlock();
+			}
+		}
+
+		/**
+		 * drain -- wait until the last character sent has arrived.
+		 */
+		void drain() throws IOException {
+			m_Lock.lock();
+			try {
+				long wait;
+				while ((wait = m_LastDue - System.nanoTime()) > 0 && !m_Closed)
+					m_Changed.awaitNanos(wait);
+			} catch (InterruptedException x) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			} finally {
+				m_Lock.unlock();
+			}
+		}
+
+		int getOverruns() {
+			m_Lock.lock();
+			try {
+				return m_Overruns;
+			} finally {
+				m_Lock.unlock();
+			}
+		}
+
+		void reset() {
+			m_Lock.lock();
+			try {
+				m_Head = m_Tail;
+				m_LastDue = 0;
+				m_Closed = false;
+			} finally {
+				m_Lock.unlock();
+			}
+		}
+
+		void close() {
+			m_Lock.lock();
+			try {
+				m_Closed = true;
+				m_Changed.signalAll();
+			} finally {
+				m_Lock.unlock();
+			}
+		}
+	}
+
+	private MemorySerialPort(String name) {
+		m_Name = name;
+	}
+}
@@ -0,0 +1,262 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.serial;
+
+import gnu.io.SerialPort;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ghgande.j2mod.modbus.util.SerialParameters;
+
+/**
+ * PtySerialPort -- a Linux terminal device used directly, without RXTX.
+ * 
+ * <p>
+ * This is meant for pseudo terminals, e.g. one end of a pair made with
+ * <tt>socat pty,raw,echo=0 pty,raw,echo=0</tt>, so a simulator or another
+ * program can stand in for a device. Real serial devices work as well. The
+ * port name is the device path after the <tt>pty:</tt> prefix, e.g.
+ * <tt>pty:/dev/pts/3</tt>.
+ * 
+ * <p>
+ * The line settings and the read timeout are applied with <tt>stty</tt>.
+ * The timeout has a resolution of 100 milliseconds.
+ */
+public class PtySerialPort implements SerialPortAdapter {
+	/**
+	 * The port name prefix for terminal devices.
+	 */
+	public static final String PREFIX = "pty:";
+
+	private final String m_Name;
+	private final File m_Device;
+	private SerialParameters m_Parameters;
+	private int m_ReadTimeout;
+	private FileInputStream m_In;
+	private FileOutputStream m_Out;
+	private InputStream m_Input;
+
+	/**
+	 * Factory -- opens terminal devices named <tt>pty:<i>path</i></tt>.
+	 */
+	public static class Factory extends SerialPortFactory {
+		public SerialPortAdapter open(SerialParameters params)
+				throws IOException {
+			PtySerialPort port = new PtySerialPort(params.getPortName());
+			try {
+				port.setParameters(params);
+			} catch (IOException x) {
+				port.close();
+				throw x;
+			}
+			return port;
+		}
+	}
+
+	public String getName() {
+		return m_Name;
+	}
+
+	public InputStream getInputStream() {
+		return m_Input;
+	}
+
+	public OutputStream getOutputStream() {
+		return m_Out;
+	}
+
+	public synchronized SerialParameters getParameters() {
+		return m_Parameters;
+	}
+
+	public synchronized void setParameters(SerialParameters params)
+			throws IOException {
+		List<String> args = new ArrayList<String>();
+		args.add("raw");
+		args.add("-echo");
+		args.add(Integer.toString(params.getBaudRate()));
+		args.add("cs" + params.getDatabits());
+		args.add(params.getStopbits() == SerialPort.STOPBITS_1 ? "-cstopb"
+				: "cstopb");
+
+		switch (params.getParity()) {
+		case SerialPort.PARITY_NONE:
+			args.add("-parenb");
+			break;
+		case SerialPort.PARITY_EVEN:
+			args.add("parenb");
+			args.add("-parodd");
+			break;
+		case SerialPort.PARITY_ODD:
+			args.add("parenb");
+			args.add("parodd");
+			break;
+		default:
+			throw new IOException("Unsupported parameter");
+		}
+
+		int flow = params.getFlowControlIn() | params.getFlowControlOut();
+		args.add((flow & (SerialPort.FLOWCONTROL_RTSCTS_IN | SerialPort.FLOWCONTROL_RTSCTS_OUT)) != 0 ? "crtscts"
+				: "-crtscts");
+		args.add((flow & SerialPort.FLOWCONTROL_XONXOFF_OUT) != 0 ? "ixon"
+				: "-ixon");
+		args.add((flow & SerialPort.FLOWCONTROL_XONXOFF_IN) != 0 ? "ixoff"
+				: "-ixoff");
+
+		stty(args);
+		m_Parameters = params;
+	}
+
+	public synchronized void setReadTimeout(int ms) throws IOException {
+		List<String> args = new ArrayList<String>();
+		if (ms > 0) {
+			// VTIME counts tenths of a second, up to 25.5 seconds
+			args.add("min");
+			args.add("0");
+			args.add("time");
+			args.add(Integer.toString(Math.min(Math.max((ms + 99) / 100, 1), 255)));
+		} else {
+			args.add("min");
+			args.add("1");
+			args.add("time");
+			args.add("0");
+		}
+		stty(args);
+		m_ReadTimeout = ms;
+	}
+
+	/**
+	 * getReadTimeout -- the read timeout last set.
+	 * 
+	 * @return the timeout in milliseconds, 0 if reads block.
+	 */
+	public synchronized int getReadTimeout() {
+		return m_ReadTimeout;
+	}
+
+	public void close() {
+		try {
+			m_In.close();
+		} catch (IOException x) {
+			// nothing to do
+		}
+		try {
+			m_Out.close();
+		} catch (IOException x) {
+			// nothing to do
+		}
+	}
+
+	/**
+	 * stty -- run <tt>stty</tt> on the device.
+	 */
+	private void stty(List<String> settings) throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add("stty");
+		command.add("-F");
+		command.add(m_Device.getPath());
+		command.addAll(settings);
+
+		Process p = new ProcessBuilder(command).redirectErrorStream(true)
+				.start();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		InputStream in = p.getInputStream();
+		byte[] b = new byte[256];
+		int n;
+		while ((n = in.read(b)) > 0)
+			output.write(b, 0, n);
+
+		try {
+			if (p.waitFor() != 0)
+				throw new IOException("stty failed: " + output.toString().trim());
+		} catch (InterruptedException x) {
+			Thread.currentThread().interrupt();
+			throw new IOException("stty interrupted");
+		}
+	}
+
+	/**
+	 * Constructs a new <tt>PtySerialPort</tt> and opens the device. The line
+	 * settings are left as they are.
+	 * 
+	 * @param name
+	 *            the device path, with or without the <tt>pty:</tt> prefix.
+	 * @throws IOException
+	 *             if the device cannot be opened.
+	 */
+	public PtySerialPort(String name) throws IOException {
+		m_Name = name.startsWith(PREFIX) ? name : PREFIX + name;
+		m_Device = new File(m_Name.substring(PREFIX.length()));
+		m_In = new FileInputStream(m_Device);
+		try {
+			m_Out = new FileOutputStream(m_Device);
+		} catch (IOException x) {
+			m_In.close();
+			throw x;
+		}
+
+		/*
+		 * With a read timeout the terminal returns no data at all, which
+		 * FileInputStream reports as end of file. Report it as 0 bytes read,
+		 * the way the other ports do.
+		 */
+		m_Input = new InputStream() {
+			public int read() throws IOException {
+				return m_In.read();
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = m_In.read(b, off, len);
+
+				return n < 0 ? 0 : n;
+			}
+
+			public int available() throws IOException {
+				return m_In.available();
+			}
+
+			public void close() throws IOException {
+				m_In.close();
+			}
+		};
+	}
+}
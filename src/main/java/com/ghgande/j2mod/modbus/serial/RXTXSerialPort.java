@@ -0,0 +1,240 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.serial;
+
+import gnu.io.CommPort;
+import gnu.io.CommPortIdentifier;
+import gnu.io.NoSuchPortException;
+import gnu.io.PortInUseException;
+import gnu.io.RXTXPort;
+import gnu.io.SerialPort;
+import gnu.io.SerialPortEvent;
+import gnu.io.SerialPortEventListener;
+import gnu.io.UnsupportedCommOperationException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.TooManyListenersException;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.util.SerialParameters;
+
+/**
+ * RXTXSerialPort -- a serial port opened with RXTX.
+ * 
+ * <p>
+ * Reads use the port's receive timeout and have no receive threshold, so
+ * they return whatever has arrived and 0 when nothing did.
+ */
+public class RXTXSerialPort implements SerialPortAdapter,
+		SerialPortEventListener {
+	private CommPort m_CommPort;
+
+	/**
+	 * Factory -- opens ports with RXTX, the default for port names without
+	 * a prefix.
+	 */
+	public static class Factory extends SerialPortFactory {
+		public SerialPortAdapter open(SerialParameters params)
+				throws IOException {
+			SerialPort port;
+
+			try {
+				CommPortIdentifier id = CommPortIdentifier
+						.getPortIdentifier(params.getPortName());
+
+				port = (SerialPort) id.open("Modbus Serial Master", 30000);
+			} catch (PortInUseException e) {
+				throw new IOException(e.getMessage());
+			} catch (NoSuchPortException e) {
+
+				/*
+				 * It's possible there is no CommPortIdentifier because RXTX
+				 * does not look for all of them.
+				 */
+				try {
+					port = new RXTXPort(params.getPortName());
+				} catch (PortInUseException x) {
+					throw new IOException(x.getMessage());
+				}
+			}
+			RXTXSerialPort result = new RXTXSerialPort(port);
+			try {
+				result.setParameters(params);
+				port.addEventListener(result);
+				port.notifyOnBreakInterrupt(true);
+			} catch (TooManyListenersException e) {
+				port.close();
+				throw new IOException("too many listeners added");
+			} catch (IOException e) {
+				port.close();
+				throw e;
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * getCommPort -- the underlying RXTX port.
+	 * 
+	 * @return the port.
+	 */
+	public CommPort getCommPort() {
+		return m_CommPort;
+	}
+
+	public String getName() {
+		return m_CommPort.getName();
+	}
+
+	public InputStream getInputStream() throws IOException {
+		return m_CommPort.getInputStream();
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		return m_CommPort.getOutputStream();
+	}
+
+	public SerialParameters getParameters() {
+		if (!(m_CommPort instanceof SerialPort))
+			return null;
+
+		SerialPort port = (SerialPort) m_CommPort;
+		SerialParameters params = new SerialParameters();
+		params.setPortName(port.getName());
+		params.setBaudRate(port.getBaudRate());
+		params.setDatabits(port.getDataBits());
+		params.setStopbits(port.getStopBits());
+		params.setParity(port.getParity());
+		params.setFlowControlIn(port.getFlowControlMode()
+				& (SerialPort.FLOWCONTROL_RTSCTS_IN | SerialPort.FLOWCONTROL_XONXOFF_IN));
+		params.setFlowControlOut(port.getFlowControlMode()
+				& (SerialPort.FLOWCONTROL_RTSCTS_OUT | SerialPort.FLOWCONTROL_XONXOFF_OUT));
+
+		return params;
+	}
+
+	public void setParameters(SerialParameters params) throws IOException {
+		if (!(m_CommPort instanceof SerialPort))
+			throw new IOException("Cannot change settings of non-serial device.");
+
+		SerialPort port = (SerialPort) m_CommPort;
+
+		// Save state of parameters before trying a set.
+		int oldBaudRate = port.getBaudRate();
+		int oldDatabits = port.getDataBits();
+		int oldStopbits = port.getStopBits();
+		int oldParity = port.getParity();
+
+		try {
+			port.setSerialPortParams(params.getBaudRate(),
+					params.getDatabits(), params.getStopbits(),
+					params.getParity());
+		} catch (UnsupportedCommOperationException e) {
+			if (Modbus.debug)
+				System.out.println(e.getMessage());
+
+			throw new IOException("Unsupported parameter");
+		}
+		try {
+			port.setFlowControlMode(params.getFlowControlIn()
+					| params.getFlowControlOut());
+		} catch (UnsupportedCommOperationException e) {
+			if (Modbus.debug)
+				System.out.println(e.getMessage());
+
+			try {
+				port.setSerialPortParams(oldBaudRate, oldDatabits,
+						oldStopbits, oldParity);
+			} catch (UnsupportedCommOperationException x) {
+				// the old settings were accepted before
+			}
+			throw new IOException("Unsupported flow control");
+		}
+	}
+
+	public void setReadTimeout(int ms) throws IOException {
+		try {
+			m_CommPort.disableReceiveThreshold();
+			if (ms > 0)
+				m_CommPort.enableReceiveTimeout(ms);
+			else
+				m_CommPort.disableReceiveTimeout();
+		} catch (UnsupportedCommOperationException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/**
+	 * getReadTimeout -- the port's receive timeout.
+	 * 
+	 * @return the timeout in milliseconds, 0 if it is disabled.
+	 */
+	public int getReadTimeout() {
+		return m_CommPort.isReceiveTimeoutEnabled() ? m_CommPort
+				.getReceiveTimeout() : 0;
+	}
+
+	public void close() {
+		m_CommPort.close();
+	}
+
+	public void serialEvent(SerialPortEvent e) {
+		switch (e.getEventType()) {
+		case SerialPortEvent.DATA_AVAILABLE:
+			// The transport reads directly from the input stream.
+			break;
+		case SerialPortEvent.BI:
+			if (Modbus.debug)
+				System.out.println("Serial port break detected");
+
+			break;
+		default:
+			if (Modbus.debug)
+				System.out.println("Serial port event: " + e.getEventType());
+		}
+	}
+
+	/**
+	 * Constructs a new <tt>RXTXSerialPort</tt> for a port that is already
+	 * open.
+	 * 
+	 * @param port
+	 *            the RXTX port.
+	 */
+	public RXTXSerialPort(CommPort port) {
+		m_CommPort = port;
+	}
+}
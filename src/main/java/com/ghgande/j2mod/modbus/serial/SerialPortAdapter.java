@@ -0,0 +1,120 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.ghgande.j2mod.modbus.util.SerialParameters;
+
+/**
+ * SerialPortAdapter -- an open serial port, as seen by the serial
+ * transports.
+ * 
+ * <p>
+ * This is all the Modbus serial stack needs from a port, which keeps it
+ * independent of any particular serial library. {@link RXTXSerialPort} uses
+ * RXTX, {@link MemorySerialPort} is an in-process null modem cable with
+ * realistic character timing, and {@link PtySerialPort} talks to a Unix
+ * pseudo terminal directly. Ports are normally opened through
+ * {@link SerialPortFactory}.
+ */
+public interface SerialPortAdapter {
+	/**
+	 * getName -- the name the port was opened with.
+	 * 
+	 * @return the port name.
+	 */
+	public String getName();
+
+	/**
+	 * getInputStream -- the stream of received characters.
+	 * 
+	 * <p>
+	 * A read blocks until at least one character is available or the read
+	 * timeout expires, in which case it returns 0.
+	 * 
+	 * @return the input stream.
+	 * @throws IOException
+	 *             if the port is not usable.
+	 */
+	public InputStream getInputStream() throws IOException;
+
+	/**
+	 * getOutputStream -- the stream of characters to send.
+	 * 
+	 * @return the output stream.
+	 * @throws IOException
+	 *             if the port is not usable.
+	 */
+	public OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * getParameters -- the line settings currently in effect.
+	 * 
+	 * <p>
+	 * Only the baud rate, data bits, stop bits, parity and flow control are
+	 * meaningful.
+	 * 
+	 * @return the settings, or <tt>null</tt> if the port has none.
+	 */
+	public SerialParameters getParameters();
+
+	/**
+	 * setParameters -- change the line settings.
+	 * 
+	 * @param params
+	 *            the new settings.
+	 * @throws IOException
+	 *             if the port does not support them. The previous settings
+	 *             remain in effect.
+	 */
+	public void setParameters(SerialParameters params) throws IOException;
+
+	/**
+	 * setReadTimeout -- how long a read of the input stream may block.
+	 * 
+	 * @param ms
+	 *            the timeout in milliseconds, 0 to block until data arrives.
+	 * @throws IOException
+	 *             if the port does not support read timeouts.
+	 */
+	public void setReadTimeout(int ms) throws IOException;
+
+	/**
+	 * close -- close the port and its streams.
+	 */
+	public void close();
+}
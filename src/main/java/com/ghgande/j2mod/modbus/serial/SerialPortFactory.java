@@ -0,0 +1,145 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.serial;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.ghgande.j2mod.modbus.util.SerialParameters;
+
+/**
+ * SerialPortFactory -- open serial ports by name.
+ * 
+ * <p>
+ * A port name may start with a prefix that selects the implementation.
+ * <tt>mem:</tt> opens an end of a {@link MemorySerialPort} pair and
+ * <tt>pty:</tt> opens a pseudo terminal with {@link PtySerialPort}. Names
+ * without a registered prefix are opened with RXTX. Further implementations
+ * can be added with {@link #register(String, SerialPortFactory)}.
+ * 
+ * <p>
+ * The RXTX implementation is only created when a name needs it, so the
+ * other implementations work without RXTX on the class path.
+ */
+public abstract class SerialPortFactory {
+	private static final Map<String, SerialPortFactory> c_Factories =
+			new HashMap<String, SerialPortFactory>();
+	private static SerialPortFactory c_Default;
+
+	static {
+		c_Factories.put(MemorySerialPort.PREFIX, new MemorySerialPort.Factory());
+		c_Factories.put(PtySerialPort.PREFIX, new PtySerialPort.Factory());
+	}
+
+	/**
+	 * open -- open and configure a port.
+	 * 
+	 * @param params
+	 *            the port name and line settings.
+	 * @return the open port.
+	 * @throws IOException
+	 *             if the port cannot be opened or configured.
+	 */
+	public abstract SerialPortAdapter open(SerialParameters params)
+			throws IOException;
+
+	/**
+	 * register -- add an implementation for port names with a prefix.
+	 * 
+	 * @param prefix
+	 *            the prefix, including any separator, e.g. <tt>"mem:"</tt>.
+	 * @param factory
+	 *            the factory for those names.
+	 */
+	public static synchronized void register(String prefix,
+			SerialPortFactory factory) {
+		c_Factories.put(prefix, factory);
+	}
+
+	/**
+	 * setDefault -- set the implementation for names without a registered
+	 * prefix.
+	 * 
+	 * @param factory
+	 *            the default factory.
+	 */
+	public static synchronized void setDefault(SerialPortFactory factory) {
+		c_Default = factory;
+	}
+
+	/**
+	 * isPrefix -- whether a port name prefix has been registered.
+	 * 
+	 * @param prefix
+	 *            the prefix, including any separator.
+	 * @return <tt>true</tt> if names with the prefix have their own factory.
+	 */
+	public static synchronized boolean isPrefix(String prefix) {
+		return c_Factories.containsKey(prefix);
+	}
+
+	/**
+	 * getFactory -- the implementation for a port name.
+	 * 
+	 * @param name
+	 *            the port name.
+	 * @return the factory that opens it.
+	 */
+	public static synchronized SerialPortFactory getFactory(String name) {
+		for (Map.Entry<String, SerialPortFactory> entry : c_Factories
+				.entrySet()) {
+			if (name.startsWith(entry.getKey()))
+				return entry.getValue();
+		}
+		if (c_Default == null)
+			c_Default = new RXTXSerialPort.Factory();
+
+		return c_Default;
+	}
+
+	/**
+	 * openPort -- open a port with the implementation for its name.
+	 * 
+	 * @param params
+	 *            the port name and line settings.
+	 * @return the open port.
+	 * @throws IOException
+	 *             if the port cannot be opened or configured.
+	 */
+	public static SerialPortAdapter openPort(SerialParameters params)
+			throws IOException {
+		return getFactory(params.getPortName()).open(params);
+	}
+}
@@ -0,0 +1,422 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.sim;
+
+import java.util.function.IntUnaryOperator;
+
+import com.ghgande.j2mod.modbus.procimg.AtomicProcessImage;
+import com.ghgande.j2mod.modbus.procimg.DigitalIn;
+import com.ghgande.j2mod.modbus.procimg.DigitalOut;
+import com.ghgande.j2mod.modbus.procimg.FIFO;
+import com.ghgande.j2mod.modbus.procimg.File;
+import com.ghgande.j2mod.modbus.procimg.IllegalAddressException;
+import com.ghgande.j2mod.modbus.procimg.InputRegister;
+import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.procimg.Register;
+import com.ghgande.j2mod.modbus.procimg.SimpleInputRegister;
+
+/**
+ * DeviceImage -- the process image of one simulated device, a copy on write
+ * of a template image shared by many devices.
+ * 
+ * <p>
+ * Until a master writes to it the device reads through to the template and
+ * costs only this object. A write to a register or coil keeps the new value in
+ * the device, in pages of 64 that are allocated on the first write to them, so
+ * the template never changes. Registers of the template that are
+ * {@link GeneratedRegister}s are read with the index of the device as phase.
+ * 
+ * <p>
+ * Discrete inputs, files and FIFOs are not copied and are those of the
+ * template.
+ */
+public class DeviceImage implements AtomicProcessImage {
+	private static final int PAGE_BITS = 6;
+	private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+
+	private final ProcessImage m_Template;
+	private final int m_Unit;
+	private final int m_Index;
+
+	// values written to this device, by page, and which of them are written
+	private short[][] m_Registers;
+	private long[] m_RegistersWritten;
+	private long[] m_Coils;
+	private long[] m_CoilsWritten;
+
+	/**
+	 * Constructs a device image on a template.
+	 * 
+	 * @param template
+	 *            the image the device starts from, which is shared and
+	 *            must not change size.
+	 * @param unit
+	 *            the unit identifier of the device, or 0 for any.
+	 * @param index
+	 *            the index of the device, which sets the phase of its
+	 *            generated values.
+	 */
+	public DeviceImage(ProcessImage template, int unit, int index) {
+		m_Template = template;
+		m_Unit = unit;
+		m_Index = index;
+	}
+
+	public ProcessImage getTemplate() {
+		return m_Template;
+	}
+
+	public int getIndex() {
+		return m_Index;
+	}
+
+	public int getUnitID() {
+		return m_Unit;
+	}
+
+	/**
+	 * Forgets all values written to this device, so that it reads through to
+	 * the template again.
+	 */
+	public synchronized void reset() {
+		m_Registers = null;
+		m_RegistersWritten = null;
+		m_Coils = null;
+		m_CoilsWritten = null;
+	}
+
+	/**
+	 * Returns the number of registers and coils written to this device.
+	 */
+	public synchronized int getWrittenCount() {
+		return bitCount(m_RegistersWritten) + bitCount(m_CoilsWritten);
+	}
+
+	private static int bitCount(long[] bits) {
+		int count = 0;
+		if (bits != null) {
+			for (int i = 0; i < bits.length; i++)
+				count += Long.bitCount(bits[i]);
+		}
+		return count;
+	}
+
+	private static int pages(int count) {
+		return (count + PAGE_MASK) >> PAGE_BITS;
+	}
+
+	private static void checkRange(int ref, int count, int size) {
+		if (ref < 0 || count < 0 || ref + count > size)
+			throw new IllegalAddressException();
+	}
+
+	/**
+	 * registerValue -- the value of a register of this device.
+	 */
+	private synchronized int registerValue(int ref, InputRegister template) {
+		int page = ref >> PAGE_BITS;
+		if (m_RegistersWritten != null
+				&& (m_RegistersWritten[page] & (1L << ref)) != 0)
+			return m_Registers[page][ref & PAGE_MASK] & 0xFFFF;
+
+		if (template instanceof GeneratedRegister)
+			return ((GeneratedRegister) template).getValue(m_Index);
+
+		return template.toUnsignedShort();
+	}
+
+	/**
+	 * writeRegister -- sets the value of a register of this device.
+	 */
+	private synchronized void writeRegister(int ref, int value) {
+		if (m_RegistersWritten == null) {
+			int pages = pages(m_Template.getRegisterCount());
+			m_Registers = new short[pages][];
+			m_RegistersWritten = new long[pages];
+		}
+		int page = ref >> PAGE_BITS;
+		if (m_Registers[page] == null)
+			m_Registers[page] = new short[1 << PAGE_BITS];
+
+		m_Registers[page][ref & PAGE_MASK] = (short) value;
+		m_RegistersWritten[page] |= 1L << ref;
+	}
+
+	/**
+	 * coilValue -- the state of a coil of this device.
+	 */
+	private synchronized boolean coilValue(int ref, DigitalOut template) {
+		int page = ref >> PAGE_BITS;
+		if (m_CoilsWritten != null && (m_CoilsWritten[page] & (1L << ref)) != 0)
+			return (m_Coils[page] & (1L << ref)) != 0;
+
+		return template.isSet();
+	}
+
+	/**
+	 * writeCoil -- sets the state of a coil of this device.
+	 */
+	private synchronized void writeCoil(int ref, boolean value) {
+		if (m_CoilsWritten == null) {
+			int pages = pages(m_Template.getDigitalOutCount());
+			m_Coils = new long[pages];
+			m_CoilsWritten = new long[pages];
+		}
+		int page = ref >> PAGE_BITS;
+		if (value)
+			m_Coils[page] |= 1L << ref;
+		else
+			m_Coils[page] &= ~(1L << ref);
+
+		m_CoilsWritten[page] |= 1L << ref;
+	}
+
+	public DigitalOut getDigitalOut(int ref) throws IllegalAddressException {
+		return new DeviceCoil(ref, m_Template.getDigitalOut(ref));
+	}
+
+	public DigitalOut[] getDigitalOutRange(int offset, int count)
+			throws IllegalAddressException {
+		checkRange(offset, count, getDigitalOutCount());
+
+		DigitalOut[] coils = new DigitalOut[count];
+		for (int i = 0; i < count; i++)
+			coils[i] = getDigitalOut(offset + i);
+
+		return coils;
+	}
+
+	public int getDigitalOutCount() {
+		return m_Template.getDigitalOutCount();
+	}
+
+	public DigitalIn getDigitalIn(int ref) throws IllegalAddressException {
+		return m_Template.getDigitalIn(ref);
+	}
+
+	public DigitalIn[] getDigitalInRange(int offset, int count)
+			throws IllegalAddressException {
+		return m_Template.getDigitalInRange(offset, count);
+	}
+
+	public int getDigitalInCount() {
+		return m_Template.getDigitalInCount();
+	}
+
+	public InputRegister getInputRegister(int ref)
+			throws IllegalAddressException {
+		InputRegister reg = m_Template.getInputRegister(ref);
+		if (reg instanceof GeneratedRegister)
+			return new SimpleInputRegister(
+					((GeneratedRegister) reg).getValue(m_Index));
+
+		return reg;
+	}
+
+	public InputRegister[] getInputRegisterRange(int offset, int count)
+			throws IllegalAddressException {
+		checkRange(offset, count, getInputRegisterCount());
+
+		InputRegister[] regs = new InputRegister[count];
+		for (int i = 0; i < count; i++)
+			regs[i] = getInputRegister(offset + i);
+
+		return regs;
+	}
+
+	public int getInputRegisterCount() {
+		return m_Template.getInputRegisterCount();
+	}
+
+	public Register getRegister(int ref) throws IllegalAddressException {
+		return new DeviceRegister(ref, m_Template.getRegister(ref));
+	}
+
+	public Register[] getRegisterRange(int offset, int count)
+			throws IllegalAddressException {
+		checkRange(offset, count, getRegisterCount());
+
+		Register[] regs = new Register[count];
+		for (int i = 0; i < count; i++)
+			regs[i] = getRegister(offset + i);
+
+		return regs;
+	}
+
+	public int getRegisterCount() {
+		return m_Template.getRegisterCount();
+	}
+
+	public synchronized int updateRegister(int ref, IntUnaryOperator function)
+			throws IllegalAddressException {
+		Register template = m_Template.getRegister(ref);
+		int value = function.applyAsInt(registerValue(ref, template)) & 0xFFFF;
+		writeRegister(ref, value);
+
+		return value;
+	}
+
+	public int maskRegister(int ref, final int andMask, final int orMask)
+			throws IllegalAddressException {
+		return updateRegister(ref, new IntUnaryOperator() {
+			public int applyAsInt(int value) {
+				return (value & andMask) | (orMask & ~andMask);
+			}
+		});
+	}
+
+	public synchronized int[] readRegisters(int ref, int count)
+			throws IllegalAddressException {
+		checkRange(ref, count, getRegisterCount());
+
+		int[] result = new int[count];
+		for (int i = 0; i < count; i++)
+			result[i] = registerValue(ref + i, m_Template.getRegister(ref + i));
+
+		return result;
+	}
+
+	public synchronized void writeRegisters(int ref, int[] values)
+			throws IllegalAddressException {
+		checkRange(ref, values.length, getRegisterCount());
+
+		for (int i = 0; i < values.length; i++)
+			writeRegister(ref + i, values[i]);
+	}
+
+	public synchronized int[] readWriteRegisters(int readRef, int readCount,
+			int writeRef, int[] values) throws IllegalAddressException {
+		checkRange(readRef, readCount, getRegisterCount());
+		checkRange(writeRef, values.length, getRegisterCount());
+
+		int[] result = new int[readCount];
+		for (int i = 0; i < readCount; i++)
+			result[i] = registerValue(readRef + i,
+					m_Template.getRegister(readRef + i));
+
+		for (int i = 0; i < values.length; i++)
+			writeRegister(writeRef + i, values[i]);
+
+		return result;
+	}
+
+	public File getFile(int ref) throws IllegalAddressException {
+		return m_Template.getFile(ref);
+	}
+
+	public File getFileByNumber(int ref) throws IllegalAddressException {
+		return m_Template.getFileByNumber(ref);
+	}
+
+	public int getFileCount() {
+		return m_Template.getFileCount();
+	}
+
+	public FIFO getFIFO(int ref) throws IllegalAddressException {
+		return m_Template.getFIFO(ref);
+	}
+
+	public FIFO getFIFOByAddress(int ref) throws IllegalAddressException {
+		return m_Template.getFIFOByAddress(ref);
+	}
+
+	public int getFIFOCount() {
+		return m_Template.getFIFOCount();
+	}
+
+	/**
+	 * DeviceRegister -- a holding register of this device, as handed to the
+	 * request being served.
+	 */
+	private class DeviceRegister implements Register {
+		private final int m_Ref;
+		private final Register m_Template;
+
+		DeviceRegister(int ref, Register template) {
+			m_Ref = ref;
+			m_Template = template;
+		}
+
+		public int getValue() {
+			return registerValue(m_Ref, m_Template);
+		}
+
+		public int toUnsignedShort() {
+			return getValue();
+		}
+
+		public short toShort() {
+			return (short) getValue();
+		}
+
+		public byte[] toBytes() {
+			int value = getValue();
+			return new byte[] { (byte) (value >> 8), (byte) value };
+		}
+
+		public void setValue(int v) {
+			writeRegister(m_Ref, v);
+		}
+
+		public void setValue(short s) {
+			writeRegister(m_Ref, s);
+		}
+
+		public void setValue(byte[] bytes) {
+			writeRegister(m_Ref, ((bytes[0] & 0xFF) << 8) | (bytes[1] & 0xFF));
+		}
+	}
+
+	/**
+	 * DeviceCoil -- a coil of this device, as handed to the request being
+	 * served.
+	 */
+	private class DeviceCoil implements DigitalOut {
+		private final int m_Ref;
+		private final DigitalOut m_Template;
+
+		DeviceCoil(int ref, DigitalOut template) {
+			m_Ref = ref;
+			m_Template = template;
+		}
+
+		public boolean isSet() {
+			return coilValue(m_Ref, m_Template);
+		}
+
+		public void set(boolean b) {
+			writeCoil(m_Ref, b);
+		}
+	}
+}
@@ -0,0 +1,817 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.sim;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusCoupler;
+import com.ghgande.j2mod.modbus.ModbusIOException;
+import com.ghgande.j2mod.modbus.io.ModbusTransport;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.net.ModbusListener;
+import com.ghgande.j2mod.modbus.net.TCPSlaveConnection;
+import com.ghgande.j2mod.modbus.procimg.IllegalAddressException;
+import com.ghgande.j2mod.modbus.procimg.ProcessImage;
+import com.ghgande.j2mod.modbus.procimg.Register;
+import com.ghgande.j2mod.modbus.procimg.SimpleDigitalIn;
+import com.ghgande.j2mod.modbus.procimg.SimpleDigitalOut;
+import com.ghgande.j2mod.modbus.procimg.SimpleInputRegister;
+import com.ghgande.j2mod.modbus.procimg.SimpleProcessImage;
+import com.ghgande.j2mod.modbus.procimg.SimpleRegister;
+
+/**
+ * DeviceSimulator -- a Modbus/TCP listener that emulates many slave devices in
+ * one process, for load testing masters.
+ * 
+ * <p>
+ * The devices are spread over endpoints, each of which has
+ * {@link #setUnits(int)} devices behind consecutive unit identifiers. The
+ * endpoints listen on consecutive ports of one address, or with
+ * {@link #setAliases(boolean)} on the same port of consecutive addresses. On
+ * Linux every address of 127.0.0.0/8 is local, other aliases have to be added
+ * to an interface first.
+ * 
+ * <p>
+ * Each device has a {@link DeviceImage} on a template shared by all of them,
+ * so an idle device costs a few dozen bytes. One thread accepts the
+ * connections of all endpoints and each connection is served by a thread
+ * with a small stack, answering from the image of the unit addressed. Replies
+ * can be held back by a latency and a random jitter, and a fraction of the
+ * requests can be answered with an exception or not at all.
+ * 
+ * <p>
+ * {@link #configure(Properties)} sets the simulator up from a script, see
+ * {@link com.ghgande.j2mod.modbus.cmd.SimulatorTest}.
+ */
+public class DeviceSimulator implements ModbusListener {
+	/**
+	 * The stack size of the connection threads, which only parse and answer
+	 * frames.
+	 */
+	private static final long STACK_SIZE = 256 * 1024;
+
+	private ProcessImage m_Template;
+	private InetAddress m_Address;
+	private int m_Port = Modbus.DEFAULT_PORT;
+	private boolean m_Aliases;
+	private int m_Devices = 1;
+	private int m_Units = 1;
+	private int m_Unit = 0;
+	private int m_Timeout = 0;
+	private long m_Latency;
+	private long m_Jitter;
+	private double m_ExceptionRate;
+	private int m_ExceptionCode = Modbus.SLAVE_DEVICE_FAILURE;
+	private double m_DropRate;
+	private long m_Epoch = System.currentTimeMillis();
+
+	private volatile boolean m_Listening;
+	private Selector m_Selector;
+	private Endpoint[] m_Endpoints;
+	private final Set<TCPSlaveConnection> m_Connections = ConcurrentHashMap
+			.newKeySet();
+
+	private final LongAdder m_Requests = new LongAdder();
+	private final LongAdder m_Exceptions = new LongAdder();
+	private final LongAdder m_Dropped = new LongAdder();
+	private final LongAdder m_Accepted = new LongAdder();
+
+	/**
+	 * Endpoint -- a listening address and port, and the devices behind it.
+	 */
+	private static class Endpoint {
+		final InetSocketAddress m_Address;
+		final DeviceImage[] m_Devices;
+		final int m_FirstUnit;
+
+		Endpoint(InetSocketAddress address, DeviceImage[] devices,
+				int firstUnit) {
+			m_Address = address;
+			m_Devices = devices;
+			m_FirstUnit = firstUnit;
+		}
+
+		/**
+		 * getDevice -- the device addressed by a unit identifier, or
+		 * <tt>null</tt> if there is none.
+		 */
+		DeviceImage getDevice(int unit) {
+			if (m_FirstUnit == 0)
+				return m_Devices[0];
+
+			int index = unit - m_FirstUnit;
+			if (index < 0 || index >= m_Devices.length)
+				return null;
+
+			return m_Devices[index];
+		}
+	}
+
+	/**
+	 * Sets the image the devices start from. It is shared by all devices and
+	 * must not change while the simulator runs.
+	 * 
+	 * @param template
+	 *            the template <tt>ProcessImage</tt>.
+	 */
+	public void setTemplate(ProcessImage template) {
+		m_Template = template;
+	}
+
+	public ProcessImage getTemplate() {
+		return m_Template;
+	}
+
+	/**
+	 * Sets the address of the first endpoint, by default all local addresses
+	 * or the loopback address with aliases.
+	 * 
+	 * @param addr
+	 *            an <tt>InetAddress</tt> instance.
+	 */
+	public void setAddress(InetAddress addr) {
+		m_Address = addr;
+	}
+
+	/**
+	 * Sets the port of the first endpoint.
+	 * 
+	 * @param port
+	 *            the number of the IP port as <tt>int</tt>.
+	 */
+	public void setPort(int port) {
+		m_Port = port;
+	}
+
+	/**
+	 * Sets whether the endpoints listen on consecutive addresses rather than
+	 * on consecutive ports.
+	 * 
+	 * @param aliases
+	 *            true to count up the address, false to count up the port.
+	 */
+	public void setAliases(boolean aliases) {
+		m_Aliases = aliases;
+	}
+
+	/**
+	 * Sets the number of devices to simulate.
+	 * 
+	 * @param devices
+	 *            the number of devices.
+	 */
+	public void setDevices(int devices) {
+		if (devices < 1)
+			throw new IllegalArgumentException("at least one device required");
+
+		m_Devices = devices;
+	}
+
+	public int getDevices() {
+		return m_Devices;
+	}
+
+	/**
+	 * Sets the number of devices behind each endpoint, as a gateway would
+	 * have them.
+	 * 
+	 * @param units
+	 *            the number of unit identifiers per endpoint, from 1 to 247.
+	 */
+	public void setUnits(int units) {
+		if (units < 1 || units > 247)
+			throw new IllegalArgumentException("units must be 1 to 247");
+
+		m_Units = units;
+	}
+
+	/**
+	 * Sets the unit identifier of the first device of each endpoint. With the
+	 * default of 0 a single device per endpoint answers any unit identifier,
+	 * and several devices take the identifiers from 1.
+	 */
+	public void setUnit(int unit) {
+		m_Unit = unit;
+	}
+
+	public int getUnit() {
+		return m_Unit;
+	}
+
+	/**
+	 * Sets the time after which an idle connection is closed.
+	 * 
+	 * @param timeout
+	 *            the timeout in milliseconds, 0 to keep connections open.
+	 */
+	public void setTimeout(int timeout) {
+		m_Timeout = timeout;
+	}
+
+	/**
+	 * Sets the delay of every reply, and the largest random delay added to it.
+	 * 
+	 * @param latency
+	 *            the delay in nanoseconds.
+	 * @param jitter
+	 *            the largest additional delay in nanoseconds.
+	 */
+	public void setLatency(long latency, long jitter) {
+		m_Latency = latency;
+		m_Jitter = jitter;
+	}
+
+	/**
+	 * Sets the fraction of requests answered with an exception.
+	 * 
+	 * @param rate
+	 *            the fraction of requests, from 0 to 1.
+	 * @param code
+	 *            the exception code, such as
+	 *            <tt>Modbus.SLAVE_BUSY_EXCEPTION</tt>.
+	 */
+	public void setExceptions(double rate, int code) {
+		m_ExceptionRate = rate;
+		m_ExceptionCode = code;
+	}
+
+	/**
+	 * Sets the fraction of requests that are not answered at all.
+	 * 
+	 * @param rate
+	 *            the fraction of requests, from 0 to 1.
+	 */
+	public void setDropRate(double rate) {
+		m_DropRate = rate;
+	}
+
+	/**
+	 * Returns the start of the simulation, the time generated values count
+	 * from.
+	 */
+	public long getEpoch() {
+		return m_Epoch;
+	}
+
+	/**
+	 * Returns the image of a device.
+	 * 
+	 * @param index
+	 *            the index of the device.
+	 * @return the <tt>DeviceImage</tt>.
+	 * @throws IllegalStateException
+	 *             if the simulator has not been bound.
+	 */
+	public DeviceImage getDevice(int index) {
+		if (m_Endpoints == null)
+			throw new IllegalStateException("not bound");
+
+		return m_Endpoints[index / m_Units].m_Devices[index % m_Units];
+	}
+
+	/**
+	 * Returns the address a device is reached at.
+	 * 
+	 * @param index
+	 *            the index of the device.
+	 */
+	public InetSocketAddress getDeviceAddress(int index) {
+		if (m_Endpoints == null)
+			throw new IllegalStateException("not bound");
+
+		return m_Endpoints[index / m_Units].m_Address;
+	}
+
+	/**
+	 * Returns the number of requests answered or dropped so far.
+	 */
+	public long getRequests() {
+		return m_Requests.sum();
+	}
+
+	/**
+	 * Returns the number of exceptions injected so far.
+	 */
+	public long getExceptions() {
+		return m_Exceptions.sum();
+	}
+
+	/**
+	 * Returns the number of requests dropped so far.
+	 */
+	public long getDropped() {
+		return m_Dropped.sum();
+	}
+
+	/**
+	 * Returns the number of connections accepted so far.
+	 */
+	public long getAccepted() {
+		return m_Accepted.sum();
+	}
+
+	/**
+	 * Returns the number of open connections.
+	 */
+	public int getConnections() {
+		return m_Connections.size();
+	}
+
+	/**
+	 * Creates the devices and opens the endpoints, so that address conflicts
+	 * are reported before the simulator is started.
+	 * 
+	 * @throws IOException
+	 *             if an endpoint cannot be opened. None are left open.
+	 */
+	public synchronized void bind() throws IOException {
+		if (m_Selector != null)
+			return;
+
+		if (m_Template == null)
+			throw new IllegalStateException("no template");
+
+		InetAddress first = m_Address;
+		if (first == null && m_Aliases)
+			first = InetAddress.getLoopbackAddress();
+
+		int firstUnit = m_Units == 1 ? m_Unit : Math.max(m_Unit, 1);
+		Endpoint[] endpoints = new Endpoint[(m_Devices + m_Units - 1)
+				/ m_Units];
+		Selector selector = Selector.open();
+		try {
+			for (int i = 0; i < endpoints.length; i++) {
+				InetSocketAddress address;
+				if (m_Aliases)
+					address = new InetSocketAddress(offset(first, i), m_Port);
+				else if (first == null)
+					address = new InetSocketAddress(m_Port + i);
+				else
+					address = new InetSocketAddress(first, m_Port + i);
+
+				DeviceImage[] devices = new DeviceImage[Math.min(m_Units,
+						m_Devices - i * m_Units)];
+				for (int j = 0; j < devices.length; j++)
+					devices[j] = new DeviceImage(m_Template, firstUnit == 0 ? 0
+							: firstUnit + j, i * m_Units + j);
+
+				endpoints[i] = new Endpoint(address, devices, firstUnit);
+
+				ServerSocketChannel channel = ServerSocketChannel.open();
+				try {
+					channel.socket().setReuseAddress(true);
+					channel.bind(address, 50);
+					channel.configureBlocking(false);
+					channel.register(selector, SelectionKey.OP_ACCEPT,
+							endpoints[i]);
+				} catch (IOException ex) {
+					channel.close();
+					throw new IOException(address + ": " + ex.getMessage(), ex);
+				}
+			}
+		} catch (IOException ex) {
+			closeAll(selector);
+			throw ex;
+		}
+		m_Endpoints = endpoints;
+		m_Selector = selector;
+	}
+
+	/**
+	 * offset -- the address a number of addresses after another.
+	 */
+	private static InetAddress offset(InetAddress address, int offset)
+			throws IOException {
+		byte[] bytes = address.getAddress();
+		byte[] sum = new BigInteger(1, bytes).add(BigInteger.valueOf(offset))
+				.toByteArray();
+		byte[] result = new byte[bytes.length];
+		int length = Math.min(sum.length, result.length);
+		System.arraycopy(sum, sum.length - length, result, result.length
+				- length, length);
+
+		return InetAddress.getByAddress(result);
+	}
+
+	/**
+	 * closeAll -- closes a selector and the channels registered with it.
+	 */
+	private static void closeAll(Selector selector) {
+		for (SelectionKey key : selector.keys()) {
+			try {
+				key.channel().close();
+			} catch (IOException ex) {
+				// ignore
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException ex) {
+			// ignore
+		}
+	}
+
+	/**
+	 * Accepts the connections of all endpoints and starts a thread to serve
+	 * each.
+	 */
+	public void run() {
+		Selector selector = m_Selector;
+		try {
+			while (selector.isOpen()) {
+				selector.select();
+				if (!selector.isOpen())
+					break;
+
+				Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					SocketChannel channel = ((ServerSocketChannel) key
+							.channel()).accept();
+					if (channel != null)
+						serve(channel, (Endpoint) key.attachment());
+				}
+			}
+		} catch (IOException ex) {
+			if (Modbus.debug)
+				ex.printStackTrace();
+		} catch (ClosedSelectorException ex) {
+			// stopped
+		}
+	}
+
+	/**
+	 * serve -- starts a thread answering the requests of a connection.
+	 */
+	private void serve(SocketChannel channel, Endpoint endpoint) {
+		try {
+			channel.configureBlocking(true);
+			Socket socket = channel.socket();
+			socket.setTcpNoDelay(true);
+
+			TCPSlaveConnection connection = new TCPSlaveConnection(socket);
+			connection.setTimeout(m_Timeout);
+			m_Connections.add(connection);
+			m_Accepted.increment();
+
+			Thread thread = new Thread(null, new Handler(connection, endpoint),
+					"sim:" + endpoint.m_Address, STACK_SIZE);
+			thread.setDaemon(true);
+			thread.start();
+		} catch (Exception ex) {
+			// includes running out of threads
+			if (Modbus.debug)
+				ex.printStackTrace();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Handler -- answers the requests of one connection.
+	 */
+	private class Handler implements Runnable {
+		private final TCPSlaveConnection m_Connection;
+		private final ModbusTransport m_Transport;
+		private final Endpoint m_Endpoint;
+
+		Handler(TCPSlaveConnection connection, Endpoint endpoint) {
+			m_Connection = connection;
+			m_Transport = connection.getModbusTransport();
+			m_Endpoint = endpoint;
+		}
+
+		public void run() {
+			ModbusCoupler coupler = ModbusCoupler.getReference();
+			try {
+				do {
+					ModbusRequest request = m_Transport.readRequest();
+					long start = System.nanoTime();
+
+					DeviceImage device = m_Endpoint.getDevice(request
+							.getUnitID());
+					if (device == null || !m_Listening) {
+						/*
+						 * Do nothing -- non-existent units do not respond to
+						 * messages.
+						 */
+						continue;
+					}
+					m_Requests.increment();
+
+					ModbusResponse response;
+					if (inject(m_DropRate)) {
+						m_Dropped.increment();
+						continue;
+					} else if (inject(m_ExceptionRate)) {
+						m_Exceptions.increment();
+						response = request.createExceptionResponse(m_ExceptionCode);
+					} else {
+						coupler.setThreadProcessImage(device);
+						response = request.createResponse();
+					}
+
+					delay(start);
+					m_Transport.writeMessage(response);
+				} while (true);
+			} catch (ModbusIOException ex) {
+				if (!ex.isEOF() && Modbus.debug)
+					ex.printStackTrace();
+			} finally {
+				coupler.setThreadProcessImage(null);
+				m_Connections.remove(m_Connection);
+				m_Connection.close();
+			}
+		}
+	}
+
+	/**
+	 * inject -- decides whether a fault is injected into a request.
+	 */
+	private static boolean inject(double rate) {
+		return rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+	}
+
+	/**
+	 * delay -- holds a reply back until the latency and jitter have passed
+	 * since the request arrived.
+	 */
+	private void delay(long start) {
+		long delay = m_Latency;
+		if (m_Jitter > 0)
+			delay += ThreadLocalRandom.current().nextLong(m_Jitter + 1);
+
+		long remaining;
+		while ((remaining = start + delay - System.nanoTime()) > 0)
+			LockSupport.parkNanos(remaining);
+	}
+
+	/**
+	 * Sets the <i>listening</i> state. Requests arriving while the simulator
+	 * is not listening are silently dropped.
+	 */
+	public void setListening(boolean listening) {
+		m_Listening = listening;
+	}
+
+	public boolean isListening() {
+		return m_Listening;
+	}
+
+	/**
+	 * Binds the endpoints if that has not been done and starts accepting
+	 * connections.
+	 * 
+	 * @return the thread accepting connections.
+	 * @throws IllegalStateException
+	 *             if an endpoint cannot be opened.
+	 */
+	public Thread listen() {
+		try {
+			bind();
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex.getMessage(), ex);
+		}
+		m_Listening = true;
+
+		Thread result = new Thread(this, "sim:accept");
+		result.start();
+
+		return result;
+	}
+
+	/**
+	 * Closes the endpoints and all connections.
+	 */
+	public synchronized void stop() {
+		m_Listening = false;
+		if (m_Selector != null) {
+			closeAll(m_Selector);
+			m_Selector = null;
+		}
+		for (TCPSlaveConnection connection : m_Connections)
+			connection.close();
+	}
+
+	/**
+	 * Sets the simulator up from a script, given as properties:
+	 * 
+	 * <pre>
+	 * devices = 5000          # number of devices
+	 * address = 127.0.0.1     # address of the first endpoint
+	 * port = 10502            # port of the first endpoint
+	 * aliases = false         # count up addresses rather than ports
+	 * units = 1               # devices behind each endpoint
+	 * unit = 0                # unit identifier of the first of them
+	 * timeout = 0             # idle timeout of connections, ms
+	 * latency = 2.5           # delay of replies, ms
+	 * jitter = 1              # largest random addition to it, ms
+	 * exception.rate = 0.001  # fraction of requests answered by exception
+	 * exception.code = 6      # and its code
+	 * drop.rate = 0.0001      # fraction of requests not answered
+	 * coils = 100             # size of the template
+	 * discretes = 100
+	 * registers = 100
+	 * inputs = 100
+	 * coil.0-9 = 1            # values of the template
+	 * register.0 = 1234
+	 * register.1 = ramp 0 1000 60
+	 * input.0-49 = noise 500 20
+	 * input.50 = counter 0 10
+	 * </pre>
+	 * 
+	 * The values may be constants or generators in the form read by
+	 * {@link ValueGenerator#parse(String)}.
+	 * 
+	 * @param script
+	 *            the script.
+	 * @throws IOException
+	 *             if an address cannot be resolved.
+	 * @throws IllegalArgumentException
+	 *             if a setting is invalid.
+	 */
+	public void configure(Properties script) throws IOException {
+		String address = script.getProperty("address");
+		if (address != null)
+			setAddress(InetAddress.getByName(address));
+
+		setPort(intValue(script, "port", m_Port));
+		setAliases(Boolean.parseBoolean(script.getProperty("aliases",
+				Boolean.toString(m_Aliases))));
+		setDevices(intValue(script, "devices", m_Devices));
+		setUnits(intValue(script, "units", m_Units));
+		setUnit(intValue(script, "unit", m_Unit));
+		setTimeout(intValue(script, "timeout", m_Timeout));
+		setLatency(millis(script, "latency", m_Latency),
+				millis(script, "jitter", m_Jitter));
+		setExceptions(doubleValue(script, "exception.rate", m_ExceptionRate),
+				intValue(script, "exception.code", m_ExceptionCode));
+		setDropRate(doubleValue(script, "drop.rate", m_DropRate));
+
+		m_Epoch = System.currentTimeMillis();
+		setTemplate(createTemplate(script, m_Epoch));
+	}
+
+	/**
+	 * Creates a template image from the sizes and values in a script.
+	 * 
+	 * @param script
+	 *            the script, as for {@link #configure(Properties)}.
+	 * @param epoch
+	 *            the time generated values count from.
+	 * @return the template.
+	 */
+	public static SimpleProcessImage createTemplate(Properties script,
+			long epoch) {
+		SimpleProcessImage image = new SimpleProcessImage();
+		for (int i = intValue(script, "coils", 0); i > 0; i--)
+			image.addDigitalOut(new SimpleDigitalOut(false));
+		for (int i = intValue(script, "discretes", 0); i > 0; i--)
+			image.addDigitalIn(new SimpleDigitalIn(false));
+		for (int i = intValue(script, "registers", 0); i > 0; i--)
+			image.addRegister(new SimpleRegister(0));
+		for (int i = intValue(script, "inputs", 0); i > 0; i--)
+			image.addInputRegister(new SimpleInputRegister(0));
+
+		for (Map.Entry<Object, Object> entry : script.entrySet()) {
+			String key = entry.getKey().toString();
+			String value = entry.getValue().toString().trim();
+			int dot = key.indexOf('.');
+			if (dot < 0)
+				continue;
+
+			String kind = key.substring(0, dot).toLowerCase(Locale.ROOT);
+			if (!kind.equals("coil") && !kind.equals("discrete")
+					&& !kind.equals("register") && !kind.equals("input"))
+				continue;
+
+			int first, last;
+			String range = key.substring(dot + 1);
+			try {
+				int dash = range.indexOf('-');
+				first = Integer.parseInt(dash < 0 ? range : range.substring(0,
+						dash));
+				last = dash < 0 ? first : Integer.parseInt(range
+						.substring(dash + 1));
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("invalid reference: " + key);
+			}
+
+			try {
+				for (int ref = first; ref <= last; ref++) {
+					if (kind.equals("coil"))
+						image.setDigitalOut(ref, new SimpleDigitalOut(
+								bitValue(key, value)));
+					else if (kind.equals("discrete"))
+						image.setDigitalIn(ref, new SimpleDigitalIn(
+								bitValue(key, value)));
+					else if (kind.equals("register"))
+						image.setRegister(ref, registerValue(value, epoch));
+					else
+						image.setInputRegister(ref,
+								registerValue(value, epoch));
+				}
+			} catch (IllegalAddressException ex) {
+				throw new IllegalArgumentException("reference out of range: "
+						+ key);
+			}
+		}
+		return image;
+	}
+
+	private static boolean bitValue(String key, String value) {
+		if (value.equals("1") || value.equalsIgnoreCase("true"))
+			return true;
+		if (value.equals("0") || value.equalsIgnoreCase("false"))
+			return false;
+
+		throw new IllegalArgumentException("invalid value: " + key);
+	}
+
+	private static Register registerValue(String value, long epoch) {
+		if (Character.isLetter(value.charAt(0)))
+			return new GeneratedRegister(ValueGenerator.parse(value), epoch);
+
+		return new SimpleRegister(Integer.decode(value) & 0xFFFF);
+	}
+
+	private static int intValue(Properties script, String key, int value) {
+		String text = script.getProperty(key);
+		try {
+			return text == null ? value : Integer.parseInt(text.trim());
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("invalid " + key + ": " + text);
+		}
+	}
+
+	private static double doubleValue(Properties script, String key,
+			double value) {
+		String text = script.getProperty(key);
+		try {
+			return text == null ? value : Double.parseDouble(text.trim());
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("invalid " + key + ": " + text);
+		}
+	}
+
+	private static long millis(Properties script, String key, long nanos) {
+		return (long) (doubleValue(script, key, nanos / 1e6) * 1e6);
+	}
+}
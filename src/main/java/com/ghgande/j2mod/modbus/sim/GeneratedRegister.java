@@ -0,0 +1,111 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.sim;
+
+import com.ghgande.j2mod.modbus.procimg.Register;
+
+/**
+ * GeneratedRegister -- a register of a template image whose value comes from
+ * a {@link ValueGenerator}.
+ * 
+ * <p>
+ * It may be added to a template as a register or as an input register. A
+ * {@link DeviceImage} asks the generator for the value of its own device, so
+ * reading the register directly gives the value for device 0. Writes are
+ * ignored, a device image keeps written values to itself.
+ */
+public class GeneratedRegister implements Register {
+	private final ValueGenerator m_Generator;
+	private final long m_Epoch;
+
+	/**
+	 * Constructs a register that follows a generator from the given time.
+	 * 
+	 * @param generator
+	 *            the generator of the values.
+	 * @param epoch
+	 *            the start of the simulation, as by
+	 *            <tt>System.currentTimeMillis()</tt>.
+	 */
+	public GeneratedRegister(ValueGenerator generator, long epoch) {
+		m_Generator = generator;
+		m_Epoch = epoch;
+	}
+
+	public ValueGenerator getGenerator() {
+		return m_Generator;
+	}
+
+	/**
+	 * Returns the value of the register for a device.
+	 * 
+	 * @param device
+	 *            the index of the device.
+	 * @return the value as unsigned short.
+	 */
+	public int getValue(int device) {
+		return m_Generator.valueAt(System.currentTimeMillis() - m_Epoch,
+				device);
+	}
+
+	public int getValue() {
+		return getValue(0);
+	}
+
+	public int toUnsignedShort() {
+		return getValue();
+	}
+
+	public short toShort() {
+		return (short) getValue();
+	}
+
+	public byte[] toBytes() {
+		int value = getValue();
+		return new byte[] { (byte) (value >> 8), (byte) value };
+	}
+
+	public void setValue(int v) {
+	}
+
+	public void setValue(short s) {
+	}
+
+	public void setValue(byte[] bytes) {
+	}
+
+	public String toString() {
+		return m_Generator.toString();
+	}
+}
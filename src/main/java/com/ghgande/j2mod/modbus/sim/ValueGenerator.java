@@ -0,0 +1,180 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.sim;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * ValueGenerator -- computes the value of a simulated register from the time.
+ * 
+ * <p>
+ * A generator has no state of its own, so one instance in a template image
+ * serves every device made from it. Each device sees the waveform shifted by a
+ * phase derived from its index, so that thousands of devices do not all ramp
+ * in step.
+ * 
+ * <p>
+ * Generators are written in a simulator script as one of
+ * <ul>
+ * <li><tt>ramp <i>from</i> <i>to</i> <i>seconds</i></tt> -- rises linearly
+ * from <i>from</i> to <i>to</i> and starts again every <i>seconds</i>.</li>
+ * <li><tt>noise <i>center</i> <i>amplitude</i></tt> -- a uniformly random
+ * value within <i>amplitude</i> of <i>center</i> on every read.</li>
+ * <li><tt>counter <i>start</i> <i>rate</i></tt> -- counts up from
+ * <i>start</i> by <i>rate</i> per second, wrapping at 65536.</li>
+ * </ul>
+ */
+public abstract class ValueGenerator {
+
+	/**
+	 * Returns the value of the register.
+	 * 
+	 * @param millis
+	 *            the time since the simulator started, in milliseconds.
+	 * @param device
+	 *            the index of the device, which sets the phase.
+	 * @return the value, as unsigned short.
+	 */
+	public abstract int valueAt(long millis, int device);
+
+	/**
+	 * phase -- a time offset for a device, spread evenly over a period.
+	 */
+	static long phase(int device, long period) {
+		return Math.floorMod(device * 0x9E3779B97F4A7C15L, period);
+	}
+
+	/**
+	 * Returns a generator that rises linearly and starts again after every
+	 * period.
+	 * 
+	 * @param from
+	 *            the value at the start of the period.
+	 * @param to
+	 *            the value the ramp approaches at the end of the period.
+	 * @param period
+	 *            the period, in milliseconds.
+	 */
+	public static ValueGenerator ramp(final int from, final int to,
+			final long period) {
+		if (period <= 0)
+			throw new IllegalArgumentException("period must be positive");
+
+		return new ValueGenerator() {
+			public int valueAt(long millis, int device) {
+				long t = (millis + phase(device, period)) % period;
+				return (int) (from + (to - from) * t / period) & 0xFFFF;
+			}
+
+			public String toString() {
+				return "ramp " + from + " " + to + " " + period / 1000.0;
+			}
+		};
+	}
+
+	/**
+	 * Returns a generator of uniformly distributed random values.
+	 * 
+	 * @param center
+	 *            the mean value.
+	 * @param amplitude
+	 *            the largest distance from the mean.
+	 */
+	public static ValueGenerator noise(final int center, final int amplitude) {
+		if (amplitude < 0)
+			throw new IllegalArgumentException("amplitude must not be negative");
+
+		return new ValueGenerator() {
+			public int valueAt(long millis, int device) {
+				return (center + ThreadLocalRandom.current().nextInt(
+						-amplitude, amplitude + 1)) & 0xFFFF;
+			}
+
+			public String toString() {
+				return "noise " + center + " " + amplitude;
+			}
+		};
+	}
+
+	/**
+	 * Returns a generator that counts up at a constant rate.
+	 * 
+	 * @param start
+	 *            the value when the simulator starts.
+	 * @param rate
+	 *            the increment per second, which need not be whole.
+	 */
+	public static ValueGenerator counter(final int start, final double rate) {
+		return new ValueGenerator() {
+			public int valueAt(long millis, int device) {
+				long t = millis + phase(device, 1000000);
+				return (int) (start + (long) (rate * t / 1000)) & 0xFFFF;
+			}
+
+			public String toString() {
+				return "counter " + start + " " + rate;
+			}
+		};
+	}
+
+	/**
+	 * Parses a generator from its script form.
+	 * 
+	 * @param spec
+	 *            the generator, such as <tt>ramp 0 1000 60</tt>.
+	 * @return the generator.
+	 * @throws IllegalArgumentException
+	 *             if the generator is unknown or its arguments are invalid.
+	 */
+	public static ValueGenerator parse(String spec) {
+		String[] args = spec.trim().split("\\s+");
+		String name = args[0].toLowerCase(Locale.ROOT);
+		try {
+			if (name.equals("ramp") && args.length == 4)
+				return ramp(Integer.parseInt(args[1]),
+						Integer.parseInt(args[2]),
+						(long) (Double.parseDouble(args[3]) * 1000));
+			if (name.equals("noise") && args.length == 3)
+				return noise(Integer.parseInt(args[1]),
+						Integer.parseInt(args[2]));
+			if (name.equals("counter") && args.length == 3)
+				return counter(Integer.parseInt(args[1]),
+						Double.parseDouble(args[2]));
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("invalid generator: " + spec);
+		}
+		throw new IllegalArgumentException("unknown generator: " + spec);
+	}
+}
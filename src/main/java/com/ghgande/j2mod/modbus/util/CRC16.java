@@ -0,0 +1,237 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.util;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC16 -- the CRC-16/MODBUS checksum used by the RTU and BIN serial
+ * encodings.
+ * 
+ * The running CRC is kept in a single <tt>int</tt> so a frame may be checked
+ * as it arrives, one chunk at a time, without allocating anything. Runs of
+ * eight or more bytes are processed with a slice-by-8 table, which is what
+ * makes long frames (file records, large register blocks) cheap; short runs
+ * fall back to the classic one table lookup per byte.
+ * 
+ * The CRC is transmitted low byte first. Because of the way the polynomial
+ * works, running the CRC over a complete frame including its two CRC bytes
+ * leaves a residue of zero, which is what {@link #check(byte[], int, int)}
+ * tests for.
+ */
+public final class CRC16 implements Checksum {
+
+	/**
+	 * Initial value of the CRC register.
+	 */
+	public static final int INITIAL_VALUE = 0xFFFF;
+
+	/**
+	 * Reflected form of the polynomial x^16 + x^15 + x^2 + 1.
+	 */
+	private static final int POLYNOMIAL = 0xA001;
+
+	/**
+	 * Eight 256 entry tables, laid end to end. The first is the ordinary
+	 * byte-at-a-time table, table <i>k</i> advances the CRC over a byte that
+	 * is followed by <i>k</i> more bytes.
+	 */
+	private static final int[] TABLE = new int[8 * 256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int bit = 0; bit < 8; bit++) {
+				if ((crc & 1) != 0)
+					crc = (crc >>> 1) ^ POLYNOMIAL;
+				else
+					crc >>>= 1;
+			}
+			TABLE[i] = crc;
+		}
+		for (int k = 1; k < 8; k++) {
+			for (int i = 0; i < 256; i++) {
+				int prev = TABLE[(k - 1) * 256 + i];
+				TABLE[k * 256 + i] = (prev >>> 8) ^ TABLE[prev & 0xFF];
+			}
+		}
+	}
+
+	private int m_CRC = INITIAL_VALUE;
+
+	/**
+	 * update -- add a single byte to the CRC.
+	 * 
+	 * @param b
+	 *            the byte, only the low 8 bits are used.
+	 */
+	public void update(int b) {
+		m_CRC = (m_CRC >>> 8) ^ TABLE[(m_CRC ^ b) & 0xFF];
+	}
+
+	/**
+	 * update -- add a range of bytes to the CRC.
+	 * 
+	 * @param data
+	 *            the buffer holding the bytes.
+	 * @param off
+	 *            offset of the first byte.
+	 * @param len
+	 *            number of bytes to add.
+	 */
+	public void update(byte[] data, int off, int len) {
+		m_CRC = update(m_CRC, data, off, len);
+	}
+
+	/**
+	 * update -- add a range of bytes from a <tt>ByteBuffer</tt> to the CRC.
+	 * 
+	 * The buffer's position and limit are not changed.
+	 * 
+	 * @param data
+	 *            the buffer holding the bytes.
+	 * @param off
+	 *            absolute index of the first byte.
+	 * @param len
+	 *            number of bytes to add.
+	 */
+	public void update(ByteBuffer data, int off, int len) {
+		if (data.hasArray()) {
+			m_CRC = update(m_CRC, data.array(), data.arrayOffset() + off, len);
+			return;
+		}
+		int crc = m_CRC;
+		for (int i = off; i < off + len; i++)
+			crc = (crc >>> 8) ^ TABLE[(crc ^ data.get(i)) & 0xFF];
+
+		m_CRC = crc;
+	}
+
+	/**
+	 * getValue -- the current CRC value.
+	 * 
+	 * @return the CRC, in the range 0 to 0xFFFF.
+	 */
+	public long getValue() {
+		return m_CRC;
+	}
+
+	/**
+	 * getCRC -- the current CRC value as an <tt>int</tt>. The low byte is
+	 * the one that is sent first.
+	 * 
+	 * @return the CRC, in the range 0 to 0xFFFF.
+	 */
+	public int getCRC() {
+		return m_CRC;
+	}
+
+	/**
+	 * reset -- start a new CRC.
+	 */
+	public void reset() {
+		m_CRC = INITIAL_VALUE;
+	}
+
+	/**
+	 * calculate -- compute the CRC of a range of bytes.
+	 * 
+	 * @param data
+	 *            the buffer holding the bytes.
+	 * @param off
+	 *            offset of the first byte.
+	 * @param len
+	 *            number of bytes.
+	 * @return the CRC, in the range 0 to 0xFFFF. The low byte is the one that
+	 *         is sent first.
+	 */
+	public static int calculate(byte[] data, int off, int len) {
+		return update(INITIAL_VALUE, data, off, len);
+	}
+
+	/**
+	 * check -- test a complete frame whose last two bytes are its CRC.
+	 * 
+	 * @param frame
+	 *            the buffer holding the frame.
+	 * @param off
+	 *            offset of the first byte of the frame.
+	 * @param len
+	 *            length of the frame, including the CRC.
+	 * @return <tt>true</tt> if the CRC is correct.
+	 */
+	public static boolean check(byte[] frame, int off, int len) {
+		return len >= 2 && update(INITIAL_VALUE, frame, off, len) == 0;
+	}
+
+	/**
+	 * update -- advance a CRC value over a range of bytes.
+	 * 
+	 * @param crc
+	 *            the CRC to start from.
+	 * @param data
+	 *            the buffer holding the bytes.
+	 * @param off
+	 *            offset of the first byte.
+	 * @param len
+	 *            number of bytes.
+	 * @return the updated CRC.
+	 */
+	public static int update(int crc, byte[] data, int off, int len) {
+		int end = off + len;
+		int i = off;
+
+		/*
+		 * Slice-by-8. The CRC register only overlaps the first two bytes of
+		 * each block, the remaining six are looked up directly.
+		 */
+		while (end - i >= 8) {
+			int x = crc ^ ((data[i] & 0xFF) | ((data[i + 1] & 0xFF) << 8));
+			crc = TABLE[7 * 256 + (x & 0xFF)]
+					^ TABLE[6 * 256 + ((x >>> 8) & 0xFF)]
+					^ TABLE[5 * 256 + (data[i + 2] & 0xFF)]
+					^ TABLE[4 * 256 + (data[i + 3] & 0xFF)]
+					^ TABLE[3 * 256 + (data[i + 4] & 0xFF)]
+					^ TABLE[2 * 256 + (data[i + 5] & 0xFF)]
+					^ TABLE[256 + (data[i + 6] & 0xFF)]
+					^ TABLE[data[i + 7] & 0xFF];
+			i += 8;
+		}
+		for (; i < end; i++)
+			crc = (crc >>> 8) ^ TABLE[(crc ^ data[i]) & 0xFF];
+
+		return crc;
+	}
+}
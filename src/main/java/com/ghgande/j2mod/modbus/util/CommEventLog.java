@@ -0,0 +1,102 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * CommEventLog -- the last 64 communication events of a slave, as returned
+ * by Get Comm Event Log (FC 12).
+ * 
+ * <p>
+ * Adding an event never blocks. Each slot is tagged with the sequence number
+ * of its event, so a reader can tell a slot that is being overwritten from
+ * one that belongs to its snapshot, and skips it.
+ */
+public class CommEventLog {
+	/**
+	 * The number of events kept.
+	 */
+	public static final int SIZE = 64;
+
+	private final AtomicLong m_Next = new AtomicLong();
+	private final AtomicLongArray m_Slots = new AtomicLongArray(SIZE);
+	private volatile long m_Cleared;
+
+	/**
+	 * add -- log an event.
+	 * 
+	 * @param event
+	 *            the event byte.
+	 */
+	public void add(int event) {
+		long seq = m_Next.getAndIncrement();
+		m_Slots.set((int) (seq & (SIZE - 1)), ((seq + 1) << 8) | (event & 0xFF));
+	}
+
+	/**
+	 * getEvents -- the logged events, most recent first.
+	 * 
+	 * @return up to 64 event bytes.
+	 */
+	public byte[] getEvents() {
+		long end = m_Next.get();
+		long start = Math.max(Math.max(end - SIZE, 0), m_Cleared);
+		byte[] events = new byte[(int) (end - start)];
+		int count = 0;
+
+		for (long seq = end - 1; seq >= start; seq--) {
+			long slot = m_Slots.get((int) (seq & (SIZE - 1)));
+			if ((slot >>> 8) != seq + 1)
+				continue; // not written yet, or already reused
+
+			events[count++] = (byte) slot;
+		}
+		if (count == events.length)
+			return events;
+
+		byte[] result = new byte[count];
+		System.arraycopy(events, 0, result, 0, count);
+
+		return result;
+	}
+
+	/**
+	 * clear -- forget the events logged so far.
+	 */
+	public void clear() {
+		m_Cleared = m_Next.get();
+	}
+}
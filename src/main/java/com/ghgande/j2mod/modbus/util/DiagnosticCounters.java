@@ -0,0 +1,358 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.msg.ExceptionResponse;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+
+/**
+ * DiagnosticCounters -- the diagnostic counters and communication event log
+ * of a slave, as served by Diagnostics (FC 8), Get Comm Event Counter (FC 11)
+ * and Get Comm Event Log (FC 12).
+ * 
+ * <p>
+ * Transports count what they see on the line, listeners count the requests
+ * they answer. Counters are striped, so counting from many connection
+ * threads does not contend. The counter numbers are the FC 8 sub-functions
+ * that return them.
+ */
+public class DiagnosticCounters {
+	/**
+	 * Messages detected on the bus, sub-function 0x0B.
+	 */
+	public static final int BUS_MESSAGES = 11;
+
+	/**
+	 * Messages with a CRC or LRC error, sub-function 0x0C.
+	 */
+	public static final int BUS_COMM_ERRORS = 12;
+
+	/**
+	 * Exception responses returned, sub-function 0x0D.
+	 */
+	public static final int BUS_EXCEPTIONS = 13;
+
+	/**
+	 * Messages addressed to this slave, sub-function 0x0E.
+	 */
+	public static final int SLAVE_MESSAGES = 14;
+
+	/**
+	 * Messages addressed to this slave that were not answered,
+	 * sub-function 0x0F.
+	 */
+	public static final int SLAVE_NO_RESPONSE = 15;
+
+	/**
+	 * Negative acknowledge exception responses, sub-function 0x10.
+	 */
+	public static final int SLAVE_NAK = 16;
+
+	/**
+	 * Slave busy exception responses, sub-function 0x11.
+	 */
+	public static final int SLAVE_BUSY = 17;
+
+	/**
+	 * Messages lost to character overruns, sub-function 0x12.
+	 */
+	public static final int BUS_CHARACTER_OVERRUNS = 18;
+
+	/**
+	 * Event logged when communications are restarted.
+	 */
+	public static final int EVENT_RESTART = 0x00;
+
+	/**
+	 * Event logged when the slave enters listen only mode.
+	 */
+	public static final int EVENT_LISTEN_ONLY = 0x04;
+
+	/**
+	 * Receive event, other bits describe the message.
+	 */
+	public static final int EVENT_RECEIVE = 0x80;
+
+	/**
+	 * Send event, other bits describe the response.
+	 */
+	public static final int EVENT_SEND = 0x40;
+
+	private final LongAdder[] m_Counters = new LongAdder[BUS_CHARACTER_OVERRUNS
+			- BUS_MESSAGES + 1];
+	private final LongAdder m_EventCount = new LongAdder();
+	private final CommEventLog m_Log = new CommEventLog();
+	private volatile int m_Register;
+	private volatile boolean m_ListenOnly;
+	private volatile int m_AsciiDelimiter = '\n';
+
+	/**
+	 * Constructs a new <tt>DiagnosticCounters</tt> instance with all counters
+	 * zero.
+	 */
+	public DiagnosticCounters() {
+		for (int i = 0; i < m_Counters.length; i++)
+			m_Counters[i] = new LongAdder();
+	}
+
+	/**
+	 * increment -- add one to a counter.
+	 * 
+	 * @param counter
+	 *            the counter, e.g. <tt>BUS_MESSAGES</tt>.
+	 */
+	public void increment(int counter) {
+		m_Counters[counter - BUS_MESSAGES].increment();
+	}
+
+	/**
+	 * get -- the value of a counter.
+	 * 
+	 * @param counter
+	 *            the counter, e.g. <tt>BUS_MESSAGES</tt>.
+	 * @return the count since the counters were last cleared. FC 8 reports
+	 *         the low 16 bits.
+	 */
+	public long get(int counter) {
+		return m_Counters[counter - BUS_MESSAGES].sum();
+	}
+
+	/**
+	 * isCounter -- whether an FC 8 sub-function returns a counter.
+	 * 
+	 * @param function
+	 *            the sub-function.
+	 * @return <tt>true</tt> if <tt>get(function)</tt> is valid.
+	 */
+	public static boolean isCounter(int function) {
+		return function >= BUS_MESSAGES && function <= BUS_CHARACTER_OVERRUNS;
+	}
+
+	/**
+	 * getEventCount -- the communication event counter, incremented for each
+	 * request completed without an exception.
+	 * 
+	 * @return the event count.
+	 */
+	public long getEventCount() {
+		return m_EventCount.sum();
+	}
+
+	/**
+	 * getEventLog -- the communication event log.
+	 * 
+	 * @return the log.
+	 */
+	public CommEventLog getEventLog() {
+		return m_Log;
+	}
+
+	/**
+	 * getDiagnosticRegister -- the diagnostic register, sub-function 0x02.
+	 * 
+	 * @return the register value.
+	 */
+	public int getDiagnosticRegister() {
+		return m_Register;
+	}
+
+	/**
+	 * setDiagnosticRegister -- set the diagnostic register, for an
+	 * application to report its own conditions.
+	 * 
+	 * @param value
+	 *            the register value.
+	 */
+	public void setDiagnosticRegister(int value) {
+		m_Register = value & 0xFFFF;
+	}
+
+	/**
+	 * isListenOnly -- whether the slave is in listen only mode and must not
+	 * send responses.
+	 * 
+	 * @return <tt>true</tt> in listen only mode.
+	 */
+	public boolean isListenOnly() {
+		return m_ListenOnly;
+	}
+
+	/**
+	 * setListenOnly -- enter listen only mode, sub-function 0x04.
+	 */
+	public void setListenOnly() {
+		m_ListenOnly = true;
+		m_Log.add(EVENT_LISTEN_ONLY);
+	}
+
+	/**
+	 * getAsciiDelimiter -- the character which follows CR at the end of a
+	 * Modbus ASCII request.
+	 * 
+	 * @return the delimiter, LF unless it has been changed.
+	 */
+	public int getAsciiDelimiter() {
+		return m_AsciiDelimiter;
+	}
+
+	/**
+	 * setAsciiDelimiter -- change the ASCII input delimiter, sub-function
+	 * 0x03.
+	 * 
+	 * @param ch
+	 *            the new delimiter.
+	 */
+	public void setAsciiDelimiter(int ch) {
+		m_AsciiDelimiter = ch & 0xFF;
+	}
+
+	/**
+	 * restart -- restart communications, sub-function 0x01. Leaves listen
+	 * only mode and clears the counters.
+	 * 
+	 * @param clearLog
+	 *            also clear the event log.
+	 */
+	public void restart(boolean clearLog) {
+		m_ListenOnly = false;
+		clear();
+		if (clearLog)
+			m_Log.clear();
+
+		m_Log.add(EVENT_RESTART);
+	}
+
+	/**
+	 * clear -- clear the counters and the diagnostic register, sub-function
+	 * 0x0A.
+	 */
+	public void clear() {
+		for (int i = 0; i < m_Counters.length; i++)
+			m_Counters[i].reset();
+
+		m_EventCount.reset();
+		m_Register = 0;
+	}
+
+	/**
+	 * clearOverruns -- clear the overrun counter, sub-function 0x14.
+	 */
+	public void clearOverruns() {
+		m_Counters[BUS_CHARACTER_OVERRUNS - BUS_MESSAGES].reset();
+	}
+
+	/**
+	 * commError -- a transport discarded a message with a bad checksum.
+	 */
+	public void commError() {
+		increment(BUS_COMM_ERRORS);
+		m_Log.add(EVENT_RECEIVE | 0x02 | (m_ListenOnly ? 0x20 : 0));
+	}
+
+	/**
+	 * overrun -- a transport lost input because it was not read in time.
+	 */
+	public void overrun() {
+		increment(BUS_CHARACTER_OVERRUNS);
+		m_Log.add(EVENT_RECEIVE | 0x10 | (m_ListenOnly ? 0x20 : 0));
+	}
+
+	/**
+	 * requestReceived -- a listener accepted a request addressed to this
+	 * slave.
+	 * 
+	 * @param request
+	 *            the request.
+	 */
+	public void requestReceived(ModbusRequest request) {
+		increment(SLAVE_MESSAGES);
+		m_Log.add(EVENT_RECEIVE | (request.getUnitID() == 0 ? 0x40 : 0)
+				| (m_ListenOnly ? 0x20 : 0));
+	}
+
+	/**
+	 * responseSent -- a listener answered a request.
+	 * 
+	 * @param request
+	 *            the request.
+	 * @param response
+	 *            the response sent.
+	 */
+	public void responseSent(ModbusRequest request, ModbusResponse response) {
+		int event = EVENT_SEND;
+
+		if (response instanceof ExceptionResponse) {
+			increment(BUS_EXCEPTIONS);
+			switch (((ExceptionResponse) response).getExceptionCode()) {
+			case Modbus.ILLEGAL_FUNCTION_EXCEPTION:
+			case Modbus.ILLEGAL_ADDRESS_EXCEPTION:
+			case Modbus.ILLEGAL_VALUE_EXCEPTION:
+				event |= 0x01;
+				break;
+			case Modbus.SLAVE_DEVICE_FAILURE:
+				event |= 0x02;
+				break;
+			case Modbus.SLAVE_BUSY_EXCEPTION:
+				increment(SLAVE_BUSY);
+				event |= 0x04;
+				break;
+			case Modbus.NEGATIVE_ACKNOWLEDGEMENT:
+				increment(SLAVE_NAK);
+				event |= 0x08;
+				break;
+			}
+		} else if (request.getFunctionCode() != Modbus.READ_COMM_EVENT_COUNTER) {
+			m_EventCount.increment();
+		}
+		m_Log.add(event);
+	}
+
+	/**
+	 * noResponse -- a listener processed a request addressed to this slave
+	 * without answering it, because it was a broadcast or the slave is in
+	 * listen only mode.
+	 * 
+	 * @param request
+	 *            the request.
+	 */
+	public void noResponse(ModbusRequest request) {
+		increment(SLAVE_NO_RESPONSE);
+		if (m_ListenOnly)
+			m_Log.add(EVENT_SEND | 0x20);
+	}
+}
@@ -0,0 +1,427 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.util;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.ghgande.j2mod.modbus.Modbus;
+
+/**
+ * FrameTrace -- the most recent raw frames sent and received by all
+ * transports, for post-mortem traces.
+ * 
+ * <p>
+ * Recording a frame copies it and publishes it into a slot of a ring, which
+ * never blocks, so the trace is on all the time. Frames are only formatted
+ * when the trace is dumped, on demand or, if an error stream has been set,
+ * when a transaction fails. With <tt>Modbus.debug</tt> set each frame is
+ * also printed as it is recorded.
+ * 
+ * <p>
+ * The system property <tt>com.ghgande.modbus.trace</tt> sets the number of
+ * frames kept, 1024 by default. 0 turns the trace off. Set
+ * <tt>com.ghgande.modbus.trace.onerror</tt> to <tt>true</tt> to dump the
+ * trace to <tt>System.err</tt> when a transaction fails.
+ * 
+ * <p>
+ * {@link Listener}s see each frame as it is recorded, whether or not the
+ * trace keeps it. Set <tt>com.ghgande.modbus.capture</tt> to a file name to
+ * capture all frames to that file in pcapng format, see {@link PcapngWriter}.
+ */
+public class FrameTrace {
+	/**
+	 * Direction of a frame read from the line.
+	 */
+	public static final int RECEIVED = 0;
+
+	/**
+	 * Direction of a frame written to the line.
+	 */
+	public static final int SENT = 1;
+
+	private static final AtomicInteger c_Connections = new AtomicInteger();
+	static final long c_Epoch = System.currentTimeMillis()
+			* 1000000L - System.nanoTime();
+	private static final FrameTrace c_Self = new FrameTrace(
+			Integer.getInteger("com.ghgande.modbus.trace", 1024));
+
+	static {
+		final String capture = System.getProperty("com.ghgande.modbus.capture");
+		if (capture != null) {
+			try {
+				final PcapngWriter writer = new PcapngWriter(
+						new FileOutputStream(capture));
+				c_Self.addListener(writer);
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					public void run() {
+						c_Self.removeListener(writer);
+						try {
+							writer.close();
+						} catch (IOException e) {
+							System.err.println("Capture to " + capture
+									+ " failed: " + e.getMessage());
+						}
+					}
+				});
+			} catch (IOException e) {
+				System.err.println("Cannot capture to " + capture + ": "
+						+ e.getMessage());
+			}
+		}
+	}
+
+	private final int m_Mask;
+	private final AtomicLong m_Next = new AtomicLong();
+	private final AtomicReferenceArray<Entry> m_Slots;
+	private volatile long m_Cleared;
+	private volatile PrintStream m_ErrorStream = "true".equals(System
+			.getProperty("com.ghgande.modbus.trace.onerror")) ? System.err
+			: null;
+	private final List<Listener> m_Listeners = new CopyOnWriteArrayList<Listener>();
+
+	/**
+	 * Listener -- sees each frame as it is recorded.
+	 */
+	public interface Listener {
+		/**
+		 * frameRecorded -- a frame has been sent or received. Called on the
+		 * thread which sent or received it, so it should not block for long.
+		 * 
+		 * @param entry
+		 *            the frame.
+		 */
+		public void frameRecorded(Entry entry);
+	}
+
+	/**
+	 * Connection -- a transport's handle for recording its frames.
+	 */
+	public static class Connection {
+		private final int m_ID;
+		private final String m_Protocol;
+
+		/**
+		 * @return the number identifying the connection.
+		 */
+		public int getID() {
+			return m_ID;
+		}
+
+		/**
+		 * @return how the frames on the connection are framed:
+		 *         <tt>"tcp"</tt> or <tt>"udp"</tt> for frames with an MBAP
+		 *         header, <tt>"rtu"</tt>, <tt>"ascii"</tt> or
+		 *         <tt>"bin"</tt> for serial frames, which are recorded in
+		 *         binary with their CRC or LRC.
+		 */
+		public String getProtocol() {
+			return m_Protocol;
+		}
+
+		public String toString() {
+			return m_Protocol + "#" + m_ID;
+		}
+
+		/**
+		 * Constructs a new <tt>Connection</tt>.
+		 * 
+		 * @param id
+		 *            the number identifying the connection.
+		 * @param protocol
+		 *            how the frames on the connection are framed.
+		 */
+		public Connection(int id, String protocol) {
+			m_ID = id;
+			m_Protocol = protocol;
+		}
+	}
+
+	/**
+	 * Entry -- one frame in the trace.
+	 */
+	public static class Entry {
+		private final long m_Sequence;
+		private final long m_Time;
+		private final Connection m_Connection;
+		private final int m_Direction;
+		private final byte[] m_Frame;
+
+		/**
+		 * @return the number of frames recorded before this one.
+		 */
+		public long getSequence() {
+			return m_Sequence;
+		}
+
+		/**
+		 * @return the <tt>System.nanoTime()</tt> at which the frame was
+		 *         recorded.
+		 */
+		public long getTime() {
+			return m_Time;
+		}
+
+		/**
+		 * @return the wall clock time at which the frame was recorded, in
+		 *         milliseconds since the epoch.
+		 */
+		public long getTimeMillis() {
+			return (c_Epoch + m_Time) / 1000000L;
+		}
+
+		/**
+		 * @return the wall clock time at which the frame was recorded, in
+		 *         nanoseconds since the epoch.
+		 */
+		public long getTimeNanos() {
+			return c_Epoch + m_Time;
+		}
+
+		/**
+		 * @return the connection the frame was sent or received on, see
+		 *         {@link FrameTrace#newConnection(String)}.
+		 */
+		public Connection getConnection() {
+			return m_Connection;
+		}
+
+		/**
+		 * @return <tt>SENT</tt> or <tt>RECEIVED</tt>, or -1 for a frame read
+		 *         from a capture which does not say.
+		 */
+		public int getDirection() {
+			return m_Direction;
+		}
+
+		/**
+		 * @return a copy of the frame.
+		 */
+		public byte[] getFrame() {
+			return m_Frame.clone();
+		}
+
+		public String toString() {
+			long nanos = c_Epoch + m_Time;
+			return new SimpleDateFormat("HH:mm:ss.SSS").format(new Date(
+					nanos / 1000000L))
+					+ String.format("%03d", nanos / 1000L % 1000L)
+					+ " "
+					+ m_Connection
+					+ (m_Direction == SENT ? " TX " : " RX ")
+					+ ModbusUtil.toHex(m_Frame);
+		}
+
+		Entry(long sequence, long time, Connection connection, int direction,
+				byte[] frame) {
+			m_Sequence = sequence;
+			m_Time = time;
+			m_Connection = connection;
+			m_Direction = direction;
+			m_Frame = frame;
+		}
+	}
+
+	/**
+	 * newConnection -- a connection for a transport to record its frames
+	 * under.
+	 * 
+	 * @param protocol
+	 *            how the transport frames its messages, see
+	 *            {@link Connection#getProtocol()}.
+	 * @return a connection with a number not handed out before.
+	 */
+	public static Connection newConnection(String protocol) {
+		return new Connection(c_Connections.incrementAndGet(), protocol);
+	}
+
+	/**
+	 * record -- add a frame to the trace.
+	 * 
+	 * @param connection
+	 *            the connection the frame was sent or received on.
+	 * @param direction
+	 *            <tt>SENT</tt> or <tt>RECEIVED</tt>.
+	 * @param frame
+	 *            a buffer holding the frame.
+	 * @param offset
+	 *            the offset of the frame in the buffer.
+	 * @param length
+	 *            the length of the frame.
+	 */
+	public void record(Connection connection, int direction, byte[] frame,
+			int offset, int length) {
+		if (m_Slots == null && !Modbus.debug && m_Listeners.isEmpty())
+			return;
+
+		byte[] copy = new byte[length];
+		System.arraycopy(frame, offset, copy, 0, length);
+
+		long seq = m_Slots == null ? -1 : m_Next.getAndIncrement();
+		Entry entry = new Entry(seq, System.nanoTime(), connection,
+				direction, copy);
+		if (m_Slots != null)
+			m_Slots.set((int) (seq & m_Mask), entry);
+
+		if (Modbus.debug)
+			System.err.println(entry);
+
+		for (Listener listener : m_Listeners)
+			listener.frameRecorded(entry);
+	}
+
+	/**
+	 * addListener -- have a listener see each frame recorded from now on.
+	 * 
+	 * @param listener
+	 *            the listener.
+	 */
+	public void addListener(Listener listener) {
+		m_Listeners.add(listener);
+	}
+
+	/**
+	 * removeListener -- stop a listener seeing frames.
+	 * 
+	 * @param listener
+	 *            the listener.
+	 */
+	public void removeListener(Listener listener) {
+		m_Listeners.remove(listener);
+	}
+
+	/**
+	 * getEntries -- the frames in the trace, oldest first.
+	 * 
+	 * @return the frames.
+	 */
+	public List<Entry> getEntries() {
+		List<Entry> result = new ArrayList<Entry>();
+		if (m_Slots == null)
+			return result;
+
+		long end = m_Next.get();
+		long start = Math.max(Math.max(end - m_Slots.length(), 0), m_Cleared);
+		for (long seq = start; seq < end; seq++) {
+			Entry entry = m_Slots.get((int) (seq & m_Mask));
+			if (entry != null && entry.m_Sequence == seq)
+				result.add(entry); // else not written yet, or already reused
+		}
+		return result;
+	}
+
+	/**
+	 * dump -- print the frames in the trace, oldest first.
+	 * 
+	 * @param out
+	 *            where to print them.
+	 */
+	public void dump(PrintStream out) {
+		for (Entry entry : getEntries())
+			out.println(entry);
+	}
+
+	/**
+	 * setErrorStream -- where to dump the trace when a transaction fails.
+	 * 
+	 * @param out
+	 *            the stream, or <tt>null</tt> to not dump on errors.
+	 */
+	public void setErrorStream(PrintStream out) {
+		m_ErrorStream = out;
+	}
+
+	/**
+	 * failed -- a transaction has failed. Dumps the trace if an error stream
+	 * has been set.
+	 * 
+	 * @param reason
+	 *            what went wrong.
+	 */
+	public void failed(String reason) {
+		PrintStream out = m_ErrorStream;
+		if (out == null)
+			return;
+
+		synchronized (out) {
+			out.println("Modbus frame trace: " + reason);
+			dump(out);
+		}
+	}
+
+	/**
+	 * clear -- forget the frames recorded so far.
+	 */
+	public void clear() {
+		m_Cleared = m_Next.get();
+	}
+
+	/**
+	 * Returns the trace shared by all transports.
+	 * 
+	 * @return the <tt>FrameTrace</tt>.
+	 */
+	public static FrameTrace getReference() {
+		return c_Self;
+	}
+
+	/**
+	 * Constructs a new <tt>FrameTrace</tt>.
+	 * 
+	 * @param size
+	 *            the number of frames to keep, rounded up to a power of two.
+	 *            0 keeps none.
+	 */
+	public FrameTrace(int size) {
+		if (size <= 0) {
+			m_Slots = null;
+			m_Mask = 0;
+		} else {
+			int slots = Integer.highestOneBit(size);
+			if (slots < size)
+				slots <<= 1;
+			m_Slots = new AtomicReferenceArray<Entry>(slots);
+			m_Mask = slots - 1;
+		}
+	}
+}
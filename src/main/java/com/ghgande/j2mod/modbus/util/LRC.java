@@ -0,0 +1,157 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.util;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * LRC -- the longitudinal redundancy check used by the Modbus ASCII
+ * encoding.
+ * 
+ * The LRC is the two's complement of the 8 bit sum of the binary (not hex
+ * encoded) message bytes. A frame that includes its own LRC byte therefore
+ * sums to zero, which is what {@link #check(byte[], int, int)} tests for.
+ */
+public final class LRC implements Checksum {
+	private int m_Sum;
+
+	/**
+	 * update -- add a single byte to the LRC.
+	 * 
+	 * @param b
+	 *            the byte, only the low 8 bits are used.
+	 */
+	public void update(int b) {
+		m_Sum += b;
+	}
+
+	/**
+	 * update -- add a range of bytes to the LRC.
+	 * 
+	 * @param data
+	 *            the buffer holding the bytes.
+	 * @param off
+	 *            offset of the first byte.
+	 * @param len
+	 *            number of bytes to add.
+	 */
+	public void update(byte[] data, int off, int len) {
+		m_Sum += sum(data, off, len);
+	}
+
+	/**
+	 * update -- add a range of bytes from a <tt>ByteBuffer</tt> to the LRC.
+	 * 
+	 * The buffer's position and limit are not changed.
+	 * 
+	 * @param data
+	 *            the buffer holding the bytes.
+	 * @param off
+	 *            absolute index of the first byte.
+	 * @param len
+	 *            number of bytes to add.
+	 */
+	public void update(ByteBuffer data, int off, int len) {
+		if (data.hasArray()) {
+			m_Sum += sum(data.array(), data.arrayOffset() + off, len);
+			return;
+		}
+		for (int i = off; i < off + len; i++)
+			m_Sum += data.get(i);
+	}
+
+	/**
+	 * getValue -- the LRC of the bytes added so far.
+	 * 
+	 * @return the LRC, in the range 0 to 0xFF.
+	 */
+	public long getValue() {
+		return getLRC();
+	}
+
+	/**
+	 * getLRC -- the LRC of the bytes added so far as an <tt>int</tt>.
+	 * 
+	 * @return the LRC, in the range 0 to 0xFF.
+	 */
+	public int getLRC() {
+		return -m_Sum & 0xFF;
+	}
+
+	/**
+	 * reset -- start a new LRC.
+	 */
+	public void reset() {
+		m_Sum = 0;
+	}
+
+	/**
+	 * calculate -- compute the LRC of a range of bytes.
+	 * 
+	 * @param data
+	 *            the buffer holding the bytes.
+	 * @param off
+	 *            offset of the first byte.
+	 * @param len
+	 *            number of bytes.
+	 * @return the LRC, in the range 0 to 0xFF.
+	 */
+	public static int calculate(byte[] data, int off, int len) {
+		return -sum(data, off, len) & 0xFF;
+	}
+
+	/**
+	 * check -- test a complete frame whose last byte is its LRC.
+	 * 
+	 * @param frame
+	 *            the buffer holding the frame.
+	 * @param off
+	 *            offset of the first byte of the frame.
+	 * @param len
+	 *            length of the frame, including the LRC.
+	 * @return <tt>true</tt> if the LRC is correct.
+	 */
+	public static boolean check(byte[] frame, int off, int len) {
+		return len >= 1 && (sum(frame, off, len) & 0xFF) == 0;
+	}
+
+	private static int sum(byte[] data, int off, int len) {
+		int sum = 0;
+		for (int i = off; i < off + len; i++)
+			sum += data[i];
+
+		return sum;
+	}
+}
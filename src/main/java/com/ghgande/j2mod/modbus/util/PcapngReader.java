@@ -0,0 +1,255 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.util;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PcapngReader -- reads the Modbus frames from a capture file in pcapng
+ * format, such as one written by {@link PcapngWriter}.
+ * 
+ * <p>
+ * Frames are returned as {@link FrameTrace.Entry}s, in the order they appear
+ * in the capture. Each interface of the capture becomes a connection, with
+ * the protocol given by its link type. Packets on interfaces with other link
+ * types, and blocks other than enhanced packets, are skipped.
+ */
+public class PcapngReader {
+	private final DataInputStream m_Input;
+	private final List<FrameTrace.Connection> m_Interfaces = new ArrayList<FrameTrace.Connection>();
+	private final List<Integer> m_Resolutions = new ArrayList<Integer>();
+	private ByteOrder m_Order = ByteOrder.BIG_ENDIAN;
+	private boolean m_Section;
+	private int m_Connections;
+	private long m_Sequence;
+
+	/**
+	 * read -- read the next frame.
+	 * 
+	 * @return the frame, or <tt>null</tt> at the end of the capture.
+	 * @throws IOException
+	 *             if the capture cannot be read or is not in pcapng format.
+	 */
+	public FrameTrace.Entry read() throws IOException {
+		for (;;) {
+			byte[] header = new byte[8];
+			try {
+				m_Input.readFully(header, 0, 4);
+			} catch (EOFException e) {
+				return null;
+			}
+			m_Input.readFully(header, 4, 4);
+
+			ByteBuffer buf = ByteBuffer.wrap(header).order(m_Order);
+			int type = buf.getInt(0);
+			if (type == PcapngWriter.SECTION_HEADER) {
+				byte[] magic = new byte[4];
+				m_Input.readFully(magic);
+				ByteBuffer order = ByteBuffer.wrap(magic);
+				if (order.getInt() == PcapngWriter.BYTE_ORDER_MAGIC)
+					m_Order = ByteOrder.BIG_ENDIAN;
+				else if (order.order(ByteOrder.LITTLE_ENDIAN).getInt(0) == PcapngWriter.BYTE_ORDER_MAGIC)
+					m_Order = ByteOrder.LITTLE_ENDIAN;
+				else
+					throw new IOException("Not a pcapng capture");
+
+				readBody(buf.order(m_Order).getInt(4), 12);
+				m_Interfaces.clear();
+				m_Resolutions.clear();
+				m_Section = true;
+				continue;
+			}
+			if (!m_Section)
+				throw new IOException("Not a pcapng capture");
+
+			ByteBuffer block = readBody(buf.getInt(4), 8);
+			if (type == PcapngWriter.INTERFACE_DESCRIPTION)
+				readInterface(block);
+			else if (type == PcapngWriter.ENHANCED_PACKET) {
+				FrameTrace.Entry entry = readPacket(block);
+				if (entry != null)
+					return entry;
+			}
+		}
+	}
+
+	/**
+	 * readAll -- read the remaining frames.
+	 * 
+	 * @return the frames.
+	 * @throws IOException
+	 *             if the capture cannot be read or is not in pcapng format.
+	 */
+	public List<FrameTrace.Entry> readAll() throws IOException {
+		List<FrameTrace.Entry> result = new ArrayList<FrameTrace.Entry>();
+		FrameTrace.Entry entry;
+		while ((entry = read()) != null)
+			result.add(entry);
+
+		return result;
+	}
+
+	/**
+	 * close -- close the capture.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		m_Input.close();
+	}
+
+	/**
+	 * readBody -- read the rest of a block, less its trailing length.
+	 */
+	private ByteBuffer readBody(int length, int read) throws IOException {
+		if (length < read + 4 || (length & 3) != 0)
+			throw new IOException("Bad pcapng block length " + length);
+
+		byte[] body = new byte[length - read];
+		m_Input.readFully(body);
+		return ByteBuffer.wrap(body, 0, body.length - 4).order(m_Order);
+	}
+
+	private void readInterface(ByteBuffer block) {
+		int linkType = block.getShort() & 0xFFFF;
+		block.position(8);
+
+		int resolution = 6;
+		String name = null;
+		while (block.remaining() >= 4) {
+			int code = block.getShort() & 0xFFFF;
+			int length = block.getShort() & 0xFFFF;
+			if (code == PcapngWriter.OPT_END || length > block.remaining())
+				break;
+
+			if (code == PcapngWriter.IF_TSRESOL && length == 1)
+				resolution = block.get(block.position()) & 0xFF;
+			else if (code == PcapngWriter.IF_NAME)
+				name = new String(block.array(), block.position(), length);
+
+			block.position(block.position() + ((length + 3) & ~3));
+		}
+		/*
+		 * TCP and UDP share a link type, PcapngWriter names the interfaces
+		 * after their connections.
+		 */
+		String protocol = PcapngWriter.protocol(linkType);
+		if (protocol != null && name != null && name.startsWith("udp#"))
+			protocol = "udp";
+
+		m_Interfaces.add(protocol == null ? null : new FrameTrace.Connection(
+				++m_Connections, protocol));
+		m_Resolutions.add(resolution);
+	}
+
+	private FrameTrace.Entry readPacket(ByteBuffer block) throws IOException {
+		int id = block.getInt();
+		if (id >= m_Interfaces.size())
+			throw new IOException("Packet on undeclared interface " + id);
+
+		FrameTrace.Connection connection = m_Interfaces.get(id);
+		if (connection == null)
+			return null;
+
+		long time = ((long) block.getInt() << 32)
+				| (block.getInt() & 0xFFFFFFFFL);
+		int length = block.getInt();
+		block.getInt(); // original length
+		if (length > block.remaining())
+			throw new IOException("Bad pcapng packet length " + length);
+
+		byte[] frame = new byte[length];
+		block.get(frame);
+		block.position(block.position() + ((length + 3) & ~3) - length);
+
+		int direction = -1;
+		while (block.remaining() >= 4) {
+			int code = block.getShort() & 0xFFFF;
+			int optLength = block.getShort() & 0xFFFF;
+			if (code == PcapngWriter.OPT_END || optLength > block.remaining())
+				break;
+
+			if (code == PcapngWriter.EPB_FLAGS && optLength == 4) {
+				int flags = block.getInt(block.position()) & 3;
+				if (flags == PcapngWriter.EPB_INBOUND)
+					direction = FrameTrace.RECEIVED;
+				else if (flags == PcapngWriter.EPB_OUTBOUND)
+					direction = FrameTrace.SENT;
+			}
+			block.position(block.position() + ((optLength + 3) & ~3));
+		}
+
+		long nanos = toNanos(time, m_Resolutions.get(id));
+		return new FrameTrace.Entry(m_Sequence++, nanos - FrameTrace.c_Epoch,
+				connection, direction, frame);
+	}
+
+	/**
+	 * toNanos -- convert a time stamp to nanoseconds.
+	 * 
+	 * @param time
+	 *            the time stamp.
+	 * @param resolution
+	 *            the <tt>if_tsresol</tt> of its interface: a negative power
+	 *            of 10, or with the top bit set, of 2.
+	 */
+	private static long toNanos(long time, int resolution) {
+		if ((resolution & 0x80) != 0)
+			return (long) (time * 1e9 / Math.pow(2, resolution & 0x7F));
+
+		for (; resolution < 9; resolution++)
+			time *= 10;
+		for (; resolution > 9; resolution--)
+			time /= 10;
+
+		return time;
+	}
+
+	/**
+	 * Constructs a new <tt>PcapngReader</tt>.
+	 * 
+	 * @param in
+	 *            the capture.
+	 */
+	public PcapngReader(InputStream in) {
+		m_Input = new DataInputStream(in);
+	}
+}
@@ -0,0 +1,297 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.util;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * PcapngWriter -- writes the frames recorded by {@link FrameTrace} to a
+ * capture file in pcapng format.
+ * 
+ * <p>
+ * Each transport connection becomes an interface of the capture, with a link
+ * type for its framing. pcap has no link types for Modbus, so the user link
+ * types are used:
+ * 
+ * <ul>
+ * <li><tt>LINKTYPE_USER0</tt> (147): MBAP header and PDU, from TCP and UDP.
+ * <li><tt>LINKTYPE_USER1</tt> (148): RTU frames, with their CRC.
+ * <li><tt>LINKTYPE_USER2</tt> (149): ASCII frames in binary, with their LRC.
+ * <li><tt>LINKTYPE_USER3</tt> (150): BIN frames, with their CRC.
+ * </ul>
+ * 
+ * <p>
+ * In Wireshark, map user DLT 147 to <tt>mbtcp</tt> and 148 to
+ * <tt>mbrtu</tt> to decode them. Whether a frame was sent or received is
+ * kept in its packet flags, and time stamps have nanosecond resolution.
+ * 
+ * <p>
+ * Frames are written as they are recorded, from the thread which sent or
+ * received them, through a buffer which is only flushed when it fills or the
+ * writer is closed.
+ */
+public class PcapngWriter implements FrameTrace.Listener {
+	/**
+	 * Link type of frames with an MBAP header.
+	 */
+	public static final int LINKTYPE_MBAP = 147;
+
+	/**
+	 * Link type of RTU frames.
+	 */
+	public static final int LINKTYPE_RTU = 148;
+
+	/**
+	 * Link type of ASCII frames, converted to binary.
+	 */
+	public static final int LINKTYPE_ASCII = 149;
+
+	/**
+	 * Link type of BIN frames.
+	 */
+	public static final int LINKTYPE_BIN = 150;
+
+	static final int SECTION_HEADER = 0x0A0D0D0A;
+	static final int INTERFACE_DESCRIPTION = 1;
+	static final int ENHANCED_PACKET = 6;
+	static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+
+	static final int OPT_END = 0;
+	static final int SHB_USERAPPL = 4;
+	static final int IF_NAME = 2;
+	static final int IF_TSRESOL = 9;
+	static final int EPB_FLAGS = 2;
+	static final int EPB_INBOUND = 1;
+	static final int EPB_OUTBOUND = 2;
+
+	private final OutputStream m_Output;
+	private final Map<Integer, Integer> m_Interfaces = new HashMap<Integer, Integer>();
+	private IOException m_Error;
+	private boolean m_Closed;
+
+	/**
+	 * linkType -- the link type for the frames of a protocol.
+	 * 
+	 * @param protocol
+	 *            the protocol, see {@link FrameTrace.Connection#getProtocol()}.
+	 * @return the link type.
+	 */
+	public static int linkType(String protocol) {
+		if ("rtu".equals(protocol))
+			return LINKTYPE_RTU;
+		if ("ascii".equals(protocol))
+			return LINKTYPE_ASCII;
+		if ("bin".equals(protocol))
+			return LINKTYPE_BIN;
+
+		return LINKTYPE_MBAP;
+	}
+
+	/**
+	 * protocol -- the protocol for the frames of a link type.
+	 * 
+	 * @param linkType
+	 *            the link type.
+	 * @return the protocol, or <tt>null</tt> if the link type does not hold
+	 *         Modbus frames.
+	 */
+	public static String protocol(int linkType) {
+		switch (linkType) {
+		case LINKTYPE_MBAP:
+			return "tcp";
+		case LINKTYPE_RTU:
+			return "rtu";
+		case LINKTYPE_ASCII:
+			return "ascii";
+		case LINKTYPE_BIN:
+			return "bin";
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * frameRecorded -- write a frame to the capture. Errors are kept until
+	 * the writer is closed.
+	 */
+	public synchronized void frameRecorded(FrameTrace.Entry entry) {
+		if (m_Closed || m_Error != null)
+			return;
+
+		try {
+			write(entry);
+		} catch (IOException e) {
+			m_Error = e;
+		}
+	}
+
+	/**
+	 * write -- write a frame to the capture.
+	 * 
+	 * @param entry
+	 *            the frame.
+	 * @throws IOException
+	 *             if the capture cannot be written.
+	 */
+	public synchronized void write(FrameTrace.Entry entry) throws IOException {
+		FrameTrace.Connection connection = entry.getConnection();
+		Integer id = m_Interfaces.get(connection.getID());
+		if (id == null) {
+			id = m_Interfaces.size();
+			m_Interfaces.put(connection.getID(), id);
+			writeInterface(connection);
+		}
+		byte[] frame = entry.getFrame();
+		long time = entry.getTimeNanos();
+
+		ByteBuffer block = newBlock(ENHANCED_PACKET, 20 + pad(frame.length)
+				+ 12);
+		block.putInt(id);
+		block.putInt((int) (time >>> 32));
+		block.putInt((int) time);
+		block.putInt(frame.length);
+		block.putInt(frame.length);
+		block.put(frame);
+		block.position(block.position() + pad(frame.length) - frame.length);
+		block.putShort((short) EPB_FLAGS);
+		block.putShort((short) 4);
+		block.putInt(entry.getDirection() == FrameTrace.SENT ? EPB_OUTBOUND
+				: EPB_INBOUND);
+		block.putInt(0); // opt_endofopt
+		putEnd(block);
+	}
+
+	/**
+	 * flush -- write out any buffered frames.
+	 * 
+	 * @throws IOException
+	 *             if the capture cannot be written.
+	 */
+	public synchronized void flush() throws IOException {
+		if (m_Error != null)
+			throw m_Error;
+
+		m_Output.flush();
+	}
+
+	/**
+	 * close -- write out any buffered frames and close the capture.
+	 * 
+	 * @throws IOException
+	 *             if writing any frame failed.
+	 */
+	public synchronized void close() throws IOException {
+		if (m_Closed)
+			return;
+
+		m_Closed = true;
+		try {
+			m_Output.flush();
+		} finally {
+			m_Output.close();
+		}
+		if (m_Error != null)
+			throw m_Error;
+	}
+
+	private void writeInterface(FrameTrace.Connection connection)
+			throws IOException {
+		byte[] name = connection.toString().getBytes("US-ASCII");
+
+		ByteBuffer block = newBlock(INTERFACE_DESCRIPTION, 8 + 4
+				+ pad(name.length) + 8 + 4);
+		block.putShort((short) linkType(connection.getProtocol()));
+		block.putShort((short) 0);
+		block.putInt(0); // no snap length
+		putOption(block, IF_NAME, name);
+		putOption(block, IF_TSRESOL, new byte[] { 9 });
+		block.putInt(0); // opt_endofopt
+		putEnd(block);
+	}
+
+	private void writeHeader() throws IOException {
+		byte[] application = "j2mod".getBytes("US-ASCII");
+
+		ByteBuffer block = newBlock(SECTION_HEADER, 16 + 4
+				+ pad(application.length) + 4);
+		block.putInt(BYTE_ORDER_MAGIC);
+		block.putShort((short) 1);
+		block.putShort((short) 0);
+		block.putLong(-1L); // section length not known
+		putOption(block, SHB_USERAPPL, application);
+		block.putInt(0); // opt_endofopt
+		putEnd(block);
+	}
+
+	private static int pad(int length) {
+		return (length + 3) & ~3;
+	}
+
+	private static ByteBuffer newBlock(int type, int body) {
+		ByteBuffer block = ByteBuffer.allocate(12 + body);
+		block.putInt(type);
+		block.putInt(12 + body);
+		return block;
+	}
+
+	private static void putOption(ByteBuffer block, int code, byte[] value) {
+		block.putShort((short) code);
+		block.putShort((short) value.length);
+		block.put(value);
+		block.position(block.position() + pad(value.length) - value.length);
+	}
+
+	private void putEnd(ByteBuffer block) throws IOException {
+		block.putInt(block.capacity());
+		m_Output.write(block.array());
+	}
+
+	/**
+	 * Constructs a new <tt>PcapngWriter</tt> and writes the section header.
+	 * 
+	 * @param out
+	 *            where to write the capture.
+	 * @throws IOException
+	 *             if the header cannot be written.
+	 */
+	public PcapngWriter(OutputStream out) throws IOException {
+		m_Output = new BufferedOutputStream(out);
+		writeHeader();
+	}
+}
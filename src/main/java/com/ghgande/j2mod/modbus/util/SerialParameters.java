@@ -477,6 +477,66 @@ public class SerialParameters {
     m_Echo = newEcho;
   }//setEcho
 
+  /**
+   * Returns the number of bits on the wire for one character,
+   * including the start bit, parity and stop bits.
+   *
+   * @return the character length in bits.
+   */
+  public int getCharacterBits() {
+    int bits = 1 + m_Databits;
+    if (m_Parity != SerialPort.PARITY_NONE) {
+      bits++;
+    }
+    if (m_Stopbits == SerialPort.STOPBITS_1) {
+      bits++;
+    } else {
+      //round 1.5 stop bits up, the timings below are minimums
+      bits += 2;
+    }
+    return bits;
+  }//getCharacterBits
+
+  /**
+   * Returns the time it takes to send one character at the
+   * configured baud rate.
+   *
+   * @return the character time in nanoseconds.
+   */
+  public long getCharacterTimeNanos() {
+    return (getCharacterBits() * 1000000000L) / Math.max(m_BaudRate, 1);
+  }//getCharacterTimeNanos
+
+  /**
+   * Returns the Modbus RTU inter-character timeout (t1.5), the longest
+   * silence allowed between two characters of the same frame.
+   * <p>
+   * Above 19200 baud the specification fixes this at 750 microseconds.
+   *
+   * @return t1.5 in nanoseconds.
+   */
+  public long getInterCharacterTimeNanos() {
+    if (m_BaudRate > 19200) {
+      return 750000L;
+    }
+    return (getCharacterTimeNanos() * 3) / 2;
+  }//getInterCharacterTimeNanos
+
+  /**
+   * Returns the Modbus RTU inter-frame delay (t3.5), the silence that
+   * marks the end of a frame.
+   * <p>
+   * Above 19200 baud the specification fixes this at 1.75 milliseconds.
+   *
+   * @return t3.5 in nanoseconds.
+   */
+  public long getInterFrameTimeNanos() {
+    if (m_BaudRate > 19200) {
+      return 1750000L;
+    }
+    return (getCharacterTimeNanos() * 7) / 2;
+  }//getInterFrameTimeNanos
+
   /**
    * Converts a <tt>String</tt> describing a flow control type to the
    * <tt>int</tt> which is defined in SerialPort.
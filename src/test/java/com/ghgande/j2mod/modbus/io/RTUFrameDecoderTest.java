@@ -0,0 +1,249 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ghgande.j2mod.modbus.serial.MemorySerialPort;
+import com.ghgande.j2mod.modbus.util.CRC16;
+import com.ghgande.j2mod.modbus.util.SerialParameters;
+
+/**
+ * RTUFrameDecoderTest -- checks how the decoder delimits frames by silence
+ * and CRC.
+ */
+public class RTUFrameDecoderTest {
+	private static final byte[] READ = frame(0x01, 0x03, 0x00, 0x00, 0x00, 0x0A);
+	private static final byte[] WRITE = frame(0x01, 0x06, 0x00, 0x01, 0x00, 0x03);
+	private static final byte[] NOISE = { 0x00, 0x55, 0x13 };
+
+	private RTUFrameDecoder m_Decoder;
+
+	/**
+	 * BurstInputStream -- delivers each burst in one read, followed by a
+	 * silence, and then times out the way RXTX does, returning 0.
+	 */
+	private static class BurstInputStream extends InputStream {
+		private final ArrayDeque<byte[]> m_Bursts = new ArrayDeque<byte[]>();
+
+		BurstInputStream(byte[]... bursts) {
+			m_Bursts.addAll(Arrays.asList(bursts));
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			byte[] burst = m_Bursts.poll();
+			if (burst == null) {
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException x) {
+					throw new InterruptedIOException();
+				}
+				return 0;
+			}
+			System.arraycopy(burst, 0, b, off, burst.length);
+			return burst.length;
+		}
+
+		public int available() {
+			return 0;
+		}
+
+		int remaining() {
+			return m_Bursts.size();
+		}
+	}
+
+	@Before
+	public void setUp() {
+		m_Decoder = new RTUFrameDecoder();
+	}
+
+	@Test
+	public void testWholeFrame() throws IOException {
+		assertFrame(READ, m_Decoder.readFrame(new BurstInputStream(READ), 100));
+		assertEquals(0, m_Decoder.getCRCErrors());
+	}
+
+	@Test
+	public void testSplitFrameIsJoined() throws IOException {
+		InputStream in = new BurstInputStream(Arrays.copyOfRange(READ, 0, 3),
+				Arrays.copyOfRange(READ, 3, READ.length));
+
+		assertFrame(READ, m_Decoder.readFrame(in, 100));
+		assertEquals(0, m_Decoder.getCRCErrors());
+	}
+
+	@Test
+	public void testNoiseBeforeFrameIsDiscarded() throws IOException {
+		InputStream in = new BurstInputStream(NOISE, READ);
+
+		assertFrame(READ, m_Decoder.readFrame(in, 100));
+		assertEquals(1, m_Decoder.getCRCErrors());
+	}
+
+	@Test
+	public void testBackToBackFrames() throws IOException {
+		BurstInputStream in = new BurstInputStream(concat(READ, WRITE));
+
+		assertFrame(READ, m_Decoder.readFrame(in, 100));
+		assertFrame(WRITE, m_Decoder.readFrame(in, 100));
+		assertEquals(0, m_Decoder.getCRCErrors());
+	}
+
+	@Test
+	public void testTimeout() throws IOException {
+		assertEquals(-1, m_Decoder.readFrame(new BurstInputStream(), 20));
+		assertEquals(0, m_Decoder.getCRCErrors());
+	}
+
+	@Test
+	public void testNoTimeoutReadsOnce() throws IOException {
+		BurstInputStream in = new BurstInputStream(NOISE, READ);
+
+		// the noise is not held over, and the frame after it is not read
+		assertEquals(-1, m_Decoder.readFrame(in, 0));
+		assertEquals(1, m_Decoder.getCRCErrors());
+		assertEquals(1, in.remaining());
+
+		assertFrame(READ, m_Decoder.readFrame(in, 0));
+		assertEquals(1, m_Decoder.getCRCErrors());
+	}
+
+	@Test
+	public void testReset() throws IOException {
+		BurstInputStream in = new BurstInputStream(concat(READ, WRITE));
+
+		assertFrame(READ, m_Decoder.readFrame(in, 100));
+		m_Decoder.reset();
+		assertEquals(-1, m_Decoder.readFrame(in, 20));
+	}
+
+	@Test(expected = EOFException.class)
+	public void testEndOfStream() throws IOException {
+		m_Decoder.readFrame(new ByteArrayInputStream(new byte[0]), 100);
+	}
+
+	/**
+	 * A frame sent in two parts with a pause longer than t3.5 between them,
+	 * over an in-memory line at 19200 baud.
+	 */
+	@Test
+	public void testSplitFrameOnLine() throws Exception {
+		SerialParameters params = new SerialParameters();
+		params.setBaudRate(19200);
+		MemorySerialPort[] ports = MemorySerialPort.createPair(
+				"rtu-test-master", "rtu-test-slave", params);
+		try {
+			ports[0].open(params);
+			ports[1].open(params);
+			ports[1].setReadTimeout(100);
+			m_Decoder.setSerialParameters(params);
+
+			final OutputStream out = ports[0].getOutputStream();
+			final IOException[] failure = new IOException[1];
+			Thread sender = new Thread() {
+				public void run() {
+					try {
+						out.write(READ, 0, 4);
+						out.flush();
+						Thread.sleep(20);
+						out.write(READ, 4, READ.length - 4);
+						out.flush();
+					} catch (IOException x) {
+						failure[0] = x;
+					} catch (InterruptedException x) {
+						failure[0] = new InterruptedIOException();
+					}
+				}
+			};
+			sender.start();
+
+			int length = m_Decoder.readFrame(ports[1].getInputStream(), 1000);
+			sender.join();
+			if (failure[0] != null)
+				throw failure[0];
+
+			assertFrame(READ, length);
+			assertEquals(0, m_Decoder.getCRCErrors());
+		} finally {
+			ports[0].close();
+			ports[1].close();
+			MemorySerialPort.remove(ports[0].getName());
+			MemorySerialPort.remove(ports[1].getName());
+		}
+	}
+
+	private void assertFrame(byte[] expected, int length) {
+		assertEquals(expected.length, length);
+		assertArrayEquals(expected,
+				Arrays.copyOf(m_Decoder.getBuffer(), length));
+	}
+
+	private static byte[] frame(int... pdu) {
+		byte[] result = new byte[pdu.length + 2];
+		for (int i = 0; i < pdu.length; i++)
+			result[i] = (byte) pdu[i];
+
+		int crc = CRC16.calculate(result, 0, pdu.length);
+		result[pdu.length] = (byte) crc;
+		result[pdu.length + 1] = (byte) (crc >> 8);
+
+		return result;
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] result = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+
+		return result;
+	}
+}
@@ -0,0 +1,257 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ghgande.j2mod.modbus.Modbus;
+import com.ghgande.j2mod.modbus.ModbusException;
+import com.ghgande.j2mod.modbus.msg.ModbusRequest;
+import com.ghgande.j2mod.modbus.msg.ModbusResponse;
+import com.ghgande.j2mod.modbus.msg.ReadMultipleRegistersRequest;
+import com.ghgande.j2mod.modbus.msg.ReadMultipleRegistersResponse;
+import com.ghgande.j2mod.modbus.msg.WriteSingleRegisterRequest;
+import com.ghgande.j2mod.modbus.procimg.Register;
+import com.ghgande.j2mod.modbus.procimg.SimpleRegister;
+
+/**
+ * ReadCoalescerTest -- checks that identical reads share one transaction,
+ * and that writes drop the responses they overlap.
+ */
+public class ReadCoalescerTest {
+	private static final int READ = Modbus.READ_MULTIPLE_REGISTERS;
+
+	private ReadCoalescer m_Coalescer;
+	private StubTransaction m_Transaction;
+
+	/**
+	 * StubTransaction -- answers every read with two registers holding the
+	 * number of the transaction, or fails if told to.
+	 */
+	private static class StubTransaction implements ModbusTransaction {
+		private ModbusRequest m_Request;
+		private ModbusResponse m_Response;
+		private ModbusException m_Failure;
+		private int m_Executions;
+
+		public void setRequest(ModbusRequest req) {
+			m_Request = req;
+		}
+
+		public ModbusRequest getRequest() {
+			return m_Request;
+		}
+
+		public ModbusResponse getResponse() {
+			return m_Response;
+		}
+
+		public int getTransactionID() {
+			return m_Executions;
+		}
+
+		public void setRetries(int retries) {
+		}
+
+		public int getRetries() {
+			return 0;
+		}
+
+		public void setCheckingValidity(boolean b) {
+		}
+
+		public boolean isCheckingValidity() {
+			return false;
+		}
+
+		public synchronized void execute() throws ModbusException {
+			m_Executions++;
+			if (m_Failure != null)
+				throw m_Failure;
+
+			m_Response = new ReadMultipleRegistersResponse(new Register[] {
+					new SimpleRegister(m_Executions),
+					new SimpleRegister(m_Executions) });
+			m_Response.setUnitID(m_Request.getUnitID());
+		}
+
+		synchronized int getExecutions() {
+			return m_Executions;
+		}
+	}
+
+	@Before
+	public void setUp() {
+		m_Coalescer = new ReadCoalescer();
+		m_Transaction = new StubTransaction();
+	}
+
+	@Test
+	public void testReadsInFlightAreJoined() throws Exception {
+		ReadCoalescer.Flight flight = m_Coalescer.join(1, READ, 0, 2);
+		assertTrue(flight.isLeader());
+
+		final ModbusResponse[] joined = new ModbusResponse[1];
+		Thread follower = new Thread() {
+			public void run() {
+				ReadCoalescer.Flight other = m_Coalescer.join(1, READ, 0, 2);
+				if (other.isLeader())
+					return;
+
+				try {
+					joined[0] = other.getResponse();
+				} catch (ModbusException x) {
+					// leaves the response null
+				}
+			}
+		};
+		follower.start();
+		while (m_Coalescer.getJoinedCount() == 0 && follower.isAlive())
+			Thread.yield();
+
+		ModbusResponse response = flight.execute(m_Transaction, request(1, 0, 2));
+		follower.join();
+
+		assertEquals(1, m_Transaction.getExecutions());
+		assertEquals(1, m_Coalescer.getTransactionCount());
+		assertEquals(1, m_Coalescer.getJoinedCount());
+		assertNotSame(response, joined[0]);
+		assertEquals(1, ((ReadMultipleRegistersResponse) joined[0])
+				.getRegisterValue(1));
+		assertEquals(1, joined[0].getUnitID());
+	}
+
+	@Test
+	public void testFailureIsShared() throws Exception {
+		ModbusException failure = new ModbusException("no answer");
+		m_Transaction.m_Failure = failure;
+		ReadCoalescer.Flight flight = m_Coalescer.join(1, READ, 0, 2);
+		try {
+			flight.execute(m_Transaction, request(1, 0, 2));
+			fail("the transaction failed");
+		} catch (ModbusException x) {
+			assertSame(failure, x);
+		}
+		try {
+			flight.getResponse();
+			fail("the transaction failed");
+		} catch (ModbusException x) {
+			assertSame(failure, x);
+		}
+
+		// a failed read is not kept
+		assertTrue(m_Coalescer.join(1, READ, 0, 2).isLeader());
+	}
+
+	@Test
+	public void testNothingKeptWithoutTTL() throws Exception {
+		read(1, 0, 2);
+
+		assertTrue(m_Coalescer.join(1, READ, 0, 2).isLeader());
+		assertEquals(0, m_Coalescer.getHitCount());
+	}
+
+	@Test
+	public void testResponseKeptForTTL() throws Exception {
+		m_Coalescer.setTTL(60000);
+		read(1, 0, 2);
+
+		ReadCoalescer.Flight flight = m_Coalescer.join(1, READ, 0, 2);
+		assertFalse(flight.isLeader());
+		assertEquals(1, ((ReadMultipleRegistersResponse) flight.getResponse())
+				.getRegisterValue(0));
+		assertEquals(1, m_Coalescer.getHitCount());
+
+		// a different range is a different read
+		assertTrue(m_Coalescer.join(1, READ, 0, 3).isLeader());
+	}
+
+	@Test
+	public void testWriteInvalidatesItsUnit() throws Exception {
+		m_Coalescer.setTTL(60000);
+		read(1, 0, 2);
+		read(2, 0, 2);
+		read(1, 4, 2);
+
+		m_Coalescer.invalidate(write(1, 1));
+
+		assertTrue(m_Coalescer.join(1, READ, 0, 2).isLeader());
+		assertFalse(m_Coalescer.join(2, READ, 0, 2).isLeader());
+		assertFalse(m_Coalescer.join(1, READ, 4, 2).isLeader());
+	}
+
+	@Test
+	public void testWriteInvalidatesAnyUnit() throws Exception {
+		m_Coalescer.setTTL(60000);
+		read(1, 0, 2);
+		read(2, 0, 2);
+		read(2, 4, 2);
+
+		m_Coalescer.invalidate(write(1, 1), ReadCoalescer.ANY_UNIT);
+
+		assertTrue(m_Coalescer.join(1, READ, 0, 2).isLeader());
+		assertTrue(m_Coalescer.join(2, READ, 0, 2).isLeader());
+		assertFalse(m_Coalescer.join(2, READ, 4, 2).isLeader());
+	}
+
+	private void read(int unit, int ref, int count) throws ModbusException {
+		ReadCoalescer.Flight flight = m_Coalescer.join(unit, READ, ref, count);
+		assertTrue(flight.isLeader());
+
+		flight.execute(m_Transaction, request(unit, ref, count));
+	}
+
+	private static ModbusRequest request(int unit, int ref, int count) {
+		ModbusRequest request = new ReadMultipleRegistersRequest(ref, count);
+		request.setUnitID(unit);
+
+		return request;
+	}
+
+	private static ModbusRequest write(int unit, int ref) {
+		ModbusRequest request = new WriteSingleRegisterRequest(ref,
+				new SimpleRegister(0));
+		request.setUnitID(unit);
+
+		return request;
+	}
+}
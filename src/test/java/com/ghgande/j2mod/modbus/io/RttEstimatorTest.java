@@ -0,0 +1,146 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * RttEstimatorTest -- checks the timeouts computed from measured round
+ * trips, the backoff and the limits.
+ */
+public class RttEstimatorTest {
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private RttEstimator m_Estimator;
+	private long m_Deadline;
+
+	@Before
+	public void setUp() {
+		m_Estimator = new RttEstimator("test");
+		m_Deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+	}
+
+	@Test
+	public void testInitialTimeout() {
+		assertEquals(0, m_Estimator.getTimeout(1, 3));
+		assertEquals(500, m_Estimator.getTimeout(1, 3, 500, m_Deadline, false));
+
+		// the configured timeout is kept within the limits as well
+		assertEquals(10, m_Estimator.getTimeout(1, 3, 1, m_Deadline, false));
+	}
+
+	@Test
+	public void testSample() {
+		// the first sample sets the variation to half of it
+		m_Estimator.sample(1, 3, 20 * MS);
+		assertEquals(20 * MS, m_Estimator.getSmoothedRtt(1, 3));
+		assertEquals(20 + 4 * 10, m_Estimator.getTimeout(1, 3));
+		assertEquals(60, m_Estimator.getTimeout(1, 3, 500, m_Deadline, false));
+
+		m_Estimator.sample(1, 3, 28 * MS);
+		assertEquals(21 * MS, m_Estimator.getSmoothedRtt(1, 3));
+		// the variation moves a quarter of the way from 10 to 8 ms
+		assertEquals(21 + 38, m_Estimator.getTimeout(1, 3));
+
+		// per unit and function
+		assertEquals(0, m_Estimator.getTimeout(2, 3));
+		assertEquals(0, m_Estimator.getTimeout(1, 4));
+	}
+
+	@Test
+	public void testTransferTime() {
+		m_Estimator.sample(1, 3, 20 * MS);
+
+		assertEquals(60 + 5, m_Estimator.getTimeout(1, 3, 500, m_Deadline,
+				false, 4 * MS + 1));
+	}
+
+	@Test
+	public void testBackoff() {
+		m_Estimator.sample(1, 3, 20 * MS);
+		m_Estimator.timeout(1, 3, 60);
+		assertEquals(120, m_Estimator.getTimeout(1, 3));
+
+		// a shorter wait that timed out does not shorten it
+		m_Estimator.timeout(1, 3, 10);
+		assertEquals(120, m_Estimator.getTimeout(1, 3));
+
+		m_Estimator.setCeiling(200);
+		m_Estimator.timeout(1, 3, 120);
+		assertEquals(200, m_Estimator.getTimeout(1, 3));
+	}
+
+	@Test
+	public void testLimits() {
+		m_Estimator.setFloor(50);
+		m_Estimator.sample(1, 3, 1 * MS);
+		assertEquals(50, m_Estimator.getTimeout(1, 3));
+
+		m_Estimator.setCeiling(1000);
+		m_Estimator.sample(2, 3, 5000 * MS);
+		assertEquals(1000, m_Estimator.getTimeout(2, 3));
+	}
+
+	@Test
+	public void testDeadline() {
+		m_Estimator.sample(1, 3, 20 * MS);
+		long deadline = System.nanoTime() + 1000 * MS;
+
+		// the last attempt waits for whatever is left
+		int last = m_Estimator.getTimeout(1, 3, 500, deadline, true);
+		assertTrue(last > 900 && last <= 1000);
+
+		// no attempt waits past the deadline
+		assertTrue(m_Estimator.getTimeout(1, 3, 500,
+				System.nanoTime() + 30 * MS, false) <= 30);
+		assertEquals(0, m_Estimator.getTimeout(1, 3, 500,
+				System.nanoTime() - 1, false));
+	}
+
+	@Test
+	public void testSeed() {
+		m_Estimator.seed(1, 3, 20 * MS, 10 * MS);
+		assertEquals(60, m_Estimator.getTimeout(1, 3));
+
+		// a measured estimate is kept
+		m_Estimator.seed(1, 3, 100 * MS, 0);
+		assertEquals(20 * MS, m_Estimator.getSmoothedRtt(1, 3));
+	}
+}
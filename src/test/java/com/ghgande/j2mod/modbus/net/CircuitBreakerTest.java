@@ -0,0 +1,137 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * CircuitBreakerTest -- checks the transitions between closed, open and half
+ * open.
+ */
+public class CircuitBreakerTest {
+	private CircuitBreaker m_Breaker;
+
+	@Before
+	public void setUp() {
+		m_Breaker = new CircuitBreaker("test");
+		m_Breaker.setThreshold(3);
+		m_Breaker.setBaseDelay(20);
+		m_Breaker.setMaxDelay(20);
+	}
+
+	@Test
+	public void testOpensAfterThreshold() {
+		m_Breaker.failure();
+		m_Breaker.failure();
+		assertEquals(CircuitBreaker.CLOSED, m_Breaker.getState());
+		assertTrue(m_Breaker.allowRequest());
+
+		m_Breaker.failure();
+		assertEquals(CircuitBreaker.OPEN, m_Breaker.getState());
+		assertFalse(m_Breaker.allowRequest());
+		assertEquals(1, m_Breaker.getOpenCount());
+		assertEquals(1, m_Breaker.getRejectedCount());
+	}
+
+	@Test
+	public void testSuccessResetsFailures() {
+		m_Breaker.failure();
+		m_Breaker.failure();
+		m_Breaker.success();
+		m_Breaker.failure();
+		m_Breaker.failure();
+
+		assertEquals(CircuitBreaker.CLOSED, m_Breaker.getState());
+	}
+
+	@Test
+	public void testHalfOpenAfterDelay() throws InterruptedException {
+		trip();
+		Thread.sleep(30);
+
+		// one test transaction is let through
+		assertTrue(m_Breaker.allowRequest());
+		assertEquals(CircuitBreaker.HALF_OPEN, m_Breaker.getState());
+		assertFalse(m_Breaker.allowRequest());
+		assertEquals(1, m_Breaker.getHalfOpenCount());
+
+		m_Breaker.success();
+		assertEquals(CircuitBreaker.CLOSED, m_Breaker.getState());
+		assertEquals(1, m_Breaker.getCloseCount());
+		assertTrue(m_Breaker.allowRequest());
+	}
+
+	@Test
+	public void testFailedTestReopens() throws InterruptedException {
+		trip();
+		Thread.sleep(30);
+		assertTrue(m_Breaker.allowRequest());
+
+		m_Breaker.failure();
+		assertEquals(CircuitBreaker.OPEN, m_Breaker.getState());
+		assertEquals(2, m_Breaker.getOpenCount());
+		assertFalse(m_Breaker.allowRequest());
+	}
+
+	@Test
+	public void testLateFailuresIgnoredWhileOpen() {
+		trip();
+		m_Breaker.failure();
+		m_Breaker.failure();
+		m_Breaker.failure();
+
+		assertEquals(1, m_Breaker.getOpenCount());
+	}
+
+	@Test
+	public void testReset() {
+		trip();
+		m_Breaker.reset();
+
+		assertEquals(CircuitBreaker.CLOSED, m_Breaker.getState());
+		assertTrue(m_Breaker.allowRequest());
+	}
+
+	private void trip() {
+		for (int i = 0; i < m_Breaker.getThreshold(); i++)
+			m_Breaker.failure();
+
+		assertEquals(CircuitBreaker.OPEN, m_Breaker.getState());
+	}
+}
@@ -0,0 +1,161 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.procimg;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntUnaryOperator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * SimpleProcessImageTest -- checks the atomic operations on the holding
+ * registers, alone and against each other.
+ */
+public class SimpleProcessImageTest {
+	private static final IntUnaryOperator INCREMENT = new IntUnaryOperator() {
+		public int applyAsInt(int value) {
+			return value + 1;
+		}
+	};
+
+	private SimpleProcessImage m_Image;
+
+	@Before
+	public void setUp() {
+		m_Image = new SimpleProcessImage();
+		for (int i = 0; i < 10; i++)
+			m_Image.addRegister(new SimpleRegister(0));
+	}
+
+	@Test
+	public void testUpdateRegister() {
+		m_Image.getRegister(2).setValue(0xFFFF);
+
+		assertEquals(0, m_Image.updateRegister(2, INCREMENT));
+		assertEquals(0, m_Image.getRegister(2).getValue());
+	}
+
+	@Test
+	public void testMaskRegister() {
+		// the example of the Modbus application protocol specification
+		m_Image.getRegister(4).setValue(0x12);
+
+		assertEquals(0x17, m_Image.maskRegister(4, 0xF2, 0x25));
+		assertEquals(0x17, m_Image.getRegister(4).getValue());
+	}
+
+	@Test
+	public void testReadWriteRegisters() {
+		m_Image.writeRegisters(0, new int[] { 1, 2, 3, 4 });
+
+		// the read sees the registers before the write
+		assertArrayEquals(new int[] { 3, 4 },
+				m_Image.readWriteRegisters(2, 2, 3, new int[] { 9, 8 }));
+		assertArrayEquals(new int[] { 1, 2, 3, 9, 8 },
+				m_Image.readRegisters(0, 5));
+	}
+
+	@Test
+	public void testInvalidRangeWritesNothing() {
+		try {
+			m_Image.writeRegisters(8, new int[] { 1, 2, 3 });
+			fail("write past the last register");
+		} catch (IllegalAddressException x) {
+			// expected
+		}
+		assertArrayEquals(new int[] { 0, 0 }, m_Image.readRegisters(8, 2));
+	}
+
+	/**
+	 * Increments of a register race with FC 23 requests that read it and
+	 * reset it to 0. Every increment must show up in exactly one read. The
+	 * register may wrap between reads, so the sum is compared modulo 16 bits.
+	 */
+	@Test
+	public void testNoLostUpdates() throws InterruptedException {
+		final int count = 1000000;
+
+		Thread incrementer = new Thread() {
+			public void run() {
+				for (int n = 0; n < count; n++)
+					m_Image.updateRegister(3, INCREMENT);
+			}
+		};
+		incrementer.start();
+
+		long drained = 0;
+		while (incrementer.isAlive())
+			drained += m_Image.readWriteRegisters(3, 1, 3, new int[] { 0 })[0];
+
+		incrementer.join();
+		drained += m_Image.getRegister(3).getValue();
+
+		assertEquals(count & 0xFFFF, drained & 0xFFFF);
+	}
+
+	/**
+	 * A range read must never see a range write half done.
+	 */
+	@Test
+	public void testRangeReadsAreNotTorn() throws InterruptedException {
+		final AtomicReference<int[]> torn = new AtomicReference<int[]>();
+		Thread writer = new Thread() {
+			public void run() {
+				for (int n = 1; n <= 50000 && torn.get() == null; n++)
+					m_Image.writeRegisters(0, new int[] { n, n, n, n, n, n,
+							n, n });
+			}
+		};
+		writer.start();
+		while (writer.isAlive()) {
+			int[] values = m_Image.readRegisters(0, 8);
+			for (int i = 1; i < values.length; i++) {
+				if (values[i] != values[0]) {
+					torn.set(values);
+					break;
+				}
+			}
+		}
+		writer.join();
+
+		if (torn.get() != null)
+			fail("torn read " + Arrays.toString(torn.get()));
+	}
+}
@@ -0,0 +1,200 @@
+/***
+ * Java Modbus Library (j2mod)
+ * Copyright 2012, Julianne Frances Haugh
+ * d/b/a greenHouse Gas and Electric
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the author nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER AND CONTRIBUTORS ``AS
+ * IS'' AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ ***/
+package com.ghgande.j2mod.modbus.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * CRC16Test -- checks the slice-by-8 CRC against the byte-at-a-time table
+ * implementation that <tt>ModbusUtil.calculateCRC</tt> used before it.
+ */
+public class CRC16Test {
+
+	@Test
+	public void testKnownValues() {
+		byte[] check = "123456789".getBytes();
+		assertEquals(0x4B37, CRC16.calculate(check, 0, check.length));
+
+		// read 10 holding registers of unit 1, sent as ... C5 CD
+		byte[] frame = { 0x01, 0x03, 0x00, 0x00, 0x00, 0x0A };
+		assertEquals(0xCDC5, CRC16.calculate(frame, 0, frame.length));
+
+		assertEquals(CRC16.INITIAL_VALUE, CRC16.calculate(frame, 0, 0));
+	}
+
+	@Test
+	public void testMatchesTableImplementation() {
+		Random random = new Random(1);
+		byte[] data = new byte[300];
+
+		for (int n = 0; n < 2000; n++) {
+			random.nextBytes(data);
+			int off = random.nextInt(16);
+			int len = random.nextInt(data.length - off + 1);
+
+			assertEquals("offset " + off + ", length " + len,
+					tableCRC(data, off, len), CRC16.calculate(data, off, len));
+		}
+	}
+
+	@Test
+	public void testCheck() {
+		Random random = new Random(2);
+
+		for (int len = 2; len <= 256; len++) {
+			byte[] frame = new byte[len + 2];
+			random.nextBytes(frame);
+			int crc = CRC16.calculate(frame, 0, len);
+			frame[len] = (byte) crc;
+			frame[len + 1] = (byte) (crc >> 8);
+			assertTrue(CRC16.check(frame, 0, frame.length));
+
+			frame[random.nextInt(frame.length)] ^= 1 << random.nextInt(8);
+			assertFalse(CRC16.check(frame, 0, frame.length));
+		}
+		assertFalse(CRC16.check(new byte[] { 0 }, 0, 1));
+	}
+
+	@Test
+	public void testIncrementalUpdate() {
+		Random random = new Random(3);
+		byte[] data = new byte[100];
+		random.nextBytes(data);
+		int expected = CRC16.calculate(data, 0, data.length);
+
+		CRC16 crc = new CRC16();
+		for (int i = 0; i < data.length; i++)
+			crc.update(data[i]);
+		assertEquals(expected, crc.getCRC());
+
+		crc.reset();
+		crc.update(data, 0, 37);
+		crc.update(ByteBuffer.wrap(data), 37, 20);
+		ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+		direct.put(data);
+		crc.update(direct, 57, data.length - 57);
+		assertEquals(expected, crc.getCRC());
+		assertEquals(expected, crc.getValue());
+	}
+
+	@Test
+	@SuppressWarnings("deprecation")
+	public void testCalculateCRC() {
+		byte[] frame = { 0x7F, 0x01, 0x03, 0x00, 0x00, 0x00, 0x0A };
+
+		// the old method takes the end of the range, not its length
+		assertArrayEquals(new int[] { 0xC5, 0xCD },
+				ModbusUtil.calculateCRC(frame, 1, frame.length));
+	}
+
+	/**
+	 * tableCRC -- the CRC as <tt>ModbusUtil.calculateCRC</tt> computed it,
+	 * one byte at a time with a table for each byte of the result.
+	 */
+	private static int tableCRC(byte[] data, int offset, int len) {
+		int[] crc = { 0xFF, 0xFF };
+		for (int i = offset; i < offset + len; i++) {
+			int uIndex = crc[0] ^ (data[i] & 0xFF);
+			crc[0] = crc[1] ^ auchCRCHi[uIndex];
+			crc[1] = auchCRCLo[uIndex];
+		}
+		return crc[0] | crc[1] << 8;
+	}
+
+	private static final short[] auchCRCHi = {
+		0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0, 0x80, 0x41, 0x01, 0xC0,
+		0x80, 0x41, 0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0, 0x80, 0x41,
+		0x00, 0xC1, 0x81, 0x40, 0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0,
+		0x80, 0x41, 0x01, 0xC0, 0x80, 0x41, 0x00, 0xC1, 0x81, 0x40,
+		0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0, 0x80, 0x41, 0x00, 0xC1,
+		0x81, 0x40, 0x01, 0xC0, 0x80, 0x41, 0x01, 0xC0, 0x80, 0x41,
+		0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0, 0x80, 0x41, 0x00, 0xC1,
+		0x81, 0x40, 0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0, 0x80, 0x41,
+		0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0, 0x80, 0x41, 0x01, 0xC0,
+		0x80, 0x41, 0x00, 0xC1, 0x81, 0x40, 0x00, 0xC1, 0x81, 0x40,
+		0x01, 0xC0, 0x80, 0x41, 0x01, 0xC0, 0x80, 0x41, 0x00, 0xC1,
+		0x81, 0x40, 0x01, 0xC0, 0x80, 0x41, 0x00, 0xC1, 0x81, 0x40,
+		0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0, 0x80, 0x41, 0x01, 0xC0,
+		0x80, 0x41, 0x00, 0xC1, 0x81, 0x40, 0x00, 0xC1, 0x81, 0x40,
+		0x01, 0xC0, 0x80, 0x41, 0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0,
+		0x80, 0x41, 0x01, 0xC0, 0x80, 0x41, 0x00, 0xC1, 0x81, 0x40,
+		0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0, 0x80, 0x41, 0x01, 0xC0,
+		0x80, 0x41, 0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0, 0x80, 0x41,
+		0x00, 0xC1, 0x81, 0x40, 0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0,
+		0x80, 0x41, 0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0, 0x80, 0x41,
+		0x01, 0xC0, 0x80, 0x41, 0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0,
+		0x80, 0x41, 0x00, 0xC1, 0x81, 0x40, 0x00, 0xC1, 0x81, 0x40,
+		0x01, 0xC0, 0x80, 0x41, 0x01, 0xC0, 0x80, 0x41, 0x00, 0xC1,
+		0x81, 0x40, 0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0, 0x80, 0x41,
+		0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0, 0x80, 0x41, 0x01, 0xC0,
+		0x80, 0x41, 0x00, 0xC1, 0x81, 0x40
+	};
+
+	private static final short[] auchCRCLo = {
+		0x00, 0xC0, 0xC1, 0x01, 0xC3, 0x03, 0x02, 0xC2, 0xC6, 0x06,
+		0x07, 0xC7, 0x05, 0xC5, 0xC4, 0x04, 0xCC, 0x0C, 0x0D, 0xCD,
+		0x0F, 0xCF, 0xCE, 0x0E, 0x0A, 0xCA, 0xCB, 0x0B, 0xC9, 0x09,
+		0x08, 0xC8, 0xD8, 0x18, 0x19, 0xD9, 0x1B, 0xDB, 0xDA, 0x1A,
+		0x1E, 0xDE, 0xDF, 0x1F, 0xDD, 0x1D, 0x1C, 0xDC, 0x14, 0xD4,
+		0xD5, 0x15, 0xD7, 0x17, 0x16, 0xD6, 0xD2, 0x12, 0x13, 0xD3,
+		0x11, 0xD1, 0xD0, 0x10, 0xF0, 0x30, 0x31, 0xF1, 0x33, 0xF3,
+		0xF2, 0x32, 0x36, 0xF6, 0xF7, 0x37, 0xF5, 0x35, 0x34, 0xF4,
+		0x3C, 0xFC, 0xFD, 0x3D, 0xFF, 0x3F, 0x3E, 0xFE, 0xFA, 0x3A,
+		0x3B, 0xFB, 0x39, 0xF9, 0xF8, 0x38, 0x28, 0xE8, 0xE9, 0x29,
+		0xEB, 0x2B, 0x2A, 0xEA, 0xEE, 0x2E, 0x2F, 0xEF, 0x2D, 0xED,
+		0xEC, 0x2C, 0xE4, 0x24, 0x25, 0xE5, 0x27, 0xE7, 0xE6, 0x26,
+		0x22, 0xE2, 0xE3, 0x23, 0xE1, 0x21, 0x20, 0xE0, 0xA0, 0x60,
+		0x61, 0xA1, 0x63, 0xA3, 0xA2, 0x62, 0x66, 0xA6, 0xA7, 0x67,
+		0xA5, 0x65, 0x64, 0xA4, 0x6C, 0xAC, 0xAD, 0x6D, 0xAF, 0x6F,
+		0x6E, 0xAE, 0xAA, 0x6A, 0x6B, 0xAB, 0x69, 0xA9, 0xA8, 0x68,
+		0x78, 0xB8, 0xB9, 0x79, 0xBB, 0x7B, 0x7A, 0xBA, 0xBE, 0x7E,
+		0x7F, 0xBF, 0x7D, 0xBD, 0xBC, 0x7C, 0xB4, 0x74, 0x75, 0xB5,
+		0x77, 0xB7, 0xB6, 0x76, 0x72, 0xB2, 0xB3, 0x73, 0xB1, 0x71,
+		0x70, 0xB0, 0x50, 0x90, 0x91, 0x51, 0x93, 0x53, 0x52, 0x92,
+		0x96, 0x56, 0x57, 0x97, 0x55, 0x95, 0x94, 0x54, 0x9C, 0x5C,
+		0x5D, 0x9D, 0x5F, 0x9F, 0x9E, 0x5E, 0x5A, 0x9A, 0x9B, 0x5B,
+		0x99, 0x59, 0x58, 0x98, 0x88, 0x48, 0x49, 0x89, 0x4B, 0x8B,
+		0x8A, 0x4A, 0x4E, 0x8E, 0x8F, 0x4F, 0x8D, 0x4D, 0x4C, 0x8C,
+		0x44, 0x84, 0x85, 0x45, 0x87, 0x47, 0x46, 0x86, 0x82, 0x42,
+		0x43, 0x83, 0x41, 0x81, 0x80, 0x40
+	};
+}